@@ -31,6 +31,7 @@ import omero.api.AMD_RawPixelsStore_getStack;
 import omero.api.AMD_RawPixelsStore_getStackOffset;
 import omero.api.AMD_RawPixelsStore_getStackSize;
 import omero.api.AMD_RawPixelsStore_getTile;
+import omero.api.AMD_RawPixelsStore_getTiles;
 import omero.api.AMD_RawPixelsStore_getTimepoint;
 import omero.api.AMD_RawPixelsStore_getTimepointOffset;
 import omero.api.AMD_RawPixelsStore_getTimepointSize;
@@ -273,6 +274,16 @@ public class RawPixelsStoreI extends AbstractPyramidServant implements
         callInvokerOnRawArgs(__cb, __current, z, c, t, x, y, w, h);
     }
 
+    /* (non-Javadoc)
+     * @see omero.api._RawPixelsStoreOperations#getTiles_async(omero.api.AMD_RawPixelsStore_getTiles, int, int, int, java.util.List, Ice.Current)
+     */
+    public void getTiles_async(AMD_RawPixelsStore_getTiles __cb, int z, int c,
+            int t, List<Integer> regions, Current __current)
+            throws ServerError
+    {
+        callInvokerOnRawArgs(__cb, __current, z, c, t, regions);
+    }
+
     /* (non-Javadoc)
      * @see omero.api._RawPixelsStoreOperations#setTile_async(omero.api.AMD_RawPixelsStore_setTile, byte[], int, int, int, int, int, int, int, Ice.Current)
      */
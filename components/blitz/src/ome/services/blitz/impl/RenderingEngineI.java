@@ -47,6 +47,7 @@ import omero.api.AMD_RenderingEngine_removeCodomainMapFromChannel;
 import omero.api.AMD_RenderingEngine_render;
 import omero.api.AMD_RenderingEngine_renderAsPackedInt;
 import omero.api.AMD_RenderingEngine_renderCompressed;
+import omero.api.AMD_RenderingEngine_renderCompressedAs;
 import omero.api.AMD_RenderingEngine_renderProjectedAsPackedInt;
 import omero.api.AMD_RenderingEngine_renderProjectedCompressed;
 import omero.api.AMD_RenderingEngine_resetDefaultSettings;
@@ -352,6 +353,12 @@ public class RenderingEngineI extends AbstractPyramidServant implements
         callInvokerOnRawArgs(__cb, __current, def);
     }
 
+    public void renderCompressedAs_async(
+            AMD_RenderingEngine_renderCompressedAs __cb, PlaneDef def,
+            String format, Current __current) throws ServerError {
+        callInvokerOnRawArgs(__cb, __current, def, format);
+    }
+
     public void renderProjectedAsPackedInt_async(
             AMD_RenderingEngine_renderProjectedAsPackedInt __cb, 
             ProjectionType algorithm, int timepoint, int stepping, int start, 
@@ -15,6 +15,7 @@ import omero.api.AMD_ThumbnailStore_createThumbnail;
 import omero.api.AMD_ThumbnailStore_createThumbnails;
 import omero.api.AMD_ThumbnailStore_createThumbnailsByLongestSideSet;
 import omero.api.AMD_ThumbnailStore_getRenderingDefId;
+import omero.api.AMD_ThumbnailStore_getPyramidProgress;
 import omero.api.AMD_ThumbnailStore_getThumbnail;
 import omero.api.AMD_ThumbnailStore_getThumbnailByLongestSide;
 import omero.api.AMD_ThumbnailStore_getThumbnailByLongestSideDirect;
@@ -144,6 +145,13 @@ public class ThumbnailStoreI extends AbstractCloseableAmdServant implements
 
     }
 
+    public void getPyramidProgress_async(
+            AMD_ThumbnailStore_getPyramidProgress __cb, Current __current)
+            throws ServerError {
+        callInvokerOnRawArgs(__cb, __current);
+
+    }
+
     public void setRenderingDefId_async(
             AMD_ThumbnailStore_setRenderingDefId __cb, long renderingDefId,
             Current __current) throws ServerError {
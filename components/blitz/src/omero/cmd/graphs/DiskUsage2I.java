@@ -434,15 +434,15 @@ public class DiskUsage2I extends DiskUsage2 implements IRequest {
                     }
                 }
             } else if ("Thumbnail".equals(className)) {
-                /* Thumbnails may have /OMERO/Thumbnails/<id> files */
+                /* Thumbnails may have /OMERO/Thumbnails/<id> files or be packed */
                 final String hql = "SELECT id, details.owner.id, details.group.id FROM Thumbnail WHERE id IN (:ids)";
                 for (final Object[] resultRow : queryService.projection(hql, parameters)) {
                     if (resultRow != null) {
                         final Long thumbnailId = (Long) resultRow[0];
                         final Long ownerId = (Long) resultRow[1];
                         final Long groupId = (Long) resultRow[2];
-                        final String thumbnailPath = thumbnailService.getThumbnailPath(thumbnailId);
-                        usage.bumpTotals().add(ownerId, groupId, className, getFileSize(thumbnailPath));
+                        final long thumbnailSize = thumbnailService.getThumbnailLength(thumbnailId);
+                        usage.bumpTotals().add(ownerId, groupId, className, thumbnailSize);
                     }
                 }
             } else if ("OriginalFile".equals(className)) {
@@ -60,8 +60,8 @@ public class RawDataFacility extends Facility implements AutoCloseable {
 
     /**
      * Get the histogram data for the given image, using default 256 bins and
-     * the channels global min/max for the histogram range. Currently only
-     * non-tiled images are supported.
+     * the channels global min/max for the histogram range. For tiled images
+     * the plane is that of the current resolution level of the pixels store.
      * 
      * @param ctx
      *            The {@link SecurityContext}
@@ -92,8 +92,9 @@ public class RawDataFacility extends Facility implements AutoCloseable {
     }
 
     /**
-     * Get the histogram data for the given image. Currently only non-tiled
-     * images are supported.
+     * Get the histogram data for the given image. For tiled images the
+     * plane and region are those of the current resolution level of the
+     * pixels store.
      * 
      * @param ctx
      *            The {@link SecurityContext}
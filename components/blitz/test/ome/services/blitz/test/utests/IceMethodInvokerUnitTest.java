@@ -205,6 +205,10 @@ public class IceMethodInvokerUnitTest extends MockObjectTestCase {
             return false;
         }
 
+        public double getPyramidProgress() {
+            return -1;
+        }
+
         public void setRenderingDefId(Long renderingDefId) {
         }
 
@@ -84,6 +84,21 @@ public interface RawPixelsStore extends StatefulServiceInterface {
 
     public byte[] getTile(int z, int c, int t, int x, int y, int w, int h);
 
+    /**
+     * Retrieves many tiles of a plane at once, e.g. those of a viewport.
+     * @param z offset across the Z-axis of the pixel buffer.
+     * @param c offset across the C-axis of the pixel buffer.
+     * @param t offset across the T-axis of the pixel buffer.
+     * @param regions the X offset, Y offset, width and height of each tile,
+     * which must lie within the plane.
+     * @return the data of the tiles, one after the other in the order of
+     * <code>regions</code>, each as returned by
+     * {@link #getTile(int, int, int, int, int, int, int)}. The tiles must
+     * not be larger in total than the maximum plane size.
+     * @since 5.4.0
+     */
+    public byte[] getTiles(int z, int c, int t, @Validate(Integer.class) List<Integer> regions);
+
     public byte[] getRegion(int size, long offset);
     
     public byte[] getRow(int y, int z, int c, int t);
@@ -56,6 +56,15 @@ public interface ThumbnailStore extends StatefulServiceInterface {
      */
     public boolean isInProgress();
 
+    /**
+     * Returns the progress of the generation of the pyramid when the last
+     * thumbnail retrieved is <i>in progress</i>, see {@link #isInProgress()}.
+     * @return The percentage of the pyramid generated or <code>-1</code> if
+     * no pyramid is being generated for the image.
+     * @since 5.4.0
+     */
+    public double getPyramidProgress();
+
     /**
      * This method manages the state of the service; it should be invoked
      * directly after {@link #setPixelsId(long)}. If it is not invoked with a
@@ -308,7 +317,9 @@ public interface ThumbnailStore extends StatefulServiceInterface {
      * without first calling {@link #setPixelsId(long)}. This method <b>will not</b>
      * reset or modify rendering settings in any way. If rendering settings for
      * a pixels set are not present, thumbnail creation for that pixels set
-     * <b>will not</b> be performed.
+     * <b>will not</b> be performed. The thumbnails of the other sizes the
+     * server is configured to pre-generate are created at the same time,
+     * scaled down from a single rendering of the plane.
      * 
      * @param size
      *            the size of the longest side of the thumbnail requested.
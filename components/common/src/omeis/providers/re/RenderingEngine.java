@@ -101,6 +101,27 @@ public interface RenderingEngine extends StatefulServiceInterface {
      * @see #renderAsPackedInt(PlaneDef)
      */
     public byte[] renderCompressed(PlaneDef pd);
+
+    /**
+     * Renders the data selected by <code>pd</code> according to the current
+     * rendering settings and encodes the resulting composite image in the
+     * specified format. The lossless and uncompressed formats avoid the cost
+     * of the JPEG encoding for clients on fast connections.
+     * 
+     * @param pd
+     *            Selects a plane orthogonal to one of the <i>X</i>, <i>Y</i>,
+     *            or <i>Z</i> axes.
+     * @param format
+     *            <code>jpeg</code>, <code>png</code> or <code>raw</code>
+     *            i.e. the packed integers returned by
+     *            {@link #renderAsPackedInt(PlaneDef)} as big-endian bytes.
+     * @return The encoded image.
+     * @throws ValidationException
+     *             If <code>pd</code> is <code>null</code> or if the format
+     *             is not supported.
+     * @see #renderCompressed(PlaneDef)
+     */
+    public byte[] renderCompressedAs(PlaneDef pd, String format);
     
     
     /**
@@ -5,12 +5,12 @@
 package omeis.providers.re;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ome.conditions.ResourceError;
-import ome.io.nio.PixelBuffer;
 import ome.model.core.Pixels;
 import ome.model.display.ChannelBinding;
 
@@ -23,6 +23,8 @@ import omeis.providers.re.quantum.QuantumStrategy;
 
 /**
  * Transforms a plane within a given pixels set into a greyscale image.
+ * The plane is divided into blocks which are rendered in parallel on the
+ * {@link RenderingExecutor} shared by all renderers.
  * 
  * @author Jean-Marie Burel &nbsp;&nbsp;&nbsp;&nbsp; <a
  *         href="mailto:j.burel@dundee.ac.uk">j.burel@dundee.ac.uk</a>
@@ -62,62 +64,22 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getRgbBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
         QuantumStrategy qs = 
         	renderer.getQuantumManager().getStrategyFor(channel);
         CodomainChain cc = renderer.getCodomainChain(channel);
         
         // Retrieve the planar data to render
-        performanceStats.startIO(channel);
-        Plane2D plane =
-        	PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
-        performanceStats.endIO(channel);
+        Plane2D plane;
+        synchronized (pixels) {
+            stats.startIO(channel);
+            renderer.restoreResolutionLevel(pixels);
+            plane = PlaneFactory.createPlane(planeDef, channel, metadata,
+                    pixels);
+            stats.endIO(channel);
+        }
 
         RGBBuffer buf = getRgbBuffer();
-        
-        byte value;
-        float alpha = channelBinding.getAlpha().floatValue() / 255;
-
-        int x1, x2, discreteValue, pixelIndex;
-        byte[] r = buf.getRedBand();
-        byte[] g = buf.getBlueBand();
-        byte[] b = buf.getGreenBand();
-        boolean hasMapContext = cc.hasMapContext();
-        if (plane.isXYPlanar())
-        {
-        	int planeSize = sizeX1 * sizeX2;
-            for (int i = 0; i < planeSize; i++)
-            {
-                for (x1 = 0; x1 < sizeX1; ++x1)
-                {
-                    discreteValue = qs.quantize(plane.getPixelValue(i));
-                    if (hasMapContext) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
-                    value = (byte) (discreteValue * alpha);
-                    r[i] = value;
-                    g[i] = value;
-                    b[i] = value;
-                }
-            }
-        }
-        else
-        {
-        	for (x2 = 0; x2 < sizeX2; ++x2) {
-        		for (x1 = 0; x1 < sizeX1; ++x1) {
-        			pixelIndex = sizeX1 * x2 + x1;
-        			discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-        			if (hasMapContext) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
-        			value = (byte) (discreteValue * alpha);
-        			r[pixelIndex] = value;
-        			g[pixelIndex] = value;
-        			b[pixelIndex] = value;
-        		}
-        	}
-        }
+        renderBlocks(buf, plane, qs, cc);
         return buf;
     }
     
@@ -139,8 +101,6 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getIntBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
         QuantumStrategy qs = 
         	renderer.getQuantumManager().getStrategyFor(channel);
         CodomainChain cc = renderer.getCodomainChain(channel);
@@ -148,57 +108,30 @@ class GreyScaleStrategy extends RenderingStrategy {
         // Retrieve the planar data to render
         
         Plane2D plane;
-        try {
-        	performanceStats.startIO(channel);
-        	plane = PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
-        	performanceStats.endIO(channel);
-		} finally
-		{
-			try
+        synchronized (pixels) {
+            try {
+                stats.startIO(channel);
+                renderer.restoreResolutionLevel(pixels);
+                plane = PlaneFactory.createPlane(planeDef, channel, metadata,
+                        pixels);
+                stats.endIO(channel);
+            } finally
             {
-                pixels.close();
-            } 
-            catch (IOException e)
-            {
-                log.error("Pixels could not be closed successfully.", e);
-    			throw new ResourceError(
-    					e.getMessage() + " Please check server log.");
+                try
+                {
+                    pixels.close();
+                }
+                catch (IOException e)
+                {
+                    log.error("Pixels could not be closed successfully.", e);
+                    throw new ResourceError(
+                            e.getMessage() + " Please check server log.");
+                }
             }
-		}
+        }
        
 	    RGBIntBuffer dataBuf = getIntBuffer();
-	    
-        int alpha = channelBinding.getAlpha();
-        int[] buf = ((RGBIntBuffer) dataBuf).getDataBuffer();
-        int x1, x2, discreteValue, pixelIndex;
-        boolean hasMapContext = cc.hasMapContext();
-        if (plane.isXYPlanar())
-        {
-        	int planeSize = sizeX1 * sizeX2;
-        	for (int i = 0; i < planeSize; i++)
-        	{
-                discreteValue = qs.quantize(plane.getPixelValue(i));
-                if (hasMapContext) {
-                    discreteValue = cc.transform(discreteValue);
-                }
-                buf[i] = alpha << 24 | discreteValue << 16
-                        | discreteValue << 8 | discreteValue;
-        	}
-        }
-        else
-        {
-        	for (x2 = 0; x2 < sizeX2; ++x2) {
-        		pixelIndex = sizeX1 * x2;
-        		for (x1 = 0; x1 < sizeX1; ++x1) {
-        			discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-        			if (hasMapContext) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
-        			buf[pixelIndex + x1] = alpha << 24 | discreteValue << 16
-        			| discreteValue << 8 | discreteValue;
-        		}
-        	}
-        }
+	    renderBlocks(dataBuf, plane, qs, cc);
 	    return dataBuf;
 	}
 
@@ -220,53 +153,54 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getRGBAIntBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
         QuantumStrategy qs = 
         	renderer.getQuantumManager().getStrategyFor(channel);
         CodomainChain cc = renderer.getCodomainChain(channel);
         
         // Retrieve the planar data to render
-        performanceStats.startIO(channel);
-        Plane2D plane =
-        	PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
-        performanceStats.endIO(channel);
+        Plane2D plane;
+        synchronized (pixels) {
+            stats.startIO(channel);
+            renderer.restoreResolutionLevel(pixels);
+            plane = PlaneFactory.createPlane(planeDef, channel, metadata,
+                    pixels);
+            stats.endIO(channel);
+        }
 	
 	    RGBAIntBuffer dataBuf = getRGBAIntBuffer();
-	    
-        int alpha = channelBinding.getAlpha();
-        int[] buf = ((RGBAIntBuffer) dataBuf).getDataBuffer();
-        int x1, x2, discreteValue, pixelIndex;
-        boolean hasMapContext = cc.hasMapContext();
-        if (plane.isXYPlanar())
-        {
-        	int planeSize = sizeX1 * sizeX2;
-        	for (int i = 0; i < planeSize; i++)
-        	{
-                discreteValue = qs.quantize(plane.getPixelValue(i));
-                if (hasMapContext) {
-                    discreteValue = cc.transform(discreteValue);
-                }
-                buf[i] = alpha | discreteValue << 24
-                        | discreteValue << 16 | discreteValue << 8;
-        	}
-        }
-        else
-        {
-        	for (x2 = 0; x2 < sizeX2; ++x2) {
-        		pixelIndex = sizeX1 * x2;
-        		for (x1 = 0; x1 < sizeX1; ++x1) {
-        			discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-        			discreteValue = cc.transform(discreteValue);
-        			buf[pixelIndex + x1] = alpha | discreteValue << 24
-        			| discreteValue << 16 | discreteValue << 8;
-        		}
-        	}
-        }
+	    renderBlocks(dataBuf, plane, qs, cc);
 	    return dataBuf;
 	}
 
 
+	/**
+	 * Renders the plane into the passed buffer, one task per block of the
+	 * plane, see {@link #makeBlocks()}. The tasks are run on the
+	 * {@link RenderingExecutor} shared by all renderers.
+	 *
+	 * @param buf The buffer to render into.
+	 * @param plane The wavelength data.
+	 * @param qs The quantum strategy of the channel.
+	 * @param cc The codomain chain of the channel.
+	 * @throws QuantizationException If an error occurs while quantizing a
+	 *             pixels intensity value.
+	 */
+	private void renderBlocks(RGBBuffer buf, Plane2D plane,
+	        QuantumStrategy qs, CodomainChain cc)
+	        throws QuantizationException {
+	    int alpha = channelBinding.getAlpha();
+	    List<int[]> blocks = makeBlocks();
+	    RenderingTask[] tasks = new RenderingTask[blocks.size()];
+	    for (int i = 0; i < tasks.length; i++) {
+	        int[] block = blocks.get(i);
+	        tasks[i] = new RenderGreyScaleRegionTask(buf, plane, qs, cc, alpha,
+	                sizeX1, block[0], block[1], block[2], block[3]);
+	    }
+	    stats.startQuantization();
+	    renderer.getExecutor().invokeAll(tasks);
+	    stats.endQuantization();
+	}
+
 	/**
 	 * Initializes the first active channel binding for the current rendering
 	 * context.
@@ -9,19 +9,13 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
-import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ome.conditions.ResourceError;
-import ome.io.nio.PixelBuffer;
 import ome.model.core.Pixels;
 import ome.model.display.ChannelBinding;
 import ome.model.display.QuantumDef;
@@ -31,8 +25,8 @@ import omeis.providers.re.codomain.CodomainChain;
 import omeis.providers.re.data.PlaneFactory;
 import omeis.providers.re.data.Plane2D;
 import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.lut.LutCache;
 import omeis.providers.re.lut.LutReader;
-import omeis.providers.re.lut.LutReaderFactory;
 import omeis.providers.re.quantum.BinaryMaskQuantizer;
 import omeis.providers.re.quantum.QuantizationException;
 import omeis.providers.re.quantum.QuantumStrategy;
@@ -43,9 +37,10 @@ import omeis.providers.re.quantum.QuantumStrategy;
  * each wavelength is mapped to a color. All these things are specified by the
  * rendering context.
  * <p>
- * This strategy renders the in "regions", dividing the planar data up based
- * on {@link #maxTasks} and assigning each task to its own thread. This should
- * result in parallel rendering on multi-processor machines.
+ * This strategy renders the in "regions", dividing the planar data up into
+ * blocks, see {@link #makeBlocks()}, and running the tasks on the
+ * {@link RenderingExecutor} shared by all renderers. This should result in
+ * parallel rendering on multi-processor machines.
  * </p>
  * <p>
  * Thread-safety relies on the fact that the rendering context is not going to
@@ -67,22 +62,6 @@ class HSBStrategy extends RenderingStrategy {
     /** The logger for this particular class */
     private static Logger log = LoggerFactory.getLogger(HSBStrategy.class);
     
-    /**
-     * Retrieves the maximum number of reasonable tasks to schedule based on
-     * image size and <i>maxTasks</i>.
-     * 
-     * @param size The width along the X2 axis.
-     * @return the number of tasks to schedule.
-     */
-    private int numTasks(int size) {
-        for (int i = maxTasks; i > 0; i--) {
-            if (size % i == 0) {
-                return i;
-            }
-        }
-        return 1;
-    }
-
     /**
      * Retrieves the wavelength data for all the active channels and overlays.
      * 
@@ -91,82 +70,52 @@ class HSBStrategy extends RenderingStrategy {
     private List<Plane2D> getWavelengthData(PlaneDef pDef) {
         ChannelBinding[] channelBindings = renderer.getChannelBindings();
         Pixels metadata = renderer.getMetadata();
-        PixelBuffer pixels = renderer.getPixels();
-        List<Plane2D> wData = null;
-        try
-        {
-        	RenderingStats performanceStats = renderer.getStats();
-        	wData = new ArrayList<Plane2D>();
-
-        	for (int w = 0; w < channelBindings.length; w++) {
-        		if (channelBindings[w].getActive()) {
-        			performanceStats.startIO(w);
-        			wData.add(PlaneFactory.createPlane(pDef, w, metadata, 
-        					pixels));
-        			performanceStats.endIO(w);
-        		}
-        	}
-        	Map<byte[], Integer> overlays = renderer.getOverlays();
-        	if (overlays != null)
-        	{
-        		for (byte[] overlay : overlays.keySet())
-        		{
-				ome.util.PixelData data =
-					new PixelData(PixelsType.VALUE_BIT, ByteBuffer.wrap(overlay));
-        			wData.add(new Plane2D(pDef, metadata, data));
-        		}
-        	}
-        }
-        finally
-        {
-            // Make sure that the pixel buffer is cleansed properly.
+        List<Plane2D> wData = new ArrayList<Plane2D>();
+        synchronized (pixels) {
             try
             {
-                pixels.close();
-            } 
-            catch (IOException e)
+                renderer.restoreResolutionLevel(pixels);
+                for (int w = 0; w < channelBindings.length; w++) {
+                    if (channelBindings[w].getActive()) {
+                        stats.startIO(w);
+                        wData.add(PlaneFactory.createPlane(pDef, w, metadata,
+                                pixels));
+                        stats.endIO(w);
+                    }
+                }
+            }
+            finally
             {
-                log.error("Pixels could not be closed successfully.", e);
-    			throw new ResourceError(
-    					e.getMessage() + " Please check server log.");
-            }        	
-        }
-
-        return wData;
-    }
-
-    /**
-     * Reads the Lut if it is valid.
-     *
-     * @param name The name of the lookup table.
-     * @param luts The collection of supported LUT.
-     * @return See above.
-     */
-    private LutReader initReader(String name, List<File> luts)
-    {
-        Iterator<File> i = luts.iterator();
-        if (name != null) {
-            name = name.toLowerCase();
-        }
-        while (i.hasNext()) {
-            File f = i.next();
-            String lutName = f.getName();
-            lutName = lutName.toLowerCase();
-            if (lutName.equals(name) ||
-                    FilenameUtils.getBaseName(lutName).equals(name)) {
-                try {
-                    return LutReaderFactory.read(f);
-                } catch (Exception e) {
-                    log.debug("cannot read lut "+f.getName(), e);
+                // Make sure that the pixel buffer is cleansed properly.
+                try
+                {
+                    pixels.close();
                 }
-                return null;
+                catch (IOException e)
+                {
+                    log.error("Pixels could not be closed successfully.", e);
+                    throw new ResourceError(
+                            e.getMessage() + " Please check server log.");
+                }
+            }
+        }
+        Map<byte[], Integer> overlays = renderer.getOverlays();
+        if (overlays != null)
+        {
+            for (byte[] overlay : overlays.keySet())
+            {
+                ome.util.PixelData data =
+                    new PixelData(PixelsType.VALUE_BIT, ByteBuffer.wrap(overlay));
+                wData.add(new Plane2D(pDef, metadata, data));
             }
         }
-        return null;
+
+        return wData;
     }
 
     /**
-     * Returns the lookup table readers if any.
+     * Returns the lookup table readers if any. The tables are read once and
+     * shared through the {@link LutCache}.
      *
      * @return See above.
      */
@@ -174,11 +123,12 @@ class HSBStrategy extends RenderingStrategy {
     {
         ChannelBinding[] channelBindings = renderer.getChannelBindings();
         List<File> luts = renderer.getAllLuts();
+        LutCache cache = LutCache.getDefault();
         List<LutReader> l = new ArrayList<LutReader>();
         for (int w = 0; w < channelBindings.length; w++) {
             ChannelBinding cb = channelBindings[w];
             if (cb.getActive()) {
-                l.add(initReader(cb.getLookupTable(), luts));
+                l.add(cache.get(cb.getLookupTable(), luts));
             }
         }
         return l;
@@ -235,6 +185,41 @@ class HSBStrategy extends RenderingStrategy {
         return colors;
     }
 
+    /**
+     * Returns the tables mapping the quantized values onto colour components
+     * for each active channel, or <code>null</code> if the buffer is not a
+     * packed integer buffer. The tables are cached by the
+     * {@link QuantumManager} and only rebuilt when the settings of the
+     * channel changed.
+     *
+     * @param buf The buffer to render into.
+     * @param colors The color of each active channel.
+     * @param readers The lookup table reader of each active channel.
+     * @return See above.
+     */
+    private List<int[]> getTables(RGBBuffer buf, List<int[]> colors,
+            List<LutReader> readers) {
+        boolean rgba = buf instanceof RGBAIntBuffer;
+        if (!rgba && !(buf instanceof RGBIntBuffer)) {
+            return null;
+        }
+        ChannelBinding[] channelBindings = renderer.getChannelBindings();
+        List<CodomainChain> chains = renderer.getCodomainChains();
+        QuantumManager qManager = renderer.getQuantumManager();
+        Optimizations optimizations = renderer.getOptimizations();
+        List<int[]> tables = new ArrayList<int[]>();
+        int i = 0;
+        for (int w = 0; w < channelBindings.length; w++) {
+            if (channelBindings[w].getActive()) {
+                int[] table = RenderHSBRegionTask.makeTable(chains.get(w),
+                        readers.get(i), colors.get(i), optimizations, rgba);
+                tables.add(qManager.getTable(w, table, stats));
+                i++;
+            }
+        }
+        return tables;
+    }
+
     /**
      * Retrieves the quantum strategy for each active channels
      * 
@@ -282,22 +267,21 @@ class HSBStrategy extends RenderingStrategy {
 
         //RenderingStats performanceStats = renderer.getStats();
         List<Plane2D> wData = getWavelengthData(def);
+        stats.startQuantization();
         List<int[]> colors = getColors();
         List<LutReader> readers = getLutReaders();
         List<QuantumStrategy> strategies = getStrategies();
-        // Create a number of rendering tasks.
-        int taskCount = numTasks(sizeX2);
-        int delta = sizeX2/taskCount;
-        int x1Start = 0;
-        int x1End = sizeX1;
-        int x2Start, x2End;
-        log.info("taskCount: "+taskCount+" delta: "+delta);
-        for (int i = 0; i < taskCount; i++) {
-            x2Start = i*delta;
-            x2End = (i+1)*delta;
+        List<int[]> tables = getTables(buf, colors, readers);
+        stats.endQuantization();
+        List<CodomainChain> chains = getChains();
+        Optimizations optimizations = renderer.getOptimizations();
+        // Create a rendering task for each block of the plane.
+        List<int[]> blocks = makeBlocks();
+        log.debug("taskCount: "+blocks.size());
+        for (int[] block : blocks) {
             tasks.add(new RenderHSBRegionTask(buf, wData, strategies,
-                    getChains(), colors, renderer.getOptimizations(),
-                    x1Start, x1End, x2Start, x2End, readers));
+                    chains, colors, optimizations, sizeX1,
+                    block[0], block[1], block[2], block[3], readers, tables));
         }
 
         // Turn the list into an array an return it.
@@ -373,42 +357,14 @@ class HSBStrategy extends RenderingStrategy {
      */
     private void render(RGBBuffer buf, PlaneDef planeDef) throws IOException,
             QuantizationException {
-        RenderingStats performanceStats = renderer.getStats();
-        // Process each active wavelength. If their number N > 1, then
-        // process N-1 async and one in the current thread. If N = 1,
-        // just use the current thread.
         RenderingTask[] tasks = makeRenderingTasks(planeDef, buf);
-        performanceStats.startRendering();
-        int n = tasks.length;
-        Future[] rndTskFutures = new Future[n]; // [0] unused.
-        ExecutorService processor = Executors.newCachedThreadPool();
-
-        while (0 < --n) {
-            rndTskFutures[n] = processor.submit(tasks[n]);
-        }
-
-        // Call the task in the current thread.
-        if (n == 0) {
-            tasks[0].call();
-        }
-
-        // Wait for all forked tasks (if any) to complete.
-        for (n = 1; n < rndTskFutures.length; ++n) {
-            try {
-                rndTskFutures[n].get();
-            } catch (Exception e) {
-                if (e instanceof QuantizationException) {
-                    throw (QuantizationException) e;
-                }
-                throw new RuntimeException(e);
-            }
-        }
-
-        // Shutdown the task processor
-        processor.shutdown();
+        stats.startRendering();
+        // Process each region on the shared rendering pool. The current
+        // thread takes part in the work instead of just waiting.
+        renderer.getExecutor().invokeAll(tasks);
 
         // End the performance metrics for this rendering event.
-        performanceStats.endRendering();
+        stats.endRendering();
     }
 
     /**
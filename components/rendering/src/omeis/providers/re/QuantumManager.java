@@ -7,6 +7,7 @@
 
 package omeis.providers.re;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -44,6 +45,12 @@ class QuantumManager {
     /** A quantum factory instance for looking up enumerations. */
     private final QuantumFactory factory;
 
+    /**
+     * The table mapping the quantized values onto colour components last
+     * used for each wavelength, see {@link #getTable(int, int[], RenderingStats)}.
+     */
+    private final int[][] tables;
+
     /**
      * Creates a new instance.
      * 
@@ -54,6 +61,7 @@ class QuantumManager {
         this.factory = factory;
         this.metadata = metadata;
         wavesStg = new QuantumStrategy[metadata.getSizeC().intValue()];
+        tables = new int[wavesStg.length][];
     }
 
     /**
@@ -122,4 +130,40 @@ class QuantumManager {
         return wavesStg[w];
     }
 
+    /**
+     * Returns the table mapping the quantized values of the specified
+     * wavelength onto colour components. The passed table is only kept if
+     * it differs from the one previously cached i.e. if the codomain chain,
+     * the color or the lookup table of the channel changed. The strategy of
+     * the wavelength is then prepared to map the pixel intensity values
+     * through the returned table, see
+     * {@link QuantumStrategy#prepareTable(int[])}.
+     *
+     * @param w
+     *            The wavelength index in the <i>OME</i> 5D-pixels file.
+     * @param table
+     *            The table built from the current settings of the channel.
+     * @param stats
+     *            The stats to notify of the cache hits and rebuilds.
+     * @return See above.
+     */
+    synchronized int[] getTable(int w, int[] table, RenderingStats stats) {
+        int[] cached = tables[w];
+        boolean rebuilt = false;
+        if (cached == null || !Arrays.equals(cached, table)) {
+            tables[w] = table;
+            cached = table;
+            rebuilt = true;
+        }
+        if (wavesStg[w].prepareTable(cached)) {
+            rebuilt = true;
+        }
+        if (rebuilt) {
+            stats.tableRebuilt();
+        } else {
+            stats.tableHit();
+        }
+        return cached;
+    }
+
 }
@@ -0,0 +1,167 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re;
+
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.quantum.QuantizationException;
+import omeis.providers.re.quantum.QuantumStrategy;
+
+/**
+ * A task object to render a block of a plane with the
+ * {@link GreyScaleStrategy}. The block is rendered row by row, the rows of
+ * <i>XY</i> planes being quantized in bulk.
+ *
+ * @since 5.4.0
+ */
+class RenderGreyScaleRegionTask implements RenderingTask {
+
+    /** Buffer to hold the output image's data. */
+    private final RGBBuffer dataBuffer;
+
+    /** The wavelength data. */
+    private final Plane2D plane;
+
+    /** How to quantize a pixel intensity value. */
+    private final QuantumStrategy qs;
+
+    /** The spatial transformations to apply to the quantized data. */
+    private final CodomainChain cc;
+
+    /** The alpha component of the channel, between 0 and 255. */
+    private final int alpha;
+
+    /** The number of pixels on the <i>X1</i>-axis of the rendered plane. */
+    private final int sizeX1;
+
+    /** The <i>X1</i>-axis start */
+    private final int x1Start;
+
+    /** The <i>X1</i>-axis end */
+    private final int x1End;
+
+    /** The <i>X2</i>-axis start */
+    private final int x2Start;
+
+    /** The <i>X2</i>-axis end */
+    private final int x2End;
+
+    /**
+     * Creates a new instance to render a block.
+     *
+     * @param dataBuffer
+     *            Buffer to hold the output image's data.
+     * @param plane
+     *            The wavelength data.
+     * @param qs
+     *            The quantum strategy of the wavelength.
+     * @param cc
+     *            The spatial transformations to apply to the quantized data.
+     * @param alpha
+     *            The alpha component of the channel, between 0 and 255.
+     * @param sizeX1
+     *            The number of pixels on the <i>X1</i>-axis of the rendered
+     *            plane i.e. the length of a row of the buffer.
+     * @param x1Start
+     *            The <i>X1</i>-axis start
+     * @param x1End
+     *            The <i>X1</i>-axis end
+     * @param x2Start
+     *            The <i>X2</i>-axis start
+     * @param x2End
+     *            The <i>X2</i>-axis end
+     */
+    RenderGreyScaleRegionTask(RGBBuffer dataBuffer, Plane2D plane,
+            QuantumStrategy qs, CodomainChain cc, int alpha, int sizeX1,
+            int x1Start, int x1End, int x2Start, int x2End) {
+        this.dataBuffer = dataBuffer;
+        this.plane = plane;
+        this.qs = qs;
+        this.cc = cc;
+        this.alpha = alpha;
+        this.sizeX1 = sizeX1;
+        this.x1Start = x1Start;
+        this.x1End = x1End;
+        this.x2Start = x2Start;
+        this.x2End = x2End;
+    }
+
+    /**
+     * Renders the block.
+     *
+     * @throws QuantizationException
+     *             If an error occurs while quantizing a pixels intensity value.
+     */
+    public Object call() throws QuantizationException {
+        int length = x1End - x1Start;
+        int[] values = new int[length];
+        int pix;
+        if (dataBuffer instanceof RGBIntBuffer) {
+            int[] buf = ((RGBIntBuffer) dataBuffer).getDataBuffer();
+            int a = alpha << 24;
+            for (int x2 = x2Start; x2 < x2End; ++x2) {
+                quantizeRow(x2, values);
+                pix = sizeX1 * x2 + x1Start;
+                for (int k = 0; k < length; ++k, ++pix) {
+                    int v = values[k];
+                    buf[pix] = a | v << 16 | v << 8 | v;
+                }
+            }
+        } else if (dataBuffer instanceof RGBAIntBuffer) {
+            int[] buf = ((RGBAIntBuffer) dataBuffer).getDataBuffer();
+            for (int x2 = x2Start; x2 < x2End; ++x2) {
+                quantizeRow(x2, values);
+                pix = sizeX1 * x2 + x1Start;
+                for (int k = 0; k < length; ++k, ++pix) {
+                    int v = values[k];
+                    buf[pix] = alpha | v << 24 | v << 16 | v << 8;
+                }
+            }
+        } else {
+            byte[] r = dataBuffer.getRedBand();
+            byte[] g = dataBuffer.getGreenBand();
+            byte[] b = dataBuffer.getBlueBand();
+            float ratio = (float) alpha / 255;
+            byte value;
+            for (int x2 = x2Start; x2 < x2End; ++x2) {
+                quantizeRow(x2, values);
+                pix = sizeX1 * x2 + x1Start;
+                for (int k = 0; k < length; ++k, ++pix) {
+                    value = (byte) (values[k] * ratio);
+                    r[pix] = value;
+                    g[pix] = value;
+                    b[pix] = value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Quantizes one row of the block and applies the codomain chain if
+     * required.
+     *
+     * @param x2 The <i>X2</i>-axis position of the row.
+     * @param values The array to write the quantized values into.
+     * @throws QuantizationException
+     *             if there is an error during pixel value quantization.
+     */
+    private void quantizeRow(int x2, int[] values)
+        throws QuantizationException {
+        int length = x1End - x1Start;
+        if (plane.isXYPlanar()) {
+            qs.quantize(plane.getData(), sizeX1 * x2 + x1Start, length, values);
+        } else {
+            for (int x1 = x1Start; x1 < x1End; ++x1) {
+                values[x1 - x1Start] = qs.quantize(plane.getPixelValue(x1, x2));
+            }
+        }
+        if (cc.hasMapContext()) {
+            for (int k = 0; k < length; ++k) {
+                values[k] = cc.transform(values[k]);
+            }
+        }
+    }
+}
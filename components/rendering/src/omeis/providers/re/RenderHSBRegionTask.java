@@ -54,6 +54,9 @@ class RenderHSBRegionTask implements RenderingTask {
      */
     private List<int[]> colors;
 
+    /** The number of pixels on the <i>X1</i>-axis of the rendered plane. */
+    private int sizeX1;
+
     /** The <i>X1</i>-axis start */
     private int x1Start;
 
@@ -72,6 +75,12 @@ class RenderHSBRegionTask implements RenderingTask {
     /** The collection of readers.*/
     private List<LutReader> readers;
 
+    /**
+     * The tables mapping the quantized values onto colour components, one
+     * per active channel, see {@link #makeTable}. May be <code>null</code>.
+     */
+    private List<int[]> tables;
+
     /**
      * Creates a new instance to render a wavelength.
      * 
@@ -86,6 +95,11 @@ class RenderHSBRegionTask implements RenderingTask {
      * @param colors
      *            The color components to use when mapping quantized values onto
      *            the color space.
+     * @param optimizations
+     *            The optimizations that the renderer has turned on.
+     * @param sizeX1
+     *            The number of pixels on the <i>X1</i>-axis of the rendered
+     *            plane i.e. the length of a row of the buffer.
      * @param x1Start
      *            The <i>X1</i>-axis start
      * @param x1End
@@ -95,23 +109,89 @@ class RenderHSBRegionTask implements RenderingTask {
      * @param x2End
      *            The <i>X2</i>-axis end
      * @param readers The lookup table readers.
+     * @param tables The tables mapping the quantized values onto colour
+     *            components or <code>null</code>.
      */
     RenderHSBRegionTask(RGBBuffer dataBuffer, List<Plane2D> wData,
             List<QuantumStrategy> strategies, List<CodomainChain> chains,
-            List<int[]> colors, Optimizations optimizations,
+            List<int[]> colors, Optimizations optimizations, int sizeX1,
             int x1Start, int x1End, int x2Start, int x2End,
-            List<LutReader> readers) {
+            List<LutReader> readers, List<int[]> tables) {
         this.dataBuffer = dataBuffer;
         this.wData = wData;
         this.strategies = strategies;
         this.chains = chains;
         this.colors = colors;
         this.optimizations = optimizations;
+        this.sizeX1 = sizeX1;
         this.x1Start = x1Start;
         this.x1End = x1End;
         this.x2Start = x2Start;
         this.x2End = x2End;
         this.readers = readers;
+        this.tables = tables;
+    }
+
+    /**
+     * Builds the table mapping each value of the codomain interval onto the
+     * colour components a channel adds to a packed integer buffer. The
+     * codomain chain and either the lookup table or the color of the channel
+     * are folded into the table, so the rendering loops only have to add the
+     * entry to the pixel.
+     *
+     * @param cc The codomain chain of the channel.
+     * @param reader The lookup table reader of the channel or
+     *            <code>null</code>.
+     * @param color The color of the channel.
+     * @param optimizations The optimizations that the renderer has turned on.
+     * @param rgba Pass <code>true</code> if the table is used to render into
+     *            a {@link RGBAIntBuffer}, <code>false</code> otherwise.
+     * @return See above.
+     */
+    static int[] makeTable(CodomainChain cc, LutReader reader, int[] color,
+            Optimizations optimizations, boolean rgba) {
+        int[] table = new int[QuantumStrategy.MAX + 1];
+        boolean hasMap = cc.hasMapContext();
+        boolean isPrimaryColor = optimizations.isPrimaryColorEnabled()
+                && reader == null;
+        boolean isAlphaless = optimizations.isAlphalessRendering();
+        int colorOffset = 0;
+        if (isPrimaryColor) {
+            colorOffset = rgba ? getColorOffsetAsRGBA(color)
+                    : getColorOffset(color);
+        }
+        double redRatio = color[ColorsFactory.RED_INDEX] > 0 ?
+                color[ColorsFactory.RED_INDEX] / 255.0 : 0.0;
+        double greenRatio = color[ColorsFactory.GREEN_INDEX] > 0 ?
+                color[ColorsFactory.GREEN_INDEX] / 255.0 : 0.0;
+        double blueRatio = color[ColorsFactory.BLUE_INDEX] > 0 ?
+                color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
+        float alpha = new Integer(
+                color[ColorsFactory.ALPHA_INDEX]).floatValue() / 255;
+        int v, r, g, b;
+        for (int i = 0; i < table.length; i++) {
+            v = hasMap ? cc.transform(i) : i;
+            if (isPrimaryColor) {
+                table[i] = v << colorOffset;
+                continue;
+            }
+            if (reader != null) {
+                r = reader.getRed(v) & 0xFF;
+                g = reader.getGreen(v) & 0xFF;
+                b = reader.getBlue(v) & 0xFF;
+            } else {
+                r = (int) (redRatio * v);
+                g = (int) (greenRatio * v);
+                b = (int) (blueRatio * v);
+                if (!isAlphaless) {
+                    r *= alpha;
+                    g *= alpha;
+                    b *= alpha;
+                }
+            }
+            table[i] = r << 16 | g << 8 | b;
+        }
+        return table;
     }
 
     /**
@@ -144,11 +224,12 @@ class RenderHSBRegionTask implements RenderingTask {
         int rValue, gValue, bValue;
         float v;
 
-        int width = x1End - x1Start;
+        int width = sizeX1;
         int i = 0;
         byte[] r = dataBuffer.getRedBand();
         byte[] g = dataBuffer.getGreenBand();
         byte[] b = dataBuffer.getBlueBand();
+        int[] discreteValues = new int[x1End - x1Start];
         LutReader reader;
         CodomainChain cc;
         for (Plane2D plane : wData) {
@@ -164,12 +245,11 @@ class RenderHSBRegionTask implements RenderingTask {
             float alpha = new Float(
                     color[ColorsFactory.ALPHA_INDEX]).floatValue() / 65025;// 255*255
             for (int x2 = x2Start; x2 < x2End; ++x2) {
+                quantizeRow(plane, qs, cc, hasMap, x2, width, discreteValues,
+                        null);
                 for (int x1 = x1Start; x1 < x1End; ++x1) {
                     pix = width * x2 + x1;
-                    discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-                    if (hasMap) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
+                    discreteValue = discreteValues[x1 - x1Start];
 
                     if (reader != null) {
                         int r1 = ((r[pix] & 0x00FF0000) >> 16);
@@ -226,9 +306,10 @@ class RenderHSBRegionTask implements RenderingTask {
         int newRValue, newGValue, newBValue;
         int colorOffset = 24;  // Only used when we're doing primary color.
 
-        int width = x1End - x1Start;
+        int width = sizeX1;
         int i = 0;
         int[] buf = ((RGBIntBuffer) dataBuffer).getDataBuffer();
+        int[] discreteValues = new int[x1End - x1Start];
         boolean isPrimaryColor = optimizations.isPrimaryColorEnabled();
         boolean isAlphaless = optimizations.isAlphalessRendering();
         LutReader reader;
@@ -247,9 +328,6 @@ class RenderHSBRegionTask implements RenderingTask {
                      color[ColorsFactory.GREEN_INDEX] / 255.0 : 0.0;
             blueRatio = color[ColorsFactory.BLUE_INDEX] > 0 ? 
                      color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
-            boolean isXYPlanar = plane.isXYPlanar();
-            PixelData data = plane.getData();
-            int bytesPerPixel = data.bytesPerPixel();
 
             // Get our color offset if we've got the primary color optimization
             // enabled.
@@ -258,19 +336,54 @@ class RenderHSBRegionTask implements RenderingTask {
 
             float alpha = new Integer(
                     color[ColorsFactory.ALPHA_INDEX]).floatValue() / 255;
+            int[] table = getTable(i);
             for (int x2 = x2Start; x2 < x2End; ++x2) {
+                quantizeRow(plane, qs, cc, hasMap, x2, width, discreteValues,
+                        table);
+                if (table != null) {
+                    // The colour components of each value were computed once
+                    // for the channel, see makeTable().
+                    pix = width * x2 + x1Start;
+                    if (isPrimaryColor && reader == null) {
+                        for (int k = 0; k < discreteValues.length; ++k, ++pix) {
+                            buf[pix] |= 0xFF000000 | discreteValues[k];
+                        }
+                        continue;
+                    }
+                    for (int k = 0; k < discreteValues.length; ++k, ++pix) {
+                        int c = discreteValues[k];
+                        rValue = ((buf[pix] & 0x00FF0000) >> 16)
+                                + ((c >> 16) & 0xFF);
+                        gValue = ((buf[pix] & 0x0000FF00) >> 8)
+                                + ((c >> 8) & 0xFF);
+                        bValue = (buf[pix] & 0x000000FF) + (c & 0xFF);
+                        if (rValue > 255) {
+                            rValue = 255;
+                        }
+                        if (gValue > 255) {
+                            gValue = 255;
+                        }
+                        if (bValue > 255) {
+                            bValue = 255;
+                        }
+                        buf[pix] = 0xFF000000 | rValue << 16 | gValue << 8
+                                | bValue;
+                    }
+                    continue;
+                }
+                if (reader == null && colorOffset != 24)
+                {
+                    // Primary colour optimization is in effect, shift the
+                    // whole row into the correct colour component slot.
+                    pix = width * x2 + x1Start;
+                    for (int k = 0; k < discreteValues.length; ++k, ++pix) {
+                        buf[pix] |= 0xFF000000 | discreteValues[k] << colorOffset;
+                    }
+                    continue;
+                }
                 for (int x1 = x1Start; x1 < x1End; ++x1) {
                     pix = width * x2 + x1;
-                    if (isXYPlanar)
-                        discreteValue =
-                        qs.quantize(
-                                data.getPixelValueDirect(pix * bytesPerPixel));
-                    else
-                        discreteValue =
-                            qs.quantize(plane.getPixelValue(x1, x2));
-                    if (hasMap) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
+                    discreteValue = discreteValues[x1 - x1Start];
                     if (reader != null) {
                         int r1 = ((buf[pix] & 0x00FF0000) >> 16);
                         int r2 = reader.getRed(discreteValue) & 0xFF;
@@ -293,16 +406,6 @@ class RenderHSBRegionTask implements RenderingTask {
                         buf[pix] = 0xFF000000 | r << 16 | g << 8 | b;
                         continue;
                     }
-                    // Primary colour optimization is in effect, we don't need
-                    // to do any of the sillyness below just shift the value
-                    // into the correct colour component slot and move on to
-                    // the next pixel value.
-                    if (colorOffset != 24)
-                    {
-                        buf[pix] |= 0xFF000000;  // Alpha.
-                        buf[pix] |= discreteValue << colorOffset;
-                        continue;
-                    }
                     newRValue = (int) (redRatio * discreteValue);
                     newGValue = (int) (greenRatio * discreteValue);
                     newBValue = (int) (blueRatio * discreteValue);
@@ -373,9 +476,10 @@ class RenderHSBRegionTask implements RenderingTask {
         int newRValue, newGValue, newBValue;
         int colorOffset = 32;  // Only used when we're doing primary color.
 
-        int width = x1End - x1Start;
+        int width = sizeX1;
         int i = 0;
         int[] buf = ((RGBAIntBuffer) dataBuffer).getDataBuffer();
+        int[] discreteValues = new int[x1End - x1Start];
         boolean isPrimaryColor = optimizations.isPrimaryColorEnabled();
         boolean isAlphaless = optimizations.isAlphalessRendering();
         LutReader reader;
@@ -392,9 +496,6 @@ class RenderHSBRegionTask implements RenderingTask {
                     color[ColorsFactory.GREEN_INDEX] / 255.0 : 0.0;
             blueRatio = color[ColorsFactory.BLUE_INDEX] > 0 ? 
                     color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
-            boolean isXYPlanar = plane.isXYPlanar();
-            PixelData data = plane.getData();
-            int bytesPerPixel = data.bytesPerPixel();
 
             // Get our color offset if we've got the primary color optimization
             // enabled.
@@ -402,19 +503,54 @@ class RenderHSBRegionTask implements RenderingTask {
                 colorOffset = getColorOffsetAsRGBA(color);
 
             float alpha = new Integer(color[ColorsFactory.ALPHA_INDEX]).floatValue() / 255;
+            int[] table = getTable(i);
             for (int x2 = x2Start; x2 < x2End; ++x2) {
+                quantizeRow(plane, qs, cc, hasMap, x2, width, discreteValues,
+                        table);
+                if (table != null) {
+                    // The colour components of each value were computed once
+                    // for the channel, see makeTable().
+                    pix = width * x2 + x1Start;
+                    if (isPrimaryColor && reader == null) {
+                        for (int k = 0; k < discreteValues.length; ++k, ++pix) {
+                            buf[pix] |= 0x000000FF | discreteValues[k];
+                        }
+                        continue;
+                    }
+                    for (int k = 0; k < discreteValues.length; ++k, ++pix) {
+                        int c = discreteValues[k];
+                        rValue = ((buf[pix] & 0xFF000000) >> 24)
+                                + ((c >> 16) & 0xFF);
+                        gValue = ((buf[pix] & 0x00FF0000) >> 16)
+                                + ((c >> 8) & 0xFF);
+                        bValue = ((buf[pix] & 0x0000FF00) >> 8) + (c & 0xFF);
+                        if (rValue > 255) {
+                            rValue = 255;
+                        }
+                        if (gValue > 255) {
+                            gValue = 255;
+                        }
+                        if (bValue > 255) {
+                            bValue = 255;
+                        }
+                        buf[pix] = 0x000000FF | rValue << 24 | gValue << 16
+                                | bValue << 8;
+                    }
+                    continue;
+                }
+                if (reader == null && colorOffset != 32)
+                {
+                    // Primary colour optimization is in effect, shift the
+                    // whole row into the correct colour component slot.
+                    pix = width * x2 + x1Start;
+                    for (int k = 0; k < discreteValues.length; ++k, ++pix) {
+                        buf[pix] |= 0x000000FF | discreteValues[k] << colorOffset;
+                    }
+                    continue;
+                }
                 for (int x1 = x1Start; x1 < x1End; ++x1) {
                     pix = width * x2 + x1;
-                    if (isXYPlanar)
-                        discreteValue =
-                        qs.quantize(
-                                data.getPixelValueDirect(pix * bytesPerPixel));
-                    else
-                        discreteValue =
-                            qs.quantize(plane.getPixelValue(x1, x2));
-                    if (hasMap) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
+                    discreteValue = discreteValues[x1 - x1Start];
                     if (reader != null) {
                         int r1 = ((buf[pix] & 0xFF000000) >> 24);
                         int r2 = reader.getRed(discreteValue) & 0xFF;
@@ -437,15 +573,6 @@ class RenderHSBRegionTask implements RenderingTask {
                         buf[pix] = 0x000000FF | r << 24 | g << 16 | b << 8;
                         continue;
                     }
-                    // Primary colour optimization is in effect, we just shift
-                    // the value into the correct colour component slot and
-                    // move on to the next pixel value.
-                    if (colorOffset != 32)
-                    {
-                        buf[pix] |= 0x000000FF;  // Alpha.
-                        buf[pix] |= discreteValue << colorOffset;
-                        continue;
-                    }
                     newRValue = (int) (redRatio * discreteValue);
                     newGValue = (int) (greenRatio * discreteValue);
                     newBValue = (int) (blueRatio * discreteValue);
@@ -493,12 +620,75 @@ class RenderHSBRegionTask implements RenderingTask {
         }
     }
     
+    /**
+     * Quantizes one row of the region and applies the codomain chain if
+     * required, or maps the row through the table of the channel if any. For <i>XY</i> planes the whole row is handed to the quantum
+     * strategy which reads the backing buffer with the primitive type of the
+     * pixels, see {@link QuantumStrategy#quantize(PixelData, int, int, int[])}.
+     *
+     * @param plane The wavelength data.
+     * @param qs The quantum strategy of the wavelength.
+     * @param cc The codomain chain of the wavelength.
+     * @param hasMap Whether or not the codomain chain has to be applied.
+     * @param x2 The <i>X2</i>-axis position of the row.
+     * @param width The width of the plane.
+     * @param values The array to write the quantized values into.
+     * @param table The table to map the quantized values through instead of
+     *            the codomain chain or <code>null</code>.
+     * @throws QuantizationException
+     *             if there is an error during pixel value quantization.
+     */
+    private void quantizeRow(Plane2D plane, QuantumStrategy qs,
+            CodomainChain cc, boolean hasMap, int x2, int width, int[] values,
+            int[] table)
+        throws QuantizationException {
+        int length = x1End - x1Start;
+        if (table != null) {
+            if (plane.isXYPlanar()) {
+                qs.quantize(plane.getData(), width * x2 + x1Start, length,
+                        values, table);
+            } else {
+                for (int x1 = x1Start; x1 < x1End; ++x1) {
+                    values[x1 - x1Start] =
+                        table[qs.quantize(plane.getPixelValue(x1, x2))];
+                }
+            }
+            return;
+        }
+        if (plane.isXYPlanar()) {
+            qs.quantize(plane.getData(), width * x2 + x1Start, length, values);
+        } else {
+            for (int x1 = x1Start; x1 < x1End; ++x1) {
+                values[x1 - x1Start] = qs.quantize(plane.getPixelValue(x1, x2));
+            }
+        }
+        if (hasMap) {
+            for (int k = 0; k < length; ++k) {
+                values[k] = cc.transform(values[k]);
+            }
+        }
+    }
+
+    /**
+     * Returns the table of the specified channel if any.
+     *
+     * @param i The index of the channel in the rendered wavelength data.
+     * @return See above.
+     */
+    private int[] getTable(int i)
+    {
+        if (tables == null || i >= tables.size()) {
+            return null;
+        }
+        return tables.get(i);
+    }
+
     /**
      * Returns a color offset based on which color component is 0xFF.
      * @param color the color to check.
      * @return an integer color offset in bits.
      */
-    private int getColorOffset(int[] color)
+    private static int getColorOffset(int[] color)
     {
     	if (color[ColorsFactory.RED_INDEX] == 255)
     		return 16;
@@ -516,7 +706,7 @@ class RenderHSBRegionTask implements RenderingTask {
 	 * of RGBA, rather than java colour components which are ARGB.
      * @return an integer color offset in bits.
      */
-    private int getColorOffsetAsRGBA(int[] color)
+    private static int getColorOffsetAsRGBA(int[] color)
     {
     	if (color[ColorsFactory.RED_INDEX] == 255)
     		return 24;
@@ -120,16 +120,16 @@ public class Renderer {
     private List<CodomainChain> codomainChains;
 
     /**
-     * Takes care of the actual rendering, using this <code>Renderer</code> as
-     * a rendering context.
+     * Collects performance measurements during the last invocation of the
+     * {@link #render(PlaneDef) render} method.
      */
-    private RenderingStrategy renderingStrategy;
+    private volatile RenderingStats stats;
 
     /**
-     * Collects performance measurements during each invocation of the
-     * {@link #render(PlaneDef) render} method.
+     * The resolution level the pixels data is read at or <code>null</code>
+     * to use the default level of the buffer.
      */
-    private RenderingStats stats;
+    private volatile Integer resolutionLevel;
 
     /** Renderer optimizations. */
     private Optimizations optimizations = new Optimizations();
@@ -140,6 +140,9 @@ public class Renderer {
     /** The collections of available lookup tables.*/
     private List<File> luts;
 
+    /** The pool the rendering tasks are run on. */
+    private RenderingExecutor executor;
+
     /**
      * Returns a copy of a list of channel bindings with one element removed;
      * the so called "other" channel bindings for the image.
@@ -354,6 +357,27 @@ public class Renderer {
     		List<RenderingModel> renderingModels, Pixels pixelsObj,
             RenderingDef renderingDefObj, PixelBuffer bufferObj,
             List<File> luts) {
+        this(quantumFactory, renderingModels, pixelsObj, renderingDefObj,
+                bufferObj, luts, RenderingExecutor.getDefault());
+    }
+
+    /**
+     * Creates a new instance to render the specified pixels set and get this
+     * new instance ready for rendering.
+     * 
+     * @param quantumFactory a populated quantum factory.
+     * @param renderingModels an enumerated list of all rendering models.
+     * @param pixelsObj Pixels object.
+     * @param renderingDefObj Rendering definition object.
+     * @param bufferObj PixelBuffer object.
+     * @param luts the available lookup tables.
+     * @param executor the pool shared by the renderers of this server.
+     * @throws NullPointerException If <code>null</code> parameters are passed.
+     */
+    public Renderer(QuantumFactory quantumFactory,
+            List<RenderingModel> renderingModels, Pixels pixelsObj,
+            RenderingDef renderingDefObj, PixelBuffer bufferObj,
+            List<File> luts, RenderingExecutor executor) {
         metadata = pixelsObj;
         rndDef = renderingDefObj;
         buffer = bufferObj;
@@ -364,7 +388,10 @@ public class Renderer {
             throw new NullPointerException("Expecting not null rndDef");
         } else if (buffer == null) {
             throw new NullPointerException("Expecting not null buffer");
+        } else if (executor == null) {
+            throw new NullPointerException("Expecting not null executor");
         }
+        this.executor = executor;
 
    
         // Create and configure the quantum strategies.
@@ -395,9 +422,6 @@ public class Renderer {
                     qd.getCdEnd().intValue(), nl));
         }
 
-        // Create an appropriate rendering strategy.
-        renderingStrategy = RenderingStrategy.makeNew(rndDef.getModel());
-        
         // Examine the metadata we've been given and enable optimizations.
         checkOptimizations();
     }
@@ -407,15 +431,27 @@ public class Renderer {
      *
      * @return See above.
      */
-    List<File> getAllLuts()
+    public List<File> getAllLuts()
     {
         return luts;
     }
+
+    /**
+     * Returns the pool the rendering tasks are run on.
+     *
+     * @return See above.
+     */
+    RenderingExecutor getExecutor()
+    {
+        return executor;
+    }
+
     /**
      * Specifies the model that dictates how transformed raw data has to be
      * mapped onto a color space. This class delegates the actual rendering to a
      * {@link RenderingStrategy}, which is selected depending on that model. So
-     * setting the model also results in changing the rendering strategy.
+     * setting the model also results in changing the rendering strategy of
+     * the next renders.
      * 
      * @param model
      *            Identifies the color space model.
@@ -423,7 +459,6 @@ public class Renderer {
     public void setModel(RenderingModel model)
     {
         rndDef.setModel(model);
-        renderingStrategy = RenderingStrategy.makeNew(model);
     }
 
     /**
@@ -502,12 +537,10 @@ public class Renderer {
         if (pd == null) {
             throw new NullPointerException("No plane definition.");
         }
-        checkRegionDef(pd.getRegion());
-        stats = new RenderingStats(this, pd);
-        log.info("Using: '" + renderingStrategy.getClass().getName()
-                + "' rendering strategy.");
+        RenderingStrategy renderingStrategy = newRenderingStrategy(pd, buffer);
         RGBBuffer img = renderingStrategy.render(this, pd);
-        stats.stop();
+        renderingStrategy.stats.stop();
+        RenderingMetrics.getDefault().record(renderingStrategy.stats);
         // TODO: Commenting this out for now. -- callan
         //log.info(stats.getStats());
         return img;
@@ -543,27 +576,42 @@ public class Renderer {
         if (pd == null) {
             throw new NullPointerException("No plane definition.");
         }
-        checkRegionDef(pd.getRegion());
-        stats = new RenderingStats(this, pd);
+        RenderingStrategy renderingStrategy = newRenderingStrategy(pd,
+                newBuffer == null ? buffer : newBuffer);
+        RGBIntBuffer img = renderingStrategy.renderAsPackedInt(this, pd);
+        renderingStrategy.stats.stop();
+        RenderingMetrics.getDefault().record(renderingStrategy.stats);
+        // TODO: Commenting this out for now. -- callan
+        //log.info(stats.getStats());
+        return img.getDataBuffer();
+    }
+
+    /**
+     * Creates the strategy to use for one render. The strategy holds all the
+     * state of the render so that several renders of the same
+     * <code>Renderer</code> can run concurrently, as long as the settings
+     * are not modified meanwhile.
+     *
+     * @param pd The plane to render.
+     * @param pixels The buffer to read the pixels data from.
+     * @return See above.
+     */
+    private RenderingStrategy newRenderingStrategy(PlaneDef pd,
+            PixelBuffer pixels)
+    {
+        RenderingStats renderingStats = new RenderingStats(this, pd);
+        synchronized (buffer) {
+            restoreResolutionLevel(buffer);
+            checkRegionDef(pd.getRegion());
+            renderingStats.setResolutionLevel(buffer.getResolutionLevel());
+        }
+        RenderingStrategy renderingStrategy =
+                RenderingStrategy.makeNew(rndDef.getModel());
+        renderingStrategy.initRender(renderingStats, pixels);
+        stats = renderingStats;
         log.info("Using: '" + renderingStrategy.getClass().getName()
                 + "' rendering strategy.");
-        PixelBuffer oldBuffer = buffer;
-        try
-        {
-            if (newBuffer != null)
-            {
-                buffer = newBuffer;
-            }
-            RGBIntBuffer img = renderingStrategy.renderAsPackedInt(this, pd);
-            stats.stop();
-            // TODO: Commenting this out for now. -- callan
-            //log.info(stats.getStats());
-            return img.getDataBuffer();
-        }
-        finally
-        {
-            buffer = oldBuffer;
-        }
+        return renderingStrategy;
     }
 
     /**
@@ -586,7 +634,8 @@ public class Renderer {
         if (pd == null) {
             throw new NullPointerException("No plane definition.");
         }
-        return renderingStrategy.getImageSize(pd, metadata);
+        return RenderingStrategy.makeNew(rndDef.getModel()).getImageSize(pd,
+                metadata);
     }
 
     /**
@@ -610,7 +659,8 @@ public class Renderer {
         if (pd == null) {
             throw new NullPointerException("No plane definition.");
         }
-        return renderingStrategy.getPlaneDimsAsString(pd, metadata);
+        return RenderingStrategy.makeNew(rndDef.getModel())
+                .getPlaneDimsAsString(pd, metadata);
     }
 
     /**
@@ -955,7 +1005,27 @@ public class Renderer {
      **/
     public void setResolutionLevel(int resolutionLevel)
     {
-        buffer.setResolutionLevel(resolutionLevel);
+        synchronized (buffer) {
+            buffer.setResolutionLevel(resolutionLevel);
+            this.resolutionLevel = resolutionLevel;
+        }
+    }
+
+    /**
+     * Sets the active resolution level of the specified buffer again if it
+     * is the buffer of the renderer. Closing the buffer, as done after each
+     * render, resets the level. Must be called while holding the lock of the
+     * buffer so that a concurrent render cannot close it before it is read.
+     *
+     * @param pixels The buffer about to be read.
+     */
+    void restoreResolutionLevel(PixelBuffer pixels)
+    {
+        Integer level = resolutionLevel;
+        if (pixels == buffer && level != null)
+        {
+            pixels.setResolutionLevel(level);
+        }
     }
 
     /**
@@ -0,0 +1,272 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+import ome.system.metrics.Timer;
+import omeis.providers.re.quantum.QuantizationException;
+
+/**
+ * Bounded pool of worker threads shared by all the {@link Renderer} instances
+ * of a server. The rendering strategies submit their {@link RenderingTask}s
+ * through {@link #invokeAll(RenderingTask[])}; the calling thread does not
+ * simply block but runs tasks alongside the workers, so a render always
+ * makes progress even when the pool is saturated. Coarser work, e.g. the
+ * rendering of a whole thumbnail, may be run through
+ * {@link #execute(Runnable)} and render itself through
+ * {@link #invokeAll(RenderingTask[])}.
+ * <p>
+ * The number of queued and running tasks is published through
+ * {@link Metrics} as the <code>queued</code> and <code>active</code>
+ * counters.
+ * </p>
+ *
+ * @since 5.4.0
+ */
+public class RenderingExecutor implements Executor {
+
+    /** The logger for this particular class */
+    private static Logger log = LoggerFactory.getLogger(RenderingExecutor.class);
+
+    /** The executor used when none has been configured. */
+    private static RenderingExecutor defaultExecutor;
+
+    /** The worker threads. */
+    private final ThreadPoolExecutor pool;
+
+    /** Number of tasks submitted but not yet started. */
+    private final Counter queued;
+
+    /** Number of tasks currently running. */
+    private final Counter active;
+
+    /** Time spent running each task. */
+    private final Timer taskTimes;
+
+    /**
+     * Returns the executor shared by the renderers which have not been given
+     * one explicitly. Sized on the number of available processors.
+     *
+     * @return See above.
+     */
+    public static synchronized RenderingExecutor getDefault() {
+        if (defaultExecutor == null) {
+            defaultExecutor = new RenderingExecutor(0, new NullMetrics());
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param threads The number of worker threads. A value less than
+     *            <code>1</code> uses the number of available processors.
+     * @param metrics The metrics to report the queue depth and the number of
+     *            active tasks to.
+     */
+    public RenderingExecutor(int threads, Metrics metrics) {
+        if (threads < 1) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        queued = metrics.counter(this, "queued");
+        active = metrics.counter(this, "active");
+        taskTimes = metrics.timer(this, "taskTimes");
+        pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new RenderingThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+        log.info("Rendering executor started with " + threads + " threads.");
+    }
+
+    /**
+     * Returns the number of worker threads.
+     *
+     * @return See above.
+     */
+    public int getThreadCount() {
+        return pool.getMaximumPoolSize();
+    }
+
+    /**
+     * Runs the passed tasks and waits for their completion. The tasks are
+     * not bound to a thread: the calling thread and up to
+     * {@link #getThreadCount()} workers repeatedly take the next task which
+     * has not been started until none is left. Threads which finish early
+     * therefore pick up the remaining work, and a render always makes
+     * progress even when the pool is saturated.
+     *
+     * @param tasks The tasks to run.
+     * @throws QuantizationException If a task failed to quantize a value.
+     */
+    public void invokeAll(RenderingTask[] tasks) throws QuantizationException {
+        int n = tasks.length;
+        if (n == 0) {
+            return;
+        }
+        if (n == 1) {
+            tasks[0].call();
+            return;
+        }
+        Batch batch = new Batch(tasks);
+        for (int i = 0; i < n; i++) {
+            queued.inc();
+        }
+        int helpers = Math.min(n - 1, getThreadCount());
+        for (int i = 0; i < helpers; i++) {
+            pool.execute(batch);
+        }
+        batch.run();
+        batch.await();
+        Throwable t = batch.failure;
+        if (t == null) {
+            return;
+        }
+        if (t instanceof QuantizationException) {
+            throw (QuantizationException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new RuntimeException(t);
+    }
+
+    /**
+     * Runs the passed command on a worker thread. Meant for work which
+     * cannot be split into {@link RenderingTask}s. The callers should bound
+     * the number of commands they have queued at a time so that the workers
+     * remain available to the other renderers.
+     *
+     * @param command The command to run.
+     */
+    @Override
+    public void execute(final Runnable command) {
+        queued.inc();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                queued.dec();
+                active.inc();
+                Timer.Context ctx = taskTimes.time();
+                try {
+                    command.run();
+                } finally {
+                    ctx.stop();
+                    active.dec();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the worker threads. Used as the Spring destroy method.
+     */
+    public void destroy() {
+        pool.shutdown();
+    }
+
+    /**
+     * The tasks of one {@link #invokeAll(RenderingTask[])} call. Every thread
+     * running the batch claims the next task until all have been claimed;
+     * the counters are kept up to date whichever thread runs a task.
+     */
+    private class Batch implements Runnable {
+
+        /** The tasks to run. */
+        private final RenderingTask[] tasks;
+
+        /** The index of the next task to claim. */
+        private final AtomicInteger next = new AtomicInteger();
+
+        /** Released once all the tasks have been run or skipped. */
+        private final CountDownLatch done;
+
+        /** The first failure, the remaining tasks are skipped. */
+        private volatile Throwable failure;
+
+        Batch(RenderingTask[] tasks) {
+            this.tasks = tasks;
+            done = new CountDownLatch(tasks.length);
+        }
+
+        @Override
+        public void run() {
+            int i;
+            while ((i = next.getAndIncrement()) < tasks.length) {
+                queued.dec();
+                try {
+                    if (failure == null) {
+                        runTask(tasks[i]);
+                    }
+                } catch (Throwable t) {
+                    if (failure == null) {
+                        failure = t;
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+
+        /**
+         * Runs the specified task, timing it.
+         *
+         * @param task The task to run.
+         * @throws QuantizationException If the task failed to quantize a value.
+         */
+        private void runTask(RenderingTask task) throws QuantizationException {
+            active.inc();
+            Timer.Context ctx = taskTimes.time();
+            try {
+                task.call();
+            } finally {
+                ctx.stop();
+                active.dec();
+            }
+        }
+
+        /**
+         * Waits until all the tasks have been run or skipped.
+         */
+        void await() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Names the worker threads and makes sure they do not prevent the JVM
+     * from exiting.
+     */
+    private static class RenderingThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Rendering-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.system.metrics.Histogram;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+/**
+ * Process-wide timings of the stages of the rendering pipeline. Each sample
+ * is reported to {@link Metrics} as a histogram of microseconds named after
+ * the stage, the pixels type, the number of rendered channels and the
+ * resolution level, e.g. <code>fetch.uint16.c3.r0</code>, so that the
+ * default metrics publish them through JMX.
+ * <p>
+ * In addition, the last samples of each stage are kept in a rolling window
+ * summarized by {@link #getSummaries()}: the 50th, 95th and 99th percentiles
+ * and the number of samples per second. The summary is logged at
+ * <code>INFO</code> level periodically if an interval is set.
+ * </p>
+ * <p>
+ * The quantization and the compositing of the channels are folded into the
+ * per-channel lookup tables, see {@link HSBStrategy}. The
+ * {@link #QUANTIZE} stage therefore times the preparation of the tables,
+ * or the whole pass over the plane for the {@link GreyScaleStrategy}, and
+ * the {@link #COMPOSITE} stage the pass applying the tables.
+ * </p>
+ *
+ * @since 5.4.0
+ */
+public class RenderingMetrics {
+
+    /** The logger for this particular class */
+    private static Logger log = LoggerFactory.getLogger(RenderingMetrics.class);
+
+    /** The retrieval of the pixels data of one channel. */
+    public static final String FETCH = "fetch";
+
+    /** The quantization of the pixels data. */
+    public static final String QUANTIZE = "quantize";
+
+    /** The compositing of the channels into the image. */
+    public static final String COMPOSITE = "composite";
+
+    /** The compression of the rendered image. */
+    public static final String COMPRESS = "compress";
+
+    /** The wait for the lock of a rendering engine. */
+    public static final String LOCK_WAIT = "lockWait";
+
+    /** All the stages, in pipeline order. */
+    public static final String[] STAGES =
+        { LOCK_WAIT, FETCH, QUANTIZE, COMPOSITE, COMPRESS };
+
+    /** The default number of samples kept for each stage. */
+    public static final int DEFAULT_WINDOW = 1024;
+
+    /** The instance shared by all the renderers. */
+    private static RenderingMetrics defaultMetrics;
+
+    /** The histograms already created, by name. */
+    private final ConcurrentMap<String, Histogram> histograms =
+            new ConcurrentHashMap<String, Histogram>();
+
+    /** The rolling window of each stage. */
+    private final Map<String, Window> windows;
+
+    /** The time the summary was last logged, in nanoseconds. */
+    private final AtomicLong lastSummary = new AtomicLong(System.nanoTime());
+
+    /** The metrics to report the samples to. */
+    private volatile Metrics metrics = new NullMetrics();
+
+    /** The interval between two logged summaries, <code>0</code> if none. */
+    private volatile long summaryInterval;
+
+    /**
+     * Returns the instance shared by all the renderers.
+     *
+     * @return See above.
+     */
+    public static synchronized RenderingMetrics getDefault() {
+        if (defaultMetrics == null) {
+            defaultMetrics = new RenderingMetrics(DEFAULT_WINDOW);
+        }
+        return defaultMetrics;
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param window The number of samples kept for each stage.
+     */
+    public RenderingMetrics(int window) {
+        Map<String, Window> map = new LinkedHashMap<String, Window>();
+        for (String stage : STAGES) {
+            map.put(stage, new Window(window));
+        }
+        windows = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Sets the metrics to report the samples to.
+     *
+     * @param metrics The value to set.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        histograms.clear();
+    }
+
+    /**
+     * Sets the number of minutes between two summaries logged at
+     * <code>INFO</code> level. <code>0</code> disables the logging.
+     *
+     * @param minutes The value to set.
+     */
+    public void setSummaryMinutes(int minutes) {
+        summaryInterval = minutes > 0 ? TimeUnit.MINUTES.toNanos(minutes) : 0;
+    }
+
+    /**
+     * Records the duration of one stage.
+     *
+     * @param stage One of the {@link #STAGES}.
+     * @param pixelsType The pixels type of the rendered image.
+     * @param sizeC The number of rendered channels.
+     * @param resolutionLevel The resolution level of the rendered image.
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(String stage, String pixelsType, int sizeC,
+            int resolutionLevel, long nanos) {
+        Window window = windows.get(stage);
+        if (window == null) {
+            throw new IllegalArgumentException("Unknown stage: " + stage);
+        }
+        long now = System.nanoTime();
+        window.add(nanos, now);
+        String name = stage + "." + pixelsType + ".c" + sizeC + ".r"
+                + resolutionLevel;
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = metrics.histogram(this, name);
+            Histogram previous = histograms.putIfAbsent(name, histogram);
+            if (previous != null) {
+                histogram = previous;
+            }
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        histogram.update((int) Math.min(micros, Integer.MAX_VALUE));
+        logSummaryIfDue(now);
+    }
+
+    /**
+     * Records the stages timed by the passed statistics of one render.
+     *
+     * @param stats The statistics of the render.
+     */
+    public void record(RenderingStats stats) {
+        String type = stats.getPixelsTypeValue();
+        int sizeC = stats.getChannelCount();
+        int level = stats.getResolutionLevel();
+        for (long nanos : stats.getIoNanos()) {
+            record(FETCH, type, sizeC, level, nanos);
+        }
+        if (stats.getQuantizationNanos() >= 0) {
+            record(QUANTIZE, type, sizeC, level, stats.getQuantizationNanos());
+        }
+        if (stats.getRenderingNanos() >= 0) {
+            record(COMPOSITE, type, sizeC, level, stats.getRenderingNanos());
+        }
+    }
+
+    /**
+     * Returns the summary of the rolling window of each stage, in pipeline
+     * order.
+     *
+     * @return See above.
+     */
+    public Map<String, Summary> getSummaries() {
+        Map<String, Summary> summaries = new LinkedHashMap<String, Summary>();
+        long now = System.nanoTime();
+        for (Map.Entry<String, Window> e : windows.entrySet()) {
+            summaries.put(e.getKey(), e.getValue().summarize(now));
+        }
+        return summaries;
+    }
+
+    /**
+     * Returns the summaries as a message ready to be logged.
+     *
+     * @return See above.
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder("Rendering stages (ms):");
+        for (Map.Entry<String, Summary> e : getSummaries().entrySet()) {
+            sb.append("\n  ").append(e.getKey()).append(": ");
+            sb.append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Logs the summary if the interval has elapsed since it was last logged.
+     *
+     * @param now The current time in nanoseconds.
+     */
+    private void logSummaryIfDue(long now) {
+        long interval = summaryInterval;
+        if (interval <= 0) {
+            return;
+        }
+        long last = lastSummary.get();
+        if (now - last >= interval && lastSummary.compareAndSet(last, now)) {
+            log.info(getSummary());
+        }
+    }
+
+    /** The last samples of a stage. */
+    private static class Window {
+
+        /** The durations in nanoseconds. */
+        private final long[] durations;
+
+        /** The time each sample was recorded, in nanoseconds. */
+        private final long[] times;
+
+        /** The index of the next sample to overwrite. */
+        private int next;
+
+        /** The number of samples in the window. */
+        private int size;
+
+        Window(int capacity) {
+            durations = new long[capacity];
+            times = new long[capacity];
+        }
+
+        synchronized void add(long duration, long time) {
+            durations[next] = duration;
+            times[next] = time;
+            next = (next + 1) % durations.length;
+            if (size < durations.length) {
+                size++;
+            }
+        }
+
+        Summary summarize(long now) {
+            long[] sorted;
+            long oldest;
+            synchronized (this) {
+                if (size == 0) {
+                    return new Summary(0, 0, 0, 0, 0);
+                }
+                sorted = Arrays.copyOf(durations, size);
+                oldest = times[size < durations.length ? 0 : next];
+            }
+            Arrays.sort(sorted);
+            double seconds = (now - oldest) / 1e9;
+            double throughput = seconds > 0 ? sorted.length / seconds : 0;
+            return new Summary(sorted.length, percentile(sorted, 0.5),
+                    percentile(sorted, 0.95), percentile(sorted, 0.99),
+                    throughput);
+        }
+
+        /**
+         * Returns the specified percentile of the sorted durations, in
+         * milliseconds, using the nearest rank.
+         */
+        private static double percentile(long[] sorted, double p) {
+            int rank = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(rank, 0)] / 1e6;
+        }
+    }
+
+    /** The summary of the rolling window of a stage. */
+    public static final class Summary {
+
+        private final int count;
+
+        private final double p50;
+
+        private final double p95;
+
+        private final double p99;
+
+        private final double throughput;
+
+        Summary(int count, double p50, double p95, double p99,
+                double throughput) {
+            this.count = count;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.throughput = throughput;
+        }
+
+        /**
+         * Returns the number of samples in the window.
+         *
+         * @return See above.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the median duration in milliseconds.
+         *
+         * @return See above.
+         */
+        public double getP50() {
+            return p50;
+        }
+
+        /**
+         * Returns the 95th percentile of the durations in milliseconds.
+         *
+         * @return See above.
+         */
+        public double getP95() {
+            return p95;
+        }
+
+        /**
+         * Returns the 99th percentile of the durations in milliseconds.
+         *
+         * @return See above.
+         */
+        public double getP99() {
+            return p99;
+        }
+
+        /**
+         * Returns the number of samples per second over the window.
+         *
+         * @return See above.
+         */
+        public double getThroughput() {
+            return throughput;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d p50=%.2f p95=%.2f p99=%.2f rate=%.1f/s",
+                    count, p50, p95, p99, throughput);
+        }
+    }
+}
@@ -4,8 +4,10 @@
  */
 package omeis.providers.re;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import omeis.providers.re.data.PlaneDef;
 
@@ -38,18 +40,36 @@ public class RenderingStats
     private long mallocTime;
 
     /**
-     * The time that it took to retrieve the pixels data. This is a map that
-     * contains an I/O measurement for each wavelength that is being rendered.
-     * (The key is the wavelength index.)
+     * The time in nanoseconds that it took to retrieve the pixels data. This
+     * is a map that contains an I/O measurement for each wavelength that is
+     * being rendered. (The key is the wavelength index.)
      */
     private Map<Integer, Long> ioTime;
 
-    /** The time that it took to transform the pixels data into an image. */
-    private long renderingTime;
+    /**
+     * The time in nanoseconds that it took to quantize the pixels data or
+     * <code>-1</code> if not measured.
+     */
+    private long quantizationTime = -1;
+
+    /**
+     * The time in nanoseconds that it took to transform the pixels data into
+     * an image or <code>-1</code> if not measured.
+     */
+    private long renderingTime = -1;
+
+    /** The resolution level of the rendered plane. */
+    private int resolutionLevel;
 
     /** The total time a call to the <code>render</code> method takes. */
     private long totalTime;
 
+    /** The number of channel tables reused from a previous rendering. */
+    private int tableHits;
+
+    /** The number of channel tables which had to be (re)built. */
+    private int tableRebuilds;
+
     /**
      * Helper method to build a string containing the I/O stats.
      * 
@@ -61,7 +81,7 @@ public class RenderingStats
         Long t;
         for (Integer key : ioTime.keySet())
         {
-            t = ioTime.get(key);
+            t = TimeUnit.NANOSECONDS.toMillis(ioTime.get(key));
             total += t;
             buf.append("c=");
             buf.append(key);
@@ -132,7 +152,7 @@ public class RenderingStats
      * @see #endIO(int)
      */
     public void startIO(int c) {
-        ioTime.put(new Integer(c), new Long(System.currentTimeMillis()));
+        ioTime.put(new Integer(c), new Long(System.nanoTime()));
     }
 
     /**
@@ -146,7 +166,25 @@ public class RenderingStats
     public void endIO(int c) {
         Integer channel = new Integer(c);
         long start = ((Long) ioTime.get(channel)).longValue();
-        ioTime.put(channel, new Long(System.currentTimeMillis() - start));
+        ioTime.put(channel, new Long(System.nanoTime() - start));
+    }
+
+    /**
+     * Notifies the start of the quantization of the raw pixels data.
+     * 
+     * @see #endQuantization()
+     */
+    public void startQuantization() {
+        quantizationTime = System.nanoTime();
+    }
+
+    /**
+     * Notifies the end of the quantization of the raw pixels data.
+     * 
+     * @see #startQuantization()
+     */
+    public void endQuantization() {
+        quantizationTime = System.nanoTime() - quantizationTime;
     }
 
     /**
@@ -155,7 +193,7 @@ public class RenderingStats
      * @see #endRendering()
      */
     public void startRendering() {
-        renderingTime = System.currentTimeMillis();
+        renderingTime = System.nanoTime();
     }
 
     /**
@@ -164,7 +202,108 @@ public class RenderingStats
      * @see #startRendering()
      */
     public void endRendering() {
-        renderingTime = System.currentTimeMillis() - renderingTime;
+        renderingTime = System.nanoTime() - renderingTime;
+    }
+
+    /**
+     * Sets the resolution level of the rendered plane.
+     *
+     * @param resolutionLevel The value to set.
+     */
+    public void setResolutionLevel(int resolutionLevel) {
+        this.resolutionLevel = resolutionLevel;
+    }
+
+    /**
+     * Returns the resolution level of the rendered plane.
+     *
+     * @return See above.
+     */
+    public int getResolutionLevel() {
+        return resolutionLevel;
+    }
+
+    /**
+     * Returns the value of the pixels type of the rendered image.
+     *
+     * @return See above.
+     */
+    public String getPixelsTypeValue() {
+        return context.getPixelsType().getValue();
+    }
+
+    /**
+     * Returns the number of channels whose pixels data was retrieved.
+     *
+     * @return See above.
+     */
+    public int getChannelCount() {
+        return ioTime.size();
+    }
+
+    /**
+     * Returns the time in nanoseconds that it took to retrieve the pixels
+     * data of each channel.
+     *
+     * @return See above.
+     */
+    public Collection<Long> getIoNanos() {
+        return ioTime.values();
+    }
+
+    /**
+     * Returns the time in nanoseconds that it took to quantize the pixels
+     * data or <code>-1</code> if not measured.
+     *
+     * @return See above.
+     */
+    public long getQuantizationNanos() {
+        return quantizationTime;
+    }
+
+    /**
+     * Returns the time in nanoseconds that it took to transform the pixels
+     * data into an image or <code>-1</code> if not measured.
+     *
+     * @return See above.
+     */
+    public long getRenderingNanos() {
+        return renderingTime;
+    }
+
+    /**
+     * Notifies this object that the lookup table of a channel was reused
+     * from a previous rendering.
+     */
+    public void tableHit() {
+        tableHits++;
+    }
+
+    /**
+     * Notifies this object that the lookup table of a channel had to be
+     * built because the settings of the channel changed.
+     */
+    public void tableRebuilt() {
+        tableRebuilds++;
+    }
+
+    /**
+     * Returns the number of channel lookup tables reused from a previous
+     * rendering.
+     *
+     * @return See above.
+     */
+    public int getTableHits() {
+        return tableHits;
+    }
+
+    /**
+     * Returns the number of channel lookup tables which had to be built.
+     *
+     * @return See above.
+     */
+    public int getTableRebuilds() {
+        return tableRebuilds;
     }
 
     /**
@@ -179,7 +318,8 @@ public class RenderingStats
 
     /**
      * Returns a stats report ready to be written to the log file. The report
-     * includes memory allocation, IO, and rendering times as well as a summary
+     * includes memory allocation, IO, and rendering times, the number of
+     * channel lookup tables reused or rebuilt as well as a summary
      * of the rendering context in which the call to the <code>
      * render</code>
      * method took place. This method only provides a meaningful report if it is
@@ -203,11 +343,18 @@ public class RenderingStats
     				context.getRenderingDef().getModel().getValue());
     	a += String.format(
     			"TIMES (ms) ---- Memory Allocation: %d I/O: %s " +
-    			"Rendering: %d Total: %d\n",
+    			"Quantization: %d Rendering: %d Total: %d\n",
     				mallocTime,
     				getIoTimeString(),
-    				renderingTime,
+    				TimeUnit.NANOSECONDS.toMillis(
+    				        Math.max(quantizationTime, 0)),
+    				TimeUnit.NANOSECONDS.toMillis(
+    				        Math.max(renderingTime, 0)),
     				totalTime);
+    	a += String.format(
+    			"TABLES ---- Hits: %d Rebuilds: %d\n",
+    				tableHits,
+    				tableRebuilds);
     	a += "-----------------------------------------------";
     	return a;
     }
@@ -8,10 +8,13 @@
 package omeis.providers.re;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ome.io.nio.PixelBuffer;
 import ome.model.core.Pixels;
 import ome.model.enums.RenderingModel;
 
@@ -50,6 +53,15 @@ abstract class RenderingStrategy {
     
     /** The rendering context. */
     protected Renderer renderer;
+
+    /** Collects the performance measurements of the render. */
+    protected RenderingStats stats;
+
+    /**
+     * The buffer the pixels data is read from. The buffer may be shared with
+     * concurrent renders so it must be locked while being read and closed.
+     */
+    protected PixelBuffer pixels;
     
     /**
      * The number of pixels on the <i>X1</i>-axis. This is the <i>X</i>-axis
@@ -66,9 +78,22 @@ abstract class RenderingStrategy {
     protected int sizeX2;
     
     /**
-     * The maximum number of tasks that we will be using during rendering.
+     * The preferred maximum number of pixels along the <i>X1</i>-axis of a
+     * block, see {@link #makeBlocks()}.
+     */
+    static final int BLOCK_WIDTH = 512;
+
+    /**
+     * The preferred maximum number of pixels of a block, see
+     * {@link #makeBlocks()}.
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * The minimum number of pixels along the <i>X2</i>-axis of a block, see
+     * {@link #makeBlocks()}.
      */
-    protected int maxTasks;
+    static final int MIN_BLOCK_HEIGHT = 16;
 
     /**
      * Checks if the passed region is valid.
@@ -147,11 +172,40 @@ abstract class RenderingStrategy {
     }
 
     /**
-     * Constructs a strategy.
+     * Splits the plane being rendered into blocks which can be rendered
+     * concurrently. Blocks are at most {@link #BLOCK_WIDTH} pixels wide and
+     * {@link #BLOCK_SIZE} pixels large so that the rows of a block stay in
+     * the processor caches, but are made smaller along the <i>X2</i>-axis
+     * when needed to give each thread of the {@link RenderingExecutor} at
+     * least one block. The blocks on the right and bottom edges are clipped
+     * to the plane, so any size of plane is covered. Should only be called
+     * after the <code>sizeX1</code> and <code>sizeX2</code> fields have been
+     * initialized.
+     *
+     * @return The blocks as <code>{x1Start, x1End, x2Start, x2End}</code>
+     *         arrays, in row-major order.
      */
-    protected RenderingStrategy()
+    protected List<int[]> makeBlocks()
     {
-    	maxTasks = Runtime.getRuntime().availableProcessors();
+        List<int[]> blocks = new ArrayList<int[]>();
+        if (sizeX1 <= 0 || sizeX2 <= 0) {
+            return blocks;
+        }
+        int threads = renderer.getExecutor().getThreadCount() + 1;
+        int blockWidth = Math.min(sizeX1, BLOCK_WIDTH);
+        int columns = (sizeX1 + blockWidth - 1) / blockWidth;
+        int rows = Math.max(1, (threads + columns - 1) / columns);
+        int blockHeight = Math.min(BLOCK_SIZE / blockWidth,
+                (sizeX2 + rows - 1) / rows);
+        blockHeight = Math.max(MIN_BLOCK_HEIGHT, blockHeight);
+        for (int x2 = 0; x2 < sizeX2; x2 += blockHeight) {
+            int x2End = Math.min(sizeX2, x2 + blockHeight);
+            for (int x1 = 0; x1 < sizeX1; x1 += blockWidth) {
+                int x1End = Math.min(sizeX1, x1 + blockWidth);
+                blocks.add(new int[] { x1, x1End, x2, x2End });
+            }
+        }
+        return blocks;
     }
 
     /**
@@ -165,7 +219,6 @@ abstract class RenderingStrategy {
      */
     protected RGBBuffer getRgbBuffer()
     {
-    	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
     	RGBBuffer buf = new RGBBuffer(sizeX1, sizeX2);
 		stats.endMalloc();
@@ -181,7 +234,6 @@ abstract class RenderingStrategy {
      */
 	protected RGBIntBuffer getIntBuffer()
     {
-    	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
     	RGBIntBuffer buf =  new RGBIntBuffer(sizeX1, sizeX2);
     	stats.endMalloc();
@@ -197,13 +249,25 @@ abstract class RenderingStrategy {
      */
 	protected RGBAIntBuffer getRGBAIntBuffer()
     {
-    	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
     	RGBAIntBuffer buf =  new RGBAIntBuffer(sizeX1, sizeX2);
     	stats.endMalloc();
     	return buf;
     }
 
+    /**
+     * Sets the state of the render about to start. A strategy is created for
+     * each render so that concurrent renders do not share any state.
+     *
+     * @param stats Collects the performance measurements of the render.
+     * @param pixels The buffer to read the pixels data from.
+     */
+    void initRender(RenderingStats stats, PixelBuffer pixels)
+    {
+        this.stats = stats;
+        this.pixels = pixels;
+    }
+
     /**
      * Factory method to retrieve a concrete strategy. The strategy is selected
      * according to the model that dictates how transformed raw data is to be
@@ -0,0 +1,260 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.lut;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+/**
+ * Process-wide cache of the parsed lookup tables, keyed by the normalized
+ * name of the table i.e. the lower case name of the file without extension. An entry is read again if the file it was read from
+ * changed on disk, i.e. if its modification time or its size differs. The
+ * readers are never modified once read so any number of renders can share
+ * them.
+ *
+ * @since 5.4.0
+ */
+public class LutCache {
+
+    /** The logger for this particular class */
+    private static Logger log = LoggerFactory.getLogger(LutCache.class);
+
+    /** The name of the directory holding the lookup tables. */
+    public static final String LUTS_DIR = "luts";
+
+    /** The extension of the lookup table files. */
+    public static final String LUT_EXTENSION = "lut";
+
+    /** The instance shared by all the renderers. */
+    private static LutCache defaultCache;
+
+    /** The cached tables. */
+    private final ConcurrentMap<String, Entry> entries =
+            new ConcurrentHashMap<String, Entry>();
+
+    /** The directory containing the {@link #LUTS_DIR} directory. */
+    private String directory;
+
+    /** Number of lookups which had to read a file. */
+    private Counter misses = new NullMetrics().counter(this, "misses");
+
+    /**
+     * Returns the cache shared by all the renderers.
+     *
+     * @return See above.
+     */
+    public static synchronized LutCache getDefault() {
+        if (defaultCache == null) {
+            defaultCache = new LutCache();
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Returns the key used for the specified lookup table file.
+     *
+     * @param file The lookup table file.
+     * @return See above.
+     */
+    static String normalize(File file) {
+        return FilenameUtils.getBaseName(file.getName().toLowerCase());
+    }
+
+    /**
+     * Sets the metrics to report the number of cache misses to.
+     *
+     * @param metrics The value to set.
+     */
+    public void setMetrics(Metrics metrics) {
+        misses = metrics.counter(this, "misses");
+    }
+
+    /**
+     * Sets the directory containing the {@link #LUTS_DIR} directory to
+     * preload, see {@link #preload()}.
+     *
+     * @param directory The value to set.
+     */
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Reads all the lookup tables found under the {@link #LUTS_DIR}
+     * directory so that the first renders do not have to.
+     */
+    public void preload() {
+        if (directory == null) {
+            return;
+        }
+        File dir = new File(directory, LUTS_DIR);
+        int count = preload(dir);
+        log.info("Preloaded " + count + " lookup tables from " + dir);
+    }
+
+    /**
+     * Reads the lookup tables of the specified directory and of its
+     * sub-directories.
+     *
+     * @param dir The directory to scan.
+     * @return The number of tables read.
+     */
+    private int preload(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File f : files) {
+            if (f.isDirectory()) {
+                count += preload(f);
+            } else if (FilenameUtils.isExtension(f.getName().toLowerCase(),
+                    LUT_EXTENSION)) {
+                Entry entry = load(f);
+                entries.put(normalize(f), entry);
+                if (entry.reader != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the reader of the lookup table with the specified name. The
+     * table is looked up in the passed collection as the renderer used to,
+     * i.e. by file name with or without extension. The file is only read
+     * if the table is not cached yet or if it has changed.
+     *
+     * @param name The name of the lookup table.
+     * @param luts The collection of supported lookup tables.
+     * @return The reader or <code>null</code> if no supported table matches
+     *         or if the file cannot be read.
+     */
+    public LutReader get(String name, List<File> luts) {
+        if (name == null) {
+            return null;
+        }
+        File file = find(name.toLowerCase(), luts);
+        if (file == null) {
+            return null;
+        }
+        file = file.getAbsoluteFile();
+        String key = normalize(file);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.isCurrent(file)) {
+            return entry.reader;
+        }
+        misses.inc();
+        entry = load(file);
+        entries.put(key, entry);
+        return entry.reader;
+    }
+
+    /**
+     * Returns the file of the specified collection matching the name of a
+     * lookup table.
+     *
+     * @param name The name of the lookup table.
+     * @param luts The collection of supported lookup tables.
+     * @return See above or <code>null</code> if no supported table matches.
+     */
+    public static File findFile(String name, List<File> luts) {
+        if (name == null || luts == null) {
+            return null;
+        }
+        File file = find(name.toLowerCase(), luts);
+        return file == null ? null : file.getAbsoluteFile();
+    }
+
+    /**
+     * Removes all the cached tables.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the file of the specified collection matching the name.
+     *
+     * @param name The lower case name of the lookup table.
+     * @param luts The collection of supported lookup tables.
+     * @return See above.
+     */
+    private static File find(String name, List<File> luts) {
+        for (File f : luts) {
+            String lutName = f.getName().toLowerCase();
+            if (lutName.equals(name) ||
+                    FilenameUtils.getBaseName(lutName).equals(name)) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the specified file.
+     *
+     * @param file The file to read.
+     * @return The entry to cache.
+     */
+    private Entry load(File file) {
+        file = file.getAbsoluteFile();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        LutReader reader = null;
+        try {
+            reader = LutReaderFactory.read(file);
+        } catch (Exception e) {
+            log.debug("cannot read lut "+file.getName(), e);
+        }
+        return new Entry(file, lastModified, length, reader);
+    }
+
+    /** A cached lookup table. */
+    private static class Entry {
+
+        /** The file the table was read from. */
+        private final File file;
+
+        /** The modification time of the file when it was read. */
+        private final long lastModified;
+
+        /** The size of the file when it was read. */
+        private final long length;
+
+        /** The reader or <code>null</code> if the file cannot be read. */
+        private final LutReader reader;
+
+        Entry(File file, long lastModified, long length, LutReader reader) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.reader = reader;
+        }
+
+        /**
+         * Returns <code>true</code> if the entry was read from the specified
+         * file and if the file has not changed since.
+         *
+         * @param f The file to check.
+         * @return See above.
+         */
+        boolean isCurrent(File f) {
+            return file.equals(f) && f.lastModified() == lastModified
+                    && f.length() == length;
+        }
+    }
+}
@@ -36,13 +36,13 @@ public abstract class LutReader {
     static final int SIZE = 256;
 
     /** Holds the red values.*/
-    protected byte[] reds = new byte[SIZE];
+    protected final byte[] reds = new byte[SIZE];
 
     /** Holds the green values.*/
-    protected byte[] greens = new byte[SIZE];
+    protected final byte[] greens = new byte[SIZE];
 
     /** Holds the blues values.*/
-    protected byte[] blues = new byte[SIZE];
+    protected final byte[] blues = new byte[SIZE];
 
     /** The file to read.*/
     protected File file;
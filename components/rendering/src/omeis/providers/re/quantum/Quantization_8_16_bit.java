@@ -7,8 +7,11 @@
 
 package omeis.providers.re.quantum;
 
+import java.nio.ByteBuffer;
+
 import ome.model.core.Pixels;
 import ome.model.display.QuantumDef;
+import ome.util.PixelData;
 
 /**
  * Quantization process. In charge of building a look-up table for each active
@@ -73,6 +76,13 @@ public class Quantization_8_16_bit extends QuantumStrategy {
      */
     private int cdStart, cdEnd;
 
+    /**
+     * The look-up table composed with the table last passed to
+     * {@link #prepareTable(int[])}. Replaced rather than modified, so that
+     * the concurrent renders read it without locking.
+     */
+    private volatile ComposedLUT composedLUT;
+
     /**
      * Initializes the LUT. Comparable getGlobalMin and getGlobalMax assumed to
      * be Integer, QuantumStrategy enforces min &lt; max. QuantumFactory makes
@@ -266,6 +276,25 @@ public class Quantization_8_16_bit extends QuantumStrategy {
         for (; x <= lutMax; ++x) {
             LUT[x - lutMin] = (byte) cdEnd;
         }
+        composedLUT = null;
+    }
+
+    /**
+     * Returns the look-up table composed with the passed table. The table
+     * is normally composed once by {@link #prepareTable(int[])}; it is
+     * composed and published here if the table or the look-up table changed
+     * since.
+     *
+     * @param table The table indexed by the values in the codomain interval.
+     * @return See above.
+     */
+    private int[] getComposedLUT(int[] table) {
+        ComposedLUT composed = composedLUT;
+        if (composed == null || composed.from != table) {
+            composed = new ComposedLUT(LUT, table);
+            composedLUT = composed;
+        }
+        return composed.values;
     }
 
     /** The input window size changed, rebuild the LUT. */
@@ -293,7 +322,142 @@ public class Quantization_8_16_bit extends QuantumStrategy {
      */
     @Override
     public int quantize(double value) throws QuantizationException {
-        int x = (int) value;
+        return lookup((int) value);
+    }
+
+    /**
+     * Implemented as specified in {@link QuantumStrategy}. The raw integer
+     * values are looked up in the table directly, there is no conversion to
+     * <code>double</code>.
+     * 
+     * @see QuantumStrategy#quantize(PixelData, int, int, int[])
+     */
+    @Override
+    public void quantize(PixelData data, int offset, int length, int[] values)
+        throws QuantizationException {
+        ByteBuffer buf = data.getData();
+        boolean signed = data.isSigned();
+        int end = offset + length;
+        int j = 0;
+        switch (data.javaType()) {
+            case PixelData.BYTE:
+                if (signed) {
+                    for (int i = offset; i < end; i++) {
+                        values[j++] = lookup(buf.get(i));
+                    }
+                } else {
+                    for (int i = offset; i < end; i++) {
+                        values[j++] = lookup(buf.get(i) & 0xFF);
+                    }
+                }
+                break;
+            case PixelData.SHORT:
+                if (signed) {
+                    for (int i = offset; i < end; i++) {
+                        values[j++] = lookup(buf.getShort(i << 1));
+                    }
+                } else {
+                    for (int i = offset; i < end; i++) {
+                        values[j++] = lookup(buf.getShort(i << 1) & 0xFFFF);
+                    }
+                }
+                break;
+            default:
+                super.quantize(data, offset, length, values);
+        }
+    }
+
+    /**
+     * Implemented as specified in {@link QuantumStrategy}. Composes the
+     * look-up table with the passed table.
+     *
+     * @see QuantumStrategy#prepareTable(int[])
+     */
+    @Override
+    public boolean prepareTable(int[] table) {
+        ComposedLUT composed = composedLUT;
+        if (composed != null && composed.from == table) {
+            return false;
+        }
+        composedLUT = new ComposedLUT(LUT, table);
+        return true;
+    }
+
+    /**
+     * Implemented as specified in {@link QuantumStrategy}. The raw integer
+     * values within the look-up table are mapped through the composed table,
+     * see {@link #prepareTable(int[])}.
+     *
+     * @see QuantumStrategy#quantize(PixelData, int, int, int[], int[])
+     */
+    @Override
+    public void quantize(PixelData data, int offset, int length, int[] values,
+            int[] table)
+        throws QuantizationException {
+        int javaType = data.javaType();
+        if (javaType != PixelData.BYTE && javaType != PixelData.SHORT) {
+            super.quantize(data, offset, length, values, table);
+            return;
+        }
+        int[] composed = getComposedLUT(table);
+        ByteBuffer buf = data.getData();
+        boolean signed = data.isSigned();
+        int end = offset + length;
+        int j = 0;
+        // Read the raw values first so the mapping loop below is shared.
+        if (javaType == PixelData.BYTE) {
+            if (signed) {
+                for (int i = offset; i < end; i++) {
+                    values[j++] = buf.get(i);
+                }
+            } else {
+                for (int i = offset; i < end; i++) {
+                    values[j++] = buf.get(i) & 0xFF;
+                }
+            }
+        } else {
+            if (signed) {
+                for (int i = offset; i < end; i++) {
+                    values[j++] = buf.getShort(i << 1);
+                }
+            } else {
+                for (int i = offset; i < end; i++) {
+                    values[j++] = buf.getShort(i << 1) & 0xFFFF;
+                }
+            }
+        }
+        int x;
+        for (j = 0; j < length; j++) {
+            x = values[j];
+            if (x < lutMin || x > lutMax) {
+                values[j] = table[lookup(x)];
+            } else {
+                values[j] = composed[x - lutMin];
+            }
+        }
+    }
+
+    /**
+     * Returns the value of the table for the passed pixel intensity value.
+     * Values outside of the table are rescaled using the original range.
+     *
+     * @param x The pixel intensity value.
+     * @return See above.
+     */
+    private int lookup(int x) {
+        if (x < lutMin || x > lutMax) {
+            x = rescale(x);
+        }
+        return LUT[x - lutMin] & 0xFF;
+    }
+
+    /**
+     * Rescales a value outside of the table using the original range.
+     *
+     * @param x The pixel intensity value.
+     * @return See above.
+     */
+    private int rescale(int x) {
         if (x < lutMin) {
             double r = getOriginalGlobalMax()-getOriginalGlobalMin();
             if (r != 0) {
@@ -311,8 +475,37 @@ public class Quantization_8_16_bit extends QuantumStrategy {
                 if (x > lutMax) x = lutMax;
             } else x = lutMax;
         }
-        int i = LUT[x - lutMin];
-        return i & 0xFF;
+        return x;
     }
 
+    /**
+     * A look-up table composed with the table of a channel. Never modified
+     * once built.
+     */
+    private static final class ComposedLUT {
+
+        /** The table the look-up table was composed with. */
+        final int[] from;
+
+        /**
+         * The composed values, indexed like
+         * {@link Quantization_8_16_bit#LUT}.
+         */
+        final int[] values;
+
+        /**
+         * Composes the look-up table with the passed table.
+         *
+         * @param lut The look-up table.
+         * @param table The table indexed by the values in the codomain
+         *            interval.
+         */
+        ComposedLUT(byte[] lut, int[] table) {
+            from = table;
+            values = new int[lut.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = table[lut[i] & 0xFF];
+            }
+        }
+    }
 }
@@ -7,10 +7,13 @@
 
 package omeis.providers.re.quantum;
 
+import java.nio.ByteBuffer;
+
 import ome.model.core.Pixels;
 import ome.model.display.QuantumDef;
 import ome.model.enums.Family;
 import ome.model.enums.PixelsType;
+import ome.util.PixelData;
 import omeis.providers.re.data.PlaneFactory;
 import omeis.providers.re.metadata.StatsFactory;
 
@@ -451,4 +454,126 @@ public abstract class QuantumStrategy {
      */
     public abstract int quantize(double value) throws QuantizationException;
 
+    /**
+     * Maps <code>length</code> consecutive pixel intensity values, starting
+     * at the pixel <code>offset</code> of the passed data, to values in the
+     * codomain interval. The pixels type is resolved once for the whole run
+     * and each value is read with the matching primitive accessor of the
+     * backing buffer, which keeps the inner loops free of type switches.
+     * Subclasses which can work on the raw integer values should override
+     * this method.
+     *
+     * @param data
+     *            The pixel data to read the intensity values from.
+     * @param offset
+     *            The index of the first pixel to quantize.
+     * @param length
+     *            The number of pixels to quantize.
+     * @param values
+     *            The array to write the quantized values into, starting at
+     *            index <code>0</code>.
+     * @throws QuantizationException
+     *             If one of the values is not in the interval [globalMin,
+     *             globalMax].
+     */
+    public void quantize(PixelData data, int offset, int length, int[] values)
+        throws QuantizationException
+    {
+        ByteBuffer buf = data.getData();
+        boolean signed = data.isSigned();
+        int end = offset + length;
+        int j = 0;
+        switch (data.javaType()) {
+            case PixelData.BYTE:
+                if (signed) {
+                    for (int i = offset; i < end; i++) {
+                        values[j++] = quantize(buf.get(i));
+                    }
+                } else {
+                    for (int i = offset; i < end; i++) {
+                        values[j++] = quantize(buf.get(i) & 0xFF);
+                    }
+                }
+                break;
+            case PixelData.SHORT:
+                if (signed) {
+                    for (int i = offset; i < end; i++) {
+                        values[j++] = quantize(buf.getShort(i << 1));
+                    }
+                } else {
+                    for (int i = offset; i < end; i++) {
+                        values[j++] = quantize(buf.getShort(i << 1) & 0xFFFF);
+                    }
+                }
+                break;
+            case PixelData.INT:
+                if (signed) {
+                    for (int i = offset; i < end; i++) {
+                        values[j++] = quantize(buf.getInt(i << 2));
+                    }
+                } else {
+                    for (int i = offset; i < end; i++) {
+                        values[j++] = quantize(buf.getInt(i << 2) & 0xFFFFFFFFL);
+                    }
+                }
+                break;
+            case PixelData.FLOAT:
+                for (int i = offset; i < end; i++) {
+                    values[j++] = quantize(buf.getFloat(i << 2));
+                }
+                break;
+            default:
+                for (int i = offset; i < end; i++) {
+                    values[j++] = quantize(data.getPixelValue(i));
+                }
+        }
+    }
+
+    /**
+     * Prepares the strategy to map the quantized values through the passed
+     * table, see {@link #quantize(PixelData, int, int, int[], int[])}.
+     * Strategies backed by a look-up table compose it with the passed table
+     * so that a pixel intensity value is mapped with a single array load.
+     * The default implementation does nothing.
+     *
+     * @param table
+     *            The table indexed by the values in the codomain interval.
+     * @return <code>true</code> if a composed table had to be built,
+     *         <code>false</code> if the previous one was reused or if the
+     *         strategy does not compose tables.
+     */
+    public boolean prepareTable(int[] table) {
+        return false;
+    }
+
+    /**
+     * Maps <code>length</code> consecutive pixel intensity values as
+     * {@link #quantize(PixelData, int, int, int[])} does and then replaces
+     * each quantized value by the entry of the passed table at that index.
+     *
+     * @param data
+     *            The pixel data to read the intensity values from.
+     * @param offset
+     *            The index of the first pixel to quantize.
+     * @param length
+     *            The number of pixels to quantize.
+     * @param values
+     *            The array to write the mapped values into, starting at
+     *            index <code>0</code>.
+     * @param table
+     *            The table indexed by the values in the codomain interval.
+     * @throws QuantizationException
+     *             If one of the values is not in the interval [globalMin,
+     *             globalMax].
+     */
+    public void quantize(PixelData data, int offset, int length, int[] values,
+            int[] table)
+        throws QuantizationException
+    {
+        quantize(data, offset, length, values);
+        for (int j = 0; j < length; j++) {
+            values[j] = table[values[j]];
+        }
+    }
+
 }
@@ -24,6 +24,7 @@ import ome.conditions.ResourceError;
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
 import ome.io.nio.RomioPixelBuffer;
+import ome.io.nio.TileRequest;
 import ome.util.PixelData;
 
 import org.slf4j.Logger;
@@ -525,6 +526,21 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
         }
     }
 
+    /* (non-Javadoc)
+     * @see ome.io.nio.PixelBuffer#getTiles(java.util.List)
+     */
+    public List<PixelData> getTiles(List<TileRequest> tiles)
+            throws IOException
+    {
+        final List<PixelData> rv = new ArrayList<PixelData>(tiles.size());
+        for (TileRequest tile : tiles)
+        {
+            rv.add(getTile(tile.getZ(), tile.getC(), tile.getT(), tile.getX(),
+                    tile.getY(), tile.getWidth(), tile.getHeight()));
+        }
+        return rv;
+    }
+
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#setTile(byte[], java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
@@ -8,13 +8,21 @@ package ome.io.bioformats;
 import java.awt.Dimension;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
@@ -30,6 +38,9 @@ import ome.conditions.ResourceError;
 import ome.io.nio.ConfiguredTileSizes;
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsExecutor;
+import ome.io.nio.PyramidPixelBuffer;
+import ome.io.nio.TileRequest;
 import ome.io.nio.TileSizes;
 import ome.model.core.Pixels;
 import ome.util.PixelData;
@@ -47,7 +58,7 @@ import org.slf4j.LoggerFactory;
  *
  * @since OMERO-Beta4.3
  */
-public class BfPyramidPixelBuffer implements PixelBuffer {
+public class BfPyramidPixelBuffer implements PyramidPixelBuffer {
 
     private final static Logger log = LoggerFactory.getLogger(BfPyramidPixelBuffer.class);
 
@@ -119,7 +130,43 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     private FileLock fileLock;
 
     /** The byte order of the compressed pyramid. */
-    private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+    private volatile ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+
+    // CONCURRENT READS
+
+    /**
+     * Maximum number of tile and plane reads decoded at once. With
+     * <code>1</code> all the reads go through the {@link #delegate}.
+     */
+    private int readers = 1;
+
+    /** The threads decoding the tiles of {@link #getTiles(List)}. */
+    private PixelsExecutor executor;
+
+    /** The pooled readers not in use. */
+    private final BlockingQueue<PooledReader> idleReaders =
+            new LinkedBlockingQueue<PooledReader>();
+
+    /** The number of pooled readers open, idle or in use. */
+    private final AtomicInteger openReaders = new AtomicInteger();
+
+    /**
+     * Incremented on {@link #close()} so that the pooled readers in use
+     * at that time are closed when they are returned.
+     */
+    private volatile int readerGeneration;
+
+    /**
+     * The metadata of the pyramid once read-only, <code>null</code> until
+     * the {@link #delegate} is initialized for reading.
+     */
+    private volatile ReadState readState;
+
+    /**
+     * The resolution level set through {@link #setResolutionLevel(int)} or
+     * <code>-1</code> for the default level, the highest resolution.
+     */
+    private volatile int resolutionLevel = -1;
 
     public static final String PYR_LOCK_EXT = ".pyr_lock";
 
@@ -208,6 +255,189 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         delegate = new BfPixelBuffer(readerFile.getAbsolutePath(), reader);
         byteOrder = delegate.isLittleEndian()? ByteOrder.LITTLE_ENDIAN
                 : ByteOrder.BIG_ENDIAN;
+        resolutionLevel = -1;
+        readState = new ReadState(delegate);
+    }
+
+    /**
+     * Sets the maximum number of tile and plane reads decoded at once once
+     * the pyramid is read-only. Each concurrent read beyond the first uses
+     * its own {@link OmeroPixelsPyramidReader}, opened on first use and
+     * kept until {@link #close()}. <code>1</code>, the default, serializes
+     * all the reads.
+     * @param readers The value to set.
+     */
+    public void setReaders(int readers)
+    {
+        this.readers = Math.max(readers, 1);
+    }
+
+    /**
+     * Sets the pool of threads, shared with the other pixel buffers, on
+     * which the tiles requested together are decoded. The default pool is
+     * used if none is set.
+     * @param executor The value to set.
+     */
+    public void setExecutor(PixelsExecutor executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the metadata of the read-only pyramid, switching to
+     * read-only mode if still writing.
+     * @return See above.
+     */
+    private ReadState readState()
+    {
+        ReadState state = readState;
+        if (state == null)
+        {
+            synchronized (this)
+            {
+                delegate();
+                state = readState;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Borrows a pooled reader set to the current resolution level, opening
+     * one if fewer than {@link #readers} are open and waiting for one to be
+     * returned otherwise.
+     * @return See above or <code>null</code> if the reads are serialized
+     * through the {@link #delegate}.
+     * @throws IOException If the reader cannot be opened or the wait is
+     * interrupted.
+     */
+    private PooledReader borrowReader() throws IOException
+    {
+        if (readers <= 1)
+        {
+            return null;
+        }
+        final ReadState state = readState();
+        PooledReader pooled = null;
+        try
+        {
+            while (pooled == null)
+            {
+                pooled = idleReaders.poll();
+                if (pooled == null)
+                {
+                    if (openReaders.incrementAndGet() <= readers)
+                    {
+                        pooled = openReader();
+                    }
+                    else
+                    {
+                        openReaders.decrementAndGet();
+                        // Poll rather than take in case the readers in use
+                        // are closed on return by a concurrent close().
+                        pooled = idleReaders.poll(100, TimeUnit.MILLISECONDS);
+                    }
+                }
+                if (pooled != null && pooled.generation != readerGeneration)
+                {
+                    discardReader(pooled);
+                    pooled = null;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException(
+                    "Interrupted waiting for a reader of " + readerFile);
+        }
+        final int level = resolutionLevel;
+        if (pooled.level != level)
+        {
+            pooled.buffer.setResolutionLevel(
+                    level < 0? state.resolutionLevels - 1 : level);
+            pooled.level = level;
+        }
+        return pooled;
+    }
+
+    /**
+     * Opens a new pooled reader. The caller has already counted it in
+     * {@link #openReaders}.
+     */
+    private PooledReader openReader() throws IOException
+    {
+        final int generation = readerGeneration;
+        OmeroPixelsPyramidReader pyramidReader =
+                new OmeroPixelsPyramidReader();
+        try
+        {
+            return new PooledReader(pyramidReader, new BfPixelBuffer(
+                    readerFile.getAbsolutePath(), pyramidReader), generation);
+        }
+        catch (IOException | FormatException | RuntimeException e)
+        {
+            openReaders.decrementAndGet();
+            try
+            {
+                pyramidReader.close();
+            }
+            catch (Exception e2)
+            {
+                log.warn("Failed to close reader", e2);
+            }
+            if (e instanceof IOException)
+            {
+                throw (IOException) e;
+            }
+            if (e instanceof RuntimeException)
+            {
+                throw (RuntimeException) e;
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns a pooled reader, closing it if the buffer was closed while it
+     * was in use.
+     * @param pooled The reader to return, may be <code>null</code>.
+     */
+    private void returnReader(PooledReader pooled)
+    {
+        if (pooled == null)
+        {
+            return;
+        }
+        if (pooled.generation != readerGeneration
+                || !idleReaders.offer(pooled))
+        {
+            discardReader(pooled);
+        }
+    }
+
+    /**
+     * Closes a pooled reader.
+     * @param pooled The reader to close.
+     */
+    private void discardReader(PooledReader pooled)
+    {
+        openReaders.decrementAndGet();
+        try
+        {
+            pooled.buffer.close();
+        }
+        catch (Exception e)
+        {
+            log.warn("Failed to close pooled delegate", e);
+        }
+        try
+        {
+            pooled.reader.close();
+        }
+        catch (Exception e)
+        {
+            log.warn("Failed to close pooled reader", e);
+        }
     }
 
     /**
@@ -451,6 +681,16 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         }
     }
 
+    /**
+     * Returns the temporary file the pyramid is written to until the writer
+     * is closed.
+     * @return See above or <code>null</code> if not in writing-mode.
+     */
+    public File getWriterFile()
+    {
+        return writerFile;
+    }
+
     /**
      * Whether or not this instance is in writing-mode. Any of the calls to reader
      * methods called while this method returns true will close the writer,
@@ -596,7 +836,7 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
      * @throws IOException If there is a problem with the parameters or a
      * problem checking them.
      */
-    private synchronized void checkTileParameters(int x, int y, int w, int h)
+    private void checkTileParameters(int x, int y, int w, int h)
         throws IOException
     {
         // No-op.
@@ -645,6 +885,15 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
      */
     public synchronized void close() throws IOException
     {
+        readState = null;
+        resolutionLevel = -1;
+        readerGeneration++;
+        PooledReader pooled;
+        while ((pooled = idleReaders.poll()) != null)
+        {
+            discardReader(pooled);
+        }
+
         try
         {
             if (delegate != null)
@@ -675,9 +924,9 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getByteWidth()
      */
-    public synchronized int getByteWidth()
+    public int getByteWidth()
     {
-        return delegate().getByteWidth();
+        return readState().byteWidth;
     }
 
     /* (non-Javadoc)
@@ -765,13 +1014,32 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getPlane(java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getPlane(Integer z, Integer c, Integer t)
+    public PixelData getPlane(Integer z, Integer c, Integer t)
             throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        PixelData data = delegate().getPlane(z, c, t);
+        PixelData data;
+        PooledReader pooled = borrowReader();
+        try
+        {
+            if (pooled == null)
+            {
+                synchronized (this)
+                {
+                    data = delegate().getPlane(z, c, t);
+                }
+            }
+            else
+            {
+                data = pooled.buffer.getPlane(z, c, t);
+            }
+        }
+        finally
+        {
+            returnReader(pooled);
+        }
         data.setOrder(byteOrder);
         return data;
     }
@@ -779,14 +1047,29 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getPlaneDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getPlaneDirect(Integer z, Integer c, Integer t,
-                                              byte[] buffer)
+    public byte[] getPlaneDirect(Integer z, Integer c, Integer t,
+                                 byte[] buffer)
             throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        return delegate().getPlaneDirect(z, c, t, buffer);
+        PooledReader pooled = borrowReader();
+        try
+        {
+            if (pooled == null)
+            {
+                synchronized (this)
+                {
+                    return delegate().getPlaneDirect(z, c, t, buffer);
+                }
+            }
+            return pooled.buffer.getPlaneDirect(z, c, t, buffer);
+        }
+        finally
+        {
+            returnReader(pooled);
+        }
     }
 
     /* (non-Javadoc)
@@ -928,31 +1211,47 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getSizeX()
      */
-    public synchronized int getSizeX()
+    public int getSizeX()
     {
-        if (delegate == null || delegate.reader.get() == null)
+        ReadState state = readState;
+        if (state != null)
+        {
+            return state.getSize(resolutionLevel).get(0);
+        }
+        synchronized (this)
         {
-            // The downstream reader has not been initialized, we don't need to
-            // delegate and can't even if we wanted to because no data has
-            // actually been written yet.
-            return pixels.getSizeX();
+            if (delegate == null || delegate.reader.get() == null)
+            {
+                // The downstream reader has not been initialized, we don't
+                // need to delegate and can't even if we wanted to because no
+                // data has actually been written yet.
+                return pixels.getSizeX();
+            }
+            return delegate.getSizeX();
         }
-        return delegate.getSizeX();
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getSizeY()
      */
-    public synchronized int getSizeY()
+    public int getSizeY()
     {
-        if (delegate == null || delegate.reader.get() == null)
+        ReadState state = readState;
+        if (state != null)
         {
-            // The downstream reader has not been initialized, we don't need to
-            // delegate and can't even if we wanted to because no data has
-            // actually been written yet.
-            return pixels.getSizeY();
+            return state.getSize(resolutionLevel).get(1);
+        }
+        synchronized (this)
+        {
+            if (delegate == null || delegate.reader.get() == null)
+            {
+                // The downstream reader has not been initialized, we don't
+                // need to delegate and can't even if we wanted to because no
+                // data has actually been written yet.
+                return pixels.getSizeY();
+            }
+            return delegate.getSizeY();
         }
-        return delegate.getSizeY();
     }
 
     /* (non-Javadoc)
@@ -1003,14 +1302,33 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTile(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getTile(Integer z, Integer c, Integer t,
+    public PixelData getTile(Integer z, Integer c, Integer t,
             Integer x, Integer y, Integer w, Integer h) throws IOException
     {
         checkTileParameters(x, y, w, h);
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        PixelData data = delegate().getTile(z, c, t, x, y, w, h);
+        PixelData data;
+        PooledReader pooled = borrowReader();
+        try
+        {
+            if (pooled == null)
+            {
+                synchronized (this)
+                {
+                    data = delegate().getTile(z, c, t, x, y, w, h);
+                }
+            }
+            else
+            {
+                data = pooled.buffer.getTile(z, c, t, x, y, w, h);
+            }
+        }
+        finally
+        {
+            returnReader(pooled);
+        }
         data.setOrder(byteOrder);
         return data;
     }
@@ -1018,7 +1336,7 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTileDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getTileDirect(Integer z, Integer c, Integer t,
+    public byte[] getTileDirect(Integer z, Integer c, Integer t,
             Integer x, Integer y, Integer w, Integer h, byte[] buffer)
         throws IOException
     {
@@ -1026,7 +1344,66 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        return delegate().getTileDirect(z, c, t, x, y, w, h, buffer);
+        PooledReader pooled = borrowReader();
+        try
+        {
+            if (pooled == null)
+            {
+                synchronized (this)
+                {
+                    return delegate().getTileDirect(
+                            z, c, t, x, y, w, h, buffer);
+                }
+            }
+            return pooled.buffer.getTileDirect(z, c, t, x, y, w, h, buffer);
+        }
+        finally
+        {
+            returnReader(pooled);
+        }
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F. The tiles are
+     * decoded in parallel by the calling thread and the threads of the
+     * shared {@link PixelsExecutor}, up to {@link #setReaders(int) readers}
+     * at a time.
+     * @see PixelBuffer#getTiles(List)
+     */
+    public List<PixelData> getTiles(List<TileRequest> tiles)
+        throws IOException
+    {
+        final int threads = Math.min(readers, tiles.size());
+        if (threads <= 1)
+        {
+            final List<PixelData> rv =
+                    new ArrayList<PixelData>(tiles.size());
+            for (TileRequest tile : tiles)
+            {
+                rv.add(getTile(tile));
+            }
+            return rv;
+        }
+        final List<Callable<PixelData>> tasks =
+                new ArrayList<Callable<PixelData>>(tiles.size());
+        for (final TileRequest tile : tiles)
+        {
+            tasks.add(new Callable<PixelData>() {
+                public PixelData call() throws IOException
+                {
+                    return getTile(tile);
+                }
+            });
+        }
+        final PixelsExecutor pool =
+                executor == null ? PixelsExecutor.getDefault() : executor;
+        return pool.invokeAll(tasks, threads);
+    }
+
+    private PixelData getTile(TileRequest tile) throws IOException
+    {
+        return getTile(tile.getZ(), tile.getC(), tile.getT(), tile.getX(),
+                tile.getY(), tile.getWidth(), tile.getHeight());
     }
 
     /* (non-Javadoc)
@@ -1075,17 +1452,17 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#isFloat()
      */
-    public synchronized boolean isFloat()
+    public boolean isFloat()
     {
-        return delegate().isFloat();
+        return readState().isFloat;
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#isSigned()
      */
-    public synchronized boolean isSigned()
+    public boolean isSigned()
     {
-        return delegate().isSigned();
+        return readState().isSigned;
     }
 
     /* (non-Javadoc)
@@ -1186,34 +1563,59 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getResolutionLevel()
      */
-    public synchronized int getResolutionLevel()
+    public int getResolutionLevel()
     {
-        if (isWrite())
+        ReadState state = readState;
+        if (state != null)
         {
-            throw new ApiUsageException("In write mode!");
+            int level = resolutionLevel;
+            return level < 0? state.resolutionLevels - 1 : level;
+        }
+        synchronized (this)
+        {
+            if (isWrite())
+            {
+                throw new ApiUsageException("In write mode!");
+            }
+            return delegate().getResolutionLevel();
         }
-        return delegate().getResolutionLevel();
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getResolutionLevels()
      */
-    public synchronized int getResolutionLevels()
+    public int getResolutionLevels()
     {
-        if (isWrite())
+        ReadState state = readState;
+        if (state != null)
         {
-            throw new ApiUsageException("In write mode!");
+            return state.resolutionLevels;
+        }
+        synchronized (this)
+        {
+            if (isWrite())
+            {
+                throw new ApiUsageException("In write mode!");
+            }
+            return delegate().getResolutionLevels();
         }
-        return delegate().getResolutionLevels();
     }
 
-    public synchronized List<List<Integer>> getResolutionDescriptions()
+    public List<List<Integer>> getResolutionDescriptions()
     {
-        if (isWrite())
+        ReadState state = readState;
+        if (state != null)
         {
-            throw new ApiUsageException("In write mode!");
+            return state.resolutionDescriptions;
+        }
+        synchronized (this)
+        {
+            if (isWrite())
+            {
+                throw new ApiUsageException("In write mode!");
+            }
+            return delegate().getResolutionDescriptions();
         }
-        return delegate().getResolutionDescriptions();
     }
 
     /* (non-Javadoc)
@@ -1238,5 +1640,80 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
             throw new ApiUsageException("In write mode!");
         }
         delegate().setResolutionLevel(resolutionLevel);
+        this.resolutionLevel = resolutionLevel;
+    }
+
+    /**
+     * Metadata of a read-only pyramid, which does not change until the
+     * buffer is closed and may therefore be read without locking.
+     */
+    private static final class ReadState
+    {
+        final int resolutionLevels;
+
+        /** The sizes of the levels, highest resolution first. */
+        final List<List<Integer>> resolutionDescriptions;
+
+        final int byteWidth;
+
+        final boolean isSigned;
+
+        final boolean isFloat;
+
+        ReadState(BfPixelBuffer delegate)
+        {
+            resolutionLevels = delegate.getResolutionLevels();
+            List<List<Integer>> descriptions = new ArrayList<List<Integer>>();
+            for (List<Integer> sizes : delegate.getResolutionDescriptions())
+            {
+                descriptions.add(Collections.unmodifiableList(
+                        new ArrayList<Integer>(sizes)));
+            }
+            resolutionDescriptions =
+                    Collections.unmodifiableList(descriptions);
+            byteWidth = delegate.getByteWidth();
+            isSigned = delegate.isSigned();
+            isFloat = delegate.isFloat();
+        }
+
+        /**
+         * Returns the size X and size Y of a resolution level.
+         * @param level The level or <code>-1</code> for the highest
+         * resolution.
+         * @return See above.
+         */
+        List<Integer> getSize(int level)
+        {
+            if (level < 0)
+            {
+                return resolutionDescriptions.get(0);
+            }
+            return resolutionDescriptions.get(resolutionLevels - 1 - level);
+        }
+    }
+
+    /**
+     * A reader of the pyramid used by one tile or plane read at a time.
+     */
+    private static final class PooledReader
+    {
+        final OmeroPixelsPyramidReader reader;
+
+        final BfPixelBuffer buffer;
+
+        /** The {@link #readerGeneration} the reader was opened in. */
+        final int generation;
+
+        /** The resolution level the reader is set to, <code>-1</code> for
+         * the default. */
+        int level = -1;
+
+        PooledReader(OmeroPixelsPyramidReader reader, BfPixelBuffer buffer,
+                int generation)
+        {
+            this.reader = reader;
+            this.buffer = buffer;
+            this.generation = generation;
+        }
     }
 }
@@ -0,0 +1,232 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.bioformats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import loci.formats.IFormatReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of initialized Bio-Formats readers, keyed by file path and
+ * series, so that the pixel buffers repeatedly opened on the same fileset do
+ * not pay for {@link IFormatReader#setId(String)} every time.
+ * <p>
+ * A reader is leased exclusively by one pixel buffer and released back to
+ * the pool when the buffer is closed, see {@link PooledBfPixelBuffer}. At most
+ * the maximum number of readers are kept idle, each holding its files open:
+ * the least recently released readers are closed to make room, as are those
+ * left idle for longer than the idle time.
+ * </p>
+ *
+ * @since 5.4.0
+ */
+public class BfReaderPool {
+
+    private final static Logger log = LoggerFactory.getLogger(BfReaderPool.class);
+
+    /** The maximum number of idle readers kept open. */
+    private final int maxReaders;
+
+    /** Time in ms. after which an idle reader is closed. */
+    private final long idleTime;
+
+    /** The idle readers, least recently released first. */
+    private final LinkedList<Idle> idle = new LinkedList<Idle>();
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxReaders The maximum number of idle readers kept open,
+     * <code>0</code> to disable the pool.
+     * @param idleTime Time in ms. after which an idle reader is closed.
+     */
+    public BfReaderPool(int maxReaders, long idleTime) {
+        this.maxReaders = Math.max(maxReaders, 0);
+        this.idleTime = idleTime;
+    }
+
+    /**
+     * Returns whether readers are kept at all.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return maxReaders > 0;
+    }
+
+    /**
+     * Returns the number of idle readers.
+     *
+     * @return See above.
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Returns the number of leases served by an idle reader.
+     *
+     * @return See above.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of leases for which no idle reader was found.
+     *
+     * @return See above.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Leases an idle reader initialized with the given file and series. The
+     * reader is removed from the pool until {@link #release(String,
+     * IFormatReader)} is called.
+     *
+     * @param filePath The path of the file the reader was initialized with.
+     * @param series The series set in the reader.
+     * @return See above or <code>null</code> if there is none.
+     */
+    public IFormatReader lease(String filePath, int series) {
+        List<IFormatReader> expired = new ArrayList<IFormatReader>();
+        IFormatReader reader = null;
+        synchronized (this) {
+            expire(expired);
+            // The most recently released reader is the likeliest to have the
+            // files in the operating system caches.
+            Iterator<Idle> i = idle.descendingIterator();
+            while (i.hasNext()) {
+                Idle candidate = i.next();
+                if (candidate.matches(filePath, series)) {
+                    i.remove();
+                    reader = candidate.reader;
+                    break;
+                }
+            }
+            if (reader == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+        closeAll(expired);
+        return reader;
+    }
+
+    /**
+     * Returns a leased reader to the pool, keyed by its current series. The
+     * reader is closed rather than kept if the pool is disabled.
+     *
+     * @param filePath The path of the file the reader was initialized with.
+     * @param reader The reader to return.
+     */
+    public void release(String filePath, IFormatReader reader) {
+        List<IFormatReader> evicted = new ArrayList<IFormatReader>();
+        synchronized (this) {
+            expire(evicted);
+            if (maxReaders > 0) {
+                idle.add(new Idle(filePath, reader.getSeries(), reader,
+                        System.currentTimeMillis()));
+                while (idle.size() > maxReaders) {
+                    evicted.add(idle.removeFirst().reader);
+                }
+            } else {
+                evicted.add(reader);
+            }
+        }
+        closeAll(evicted);
+    }
+
+    /**
+     * Closes the readers left idle for longer than the idle time.
+     */
+    public void evictIdle() {
+        List<IFormatReader> expired = new ArrayList<IFormatReader>();
+        synchronized (this) {
+            expire(expired);
+        }
+        closeAll(expired);
+    }
+
+    /**
+     * Closes all the idle readers.
+     */
+    public void close() {
+        List<IFormatReader> readers = new ArrayList<IFormatReader>();
+        synchronized (this) {
+            for (Idle entry : idle) {
+                readers.add(entry.reader);
+            }
+            idle.clear();
+        }
+        closeAll(readers);
+    }
+
+    /**
+     * Removes the readers left idle for longer than the idle time. Must be
+     * called while holding the lock.
+     *
+     * @param expired The list to add the readers removed to.
+     */
+    private void expire(List<IFormatReader> expired) {
+        long oldest = System.currentTimeMillis() - idleTime;
+        while (!idle.isEmpty() && idle.getFirst().released < oldest) {
+            expired.add(idle.removeFirst().reader);
+        }
+    }
+
+    /**
+     * Closes readers, outside of the lock since this may block on I/O.
+     */
+    private static void closeAll(List<IFormatReader> readers) {
+        for (IFormatReader reader : readers) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                log.warn("Failed to close pooled reader", e);
+            }
+        }
+    }
+
+    /** An idle reader. */
+    private static final class Idle {
+
+        final String filePath;
+
+        final int series;
+
+        final IFormatReader reader;
+
+        /** Time in ms. at which the reader was released. */
+        final long released;
+
+        Idle(String filePath, int series, IFormatReader reader,
+                long released) {
+            this.filePath = filePath;
+            this.series = series;
+            this.reader = reader;
+            this.released = released;
+        }
+
+        boolean matches(String filePath, int series) {
+            return this.series == series && this.filePath.equals(filePath);
+        }
+    }
+}
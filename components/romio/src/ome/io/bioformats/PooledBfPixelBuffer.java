@@ -0,0 +1,65 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.bioformats;
+
+import java.io.IOException;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+import ome.conditions.ResourceError;
+
+/**
+ * {@link BfPixelBuffer} whose reader is leased from a {@link BfReaderPool}:
+ * on {@link #close()} the reader is released back to the pool, still
+ * initialized, rather than closed. The buffer cannot be used once closed.
+ *
+ * @since 5.4.0
+ */
+public class PooledBfPixelBuffer extends BfPixelBuffer {
+
+    private final BfReaderPool pool;
+
+    private volatile boolean released;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param filePath The path of the file to read.
+     * @param bfReader A new reader or one leased from the pool for the file.
+     * @param pool The pool to release the reader to.
+     */
+    public PooledBfPixelBuffer(String filePath, IFormatReader bfReader,
+            BfReaderPool pool) throws IOException, FormatException {
+        super(filePath, bfReader);
+        this.pool = pool;
+    }
+
+    @Override
+    protected BfPixelsWrapper reader() {
+        if (released) {
+            throw new ResourceError("Pixel buffer closed: " + filePath);
+        }
+        return super.reader();
+    }
+
+    /**
+     * Releases the reader to the pool if it was initialized, leaving it
+     * open.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (released) {
+            return;
+        }
+        released = true;
+        reader.set(null);
+        if (filePath.equals(bfReader.getCurrentFile())) {
+            pool.release(filePath, bfReader);
+        } else {
+            bfReader.close();
+        }
+    }
+}
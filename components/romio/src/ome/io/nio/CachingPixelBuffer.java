@@ -0,0 +1,500 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import ome.util.PixelData;
+
+/**
+ * Pixel buffer serving the tiles and planes it reads from a
+ * {@link PixelsTileCache} shared by all the pixel buffers of the process.
+ * All the other calls are forwarded to the wrapped buffer. The writes
+ * remove the data they modify from the cache.
+ *
+ * @since 5.4.0
+ */
+public class CachingPixelBuffer implements PixelBuffer {
+
+    /** The wrapped buffer. */
+    private final PixelBuffer delegate;
+
+    /** The identifier of the pixels set. */
+    private final long pixelsId;
+
+    /** The pixels type of the pixels set. */
+    private final String pixelsType;
+
+    /** The cache shared by the pixel buffers. */
+    private final PixelsTileCache cache;
+
+    /**
+     * The resolution level set on the wrapped buffer, <code>-1</code> while
+     * it reads from its default level.
+     */
+    private volatile int resolutionLevel = -1;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param delegate The buffer to wrap.
+     * @param pixelsId The identifier of the pixels set.
+     * @param pixelsType The pixels type of the pixels set.
+     * @param cache The cache shared by the pixel buffers.
+     */
+    public CachingPixelBuffer(PixelBuffer delegate, long pixelsId,
+            String pixelsType, PixelsTileCache cache) {
+        this.delegate = delegate;
+        this.pixelsId = pixelsId;
+        this.pixelsType = pixelsType;
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the wrapped buffer.
+     *
+     * @return See above.
+     */
+    public PixelBuffer getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Creates the key of a read from the wrapped buffer.
+     */
+    private PixelsTileCache.Key key(int kind, int z, int c, int t, int x,
+            int y, int w, int h) {
+        return PixelsTileCache.createKey(pixelsId, delegate.getClass(), kind,
+                resolutionLevel, z, c, t, x, y, w, h);
+    }
+
+    /**
+     * Creates the pixel data of a cached entry, backed by a copy of it so
+     * that the caller may modify or dispose of it.
+     */
+    private PixelData toPixelData(PixelsTileCache.Entry entry) {
+        PixelData data =
+                new PixelData(pixelsType, ByteBuffer.wrap(entry.copyTo(null)));
+        data.setOrder(entry.getOrder());
+        return data;
+    }
+
+    /**
+     * Caches the first bytes of the passed array, the array may be larger
+     * than the data read into it.
+     */
+    private void put(PixelsTileCache.Key key, byte[] buffer, long length) {
+        if (buffer != null && length > 0 && length <= buffer.length) {
+            cache.put(key, ByteBuffer.wrap(buffer, 0, (int) length), null);
+        }
+    }
+
+    /**
+     * Caches the data read into the passed pixel data.
+     */
+    private void put(PixelsTileCache.Key key, PixelData data) {
+        if (data != null && data.getData() != null) {
+            cache.put(key, data.getData(), data.getOrder());
+        }
+    }
+
+    public PixelData getTile(Integer z, Integer c, Integer t, Integer x,
+            Integer y, Integer w, Integer h) throws IOException {
+        PixelsTileCache.Key key =
+                key(PixelsTileCache.TILE, z, c, t, x, y, w, h);
+        PixelsTileCache.Entry entry = cache.get(key);
+        if (entry != null) {
+            return toPixelData(entry);
+        }
+        PixelData data = delegate.getTile(z, c, t, x, y, w, h);
+        put(key, data);
+        return data;
+    }
+
+    public byte[] getTileDirect(Integer z, Integer c, Integer t, Integer x,
+            Integer y, Integer w, Integer h, byte[] buffer)
+            throws IOException {
+        PixelsTileCache.Key key =
+                key(PixelsTileCache.TILE_DIRECT, z, c, t, x, y, w, h);
+        PixelsTileCache.Entry entry = cache.get(key);
+        if (entry != null) {
+            return entry.copyTo(buffer);
+        }
+        buffer = delegate.getTileDirect(z, c, t, x, y, w, h, buffer);
+        put(key, buffer, (long) w * h * delegate.getByteWidth());
+        return buffer;
+    }
+
+    public List<PixelData> getTiles(List<TileRequest> tiles)
+            throws IOException {
+        List<PixelData> rv = new ArrayList<PixelData>(tiles.size());
+        List<TileRequest> missing = new ArrayList<TileRequest>();
+        List<PixelsTileCache.Key> missingKeys =
+                new ArrayList<PixelsTileCache.Key>();
+        for (TileRequest tile : tiles) {
+            PixelsTileCache.Key key = key(PixelsTileCache.TILE, tile.getZ(),
+                    tile.getC(), tile.getT(), tile.getX(), tile.getY(),
+                    tile.getWidth(), tile.getHeight());
+            PixelsTileCache.Entry entry = cache.get(key);
+            if (entry != null) {
+                rv.add(toPixelData(entry));
+            } else {
+                rv.add(null);
+                missing.add(tile);
+                missingKeys.add(key);
+            }
+        }
+        if (!missing.isEmpty()) {
+            // Read all the missing tiles at once for the wrapped buffer to
+            // coalesce or parallelize the reads.
+            List<PixelData> read = delegate.getTiles(missing);
+            int j = 0;
+            for (int i = 0; i < rv.size(); i++) {
+                if (rv.get(i) == null) {
+                    PixelData data = read.get(j);
+                    put(missingKeys.get(j), data);
+                    rv.set(i, data);
+                    j++;
+                }
+            }
+        }
+        return rv;
+    }
+
+    public PixelData getPlane(Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        PixelsTileCache.Key key =
+                key(PixelsTileCache.PLANE, z, c, t, 0, 0, 0, 0);
+        PixelsTileCache.Entry entry = cache.get(key);
+        if (entry != null) {
+            return toPixelData(entry);
+        }
+        PixelData data = delegate.getPlane(z, c, t);
+        put(key, data);
+        return data;
+    }
+
+    public byte[] getPlaneDirect(Integer z, Integer c, Integer t,
+            byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        PixelsTileCache.Key key =
+                key(PixelsTileCache.PLANE_DIRECT, z, c, t, 0, 0, 0, 0);
+        PixelsTileCache.Entry entry = cache.get(key);
+        if (entry != null) {
+            return entry.copyTo(buffer);
+        }
+        buffer = delegate.getPlaneDirect(z, c, t, buffer);
+        put(key, buffer, delegate.getPlaneSize());
+        return buffer;
+    }
+
+    public void setTile(byte[] buffer, Integer z, Integer c, Integer t,
+            Integer x, Integer y, Integer w, Integer h)
+            throws IOException, BufferOverflowException {
+        try {
+            delegate.setTile(buffer, z, c, t, x, y, w, h);
+        } finally {
+            cache.invalidate(pixelsId, z, c, t);
+        }
+    }
+
+    public void setRegion(Integer size, Long offset, byte[] buffer)
+            throws IOException, BufferOverflowException {
+        try {
+            delegate.setRegion(size, offset, buffer);
+        } finally {
+            cache.invalidate(pixelsId);
+        }
+    }
+
+    public void setRegion(Integer size, Long offset, ByteBuffer buffer)
+            throws IOException, BufferOverflowException {
+        try {
+            delegate.setRegion(size, offset, buffer);
+        } finally {
+            cache.invalidate(pixelsId);
+        }
+    }
+
+    public void setRow(ByteBuffer buffer, Integer y, Integer z, Integer c,
+            Integer t) throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        try {
+            delegate.setRow(buffer, y, z, c, t);
+        } finally {
+            cache.invalidate(pixelsId, z, c, t);
+        }
+    }
+
+    public void setPlane(ByteBuffer buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        try {
+            delegate.setPlane(buffer, z, c, t);
+        } finally {
+            cache.invalidate(pixelsId, z, c, t);
+        }
+    }
+
+    public void setPlane(byte[] buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        try {
+            delegate.setPlane(buffer, z, c, t);
+        } finally {
+            cache.invalidate(pixelsId, z, c, t);
+        }
+    }
+
+    public void setStack(ByteBuffer buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        try {
+            delegate.setStack(buffer, z, c, t);
+        } finally {
+            cache.invalidate(pixelsId);
+        }
+    }
+
+    public void setStack(byte[] buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        try {
+            delegate.setStack(buffer, z, c, t);
+        } finally {
+            cache.invalidate(pixelsId);
+        }
+    }
+
+    public void setTimepoint(ByteBuffer buffer, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        try {
+            delegate.setTimepoint(buffer, t);
+        } finally {
+            cache.invalidate(pixelsId);
+        }
+    }
+
+    public void setTimepoint(byte[] buffer, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        try {
+            delegate.setTimepoint(buffer, t);
+        } finally {
+            cache.invalidate(pixelsId);
+        }
+    }
+
+    public void setResolutionLevel(int resolutionLevel) {
+        delegate.setResolutionLevel(resolutionLevel);
+        this.resolutionLevel = resolutionLevel;
+    }
+
+    public void close() throws IOException {
+        resolutionLevel = -1;
+        delegate.close();
+    }
+
+    // Forwarded as is.
+
+    public void checkBounds(Integer x, Integer y, Integer z, Integer c,
+            Integer t) throws DimensionsOutOfBoundsException {
+        delegate.checkBounds(x, y, z, c, t);
+    }
+
+    public Long getPlaneSize() {
+        return delegate.getPlaneSize();
+    }
+
+    public Integer getRowSize() {
+        return delegate.getRowSize();
+    }
+
+    public Integer getColSize() {
+        return delegate.getColSize();
+    }
+
+    public Long getStackSize() {
+        return delegate.getStackSize();
+    }
+
+    public Long getTimepointSize() {
+        return delegate.getTimepointSize();
+    }
+
+    public Long getTotalSize() {
+        return delegate.getTotalSize();
+    }
+
+    public Long getHypercubeSize(List<Integer> offset, List<Integer> size,
+            List<Integer> step) throws DimensionsOutOfBoundsException {
+        return delegate.getHypercubeSize(offset, size, step);
+    }
+
+    public Long getRowOffset(Integer y, Integer z, Integer c, Integer t)
+            throws DimensionsOutOfBoundsException {
+        return delegate.getRowOffset(y, z, c, t);
+    }
+
+    public Long getPlaneOffset(Integer z, Integer c, Integer t)
+            throws DimensionsOutOfBoundsException {
+        return delegate.getPlaneOffset(z, c, t);
+    }
+
+    public Long getStackOffset(Integer c, Integer t)
+            throws DimensionsOutOfBoundsException {
+        return delegate.getStackOffset(c, t);
+    }
+
+    public Long getTimepointOffset(Integer t)
+            throws DimensionsOutOfBoundsException {
+        return delegate.getTimepointOffset(t);
+    }
+
+    public PixelData getHypercube(List<Integer> offset, List<Integer> size,
+            List<Integer> step)
+            throws IOException, DimensionsOutOfBoundsException {
+        return delegate.getHypercube(offset, size, step);
+    }
+
+    public byte[] getHypercubeDirect(List<Integer> offset, List<Integer> size,
+            List<Integer> step, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        return delegate.getHypercubeDirect(offset, size, step, buffer);
+    }
+
+    public byte[] getPlaneRegionDirect(Integer z, Integer c, Integer t,
+            Integer count, Integer offset, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        return delegate.getPlaneRegionDirect(z, c, t, count, offset, buffer);
+    }
+
+    public PixelData getRegion(Integer size, Long offset) throws IOException {
+        return delegate.getRegion(size, offset);
+    }
+
+    public byte[] getRegionDirect(Integer size, Long offset, byte[] buffer)
+            throws IOException {
+        return delegate.getRegionDirect(size, offset, buffer);
+    }
+
+    public PixelData getRow(Integer y, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        return delegate.getRow(y, z, c, t);
+    }
+
+    public PixelData getCol(Integer x, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        return delegate.getCol(x, z, c, t);
+    }
+
+    public byte[] getRowDirect(Integer y, Integer z, Integer c, Integer t,
+            byte[] buffer) throws IOException, DimensionsOutOfBoundsException {
+        return delegate.getRowDirect(y, z, c, t, buffer);
+    }
+
+    public byte[] getColDirect(Integer x, Integer z, Integer c, Integer t,
+            byte[] buffer) throws IOException, DimensionsOutOfBoundsException {
+        return delegate.getColDirect(x, z, c, t, buffer);
+    }
+
+    public PixelData getPlaneRegion(Integer x, Integer y, Integer width,
+            Integer height, Integer z, Integer c, Integer t, Integer stride)
+            throws IOException, DimensionsOutOfBoundsException {
+        return delegate.getPlaneRegion(x, y, width, height, z, c, t, stride);
+    }
+
+    public PixelData getStack(Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        return delegate.getStack(c, t);
+    }
+
+    public byte[] getStackDirect(Integer c, Integer t, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        return delegate.getStackDirect(c, t, buffer);
+    }
+
+    public PixelData getTimepoint(Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        return delegate.getTimepoint(t);
+    }
+
+    public byte[] getTimepointDirect(Integer t, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        return delegate.getTimepointDirect(t, buffer);
+    }
+
+    public byte[] calculateMessageDigest() throws IOException {
+        return delegate.calculateMessageDigest();
+    }
+
+    public int getByteWidth() {
+        return delegate.getByteWidth();
+    }
+
+    public boolean isSigned() {
+        return delegate.isSigned();
+    }
+
+    public boolean isFloat() {
+        return delegate.isFloat();
+    }
+
+    public String getPath() {
+        return delegate.getPath();
+    }
+
+    public long getId() {
+        return delegate.getId();
+    }
+
+    public int getSizeX() {
+        return delegate.getSizeX();
+    }
+
+    public int getSizeY() {
+        return delegate.getSizeY();
+    }
+
+    public int getSizeZ() {
+        return delegate.getSizeZ();
+    }
+
+    public int getSizeC() {
+        return delegate.getSizeC();
+    }
+
+    public int getSizeT() {
+        return delegate.getSizeT();
+    }
+
+    public int getResolutionLevels() {
+        return delegate.getResolutionLevels();
+    }
+
+    public int getResolutionLevel() {
+        return delegate.getResolutionLevel();
+    }
+
+    public Dimension getTileSize() {
+        return delegate.getTileSize();
+    }
+
+    public List<List<Integer>> getResolutionDescriptions() {
+        return delegate.getResolutionDescriptions();
+    }
+
+    @Override
+    public String toString() {
+        return "CachingPixelBuffer(" + delegate + ")";
+    }
+}
@@ -0,0 +1,1938 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.awt.Dimension;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ome.conditions.ApiUsageException;
+import ome.conditions.LockTimeout;
+import ome.conditions.ResourceError;
+import ome.io.bioformats.BfPyramidPixelBuffer;
+import ome.model.core.Pixels;
+import ome.util.PixelData;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link PyramidPixelBuffer} which stores the pyramid in a chunked container
+ * rather than in a JPEG-2000 compressed TIFF. Each tile of each resolution
+ * level is a chunk, compressed losslessly by shuffling the bytes of its
+ * pixels, the most significant bytes first, and deflating them. An index of
+ * the chunks at the end of the file locates any tile directly, so that a
+ * tile read decodes one chunk and concurrent reads need no locking.
+ * <p>
+ * The full resolution tiles are written through
+ * {@link #setTile(byte[], Integer, Integer, Integer, Integer, Integer, Integer, Integer)},
+ * aligned on the tile grid, in any order. The lower resolution levels are
+ * computed when the writer is closed, by averaging the pixels of the level
+ * above two by two, until the whole plane fits in a tile.
+ * </p>
+ * The file layout, big endian:
+ * <pre>
+ * header : magic (8 bytes), version (int), reserved (int),
+ *          index offset (long), 0 until the pyramid is complete
+ * chunks : codec (byte) followed by the encoded tile
+ * index  : metadata length (int), metadata, then the offset (long) and
+ *          length (int), 0 if never written, of each chunk by level,
+ *          plane (XYZCT) and tile (row major)
+ * </pre>
+ * The metadata are the pixels type (UTF), size X, Y, Z, C and T (int), tile
+ * width and height (int), whether the pixels are little endian (boolean)
+ * and the number of levels (int) followed by the size X and Y (int) of each
+ * level, highest resolution first.
+ *
+ * @since 5.4.0
+ */
+public class ChunkedPyramidPixelBuffer implements PyramidPixelBuffer {
+
+    /** The logger for this particular class */
+    private static Logger log =
+            LoggerFactory.getLogger(ChunkedPyramidPixelBuffer.class);
+
+    /** The first bytes of a chunked pyramid. */
+    private static final byte[] MAGIC = new byte[] {
+        'O', 'M', 'E', 'R', 'O', 'P', 'Y', 'R' };
+
+    /** The version of the layout. */
+    private static final int VERSION = 1;
+
+    /** The size of the header in bytes. */
+    private static final int HEADER_SIZE = 24;
+
+    /** The size of an entry of the index in bytes. */
+    private static final int ENTRY_SIZE = 12;
+
+    /** Chunk stored as is, the tile did not compress. */
+    private static final byte CODEC_RAW = 0;
+
+    /** Chunk shuffled and deflated. */
+    private static final byte CODEC_DEFLATE = 1;
+
+    /** The file of the complete pyramid. */
+    private final File readerFile;
+
+    /** Description of tile sizes */
+    private final TileSizes sizes;
+
+    /** The OMERO pixels set we're backing. */
+    private final Pixels pixels;
+
+    /** The OME pixels type. */
+    private final String pixelsType;
+
+    /** The number of bytes per pixel. */
+    private final int byteWidth;
+
+    /** The byte order of the pixels in the pyramid. */
+    private volatile ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+
+    /**
+     * The resolution level set through {@link #setResolutionLevel(int)} or
+     * <code>-1</code> for the default level, the highest resolution.
+     */
+    private volatile int resolutionLevel = -1;
+
+    /** The pyramid open for reading, <code>null</code> until read. */
+    private volatile ReadChunks readChunks;
+
+    // WRITING
+
+    /**
+     * The file the pyramid is written to, moved to {@link #readerFile} on
+     * close so that a partially written pyramid is never read.
+     */
+    private File writerFile;
+
+    /** Lock file shared with the TIFF pyramids, see ticket #5083. */
+    private File lockFile;
+
+    /** {@link RandomAccessFile} opened for the {@link #lockFile} path. */
+    private RandomAccessFile lockRaf;
+
+    /** If not null, {@link FileLock} acquired from the {@link #lockRaf}. */
+    private FileLock fileLock;
+
+    /** The chunks written, <code>null</code> until the first tile. */
+    private WriteChunks writeChunks;
+
+    /** Whether the pyramid written was abandoned, see {@link #discard()}. */
+    private boolean discarded;
+
+    /**
+     * Creates a new instance with the configured tile sizes.
+     *
+     * @param pixels The pixels set.
+     * @param filePath The path of the pyramid.
+     * @param write <code>true</code> to write the pyramid if it does not
+     *            exist yet.
+     * @throws IOException If the pyramid cannot be read.
+     */
+    public ChunkedPyramidPixelBuffer(Pixels pixels, String filePath,
+            boolean write) throws IOException {
+        this(new ConfiguredTileSizes(), pixels, filePath, write);
+    }
+
+    /**
+     * Creates a new instance. If the pyramid exists it is opened read-only,
+     * otherwise it is written to a temporary file, holding the pyramid lock,
+     * until {@link #close()} or the first read.
+     *
+     * @param sizes The tile sizes used until the first tile is written.
+     * @param pixels The pixels set.
+     * @param filePath The path of the pyramid.
+     * @param write <code>true</code> to write the pyramid if it does not
+     *            exist yet.
+     * @throws IOException If the pyramid cannot be read.
+     */
+    public ChunkedPyramidPixelBuffer(TileSizes sizes, Pixels pixels,
+            String filePath, boolean write) throws IOException {
+        this.sizes = sizes;
+        this.pixels = pixels;
+        this.readerFile = new File(filePath);
+        this.pixelsType = pixels.getPixelsType().getValue();
+        this.byteWidth = PixelData.getBitDepth(pixelsType) / 8;
+        if (!write || readerFile.exists()) {
+            if (write) {
+                log.debug("Initialized in a write-context; "
+                        + "setting read-only for " + filePath);
+            }
+            if (!readerFile.exists()) {
+                throw new IOException("Cannot access " + filePath);
+            }
+            initializeReader();
+        } else {
+            // Not deleted on exit so that a generation interrupted by a
+            // restart may be resumed, see #resume(File, long).
+            writerFile = File.createTempFile(
+                    "." + readerFile.getName(), ".tmp",
+                    readerFile.getParentFile());
+            acquireLock();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the file is a chunked pyramid,
+     * <code>false</code> otherwise, e.g. for a TIFF pyramid.
+     *
+     * @param file The file to check.
+     * @return See above.
+     */
+    public static boolean isChunkedPyramid(File file) {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return false;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                raf.readFully(magic);
+                return Arrays.equals(magic, MAGIC);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read " + file, e);
+            return false;
+        }
+    }
+
+    //
+    // LOCKING
+    //
+
+    private void acquireLock() {
+        try {
+            lockFile = new File(readerFile.getParentFile(),
+                    "." + readerFile.getName()
+                    + BfPyramidPixelBuffer.PYR_LOCK_EXT);
+            lockRaf = new RandomAccessFile(lockFile, "rw");
+            fileLock = lockRaf.getChannel().lock(); // THROWS!
+        } catch (OverlappingFileLockException overlap) {
+            closeRaf();
+            throw new LockTimeout("Already locked! " +
+                    lockFile.getAbsolutePath(), 15*1000, 0);
+        } catch (IOException e) {
+            closeRaf();
+            throw new LockTimeout("IOException while locking " +
+                    lockFile.getAbsolutePath(), 15*1000, 0);
+        }
+    }
+
+    private void closeRaf() {
+        if (lockRaf != null) {
+            try {
+                lockRaf.close();
+            } catch (Exception e) {
+                log.warn("Failed to close " + lockFile, e);
+            } finally {
+                lockRaf = null;
+            }
+        }
+    }
+
+    private void releaseLock() {
+        try {
+            if (fileLock != null) {
+                fileLock.release();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            fileLock = null;
+            closeRaf();
+            if (lockFile != null) {
+                lockFile.delete();
+                lockFile = null;
+            }
+        }
+    }
+
+    //
+    // WRITING
+    //
+
+    /**
+     * Returns the temporary file the pyramid is written to until the writer
+     * is closed.
+     * @return See above or <code>null</code> if not in writing-mode.
+     */
+    public File getWriterFile() {
+        return writerFile;
+    }
+
+    /**
+     * Whether or not this instance is in writing-mode. Any of the calls to
+     * reader methods called while this method returns true will close the
+     * writer, saving the pyramid to disk and preventing any further write.
+     */
+    public boolean isWrite() {
+        return writerFile != null;
+    }
+
+    /**
+     * Returns the current pixel byte order.
+     * @return See above.
+     */
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    /**
+     * Sets the pixel byte order.
+     * @param byteOrder The pixel byte order to set.
+     */
+    public void setByteOrder(ByteOrder byteOrder) {
+        this.byteOrder = byteOrder;
+    }
+
+    /**
+     * Writes a full resolution tile. The first tile written sets the tile
+     * size of the pyramid, the other tiles must be aligned on it.
+     * @see PixelBuffer#setTile(byte[], Integer, Integer, Integer, Integer, Integer, Integer, Integer)
+     */
+    public synchronized void setTile(byte[] buffer, Integer z, Integer c,
+            Integer t, Integer x, Integer y, Integer w, Integer h)
+            throws IOException, BufferOverflowException {
+        if (discarded) {
+            return;
+        }
+        final long entry = getEntry(z, c, t, x, y, w, h);
+        final int length = w * h * byteWidth;
+        if (buffer.length < length) {
+            throw new ApiUsageException("Buffer size incorrect.");
+        }
+        writeChunks.write(entry, buffer, length, byteWidth);
+    }
+
+    /**
+     * Encodes a full resolution tile, to be written by
+     * {@link #setEncodedTile(EncodedTile)}. Unlike the writes, the encoding
+     * holds no lock so that several tiles may be encoded concurrently.
+     *
+     * @param buffer The pixels of the tile.
+     * @param z The Z-section of the tile.
+     * @param c The channel of the tile.
+     * @param t The timepoint of the tile.
+     * @param x The X offset of the tile.
+     * @param y The Y offset of the tile.
+     * @param w The width of the tile.
+     * @param h The height of the tile.
+     * @return See above.
+     */
+    public EncodedTile encodeTile(byte[] buffer, int z, int c, int t, int x,
+            int y, int w, int h) {
+        final int length = w * h * byteWidth;
+        if (buffer.length < length) {
+            throw new ApiUsageException("Buffer size incorrect.");
+        }
+        final Encoder encoder = new Encoder();
+        try {
+            final int n = encoder.encode(buffer, length, byteWidth);
+            return new EncodedTile(z, c, t, x, y, w, h,
+                    Arrays.copyOf(encoder.chunk, n));
+        } finally {
+            encoder.end();
+        }
+    }
+
+    /**
+     * Writes a full resolution tile encoded by
+     * {@link #encodeTile(byte[], int, int, int, int, int, int, int)}, as
+     * {@link #setTile(byte[], Integer, Integer, Integer, Integer, Integer, Integer, Integer)}
+     * would.
+     *
+     * @param tile The encoded tile.
+     * @throws IOException If the tile cannot be written.
+     */
+    public synchronized void setEncodedTile(EncodedTile tile)
+            throws IOException {
+        if (discarded) {
+            return;
+        }
+        final long entry = getEntry(tile.z, tile.c, tile.t, tile.x, tile.y,
+                tile.w, tile.h);
+        writeChunks.append(entry, tile.chunk, tile.chunk.length);
+    }
+
+    /**
+     * Continues the writing of a pyramid from the file left behind by an
+     * interrupted generation rather than from an empty file. The file is
+     * cut to the length holding the tiles to recover, which are then
+     * registered, in the order they were written, by
+     * {@link #recoverTile(int, int, int, int, int, int, int)}.
+     *
+     * @param partial The temporary file of the interrupted generation.
+     * @param length The length of the file holding the tiles to recover,
+     *            see {@link #force()}.
+     * @throws IOException If the file is not a partial chunked pyramid.
+     */
+    public synchronized void resume(File partial, long length)
+            throws IOException {
+        if (!isWrite() || writeChunks != null) {
+            throw new ApiUsageException("No longer resumable!");
+        }
+        if (!isChunkedPyramid(partial) || partial.length() < length) {
+            throw new IOException("Not a partial chunked pyramid: "
+                    + partial);
+        }
+        final RandomAccessFile raf = new RandomAccessFile(partial, "rw");
+        try {
+            // Drops the tiles written after the checkpoint, maybe torn.
+            raf.setLength(Math.max(length, HEADER_SIZE));
+        } finally {
+            raf.close();
+        }
+        if (!partial.equals(writerFile)) {
+            writerFile.delete();
+            writerFile = partial;
+        }
+    }
+
+    /**
+     * Registers the next chunk of the file being resumed as the specified
+     * full resolution tile, checking that it decodes to a complete tile.
+     *
+     * @param z The Z-section of the tile.
+     * @param c The channel of the tile.
+     * @param t The timepoint of the tile.
+     * @param x The X offset of the tile.
+     * @param y The Y offset of the tile.
+     * @param w The width of the tile.
+     * @param h The height of the tile.
+     * @return The pixels of the tile.
+     * @throws IOException If the chunk is missing or corrupt.
+     * @see #resume(File)
+     */
+    public synchronized PixelData recoverTile(int z, int c, int t, int x,
+            int y, int w, int h) throws IOException {
+        final long entry = getEntry(z, c, t, x, y, w, h);
+        final int length = w * h * byteWidth;
+        writeChunks.recover(entry, length);
+        final byte[] buffer = new byte[length];
+        writeChunks.read(entry, buffer, length, byteWidth);
+        final PixelData data =
+                new PixelData(pixelsType, ByteBuffer.wrap(buffer));
+        data.setOrder(byteOrder);
+        return data;
+    }
+
+    /**
+     * Abandons the pyramid being written, e.g. after a tile failed to be
+     * written: the temporary file is deleted, the tiles written from now on
+     * are ignored and nothing is moved to the pyramid file on close. The
+     * lock is held until then.
+     *
+     * @throws IOException If the temporary file cannot be closed.
+     */
+    public synchronized void discard() throws IOException {
+        if (!isWrite()) {
+            throw new ApiUsageException("In read-only mode!");
+        }
+        discarded = true;
+        try {
+            if (writeChunks != null) {
+                writeChunks.close();
+            }
+        } finally {
+            writeChunks = null;
+            writerFile.delete();
+        }
+    }
+
+    /**
+     * Forces the chunks written so far to the disk.
+     *
+     * @return The offset of the end of the chunks, <code>0</code> if no
+     *         tile has been written.
+     * @throws IOException If the chunks cannot be forced to the disk.
+     */
+    public synchronized long force() throws IOException {
+        if (writeChunks == null) {
+            return 0;
+        }
+        writeChunks.channel.force(false);
+        return writeChunks.position;
+    }
+
+    /**
+     * Returns the entry in the index of a full resolution tile, checking
+     * that it is aligned on the tiles of the pyramid. The first tile sets
+     * the tile size of the pyramid.
+     */
+    private long getEntry(int z, int c, int t, int x, int y, int w, int h)
+            throws IOException {
+        if (!isWrite()) {
+            throw new ApiUsageException("In read-only mode!");
+        }
+        checkBounds(x, y, z, c, t);
+        if (writeChunks == null) {
+            writeChunks = new WriteChunks(new Layout(pixels.getSizeX(),
+                    pixels.getSizeY(), pixels.getSizeZ(), pixels.getSizeC(),
+                    pixels.getSizeT(), w, h), writerFile);
+        }
+        final Layout layout = writeChunks.layout;
+        if (x % layout.tileWidth != 0 || y % layout.tileHeight != 0
+                || w != Math.min(layout.tileWidth, layout.sizeX - x)
+                || h != Math.min(layout.tileHeight, layout.sizeY - y)) {
+            throw new ApiUsageException(String.format(
+                    "Tile x:%d y:%d w:%d h:%d not aligned on the %dx%d tiles "
+                    + "of the pyramid.", x, y, w, h, layout.tileWidth,
+                    layout.tileHeight));
+        }
+        final int tile = (y / layout.tileHeight) * layout.getTilesX(0)
+                + x / layout.tileWidth;
+        return layout.getEntry(0, getPlaneIndex(z, c, t), tile);
+    }
+
+    /**
+     * Computes the lower resolution levels and writes the index. This
+     * method should never exit without releasing the lock.
+     */
+    private void closeWriter() throws IOException {
+        try {
+            if (writeChunks != null) {
+                try {
+                    writeLevels(writeChunks);
+                    writeChunks.finish(pixelsType, byteOrder);
+                } finally {
+                    writeChunks.close();
+                    writeChunks = null;
+                }
+            }
+        } finally {
+            try {
+                if (writerFile != null) {
+                    try {
+                        if (!discarded) {
+                            FileUtils.moveFile(writerFile, readerFile);
+                        }
+                    } finally {
+                        writerFile = null;
+                    }
+                }
+            } finally {
+                releaseLock();
+            }
+        }
+    }
+
+    /**
+     * Computes each tile of the lower resolution levels from the tiles of
+     * the level above, already written.
+     */
+    private void writeLevels(WriteChunks chunks) throws IOException {
+        final Layout layout = chunks.layout;
+        final int tileWidth = layout.tileWidth;
+        final int tileHeight = layout.tileHeight;
+        final byte[] source = new byte[4 * tileWidth * tileHeight * byteWidth];
+        final byte[] tile = new byte[tileWidth * tileHeight * byteWidth];
+        for (int level = 1; level < layout.levels; level++) {
+            final int tilesX = layout.getTilesX(level);
+            final int tilesY = layout.getTilesY(level);
+            for (int plane = 0; plane < layout.planes; plane++) {
+                for (int ty = 0; ty < tilesY; ty++) {
+                    for (int tx = 0; tx < tilesX; tx++) {
+                        final int x = tx * tileWidth;
+                        final int y = ty * tileHeight;
+                        final int w = Math.min(tileWidth,
+                                layout.sizesX[level] - x);
+                        final int h = Math.min(tileHeight,
+                                layout.sizesY[level] - y);
+                        final int sw = Math.min(2 * w,
+                                layout.sizesX[level - 1] - 2 * x);
+                        final int sh = Math.min(2 * h,
+                                layout.sizesY[level - 1] - 2 * y);
+                        readRegion(chunks, level - 1, plane, 2 * x, 2 * y,
+                                sw, sh, source);
+                        downsample(source, sw, sh, tile, w, h);
+                        chunks.write(layout.getEntry(level, plane,
+                                ty * tilesX + tx), tile, w * h * byteWidth,
+                                byteWidth);
+                    }
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Wrote level %d %dx%d of %s", level,
+                        layout.sizesX[level], layout.sizesY[level],
+                        readerFile));
+            }
+        }
+    }
+
+    /**
+     * Averages the pixels of a region two by two.
+     * @param source The region, <code>sw</code> by <code>sh</code> pixels.
+     * @param target The halved region, <code>w</code> by <code>h</code>
+     *            pixels.
+     */
+    private void downsample(byte[] source, int sw, int sh, byte[] target,
+            int w, int h) {
+        final ByteBuffer src = ByteBuffer.wrap(source).order(byteOrder);
+        final ByteBuffer dst = ByteBuffer.wrap(target).order(byteOrder);
+        final boolean signed = isSigned();
+        final boolean floating = isFloat();
+        for (int j = 0; j < h; j++) {
+            final int y0 = 2 * j;
+            final int y1 = Math.min(y0 + 1, sh - 1);
+            for (int i = 0; i < w; i++) {
+                final int x0 = 2 * i;
+                final int x1 = Math.min(x0 + 1, sw - 1);
+                double sum = getValue(src, y0 * sw + x0, signed, floating)
+                        + getValue(src, y0 * sw + x1, signed, floating)
+                        + getValue(src, y1 * sw + x0, signed, floating)
+                        + getValue(src, y1 * sw + x1, signed, floating);
+                setValue(dst, j * w + i, sum / 4, floating);
+            }
+        }
+    }
+
+    private double getValue(ByteBuffer buffer, int index, boolean signed,
+            boolean floating) {
+        switch (byteWidth) {
+            case 1:
+                byte b = buffer.get(index);
+                return signed ? b : b & 0xFF;
+            case 2:
+                short s = buffer.getShort(2 * index);
+                return signed ? s : s & 0xFFFF;
+            case 4:
+                if (floating) {
+                    return buffer.getFloat(4 * index);
+                }
+                int i = buffer.getInt(4 * index);
+                return signed ? i : i & 0xFFFFFFFFL;
+            default:
+                return buffer.getDouble(8 * index);
+        }
+    }
+
+    private void setValue(ByteBuffer buffer, int index, double value,
+            boolean floating) {
+        switch (byteWidth) {
+            case 1:
+                buffer.put(index, (byte) Math.round(value));
+                break;
+            case 2:
+                buffer.putShort(2 * index, (short) Math.round(value));
+                break;
+            case 4:
+                if (floating) {
+                    buffer.putFloat(4 * index, (float) value);
+                } else {
+                    buffer.putInt(4 * index, (int) Math.round(value));
+                }
+                break;
+            default:
+                buffer.putDouble(8 * index, value);
+        }
+    }
+
+    //
+    // READING
+    //
+
+    /**
+     * Opens the pyramid for reading, reading its header and metadata.
+     */
+    private void initializeReader() throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(readerFile, "r");
+        try {
+            final byte[] magic = new byte[MAGIC.length];
+            raf.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a chunked pyramid: " + readerFile);
+            }
+            final int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format(
+                        "Unsupported pyramid version %d: %s", version,
+                        readerFile));
+            }
+            raf.readInt(); // Reserved
+            final long indexOffset = raf.readLong();
+            if (indexOffset == 0) {
+                throw new IOException("Incomplete pyramid: " + readerFile);
+            }
+            raf.seek(indexOffset);
+            final byte[] metadata = new byte[raf.readInt()];
+            raf.readFully(metadata);
+            final DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(metadata));
+            final String type = in.readUTF();
+            if (!type.equals(pixelsType)) {
+                throw new IOException(String.format(
+                        "Pixels type %s of the pyramid is not %s: %s",
+                        type, pixelsType, readerFile));
+            }
+            final Layout layout = new Layout(in.readInt(), in.readInt(),
+                    in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                    in.readInt());
+            byteOrder = in.readBoolean() ? ByteOrder.LITTLE_ENDIAN
+                    : ByteOrder.BIG_ENDIAN;
+            if (in.readInt() != layout.levels) {
+                throw new IOException("Corrupt pyramid: " + readerFile);
+            }
+            resolutionLevel = -1;
+            readChunks = new ReadChunks(layout, raf,
+                    indexOffset + 4 + metadata.length);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the pyramid open for reading, switching to read-only mode if
+     * still writing.
+     * @return See above.
+     */
+    private ReadChunks reader() {
+        ReadChunks chunks = readChunks;
+        if (chunks == null) {
+            synchronized (this) {
+                if (readChunks == null) {
+                    try {
+                        if (isWrite()) {
+                            closeWriter();
+                        }
+                        initializeReader();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                chunks = readChunks;
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns the index of the level storing the current resolution level,
+     * <code>0</code> for the highest resolution.
+     */
+    private int getStoredLevel(Layout layout) {
+        final int level = resolutionLevel;
+        return level < 0 ? 0 : layout.levels - 1 - level;
+    }
+
+    /** Returns the index of a plane in the XYZCT order. */
+    private int getPlaneIndex(int z, int c, int t) {
+        return (t * pixels.getSizeC() + c) * pixels.getSizeZ() + z;
+    }
+
+    /**
+     * Reads a region of a plane of a level, decoding the tiles it
+     * intersects.
+     * @param buffer The buffer to read into, of the size of the region.
+     */
+    private void readRegion(Chunks chunks, int level, int plane, int x,
+            int y, int w, int h, byte[] buffer) throws IOException {
+        final Layout layout = chunks.layout;
+        final int tileWidth = layout.tileWidth;
+        final int tileHeight = layout.tileHeight;
+        final int sizeX = layout.sizesX[level];
+        final int sizeY = layout.sizesY[level];
+        if (x < 0 || y < 0 || w < 1 || h < 1 || x + w > sizeX
+                || y + h > sizeY) {
+            throw new DimensionsOutOfBoundsException(String.format(
+                    "Region x:%d y:%d w:%d h:%d outside of %dx%d.",
+                    x, y, w, h, sizeX, sizeY));
+        }
+        if (buffer.length < w * h * byteWidth) {
+            throw new ApiUsageException("Buffer size incorrect.");
+        }
+        final int tilesX = layout.getTilesX(level);
+        byte[] tile = null;
+        for (int ty = y / tileHeight; ty <= (y + h - 1) / tileHeight; ty++) {
+            final int tileY = ty * tileHeight;
+            final int tileH = Math.min(tileHeight, sizeY - tileY);
+            for (int tx = x / tileWidth; tx <= (x + w - 1) / tileWidth; tx++) {
+                final int tileX = tx * tileWidth;
+                final int tileW = Math.min(tileWidth, sizeX - tileX);
+                final long entry = layout.getEntry(level, plane,
+                        ty * tilesX + tx);
+                final int length = tileW * tileH * byteWidth;
+                if (tileX == x && tileY == y && tileW == w && tileH == h) {
+                    // The region is a tile, decoded in place.
+                    chunks.read(entry, buffer, length, byteWidth);
+                    continue;
+                }
+                if (tile == null) {
+                    tile = new byte[tileWidth * tileHeight * byteWidth];
+                }
+                chunks.read(entry, tile, length, byteWidth);
+                final int x0 = Math.max(x, tileX);
+                final int x1 = Math.min(x + w, tileX + tileW);
+                final int y0 = Math.max(y, tileY);
+                final int y1 = Math.min(y + h, tileY + tileH);
+                for (int row = y0; row < y1; row++) {
+                    System.arraycopy(tile,
+                            ((row - tileY) * tileW + x0 - tileX) * byteWidth,
+                            buffer, ((row - y) * w + x0 - x) * byteWidth,
+                            (x1 - x0) * byteWidth);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a region of a plane at the current resolution level.
+     */
+    private byte[] readRegion(int x, int y, int w, int h, int z, int c,
+            int t, byte[] buffer) throws IOException {
+        checkBounds(null, null, z, c, t);
+        final ReadChunks chunks = reader();
+        readRegion(chunks, getStoredLevel(chunks.layout),
+                getPlaneIndex(z, c, t), x, y, w, h, buffer);
+        return buffer;
+    }
+
+    /**
+     * Reads a region of a plane at the current resolution level.
+     */
+    private PixelData readRegion(int x, int y, int w, int h, int z, int c,
+            int t) throws IOException {
+        final byte[] buffer = new byte[w * h * byteWidth];
+        readRegion(x, y, w, h, z, c, t, buffer);
+        final PixelData data =
+                new PixelData(pixelsType, ByteBuffer.wrap(buffer));
+        data.setOrder(byteOrder);
+        return data;
+    }
+
+    /**
+     * Swaps the bytes of the pixels of a buffer to big endian.
+     * @return <code>buffer</code> for convenience.
+     */
+    private byte[] swapIfRequired(byte[] buffer) {
+        if (byteWidth < 2 || byteOrder != ByteOrder.LITTLE_ENDIAN) {
+            return buffer;
+        }
+        for (int i = 0; i + byteWidth <= buffer.length; i += byteWidth) {
+            for (int j = 0; j < byteWidth / 2; j++) {
+                final byte b = buffer[i + j];
+                buffer[i + j] = buffer[i + byteWidth - 1 - j];
+                buffer[i + byteWidth - 1 - j] = b;
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#close()
+     */
+    public synchronized void close() throws IOException {
+        resolutionLevel = -1;
+        final ReadChunks chunks = readChunks;
+        readChunks = null;
+        if (chunks != null) {
+            chunks.close();
+        }
+        closeWriter();
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#checkBounds(Integer, Integer, Integer, Integer, Integer)
+     */
+    public void checkBounds(Integer x, Integer y, Integer z, Integer c,
+            Integer t) throws DimensionsOutOfBoundsException {
+        if (x != null && (x > getSizeX() - 1 || x < 0)) {
+            throw new DimensionsOutOfBoundsException("X '" + x
+                    + "' greater than sizeX '" + getSizeX() + "'.");
+        }
+        if (y != null && (y > getSizeY() - 1 || y < 0)) {
+            throw new DimensionsOutOfBoundsException("Y '" + y
+                    + "' greater than sizeY '" + getSizeY() + "'.");
+        }
+        if (z != null && (z > getSizeZ() - 1 || z < 0)) {
+            throw new DimensionsOutOfBoundsException("Z '" + z
+                    + "' greater than sizeZ '" + getSizeZ() + "'.");
+        }
+        if (c != null && (c > getSizeC() - 1 || c < 0)) {
+            throw new DimensionsOutOfBoundsException("C '" + c
+                    + "' greater than sizeC '" + getSizeC() + "'.");
+        }
+        if (t != null && (t > getSizeT() - 1 || t < 0)) {
+            throw new DimensionsOutOfBoundsException("T '" + t
+                    + "' greater than sizeT '" + getSizeT() + "'.");
+        }
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getPlaneSize()
+     */
+    public Long getPlaneSize() {
+        return (long) getSizeX() * (long) getSizeY() * byteWidth;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getRowSize()
+     */
+    public Integer getRowSize() {
+        return getSizeX() * byteWidth;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getColSize()
+     */
+    public Integer getColSize() {
+        return getSizeY() * byteWidth;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getStackSize()
+     */
+    public Long getStackSize() {
+        return getPlaneSize() * getSizeZ();
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getTimepointSize()
+     */
+    public Long getTimepointSize() {
+        return getStackSize() * getSizeC();
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getTotalSize()
+     */
+    public Long getTotalSize() {
+        return getTimepointSize() * getSizeT();
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getHypercubeSize(List, List, List)
+     */
+    public Long getHypercubeSize(List<Integer> offset, List<Integer> size,
+            List<Integer> step) throws DimensionsOutOfBoundsException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getRowOffset(Integer, Integer, Integer, Integer)
+     */
+    public Long getRowOffset(Integer y, Integer z, Integer c, Integer t)
+            throws DimensionsOutOfBoundsException {
+        checkBounds(null, y, z, c, t);
+        return getPlaneOffset(z, c, t) + (long) getRowSize() * y;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getPlaneOffset(Integer, Integer, Integer)
+     */
+    public Long getPlaneOffset(Integer z, Integer c, Integer t)
+            throws DimensionsOutOfBoundsException {
+        checkBounds(null, null, z, c, t);
+        return getTimepointSize() * t + getStackSize() * c
+                + getPlaneSize() * z;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getStackOffset(Integer, Integer)
+     */
+    public Long getStackOffset(Integer c, Integer t)
+            throws DimensionsOutOfBoundsException {
+        checkBounds(null, null, null, c, t);
+        return getTimepointSize() * t + getStackSize() * c;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getTimepointOffset(Integer)
+     */
+    public Long getTimepointOffset(Integer t)
+            throws DimensionsOutOfBoundsException {
+        checkBounds(null, null, null, null, t);
+        return getTimepointSize() * t;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getHypercube(List, List, List)
+     */
+    public PixelData getHypercube(List<Integer> offset, List<Integer> size,
+            List<Integer> step)
+            throws IOException, DimensionsOutOfBoundsException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getHypercubeDirect(List, List, List, byte[])
+     */
+    public byte[] getHypercubeDirect(List<Integer> offset, List<Integer> size,
+            List<Integer> step, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getPlaneRegionDirect(Integer, Integer, Integer, Integer, Integer, byte[])
+     */
+    public byte[] getPlaneRegionDirect(Integer z, Integer c, Integer t,
+            Integer count, Integer offset, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        final int sizeX = getSizeX();
+        if (offset < 0 || count < 1
+                || (long) offset + count > (long) sizeX * getSizeY()) {
+            throw new DimensionsOutOfBoundsException(
+                    "Region outside of the plane.");
+        }
+        final int y0 = offset / sizeX;
+        final int y1 = (offset + count - 1) / sizeX;
+        final byte[] rows = readRegion(0, y0, sizeX, y1 - y0 + 1, z, c, t,
+                new byte[sizeX * (y1 - y0 + 1) * byteWidth]);
+        System.arraycopy(rows, (offset - y0 * sizeX) * byteWidth, buffer, 0,
+                count * byteWidth);
+        return swapIfRequired(buffer);
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getTile(Integer, Integer, Integer, Integer, Integer, Integer, Integer)
+     */
+    public PixelData getTile(Integer z, Integer c, Integer t, Integer x,
+            Integer y, Integer w, Integer h) throws IOException {
+        return readRegion(x, y, w, h, z, c, t);
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getTileDirect(Integer, Integer, Integer, Integer, Integer, Integer, Integer, byte[])
+     */
+    public byte[] getTileDirect(Integer z, Integer c, Integer t, Integer x,
+            Integer y, Integer w, Integer h, byte[] buffer)
+            throws IOException {
+        return swapIfRequired(readRegion(x, y, w, h, z, c, t, buffer));
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getTiles(List)
+     */
+    public List<PixelData> getTiles(List<TileRequest> tiles)
+            throws IOException {
+        final List<PixelData> rv = new ArrayList<PixelData>(tiles.size());
+        for (TileRequest tile : tiles) {
+            rv.add(getTile(tile.getZ(), tile.getC(), tile.getT(), tile.getX(),
+                    tile.getY(), tile.getWidth(), tile.getHeight()));
+        }
+        return rv;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getRegion(Integer, Long)
+     */
+    public PixelData getRegion(Integer size, Long offset) throws IOException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getRegionDirect(Integer, Long, byte[])
+     */
+    public byte[] getRegionDirect(Integer size, Long offset, byte[] buffer)
+            throws IOException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getRow(Integer, Integer, Integer, Integer)
+     */
+    public PixelData getRow(Integer y, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        return readRegion(0, y, getSizeX(), 1, z, c, t);
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getCol(Integer, Integer, Integer, Integer)
+     */
+    public PixelData getCol(Integer x, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        return readRegion(x, 0, 1, getSizeY(), z, c, t);
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getRowDirect(Integer, Integer, Integer, Integer, byte[])
+     */
+    public byte[] getRowDirect(Integer y, Integer z, Integer c, Integer t,
+            byte[] buffer) throws IOException, DimensionsOutOfBoundsException {
+        return swapIfRequired(
+                readRegion(0, y, getSizeX(), 1, z, c, t, buffer));
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getColDirect(Integer, Integer, Integer, Integer, byte[])
+     */
+    public byte[] getColDirect(Integer x, Integer z, Integer c, Integer t,
+            byte[] buffer) throws IOException, DimensionsOutOfBoundsException {
+        return swapIfRequired(
+                readRegion(x, 0, 1, getSizeY(), z, c, t, buffer));
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getPlane(Integer, Integer, Integer)
+     */
+    public PixelData getPlane(Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        return readRegion(0, 0, getSizeX(), getSizeY(), z, c, t);
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getPlaneRegion(Integer, Integer, Integer, Integer, Integer, Integer, Integer, Integer)
+     */
+    public PixelData getPlaneRegion(Integer x, Integer y, Integer width,
+            Integer height, Integer z, Integer c, Integer t, Integer stride)
+            throws IOException, DimensionsOutOfBoundsException {
+        final PixelData region = readRegion(x, y, width, height, z, c, t);
+        if (stride == null || stride <= 0) {
+            return region;
+        }
+        final int step = stride + 1;
+        final int w = (width + step - 1) / step;
+        final int h = (height + step - 1) / step;
+        final byte[] source = region.getData().array();
+        final byte[] buffer = new byte[w * h * byteWidth];
+        for (int j = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                System.arraycopy(source,
+                        (j * step * width + i * step) * byteWidth,
+                        buffer, (j * w + i) * byteWidth, byteWidth);
+            }
+        }
+        region.dispose();
+        final PixelData data =
+                new PixelData(pixelsType, ByteBuffer.wrap(buffer));
+        data.setOrder(byteOrder);
+        return data;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getPlaneDirect(Integer, Integer, Integer, byte[])
+     */
+    public byte[] getPlaneDirect(Integer z, Integer c, Integer t,
+            byte[] buffer) throws IOException, DimensionsOutOfBoundsException {
+        return swapIfRequired(readRegion(0, 0, getSizeX(), getSizeY(),
+                z, c, t, buffer));
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getStack(Integer, Integer)
+     */
+    public PixelData getStack(Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getStackDirect(Integer, Integer, byte[])
+     */
+    public byte[] getStackDirect(Integer c, Integer t, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getTimepoint(Integer)
+     */
+    public PixelData getTimepoint(Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getTimepointDirect(Integer, byte[])
+     */
+    public byte[] getTimepointDirect(Integer t, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#setRegion(Integer, Long, byte[])
+     */
+    public void setRegion(Integer size, Long offset, byte[] buffer)
+            throws IOException, BufferOverflowException {
+        throw new UnsupportedOperationException(
+                "Non-tile based writing unsupported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#setRegion(Integer, Long, ByteBuffer)
+     */
+    public void setRegion(Integer size, Long offset, ByteBuffer buffer)
+            throws IOException, BufferOverflowException {
+        throw new UnsupportedOperationException(
+                "Non-tile based writing unsupported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#setRow(ByteBuffer, Integer, Integer, Integer, Integer)
+     */
+    public void setRow(ByteBuffer buffer, Integer y, Integer z, Integer c,
+            Integer t) throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        throw new UnsupportedOperationException(
+                "Non-tile based writing unsupported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#setPlane(ByteBuffer, Integer, Integer, Integer)
+     */
+    public void setPlane(ByteBuffer buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        throw new UnsupportedOperationException(
+                "Non-tile based writing unsupported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#setPlane(byte[], Integer, Integer, Integer)
+     */
+    public void setPlane(byte[] buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        throw new UnsupportedOperationException(
+                "Non-tile based writing unsupported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#setStack(ByteBuffer, Integer, Integer, Integer)
+     */
+    public void setStack(ByteBuffer buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        throw new UnsupportedOperationException(
+                "Non-tile based writing unsupported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#setStack(byte[], Integer, Integer, Integer)
+     */
+    public void setStack(byte[] buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        throw new UnsupportedOperationException(
+                "Non-tile based writing unsupported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#setTimepoint(ByteBuffer, Integer)
+     */
+    public void setTimepoint(ByteBuffer buffer, Integer t) throws IOException,
+            DimensionsOutOfBoundsException, BufferOverflowException {
+        throw new UnsupportedOperationException(
+                "Non-tile based writing unsupported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#setTimepoint(byte[], Integer)
+     */
+    public void setTimepoint(byte[] buffer, Integer t) throws IOException,
+            DimensionsOutOfBoundsException, BufferOverflowException {
+        throw new UnsupportedOperationException(
+                "Non-tile based writing unsupported.");
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#calculateMessageDigest()
+     */
+    public byte[] calculateMessageDigest() throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(
+                    "Required SHA-1 message digest algorithm unavailable.");
+        }
+        for (int t = 0; t < getSizeT(); t++) {
+            for (int c = 0; c < getSizeC(); c++) {
+                for (int z = 0; z < getSizeZ(); z++) {
+                    final PixelData pd = getPlane(z, c, t);
+                    md.update(pd.getData());
+                    pd.dispose();
+                }
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getByteWidth()
+     */
+    public int getByteWidth() {
+        return byteWidth;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#isSigned()
+     */
+    public boolean isSigned() {
+        PixelData d = new PixelData(pixelsType, null);
+        return d.isSigned();
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#isFloat()
+     */
+    public boolean isFloat() {
+        PixelData d = new PixelData(pixelsType, null);
+        return d.isFloat();
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getPath()
+     */
+    public String getPath() {
+        return readerFile.getAbsolutePath();
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getId()
+     */
+    public long getId() {
+        return pixels.getId();
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getSizeX()
+     */
+    public int getSizeX() {
+        final ReadChunks chunks = readChunks;
+        if (chunks == null) {
+            return pixels.getSizeX();
+        }
+        return chunks.layout.sizesX[getStoredLevel(chunks.layout)];
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getSizeY()
+     */
+    public int getSizeY() {
+        final ReadChunks chunks = readChunks;
+        if (chunks == null) {
+            return pixels.getSizeY();
+        }
+        return chunks.layout.sizesY[getStoredLevel(chunks.layout)];
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getSizeZ()
+     */
+    public int getSizeZ() {
+        return pixels.getSizeZ();
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getSizeC()
+     */
+    public int getSizeC() {
+        return pixels.getSizeC();
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getSizeT()
+     */
+    public int getSizeT() {
+        return pixels.getSizeT();
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getResolutionLevels()
+     */
+    public int getResolutionLevels() {
+        if (isWrite()) {
+            throw new ApiUsageException("In write mode!");
+        }
+        return reader().layout.levels;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getResolutionLevel()
+     */
+    public int getResolutionLevel() {
+        final int levels = getResolutionLevels();
+        final int level = resolutionLevel;
+        return level < 0 ? levels - 1 : level;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#setResolutionLevel(int)
+     */
+    public void setResolutionLevel(int resolutionLevel) {
+        final int levels = getResolutionLevels();
+        if (resolutionLevel < 0 || resolutionLevel >= levels) {
+            throw new ApiUsageException(
+                    "Invalid resolution level: " + resolutionLevel);
+        }
+        this.resolutionLevel = resolutionLevel;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getResolutionDescriptions()
+     */
+    public List<List<Integer>> getResolutionDescriptions() {
+        if (isWrite()) {
+            throw new ApiUsageException("In write mode!");
+        }
+        final Layout layout = reader().layout;
+        final List<List<Integer>> rv = new ArrayList<List<Integer>>();
+        for (int level = 0; level < layout.levels; level++) {
+            rv.add(Collections.unmodifiableList(Arrays.asList(
+                    layout.sizesX[level], layout.sizesY[level])));
+        }
+        return rv;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F.
+     * @see PixelBuffer#getTileSize()
+     */
+    public synchronized Dimension getTileSize() {
+        if (isWrite()) {
+            if (writeChunks != null) {
+                return new Dimension(writeChunks.layout.tileWidth,
+                        writeChunks.layout.tileHeight);
+            }
+            return new Dimension(sizes.getTileWidth(), sizes.getTileHeight());
+        }
+        final Layout layout = reader().layout;
+        return new Dimension(layout.tileWidth, layout.tileHeight);
+    }
+
+    /**
+     * The geometry of a pyramid: the size of its levels and where the entry
+     * of each chunk is in the index.
+     */
+    private static final class Layout {
+
+        final int sizeX, sizeY, sizeZ, sizeC, sizeT;
+
+        final int tileWidth, tileHeight;
+
+        final int planes;
+
+        final int levels;
+
+        /** The size of the levels, highest resolution first. */
+        final int[] sizesX, sizesY;
+
+        /** The index of the first entry of each level. */
+        final long[] firstEntries;
+
+        /** The number of chunks. */
+        final long entries;
+
+        Layout(int sizeX, int sizeY, int sizeZ, int sizeC, int sizeT,
+                int tileWidth, int tileHeight) {
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+            this.sizeZ = sizeZ;
+            this.sizeC = sizeC;
+            this.sizeT = sizeT;
+            this.tileWidth = tileWidth;
+            this.tileHeight = tileHeight;
+            planes = sizeZ * sizeC * sizeT;
+            final List<int[]> sizes = new ArrayList<int[]>();
+            int w = sizeX;
+            int h = sizeY;
+            sizes.add(new int[] { w, h });
+            while (w > tileWidth || h > tileHeight) {
+                w = (w + 1) / 2;
+                h = (h + 1) / 2;
+                sizes.add(new int[] { w, h });
+            }
+            levels = sizes.size();
+            sizesX = new int[levels];
+            sizesY = new int[levels];
+            firstEntries = new long[levels];
+            long count = 0;
+            for (int level = 0; level < levels; level++) {
+                sizesX[level] = sizes.get(level)[0];
+                sizesY[level] = sizes.get(level)[1];
+                firstEntries[level] = count;
+                count += (long) planes * getTilesX(level) * getTilesY(level);
+            }
+            entries = count;
+        }
+
+        int getTilesX(int level) {
+            return (sizesX[level] + tileWidth - 1) / tileWidth;
+        }
+
+        int getTilesY(int level) {
+            return (sizesY[level] + tileHeight - 1) / tileHeight;
+        }
+
+        long getEntry(int level, int plane, int tile) {
+            return firstEntries[level]
+                    + (long) plane * getTilesX(level) * getTilesY(level)
+                    + tile;
+        }
+    }
+
+    /**
+     * The chunks of a pyramid file.
+     */
+    private abstract static class Chunks {
+
+        final Layout layout;
+
+        final FileChannel channel;
+
+        Chunks(Layout layout, FileChannel channel) {
+            this.layout = layout;
+            this.channel = channel;
+        }
+
+        /**
+         * Returns the offset and length of a chunk.
+         * @param entry The entry of the chunk in the index.
+         * @param location The array to set the offset and length in.
+         */
+        abstract void locate(long entry, long[] location) throws IOException;
+
+        /**
+         * Reads and decodes a chunk, zeroes if it was never written.
+         * @param entry The entry of the chunk in the index.
+         * @param tile The buffer to decode the tile into.
+         * @param length The size of the tile in bytes.
+         * @param byteWidth The number of bytes per pixel.
+         */
+        void read(long entry, byte[] tile, int length, int byteWidth)
+                throws IOException {
+            final long[] location = new long[2];
+            locate(entry, location);
+            if (location[1] == 0) {
+                Arrays.fill(tile, 0, length, (byte) 0);
+                return;
+            }
+            final byte[] chunk = new byte[(int) location[1]];
+            readFully(channel, ByteBuffer.wrap(chunk), location[0]);
+            if (chunk[0] == CODEC_RAW) {
+                System.arraycopy(chunk, 1, tile, 0, length);
+                return;
+            }
+            if (chunk[0] != CODEC_DEFLATE) {
+                throw new IOException("Unknown codec " + chunk[0]
+                        + " of chunk " + entry);
+            }
+            final byte[] shuffled = byteWidth > 1 ? new byte[length] : tile;
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(chunk, 1, chunk.length - 1);
+                int n = 0;
+                while (n < length && !inflater.finished()) {
+                    final int read = inflater.inflate(shuffled, n, length - n);
+                    if (read == 0 && inflater.needsInput()) {
+                        break;
+                    }
+                    n += read;
+                }
+                if (n != length) {
+                    throw new IOException("Truncated chunk " + entry);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt chunk " + entry, e);
+            } finally {
+                inflater.end();
+            }
+            if (byteWidth > 1) {
+                // Unshuffle, the bytes of each pixel are spread out.
+                final int pixels = length / byteWidth;
+                for (int b = 0; b < byteWidth; b++) {
+                    final int start = b * pixels;
+                    for (int i = 0; i < pixels; i++) {
+                        tile[i * byteWidth + b] = shuffled[start + i];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The chunks of a complete pyramid, open for reading. The index is read
+     * on demand so that its size does not matter.
+     */
+    private static final class ReadChunks extends Chunks {
+
+        final RandomAccessFile raf;
+
+        /** The offset of the first entry of the index. */
+        final long entriesOffset;
+
+        ReadChunks(Layout layout, RandomAccessFile raf, long entriesOffset) {
+            super(layout, raf.getChannel());
+            this.raf = raf;
+            this.entriesOffset = entriesOffset;
+        }
+
+        @Override
+        void locate(long entry, long[] location) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+            readFully(channel, buffer, entriesOffset + entry * ENTRY_SIZE);
+            location[0] = buffer.getLong(0);
+            location[1] = buffer.getInt(8);
+        }
+
+        void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    /**
+     * The chunks of a pyramid being written, the index is kept in memory
+     * until {@link #finish(String, ByteOrder)}.
+     */
+    private static final class WriteChunks extends Chunks {
+
+        final RandomAccessFile raf;
+
+        final long[] offsets;
+
+        final int[] lengths;
+
+        /** Encodes the tiles passed to {@link #write}. */
+        final Encoder encoder = new Encoder();
+
+        long position = HEADER_SIZE;
+
+        WriteChunks(Layout layout, File file) throws IOException {
+            this(layout, new RandomAccessFile(file, "rw"));
+        }
+
+        private WriteChunks(Layout layout, RandomAccessFile raf)
+                throws IOException {
+            super(layout, raf.getChannel());
+            this.raf = raf;
+            if (layout.entries > Integer.MAX_VALUE) {
+                raf.close();
+                throw new ResourceError("Too many tiles for a pyramid: "
+                        + layout.entries);
+            }
+            offsets = new long[(int) layout.entries];
+            lengths = new int[(int) layout.entries];
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(0); // Reserved
+            header.putLong(0); // Index offset, set once complete
+            header.flip();
+            writeFully(channel, header, 0);
+        }
+
+        @Override
+        void locate(long entry, long[] location) {
+            location[0] = offsets[(int) entry];
+            location[1] = lengths[(int) entry];
+        }
+
+        /**
+         * Encodes a tile and appends it as a chunk.
+         */
+        void write(long entry, byte[] tile, int length, int byteWidth)
+                throws IOException {
+            final int n = encoder.encode(tile, length, byteWidth);
+            append(entry, encoder.chunk, n);
+        }
+
+        /**
+         * Registers the chunk at the current position, left by an
+         * interrupted generation, checking that it decodes to the
+         * specified length.
+         */
+        void recover(long entry, int length) throws IOException {
+            final long available = channel.size() - position;
+            if (available < 2) {
+                throw new EOFException("Missing chunk " + entry);
+            }
+            final byte[] chunk =
+                new byte[(int) Math.min(length + 1, available)];
+            readFully(channel, ByteBuffer.wrap(chunk), position);
+            int n;
+            if (chunk[0] == CODEC_RAW) {
+                n = length + 1;
+                if (chunk.length < n) {
+                    throw new EOFException("Truncated chunk " + entry);
+                }
+            } else if (chunk[0] == CODEC_DEFLATE) {
+                // The chunk ends where the deflated stream does.
+                final Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(chunk, 1, chunk.length - 1);
+                    final byte[] tile = new byte[length + 1];
+                    int read = 0;
+                    while (!inflater.finished() && read <= length) {
+                        final int r = inflater.inflate(tile, read,
+                                length + 1 - read);
+                        if (r == 0 && (inflater.needsInput()
+                                || inflater.needsDictionary())) {
+                            break;
+                        }
+                        read += r;
+                    }
+                    if (read != length || !inflater.finished()) {
+                        throw new IOException("Truncated chunk " + entry);
+                    }
+                    n = chunk.length - inflater.getRemaining();
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt chunk " + entry, e);
+                } finally {
+                    inflater.end();
+                }
+            } else {
+                throw new IOException("Unknown codec " + chunk[0]
+                        + " of chunk " + entry);
+            }
+            offsets[(int) entry] = position;
+            lengths[(int) entry] = n;
+            position += n;
+        }
+
+        /**
+         * Appends an encoded chunk.
+         */
+        void append(long entry, byte[] chunk, int n) throws IOException {
+            writeFully(channel, ByteBuffer.wrap(chunk, 0, n), position);
+            offsets[(int) entry] = position;
+            lengths[(int) entry] = n;
+            position += n;
+        }
+
+        /**
+         * Appends the metadata and the index and marks the pyramid as
+         * complete.
+         */
+        void finish(String pixelsType, ByteOrder byteOrder)
+                throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(pixelsType);
+            out.writeInt(layout.sizeX);
+            out.writeInt(layout.sizeY);
+            out.writeInt(layout.sizeZ);
+            out.writeInt(layout.sizeC);
+            out.writeInt(layout.sizeT);
+            out.writeInt(layout.tileWidth);
+            out.writeInt(layout.tileHeight);
+            out.writeBoolean(byteOrder == ByteOrder.LITTLE_ENDIAN);
+            out.writeInt(layout.levels);
+            for (int level = 0; level < layout.levels; level++) {
+                out.writeInt(layout.sizesX[level]);
+                out.writeInt(layout.sizesY[level]);
+            }
+            out.flush();
+            final long indexOffset = position;
+            final ByteBuffer metadata = ByteBuffer.allocate(4 + bytes.size());
+            metadata.putInt(bytes.size());
+            metadata.put(bytes.toByteArray());
+            metadata.flip();
+            writeFully(channel, metadata, position);
+            position += metadata.limit();
+            final ByteBuffer entries = ByteBuffer.allocate(ENTRY_SIZE * 4096);
+            for (int i = 0; i < offsets.length; i++) {
+                if (!entries.hasRemaining()) {
+                    entries.flip();
+                    position += writeFully(channel, entries, position);
+                    entries.clear();
+                }
+                entries.putLong(offsets[i]);
+                entries.putInt(lengths[i]);
+            }
+            entries.flip();
+            position += writeFully(channel, entries, position);
+            channel.force(false);
+            final ByteBuffer header = ByteBuffer.allocate(8);
+            header.putLong(indexOffset);
+            header.flip();
+            writeFully(channel, header, MAGIC.length + 8);
+            // Drops what a resumed generation may have left past the index.
+            raf.setLength(position);
+            channel.force(false);
+        }
+
+        void close() throws IOException {
+            encoder.end();
+            raf.close();
+        }
+    }
+
+    /**
+     * Encodes tiles into chunks, reusing its buffers. An instance is used by
+     * one thread at a time.
+     */
+    private static final class Encoder {
+
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        /** Holds the shuffled bytes of a tile. */
+        byte[] shuffled = new byte[0];
+
+        /** Holds the encoded chunk. */
+        byte[] chunk = new byte[0];
+
+        /**
+         * Encodes a tile into {@link #chunk}.
+         * @return The length of the chunk.
+         */
+        int encode(byte[] tile, int length, int byteWidth) {
+            if (chunk.length < length + 1) {
+                chunk = new byte[length + 1];
+                shuffled = new byte[length];
+            }
+            byte[] input = tile;
+            if (byteWidth > 1) {
+                // Shuffle, the bytes of a same significance together.
+                final int pixels = length / byteWidth;
+                for (int b = 0; b < byteWidth; b++) {
+                    final int start = b * pixels;
+                    for (int i = 0; i < pixels; i++) {
+                        shuffled[start + i] = tile[i * byteWidth + b];
+                    }
+                }
+                input = shuffled;
+            }
+            deflater.reset();
+            deflater.setInput(input, 0, length);
+            deflater.finish();
+            int n = 1;
+            while (!deflater.finished() && n < length + 1) {
+                n += deflater.deflate(chunk, n, length + 1 - n);
+            }
+            if (deflater.finished()) {
+                chunk[0] = CODEC_DEFLATE;
+            } else {
+                // Incompressible, e.g. noise in floating point pixels.
+                chunk[0] = CODEC_RAW;
+                System.arraycopy(tile, 0, chunk, 1, length);
+                n = length + 1;
+            }
+            return n;
+        }
+
+        void end() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * A full resolution tile encoded by
+     * {@link ChunkedPyramidPixelBuffer#encodeTile(byte[], int, int, int, int, int, int, int)}.
+     */
+    public static final class EncodedTile {
+
+        final int z, c, t, x, y, w, h;
+
+        /** The chunk of the tile. */
+        final byte[] chunk;
+
+        EncodedTile(int z, int c, int t, int x, int y, int w, int h,
+                byte[] chunk) {
+            this.z = z;
+            this.c = c;
+            this.t = t;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.chunk = chunk;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of pyramid.");
+            }
+            position += read;
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+}
@@ -437,6 +437,16 @@ public class InMemoryPlanarPixelBuffer implements PixelBuffer
             "Not supported with in memory planar buffers.");
     }
 
+    /* (non-Javadoc)
+     * @see ome.io.nio.PixelBuffer#getTiles(java.util.List)
+     */
+    public List<PixelData> getTiles(List<TileRequest> tiles)
+            throws IOException
+    {
+        throw new UnsupportedOperationException(
+            "Not supported with in memory planar buffers.");
+    }
+
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#setTile(byte[], java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
@@ -0,0 +1,268 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ome.util.PixelData;
+
+/**
+ * Bounded set of large read-only memory-mapped windows onto a pixels file,
+ * from which the reads of {@link RomioPixelBuffer} are served rather than
+ * mapping and unmapping the file for every row, tile or plane.
+ * <p>
+ * Window <i>k</i> maps the file from <i>k</i> times the window size for two
+ * window sizes, so that any read no larger than the window size lies within
+ * the window of its offset. The least recently used windows are dropped
+ * once there are more than the maximum. A dropped window is unmapped as
+ * soon as no copy from it is in progress: no view of a window is handed out,
+ * the regions read are copied, so that the windows are never left to the
+ * garbage collector.
+ * </p>
+ *
+ * @since 5.4.0
+ */
+public class MappedWindows {
+
+    /** Default size of the reads served, half the size of a window. */
+    public static final long DEFAULT_WINDOW_SIZE = 32 * 1024 * 1024;
+
+    /** Default maximum number of windows mapped at once. */
+    public static final int DEFAULT_MAX_WINDOWS = 4;
+
+    /** The channel of the pixels file. */
+    private final FileChannel channel;
+
+    /** The pixels type, to unmap the windows through {@link PixelData}. */
+    private final String pixelsType;
+
+    /** The maximum size of the reads served. */
+    private final long windowSize;
+
+    /** The maximum number of windows mapped at once. */
+    private final int maxWindows;
+
+    /** The windows by index, least recently used first. */
+    private final LinkedHashMap<Long, Window> windows =
+            new LinkedHashMap<Long, Window>(16, 0.75f, true);
+
+    /**
+     * Creates a new instance with the default window size and maximum
+     * number of windows.
+     *
+     * @param channel The channel of the pixels file.
+     * @param pixelsType The pixels type of the pixels set.
+     */
+    public MappedWindows(FileChannel channel, String pixelsType) {
+        this(channel, pixelsType, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_WINDOWS);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param channel The channel of the pixels file.
+     * @param pixelsType The pixels type of the pixels set.
+     * @param windowSize The maximum size of the reads served.
+     * @param maxWindows The maximum number of windows mapped at once.
+     */
+    public MappedWindows(FileChannel channel, String pixelsType,
+            long windowSize, int maxWindows) {
+        this.channel = channel;
+        this.pixelsType = pixelsType;
+        this.windowSize = windowSize;
+        this.maxWindows = Math.max(maxWindows, 1);
+    }
+
+    /**
+     * Returns the number of windows mapped.
+     *
+     * @return See above.
+     */
+    public synchronized int getWindowCount() {
+        return windows.size();
+    }
+
+    /**
+     * Returns a copy of a region of the file.
+     *
+     * @param offset The offset of the region in the file.
+     * @param size The size of the region.
+     * @return See above or <code>null</code> if the region is larger than the
+     * window size or extends past the end of the file.
+     * @throws IOException If the file cannot be mapped.
+     */
+    public ByteBuffer read(long offset, int size) throws IOException {
+        if (size > windowSize) {
+            return null;
+        }
+        ByteBuffer dst = ByteBuffer.allocate(size);
+        if (!copy(offset, size, size, 1, dst)) {
+            return null;
+        }
+        dst.flip();
+        return dst;
+    }
+
+    /**
+     * Copies rows of a region of the file into a buffer, from its position.
+     * The rows are <code>stride</code> bytes apart in the file and written
+     * one after the other to the buffer.
+     *
+     * @param offset The offset of the first row in the file.
+     * @param length The number of bytes of each row.
+     * @param stride The number of bytes from a row to the next in the file.
+     * @param rows The number of rows.
+     * @param dst The buffer to copy to.
+     * @return <code>true</code> if the rows were copied, <code>false</code>
+     * if they span more than the window size or extend past the end of the
+     * file.
+     * @throws IOException If the file cannot be mapped.
+     */
+    public boolean copy(long offset, int length, long stride, int rows,
+            ByteBuffer dst) throws IOException {
+        if (rows < 1) {
+            return true;
+        }
+        long span = stride * (rows - 1) + length;
+        if (span > windowSize) {
+            return false;
+        }
+        Window window = acquire(offset, (int) span);
+        if (window == null) {
+            return false;
+        }
+        try {
+            for (int i = 0; i < rows; i++) {
+                dst.put(window.view(offset + stride * i, length));
+            }
+            return true;
+        } finally {
+            release(window);
+        }
+    }
+
+    /**
+     * Unmaps all the windows not in use.
+     */
+    public synchronized void close() {
+        Iterator<Window> i = windows.values().iterator();
+        while (i.hasNext()) {
+            retire(i.next());
+            i.remove();
+        }
+    }
+
+    /**
+     * Returns the window holding a region of the file, mapping it if needed,
+     * with a reference which must be released.
+     *
+     * @return See above or <code>null</code> if the region cannot be served.
+     */
+    private synchronized Window acquire(long offset, int size)
+            throws IOException {
+        if (size > windowSize) {
+            return null;
+        }
+        long index = offset / windowSize;
+        Window window = windows.get(index);
+        if (window == null || offset + size > window.end) {
+            if (window != null) {
+                // The file has grown since the window was mapped.
+                windows.remove(index);
+                retire(window);
+            }
+            long start = index * windowSize;
+            long end = Math.min(start + 2 * windowSize, channel.size());
+            if (offset + size > end) {
+                return null;
+            }
+            window = new Window(start, end,
+                    channel.map(MapMode.READ_ONLY, start, end - start));
+            windows.put(index, window);
+            Iterator<Window> i = windows.values().iterator();
+            while (windows.size() > maxWindows && i.hasNext()) {
+                Window eldest = i.next();
+                if (eldest != window) {
+                    retire(eldest);
+                    i.remove();
+                }
+            }
+        }
+        window.references++;
+        return window;
+    }
+
+    /**
+     * Releases a reference acquired through {@link #acquire(long, int)}.
+     */
+    private synchronized void release(Window window) {
+        window.references--;
+        if (window.retired && window.references == 0) {
+            unmap(window);
+        }
+    }
+
+    /**
+     * Marks a window dropped, unmapping it if not in use. Must be called
+     * while holding the lock.
+     */
+    private void retire(Window window) {
+        window.retired = true;
+        if (window.references == 0) {
+            unmap(window);
+        }
+    }
+
+    /**
+     * Unmaps a window.
+     */
+    private void unmap(Window window) {
+        new PixelData(pixelsType, window.buffer).dispose();
+    }
+
+    /** A mapped window of the file. */
+    private static final class Window {
+
+        /** The offset of the window in the file. */
+        final long start;
+
+        /** The offset in the file following the window. */
+        final long end;
+
+        final MappedByteBuffer buffer;
+
+        /** The number of copies in progress. */
+        int references;
+
+        /** Whether the window was dropped. */
+        boolean retired;
+
+        Window(long start, long end, MappedByteBuffer buffer) {
+            this.start = start;
+            this.end = end;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Returns a view of a region of the window, from its position to its
+         * limit.
+         */
+        ByteBuffer view(long offset, int size) {
+            ByteBuffer view = buffer.duplicate();
+            int position = (int) (offset - start);
+            view.limit(position + size);
+            view.position(position);
+            return view;
+        }
+    }
+}
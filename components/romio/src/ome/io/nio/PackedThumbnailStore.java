@@ -0,0 +1,1146 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thumbnail store packing the thumbnails into a few large files rather than
+ * keeping each thumbnail in its own file.
+ * <p>
+ * The thumbnails are appended to segment files, each record being the
+ * thumbnail id and length followed by the data. A segment is closed to
+ * further appends once it exceeds the segment size. The removals are
+ * appended as tombstone records. The location of each thumbnail is held by
+ * an index, a hash table keyed by thumbnail id in a memory-mapped file, so
+ * a lookup costs no I/O and a read costs one positional read from a segment
+ * kept open. Overwritten and removed thumbnails leave unused space in their
+ * segment, {@link #compact()} copies the live thumbnails of the segments
+ * with too much unused space to the end of the active segment and deletes
+ * these segments. A tombstone is copied too while a segment left holds a
+ * record of the thumbnail it removes, so that a rebuilt index does not
+ * bring the thumbnail back.
+ * </p>
+ * <p>
+ * The index is flushed to disk, with the segment it points into, at every
+ * {@link #checkpoint()}. The records appended after the last checkpoint are
+ * replayed when the store is opened, so that at most a torn trailing record
+ * is lost if the machine fails. If the index is lost, or if it points past
+ * the checkpoint to records which did not reach the disk, the index being
+ * written back independently of the segments, it is rebuilt from all the
+ * segments.
+ * </p>
+ * <p>
+ * The store is locked for the lifetime of the instance: only one process
+ * may open a store at a time.
+ * </p>
+ *
+ * @since 5.4.0
+ */
+public class PackedThumbnailStore {
+
+    /** The logger for this class. */
+    private static final Logger log =
+            LoggerFactory.getLogger(PackedThumbnailStore.class);
+
+    /** Name of the store directory under the thumbnails directory. */
+    public static final String PACKED_PATH = "Packed";
+
+    /** Prefix of the segment file names. */
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    /** Prefix of the index file names. */
+    private static final String INDEX_PREFIX = "index-";
+
+    /** Name of the file locked by the instance owning the store. */
+    private static final String LOCK_NAME = "lock";
+
+    /** Magic number of the index files. */
+    private static final byte[] MAGIC =
+            "OMEROTHB".getBytes(StandardCharsets.US_ASCII);
+
+    /** Version of the index files. */
+    private static final int VERSION = 1;
+
+    /** Size of the index header: magic, version, capacity, checkpoint. */
+    private static final int HEADER_SIZE = 64;
+
+    /** Size of an index slot: id, segment, length and offset. */
+    private static final int SLOT_SIZE = 24;
+
+    /** Number of slots mapped by each buffer of the index. */
+    private static final int PAGE_SLOTS = 1 << 22;
+
+    /** Initial number of slots of the index. */
+    private static final long INITIAL_CAPACITY = 1 << 16;
+
+    /** Maximum ratio of the used slots to the capacity of the index. */
+    private static final double MAX_LOAD = 0.6;
+
+    /** Size of a record header in a segment: id and length. */
+    private static final int RECORD_HEADER = 12;
+
+    /** Length of the tombstone records and index entries. */
+    private static final int TOMBSTONE = -1;
+
+    /** The store directory. */
+    private final File directory;
+
+    /** The size beyond which a new segment is started. */
+    private final long segmentSize;
+
+    /** The ratio of unused space beyond which a segment is compacted. */
+    private final double compactionRatio;
+
+    /**
+     * Guards the index and the segments: lookups and reads hold the read
+     * lock, appends and the deletion of segments the write lock.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Serializes the compactions. */
+    private final ReentrantLock compactionLock = new ReentrantLock();
+
+    /** The open segments by number. */
+    private final TreeMap<Integer, FileChannel> segments =
+            new TreeMap<Integer, FileChannel>();
+
+    /**
+     * The number of bytes used by live records and by the tombstones held by
+     * the index, by segment number.
+     */
+    private final Map<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+
+    /** The channel of the lock file. */
+    private final FileChannel lockChannel;
+
+    /** The lock held on the store. */
+    private final FileLock fileLock;
+
+    /** The current index. */
+    private Index index;
+
+    /** The number of the segment appended to. */
+    private int activeSegment;
+
+    /** The length of the segment appended to. */
+    private long activeLength;
+
+    /** Whether or not {@link #close()} was called. */
+    private boolean closed;
+
+    /**
+     * Opens the store in the given directory, creating it if needed.
+     *
+     * @param directory The store directory.
+     * @param segmentSize The size in bytes beyond which a new segment file
+     *                    is started.
+     * @param compactionRatio The ratio of unused space, between
+     *                        <code>0</code> and <code>1</code>, beyond which
+     *                        a segment is compacted.
+     * @throws IOException If the store cannot be opened or is already opened
+     *                     by another process.
+     */
+    public PackedThumbnailStore(File directory, long segmentSize,
+            double compactionRatio) throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid segment size: " + segmentSize);
+        }
+        if (compactionRatio <= 0 || compactionRatio > 1) {
+            throw new IllegalArgumentException(
+                    "Invalid compaction ratio: " + compactionRatio);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionRatio = compactionRatio;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        lockChannel = new RandomAccessFile(
+                new File(directory, LOCK_NAME), "rw").getChannel();
+        FileLock acquired = null;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Already locked by another instance of this process.
+        }
+        fileLock = acquired;
+        if (fileLock == null) {
+            lockChannel.close();
+            throw new IOException(directory + " is already in use");
+        }
+        try {
+            open();
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the index and the segments, replaying the records appended after
+     * the last checkpoint.
+     */
+    private void open() throws IOException {
+        for (int number : listNumbers(SEGMENT_PREFIX)) {
+            segments.put(number, new RandomAccessFile(
+                    segmentFile(number), "rw").getChannel());
+        }
+        List<Integer> generations = listNumbers(INDEX_PREFIX);
+        Collections.reverse(generations);
+        for (int generation : generations) {
+            if (index == null) {
+                index = Index.open(indexFile(generation), generation);
+                if (index == null) {
+                    log.warn("Ignoring incomplete index " +
+                            indexFile(generation));
+                }
+            }
+            if (index == null || index.generation != generation) {
+                deleteIndexFile(indexFile(generation));
+            }
+        }
+        int fromSegment = 0;
+        long fromOffset = 0;
+        if (index == null) {
+            if (!segments.isEmpty()) {
+                log.warn("Rebuilding the thumbnail index of " + directory);
+            }
+            index = Index.create(indexFile(0), 0, INITIAL_CAPACITY);
+        } else {
+            fromSegment = index.getCheckpointSegment();
+            fromOffset = index.getCheckpointLength();
+        }
+        if (segments.isEmpty()) {
+            segments.put(0, new RandomAccessFile(
+                    segmentFile(0), "rw").getChannel());
+        }
+        activeSegment = segments.lastKey();
+        Set<Long> replayed = new HashSet<Long>();
+        for (Map.Entry<Integer, FileChannel> entry : segments.entrySet()) {
+            if (entry.getKey() >= fromSegment) {
+                replay(entry.getKey(), entry.getValue(),
+                        entry.getKey() == fromSegment ? fromOffset : 0,
+                        replayed);
+            }
+        }
+        if (hasLostEntries(fromSegment, fromOffset, replayed)) {
+            log.warn("Rebuilding the thumbnail index of " + directory
+                    + ", it points to records lost after the checkpoint");
+            index.close();
+            deleteIndexFile(index.file);
+            index = Index.create(indexFile(0), 0, INITIAL_CAPACITY);
+            for (Map.Entry<Integer, FileChannel> entry
+                    : segments.entrySet()) {
+                replay(entry.getKey(), entry.getValue(), 0, replayed);
+            }
+        }
+        activeLength = segments.get(activeSegment).size();
+        liveBytes.clear();
+        for (long slot = 0; slot < index.capacity; slot++) {
+            if (index.getId(slot) != 0) {
+                addLiveBytes(index.getSegment(slot),
+                        RECORD_HEADER + Math.max(index.getLength(slot), 0));
+            }
+        }
+        checkpoint();
+    }
+
+    /**
+     * Returns whether or not the index points to records past the given
+     * checkpoint which were not replayed, or to segments which do not exist.
+     * The replayed records having updated their entry, such an entry points
+     * to a record which never reached the disk or was truncated, or to the
+     * records appended since in its place.
+     */
+    private boolean hasLostEntries(int fromSegment, long fromOffset,
+            Set<Long> replayed) {
+        for (long slot = 0; slot < index.capacity; slot++) {
+            long id = index.getId(slot);
+            if (id == 0) {
+                continue;
+            }
+            int segment = index.getSegment(slot);
+            long position = index.getOffset(slot) - RECORD_HEADER;
+            if (!segments.containsKey(segment)) {
+                return true;
+            }
+            if ((segment > fromSegment || segment == fromSegment
+                    && position >= fromOffset) && !replayed.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies to the index the records of a segment from the given offset,
+     * collecting the ids of the records. A torn record at the end of the
+     * last segment is truncated.
+     */
+    private void replay(int number, FileChannel channel, long offset,
+            Set<Long> replayed) throws IOException {
+        final long size = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        long position = offset;
+        while (position < size) {
+            header.clear();
+            long id = 0;
+            int length = 0;
+            if (size - position >= RECORD_HEADER) {
+                readFully(channel, header, position);
+                id = header.getLong(0);
+                length = header.getInt(8);
+            }
+            long end = position + RECORD_HEADER + Math.max(length, 0);
+            if (id <= 0 || length < TOMBSTONE || end > size) {
+                log.warn(String.format("Invalid record at %d of %s",
+                        position, segmentFile(number)));
+                if (number == segments.lastKey()) {
+                    channel.truncate(position);
+                }
+                return;
+            }
+            if (length == TOMBSTONE) {
+                removeEntry(id, number, position + RECORD_HEADER);
+            } else {
+                putEntry(id, number, position + RECORD_HEADER, length);
+            }
+            replayed.add(id);
+            position = end;
+        }
+    }
+
+    /**
+     * Returns the numbers of the files of the store directory with the
+     * given prefix, in ascending order.
+     */
+    private List<Integer> listNumbers(final String prefix) {
+        String[] names = directory.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix);
+            }
+        });
+        List<Integer> numbers = new ArrayList<Integer>();
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    numbers.add(Integer.parseInt(
+                            name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring " + new File(directory, name));
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, String.format("%s%08d",
+                SEGMENT_PREFIX, number));
+    }
+
+    private File indexFile(int generation) {
+        return new File(directory, String.format("%s%08d",
+                INDEX_PREFIX, generation));
+    }
+
+    private static void deleteIndexFile(File file) {
+        // A mapped file may not be deletable until unmapped, on Windows.
+        if (!file.delete()) {
+            log.warn("Cannot delete " + file);
+        }
+    }
+
+    private void addLiveBytes(int segment, long bytes) {
+        Long current = liveBytes.get(segment);
+        liveBytes.put(segment, (current == null ? 0 : current) + bytes);
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Store closed: " + directory);
+        }
+    }
+
+    /**
+     * Reads the buffer fully from the channel at the given position.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Writes the buffer fully to the channel at the given position.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new segment if
+     * the active one is full. The write lock must be held.
+     * @return The offset of the data of the record in the active segment.
+     */
+    private long append(long id, byte[] data) throws IOException {
+        if (activeLength >= segmentSize) {
+            activeSegment++;
+            segments.put(activeSegment, new RandomAccessFile(
+                    segmentFile(activeSegment), "rw").getChannel());
+            activeLength = 0;
+        }
+        int length = data == null ? TOMBSTONE : data.length;
+        ByteBuffer record = ByteBuffer.allocate(
+                RECORD_HEADER + Math.max(length, 0));
+        record.putLong(id).putInt(length);
+        if (data != null) {
+            record.put(data);
+        }
+        record.flip();
+        long position = activeLength;
+        writeFully(segments.get(activeSegment), record, position);
+        activeLength += record.capacity();
+        return position + RECORD_HEADER;
+    }
+
+    /**
+     * Points the index entry of a thumbnail to a new location, updating the
+     * space used by the segments. The write lock must be held.
+     */
+    private void putEntry(long id, int segment, long offset, int length)
+            throws IOException {
+        long slot = index.find(id);
+        if (slot >= 0) {
+            addLiveBytes(index.getSegment(slot),
+                    -(RECORD_HEADER + Math.max(index.getLength(slot), 0)));
+        } else if (index.used + 1 > index.capacity * MAX_LOAD) {
+            rehash(index.capacity * 2);
+        }
+        index.put(id, segment, offset, length);
+        addLiveBytes(segment, RECORD_HEADER + Math.max(length, 0));
+    }
+
+    /**
+     * Points the index entry of a removed thumbnail to its tombstone,
+     * updating the space used by the segments. The write lock must be held.
+     */
+    private void removeEntry(long id, int segment, long offset)
+            throws IOException {
+        putEntry(id, segment, offset, TOMBSTONE);
+    }
+
+    /**
+     * Copies the live entries of the index to a new index file of the
+     * given capacity, dropping the tombstones. Their records then count as
+     * unused space, {@link #compact(int)} checking whether they are still
+     * needed. The write lock must be held.
+     */
+    private void rehash(long capacity) throws IOException {
+        int generation = index.generation + 1;
+        Index rehashed = Index.create(indexFile(generation), generation,
+                capacity);
+        try {
+            for (long slot = 0; slot < index.capacity; slot++) {
+                long id = index.getId(slot);
+                if (id != 0 && index.getLength(slot) >= 0) {
+                    rehashed.put(id, index.getSegment(slot),
+                            index.getOffset(slot), index.getLength(slot));
+                }
+            }
+            rehashed.setCheckpoint(index.getCheckpointSegment(),
+                    index.getCheckpointLength());
+            rehashed.complete();
+        } catch (IOException e) {
+            rehashed.close();
+            deleteIndexFile(rehashed.file);
+            throw e;
+        }
+        Index previous = index;
+        index = rehashed;
+        for (long slot = 0; slot < previous.capacity; slot++) {
+            if (previous.getId(slot) != 0 && previous.getLength(slot) < 0) {
+                addLiveBytes(previous.getSegment(slot), -RECORD_HEADER);
+            }
+        }
+        previous.close();
+        deleteIndexFile(previous.file);
+    }
+
+    /**
+     * Adds a thumbnail to the store, replacing any thumbnail of the same id.
+     *
+     * @param id The thumbnail id.
+     * @param data The compressed thumbnail.
+     * @throws IOException If the thumbnail cannot be written.
+     */
+    public void put(long id, byte[] data) throws IOException {
+        if (id <= 0) {
+            throw new IllegalArgumentException("Invalid thumbnail id: " + id);
+        }
+        if (data == null) {
+            throw new IllegalArgumentException("No data for thumbnail: " + id);
+        }
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            long offset = append(id, data);
+            putEntry(id, activeSegment, offset, data.length);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes thumbnails from the store. The ids which are not in the store
+     * are ignored.
+     *
+     * @param ids The thumbnail ids.
+     * @return The number of thumbnails removed.
+     * @throws IOException If the tombstones cannot be written.
+     */
+    public int remove(Collection<Long> ids) throws IOException {
+        int count = 0;
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            for (Long id : ids) {
+                long slot = index.find(id);
+                if (slot >= 0 && index.getLength(slot) >= 0) {
+                    // The append may start a new segment.
+                    long offset = append(id, null);
+                    removeEntry(id, activeSegment, offset);
+                    count++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return count;
+    }
+
+    /**
+     * Returns whether or not the store holds a thumbnail.
+     *
+     * @param id The thumbnail id.
+     * @return See above.
+     */
+    public boolean contains(long id) {
+        return length(id) >= 0;
+    }
+
+    /**
+     * Returns the length of a thumbnail.
+     *
+     * @param id The thumbnail id.
+     * @return See above or <code>-1</code> if the store does not hold the
+     *         thumbnail.
+     */
+    public int length(long id) {
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            long slot = index.find(id);
+            return slot < 0 ? -1 : Math.max(index.getLength(slot), -1);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a thumbnail.
+     *
+     * @param id The thumbnail id.
+     * @return The compressed thumbnail or <code>null</code> if the store does
+     *         not hold the thumbnail.
+     * @throws IOException If the thumbnail cannot be read.
+     */
+    public byte[] get(long id) throws IOException {
+        return get(Collections.singletonList(id)).get(id);
+    }
+
+    /**
+     * Returns thumbnails. The thumbnails are read in the order of their
+     * location in the segments.
+     *
+     * @param ids The thumbnail ids.
+     * @return The compressed thumbnails by id, only for the thumbnails the
+     *         store holds.
+     * @throws IOException If a thumbnail cannot be read.
+     */
+    public Map<Long, byte[]> get(Collection<Long> ids) throws IOException {
+        Map<Long, byte[]> thumbnails = new HashMap<Long, byte[]>();
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            List<long[]> entries = new ArrayList<long[]>(ids.size());
+            for (Long id : ids) {
+                long slot = index.find(id);
+                if (slot >= 0 && index.getLength(slot) >= 0) {
+                    entries.add(new long[] { id, index.getSegment(slot),
+                            index.getOffset(slot), index.getLength(slot) });
+                }
+            }
+            Collections.sort(entries, new Comparator<long[]>() {
+                public int compare(long[] a, long[] b) {
+                    int c = Long.compare(a[1], b[1]);
+                    return c != 0 ? c : Long.compare(a[2], b[2]);
+                }
+            });
+            for (long[] entry : entries) {
+                byte[] data = new byte[(int) entry[3]];
+                readFully(segments.get((int) entry[1]), ByteBuffer.wrap(data),
+                        entry[2]);
+                thumbnails.put(entry[0], data);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return thumbnails;
+    }
+
+    /**
+     * Flushes the active segment and the index to disk. The records appended
+     * until then are not replayed when the store is next opened.
+     *
+     * @throws IOException If the store cannot be flushed.
+     */
+    public void checkpoint() throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            segments.get(activeSegment).force(false);
+            index.setCheckpoint(activeSegment, activeLength);
+            index.force();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ratio of unused space of the store, i.e. of the space
+     * taken by overwritten and removed thumbnails and by the tombstones no
+     * longer held by the index.
+     *
+     * @return See above.
+     * @throws IOException If the size of the segments cannot be read.
+     */
+    public double getUnusedRatio() throws IOException {
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            long total = 0;
+            long live = 0;
+            for (Map.Entry<Integer, FileChannel> entry : segments.entrySet()) {
+                total += entry.getValue().size();
+                Long bytes = liveBytes.get(entry.getKey());
+                live += bytes == null ? 0 : bytes;
+            }
+            return total == 0 ? 0 : (double) (total - live) / total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts the segments, other than the active one, with a ratio of
+     * unused space above the compaction ratio. Their live thumbnails are
+     * appended to the active segment, then the segments are deleted. The
+     * thumbnails remain readable while compacting. Meant to be called
+     * periodically by a background job.
+     *
+     * @return The number of segments deleted.
+     * @throws IOException If a segment cannot be compacted.
+     */
+    public int compact() throws IOException {
+        if (!compactionLock.tryLock()) {
+            return 0;
+        }
+        try {
+            List<Integer> candidates = new ArrayList<Integer>();
+            lock.readLock().lock();
+            try {
+                ensureOpen();
+                for (Map.Entry<Integer, FileChannel> entry
+                        : segments.entrySet()) {
+                    long size = entry.getValue().size();
+                    Long live = liveBytes.get(entry.getKey());
+                    if (entry.getKey() != activeSegment && size
+                            - (live == null ? 0 : live)
+                            >= size * compactionRatio) {
+                        candidates.add(entry.getKey());
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            for (int number : candidates) {
+                compact(number);
+            }
+            lock.writeLock().lock();
+            try {
+                ensureOpen();
+                if (index.tombstones > index.live()
+                        && index.capacity > INITIAL_CAPACITY) {
+                    rehash(index.capacity);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (!candidates.isEmpty()) {
+                log.info(String.format(
+                        "Compacted %d thumbnail segments of %s",
+                        candidates.size(), directory));
+            }
+            return candidates.size();
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the live thumbnails of a segment to the active segment and
+     * deletes the segment. The tombstones which are the last word on their
+     * thumbnail are moved too if an older segment still holds a record of
+     * the thumbnail, otherwise replaying the segments would bring it back.
+     * The segment is read without holding the lock, only the compaction
+     * deleting segments.
+     */
+    private void compact(int number) throws IOException {
+        FileChannel channel;
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            channel = segments.get(number);
+        } finally {
+            lock.readLock().unlock();
+        }
+        final long size = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        final Map<Long, Long> tombstones = new HashMap<Long, Long>();
+        long position = 0;
+        while (position + RECORD_HEADER <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            long id = header.getLong(0);
+            int length = header.getInt(8);
+            long offset = position + RECORD_HEADER;
+            position = offset + Math.max(length, 0);
+            if (length == TOMBSTONE && isRemovedAt(id, number, offset)) {
+                tombstones.put(id, offset);
+            }
+            if (length < 0 || position > size || !isAt(id, number, offset)) {
+                continue;
+            }
+            byte[] data = new byte[length];
+            readFully(channel, ByteBuffer.wrap(data), offset);
+            lock.writeLock().lock();
+            try {
+                ensureOpen();
+                // The thumbnail may have been replaced while read.
+                if (isAt(id, number, offset)) {
+                    long moved = append(id, data);
+                    putEntry(id, activeSegment, moved, length);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (!tombstones.isEmpty()) {
+            Set<Long> recorded = findRecords(tombstones.keySet(), number);
+            for (Map.Entry<Long, Long> entry : tombstones.entrySet()) {
+                long id = entry.getKey();
+                if (!recorded.contains(id)) {
+                    continue;
+                }
+                lock.writeLock().lock();
+                try {
+                    ensureOpen();
+                    // The thumbnail may have been added again while read.
+                    if (isRemovedAt(id, number, entry.getValue())) {
+                        long moved = append(id, null);
+                        removeEntry(id, activeSegment, moved);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            // The moved thumbnails must be on disk before their previous
+            // copies are deleted.
+            checkpoint();
+            segments.remove(number).close();
+            liveBytes.remove(number);
+            if (!segmentFile(number).delete()) {
+                log.warn("Cannot delete " + segmentFile(number));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns whether or not the index points the thumbnail to the given
+     * location.
+     */
+    private boolean isAt(long id, int segment, long offset) {
+        lock.readLock().lock();
+        try {
+            long slot = index.find(id);
+            return slot >= 0 && index.getLength(slot) >= 0
+                    && index.getSegment(slot) == segment
+                    && index.getOffset(slot) == offset;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns whether or not the thumbnail is removed and the index points
+     * to the given tombstone or to none, having dropped it when rehashed.
+     */
+    private boolean isRemovedAt(long id, int segment, long offset) {
+        lock.readLock().lock();
+        try {
+            long slot = index.find(id);
+            return slot < 0 || index.getLength(slot) < 0
+                    && index.getSegment(slot) == segment
+                    && index.getOffset(slot) == offset;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the thumbnails of which the segments older than the given one
+     * hold a record other than a tombstone. Only the record headers are
+     * read, without holding the lock.
+     */
+    private Set<Long> findRecords(Set<Long> ids, int before)
+            throws IOException {
+        List<FileChannel> channels;
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            channels = new ArrayList<FileChannel>(
+                    segments.headMap(before).values());
+        } finally {
+            lock.readLock().unlock();
+        }
+        final Set<Long> found = new HashSet<Long>();
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        for (FileChannel channel : channels) {
+            final long size = channel.size();
+            long position = 0;
+            while (position + RECORD_HEADER <= size
+                    && found.size() < ids.size()) {
+                header.clear();
+                readFully(channel, header, position);
+                long id = header.getLong(0);
+                int length = header.getInt(8);
+                if (length >= 0 && ids.contains(id)) {
+                    found.add(id);
+                }
+                position += RECORD_HEADER + Math.max(length, 0);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Checkpoints and closes the store, releasing its lock.
+     *
+     * @throws IOException If the store cannot be flushed.
+     */
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            try {
+                checkpoint();
+            } finally {
+                closeQuietly();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void closeQuietly() {
+        closed = true;
+        for (FileChannel channel : segments.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Cannot close segment", e);
+            }
+        }
+        segments.clear();
+        if (index != null) {
+            index.close();
+        }
+        try {
+            fileLock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            log.warn("Cannot release " + directory, e);
+        }
+    }
+
+    /**
+     * Open addressing hash table in a memory-mapped file, with linear
+     * probing. Each slot holds a thumbnail id, <code>0</code> for an empty
+     * slot, and the segment, offset and length of the thumbnail. The removed
+     * thumbnails keep their slot with a {@link #TOMBSTONE} length and the
+     * location of their tombstone until the table is rehashed. The magic
+     * number is written once the file is complete.
+     */
+    private static final class Index {
+
+        /** The index file. */
+        final File file;
+
+        /** The generation of the index, incremented by each rehash. */
+        final int generation;
+
+        /** The number of slots, a power of two. */
+        final long capacity;
+
+        /** The number of slots holding an id. */
+        long used;
+
+        /** The number of slots holding a tombstone. */
+        long tombstones;
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer header;
+
+        private final MappedByteBuffer[] pages;
+
+        private Index(File file, int generation, long capacity,
+                FileChannel channel) throws IOException {
+            this.file = file;
+            this.generation = generation;
+            this.capacity = capacity;
+            this.channel = channel;
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE);
+            pages = new MappedByteBuffer[
+                    (int) ((capacity + PAGE_SLOTS - 1) / PAGE_SLOTS)];
+            for (int page = 0; page < pages.length; page++) {
+                long slots = Math.min(PAGE_SLOTS,
+                        capacity - (long) page * PAGE_SLOTS);
+                pages[page] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + (long) page * PAGE_SLOTS * SLOT_SIZE,
+                        slots * SLOT_SIZE);
+            }
+        }
+
+        /** Creates an empty index, incomplete until {@link #complete()}. */
+        static Index create(File file, int generation, long capacity)
+                throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + capacity * SLOT_SIZE);
+            Index index = new Index(file, generation, capacity,
+                    raf.getChannel());
+            index.header.putInt(8, VERSION);
+            index.header.putLong(16, capacity);
+            if (generation == 0) {
+                index.complete();
+            }
+            return index;
+        }
+
+        /**
+         * Opens an index.
+         * @return See above or <code>null</code> if the index is incomplete.
+         */
+        static Index open(File file, int generation) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            byte[] magic = new byte[MAGIC.length];
+            if (raf.length() < HEADER_SIZE) {
+                raf.close();
+                return null;
+            }
+            raf.readFully(magic);
+            int version = raf.readInt();
+            raf.seek(16);
+            long capacity = raf.readLong();
+            if (!Arrays.equals(magic, MAGIC) || version != VERSION
+                    || Long.bitCount(capacity) != 1
+                    || raf.length() != HEADER_SIZE + capacity * SLOT_SIZE) {
+                raf.close();
+                return null;
+            }
+            Index index = new Index(file, generation, capacity,
+                    raf.getChannel());
+            for (long slot = 0; slot < capacity; slot++) {
+                if (index.getId(slot) != 0) {
+                    index.used++;
+                    if (index.getLength(slot) < 0) {
+                        index.tombstones++;
+                    }
+                }
+            }
+            return index;
+        }
+
+        /** Flushes the index and marks it as complete. */
+        void complete() throws IOException {
+            force();
+            header.put(MAGIC, 0, MAGIC.length);
+            header.position(0);
+            header.force();
+        }
+
+        long live() {
+            return used - tombstones;
+        }
+
+        private ByteBuffer page(long slot) {
+            return pages[(int) (slot / PAGE_SLOTS)];
+        }
+
+        private int position(long slot) {
+            return (int) (slot % PAGE_SLOTS) * SLOT_SIZE;
+        }
+
+        long getId(long slot) {
+            return page(slot).getLong(position(slot));
+        }
+
+        int getSegment(long slot) {
+            return page(slot).getInt(position(slot) + 8);
+        }
+
+        int getLength(long slot) {
+            return page(slot).getInt(position(slot) + 12);
+        }
+
+        long getOffset(long slot) {
+            return page(slot).getLong(position(slot) + 16);
+        }
+
+        /** Spreads the ids, usually sequential, over the slots. */
+        private long hash(long id) {
+            id ^= id >>> 33;
+            id *= 0xff51afd7ed558ccdL;
+            id ^= id >>> 33;
+            return id & (capacity - 1);
+        }
+
+        /**
+         * Returns the slot holding an id or, if not found,
+         * <code>-1 - slot</code> where slot is the empty slot ending the
+         * probe.
+         */
+        long find(long id) {
+            long slot = hash(id);
+            while (true) {
+                long current = getId(slot);
+                if (current == id) {
+                    return slot;
+                }
+                if (current == 0) {
+                    return -1 - slot;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+        }
+
+        void put(long id, int segment, long offset, int length) {
+            long slot = find(id);
+            if (slot < 0) {
+                slot = -1 - slot;
+                used++;
+                if (length < 0) {
+                    tombstones++;
+                }
+            } else if (getLength(slot) < 0 && length >= 0) {
+                tombstones--;
+            } else if (getLength(slot) >= 0 && length < 0) {
+                tombstones++;
+            }
+            ByteBuffer page = page(slot);
+            int position = position(slot);
+            page.putInt(position + 8, segment);
+            page.putInt(position + 12, length);
+            page.putLong(position + 16, offset);
+            page.putLong(position, id);
+        }
+
+        int getCheckpointSegment() {
+            return header.getInt(40);
+        }
+
+        long getCheckpointLength() {
+            return header.getLong(48);
+        }
+
+        void setCheckpoint(int segment, long length) {
+            header.putInt(40, segment);
+            header.putLong(48, length);
+        }
+
+        void force() {
+            for (MappedByteBuffer page : pages) {
+                page.force();
+            }
+            header.force();
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Cannot close " + file, e);
+            }
+        }
+    }
+}
@@ -240,6 +240,20 @@ public interface PixelBuffer extends Closeable
                                 Integer y, Integer w, Integer h, byte[] buffer)
             throws IOException;
 
+    /**
+     * Retrieves many tiles from this pixel buffer at once. Implementations
+     * may coalesce the reads of tiles stored next to each other or decode
+     * the tiles in parallel.
+     * @param tiles The tiles to retrieve.
+     * @return the data of each tile, in the order of <code>tiles</code>, as
+     * returned by
+     * {@link #getTile(Integer, Integer, Integer, Integer, Integer, Integer, Integer)}.
+     * @throws IOException if there is a problem reading from the pixel buffer.
+     * @since 5.4.0
+     */
+    public List<PixelData> getTiles(List<TileRequest> tiles)
+            throws IOException;
+
     /**
      * Retrieves a region from this pixel buffer.
      * @param size byte width of the region to retrieve.
@@ -0,0 +1,192 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of worker threads shared by the pixel buffers and the
+ * pyramid writers of a server, which read, decode and encode tiles
+ * concurrently. The threads are named and do not prevent the JVM from
+ * exiting. The pool is created once, by Spring, rather than by each pixel
+ * buffer or pyramid so that the number of threads of a server does not grow
+ * with the number of images in use.
+ *
+ * @since 5.4.0
+ */
+public class PixelsExecutor {
+
+    /** The logger for this particular class */
+    private static Logger log = LoggerFactory.getLogger(PixelsExecutor.class);
+
+    /** The executor used when none has been configured. */
+    private static PixelsExecutor defaultExecutor;
+
+    /** The worker threads. */
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * Returns the executor of the pixel buffers and pyramid writers which
+     * have not been given one explicitly. Sized on the number of available
+     * processors.
+     *
+     * @return See above.
+     */
+    public static synchronized PixelsExecutor getDefault() {
+        if (defaultExecutor == null) {
+            defaultExecutor = new PixelsExecutor(0);
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param threads The number of worker threads. A value less than
+     *            <code>1</code> uses the number of available processors.
+     */
+    public PixelsExecutor(int threads) {
+        if (threads < 1) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new PixelsThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+        log.info("Pixels executor started with " + threads + " threads.");
+    }
+
+    /**
+     * Returns the number of worker threads.
+     *
+     * @return See above.
+     */
+    public int getThreadCount() {
+        return pool.getMaximumPoolSize();
+    }
+
+    /**
+     * Runs the passed task on a worker thread. The callers should bound the
+     * number of tasks they have submitted and not yet waited for, so that
+     * the workers remain available to the other callers.
+     *
+     * @param task The task to run.
+     * @return The result of the task, once complete.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return pool.submit(task);
+    }
+
+    /**
+     * Runs the passed tasks and returns their results, in order. The calling
+     * thread does not simply block but runs tasks alongside at most
+     * <code>parallelism - 1</code> workers, each taking the next task which
+     * has not been started, so the call always makes progress even when the
+     * pool is saturated or the caller is itself a worker.
+     *
+     * @param tasks The tasks to run.
+     * @param parallelism The maximum number of threads running the tasks,
+     *            the calling thread included.
+     * @return See above.
+     * @throws IOException If a task failed to read or write pixels.
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks,
+            int parallelism) throws IOException {
+        final List<FutureTask<T>> futures =
+                new ArrayList<FutureTask<T>>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(new FutureTask<T>(task));
+        }
+        final AtomicInteger next = new AtomicInteger();
+        final Runnable batch = new Runnable() {
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < futures.size()) {
+                    futures.get(i).run();
+                }
+            }
+        };
+        int helpers = Math.min(Math.min(parallelism, tasks.size()) - 1,
+                getThreadCount());
+        for (int i = 0; i < helpers; i++) {
+            pool.execute(batch);
+        }
+        batch.run();
+        final List<T> rv = new ArrayList<T>(futures.size());
+        for (Future<T> future : futures) {
+            rv.add(get(future));
+        }
+        return rv;
+    }
+
+    /**
+     * Waits for the result of a task submitted to the pool, unwrapping its
+     * failure.
+     *
+     * @param future The result of the task.
+     * @return See above.
+     * @throws IOException If the task failed to read or write pixels or the
+     *             wait was interrupted.
+     */
+    public static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for pixels");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Stops the worker threads. Used as the Spring destroy method.
+     */
+    public void destroy() {
+        pool.shutdown();
+    }
+
+    /**
+     * Names the worker threads and makes sure they do not prevent the JVM
+     * from exiting.
+     */
+    private static class PixelsThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Pixels-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
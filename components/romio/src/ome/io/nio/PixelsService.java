@@ -12,8 +12,16 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import loci.formats.ChannelFiller;
 import loci.formats.ChannelSeparator;
@@ -29,6 +37,8 @@ import ome.conditions.MissingPyramidException;
 import ome.conditions.ResourceError;
 import ome.io.bioformats.BfPixelBuffer;
 import ome.io.bioformats.BfPyramidPixelBuffer;
+import ome.io.bioformats.BfReaderPool;
+import ome.io.bioformats.PooledBfPixelBuffer;
 import ome.io.messages.MissingPyramidMessage;
 import ome.io.messages.MissingStatsInfoMessage;
 import ome.parameters.Parameters;
@@ -65,6 +75,12 @@ public class PixelsService extends AbstractFileSystemService
 	/** Suffix for an the image pyramid of a given pixels set. */
 	public static final String PYRAMID_SUFFIX = "_pyramid";
 
+    /** Pyramids stored as JPEG-2000 compressed TIFF files. */
+    public static final String PYRAMID_FORMAT_TIFF = "tiff";
+
+    /** Pyramids stored by {@link ChunkedPyramidPixelBuffer}. */
+    public static final String PYRAMID_FORMAT_CHUNKED = "chunked";
+
 	/** Null plane size constant. */
 	public static final int NULL_PLANE_SIZE = 64;
 
@@ -93,6 +109,24 @@ public class PixelsService extends AbstractFileSystemService
 	private Timer tileTimes;
 
 	private Timer minmaxTimes;
+
+    /** Number of tiles of a pyramid read and encoded at the same time. */
+    private int pyramidThreads = 1;
+
+    /** The threads reading and encoding the tiles of the pyramids. */
+    private PixelsExecutor pixelsExecutor;
+
+    /** Number of tile reads decoded at once by each pyramid pixel buffer. */
+    private int pyramidReaders = 1;
+
+    /** The format of the pyramids written. */
+    private String pyramidFormat = PYRAMID_FORMAT_TIFF;
+
+    /** Cache of the tiles and planes read, <code>null</code> if none. */
+    private PixelsTileCache tileCache;
+
+    /** Pool of initialized Bio-Formats readers, <code>null</code> if none. */
+    private BfReaderPool readerPool;
 	
 	private IQuery iQuery;
 
@@ -188,6 +222,93 @@ public class PixelsService extends AbstractFileSystemService
         this.minmaxTimes = metrics.timer(this, "minmaxTimes");
     }
 
+    /**
+     * Sets the cache of the tiles and planes read through the pixel buffers
+     * returned by {@link #getPixelBuffer(Pixels, boolean)}.
+     *
+     * @param tileCache The value to set.
+     */
+    public void setTileCache(PixelsTileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Sets the number of tiles of a pixels set read, each through its own
+     * reader, and encoded at the same time ahead of the pyramid writer in
+     * {@link #makePyramid(Pixels)}.
+     *
+     * @param pyramidThreads The value to set.
+     */
+    public void setPyramidThreads(int pyramidThreads) {
+        this.pyramidThreads = pyramidThreads;
+    }
+
+    /**
+     * Sets the pool of threads on which the tiles of the pyramids are read
+     * and encoded. The pool is shared by all the pyramids being written.
+     *
+     * @param pixelsExecutor The value to set.
+     */
+    public void setPixelsExecutor(PixelsExecutor pixelsExecutor) {
+        this.pixelsExecutor = pixelsExecutor;
+    }
+
+    /**
+     * Returns the pool of threads on which the tiles are read and encoded,
+     * the default one if none has been set.
+     *
+     * @return See above.
+     */
+    public PixelsExecutor getPixelsExecutor() {
+        return pixelsExecutor == null ?
+                PixelsExecutor.getDefault() : pixelsExecutor;
+    }
+
+    /**
+     * Sets the number of tile reads each read-only pyramid pixel buffer
+     * decodes at once, see {@link BfPyramidPixelBuffer#setReaders(int)}.
+     *
+     * @param pyramidReaders The value to set.
+     */
+    public void setPyramidReaders(int pyramidReaders) {
+        this.pyramidReaders = pyramidReaders;
+    }
+
+    /**
+     * Sets the format of the pyramids written, {@link #PYRAMID_FORMAT_TIFF}
+     * or {@link #PYRAMID_FORMAT_CHUNKED}. The pyramids already written are
+     * read whatever their format.
+     *
+     * @param pyramidFormat The value to set.
+     */
+    public void setPyramidFormat(String pyramidFormat) {
+        if (!PYRAMID_FORMAT_TIFF.equals(pyramidFormat)
+                && !PYRAMID_FORMAT_CHUNKED.equals(pyramidFormat)) {
+            throw new IllegalArgumentException(
+                    "Unknown pyramid format: " + pyramidFormat);
+        }
+        this.pyramidFormat = pyramidFormat;
+    }
+
+    /**
+     * Sets the pool of initialized Bio-Formats readers from which the
+     * {@link BfPixelBuffer}s on original files are created.
+     *
+     * @param readerPool The value to set.
+     */
+    public void setReaderPool(BfReaderPool readerPool) {
+        this.readerPool = readerPool;
+    }
+
+    /**
+     * Returns the default tile sizes and maximum plane size.
+     *
+     * @return See above.
+     */
+    public TileSizes getTileSizes() {
+        return sizes;
+    }
+
     public long getMemoizerWait() {
         return memoizerWait;
     }
@@ -285,8 +406,12 @@ public class PixelsService extends AbstractFileSystemService
             }
         }
 
-        final BfPyramidPixelBuffer pixelsPyramid = createPyramidPixelBuffer(
+        final PyramidPixelBuffer pixelsPyramid = createPyramidPixelBuffer(
                 pixels, pixelsPyramidFilePath, true);
+        // We hold the pyramid lock, so a checkpoint left behind is from a
+        // generation which was interrupted, e.g. by a restart.
+        final PyramidCheckpoint interrupted = resumeInterruptedPyramid(
+                pixels, pixelsPyramidFile, pixelsPyramid);
 
         try
         {
@@ -305,7 +430,13 @@ public class PixelsService extends AbstractFileSystemService
 
             PixelsPyramidMinMaxStore minMaxStore = performWrite(
                     pixels, pixelsPyramidFile, pixelsPyramid,
-                    pixelsFile, pixelsFilePath, originalFilePath);
+                    pixelsFile, pixelsFilePath, originalFilePath,
+                    interrupted);
+            if (tileCache != null)
+            {
+                // Readers now switch to the pyramid.
+                tileCache.invalidate(pixels.getId());
+            }
             if (minMaxStore != null)
             {
                 return minMaxStore.createStatsInfo();
@@ -331,12 +462,14 @@ public class PixelsService extends AbstractFileSystemService
 
     private PixelsPyramidMinMaxStore performWrite(
             final Pixels pixels,final File pixelsPyramidFile,
-            final BfPyramidPixelBuffer pixelsPyramid, final File pixelsFile,
-            final String pixelsFilePath, final String originalFilePath) {
+            final PyramidPixelBuffer pixelsPyramid, final File pixelsFile,
+            final String pixelsFilePath, final String originalFilePath,
+            final PyramidCheckpoint interrupted) {
 
         final PixelBuffer source;
         final Dimension tileSize;
         final PixelsPyramidMinMaxStore minMaxStore;
+        final int series = getSeries(pixels);
 
         if (pixelsFile.exists())
         {
@@ -349,10 +482,12 @@ public class PixelsService extends AbstractFileSystemService
         }
         else
         {
+            // The minimum and maximum are computed from the tiles rather
+            // than by a MinMaxCalculator, which has to see all the planes
+            // through a single reader.
             minMaxStore = new PixelsPyramidMinMaxStore(pixels.getSizeC());
-            int series = getSeries(pixels);
-            BfPixelBuffer bfPixelBuffer = createMinMaxBfPixelBuffer(
-                    originalFilePath, series, minMaxStore);
+            BfPixelBuffer bfPixelBuffer = createBfPixelBuffer(
+                    originalFilePath, series);
             pixelsPyramid.setByteOrder(
                     bfPixelBuffer.isLittleEndian()? ByteOrder.LITTLE_ENDIAN
                             : ByteOrder.BIG_ENDIAN);
@@ -392,56 +527,104 @@ public class PixelsService extends AbstractFileSystemService
         }
         log.info("Destination pyramid tile size: " + tileSize);
 
+        final int threads = Math.max(pyramidThreads, 1);
+        final PixelsExecutor executor = getPixelsExecutor();
+        // Each read takes a reader of its own from the queue.
+        final List<PixelBuffer> opened = new ArrayList<PixelBuffer>(threads);
+        final BlockingQueue<PixelBuffer> readers =
+            new ArrayBlockingQueue<PixelBuffer>(threads);
+        opened.add(source);
+        readers.add(source);
+        // The chunked pyramids are encoded ahead of the writer as well.
+        final ChunkedPyramidPixelBuffer encoder =
+            pixelsPyramid instanceof ChunkedPyramidPixelBuffer ?
+                (ChunkedPyramidPixelBuffer) pixelsPyramid : null;
+        final List<PyramidCheckpoint> checkpoints =
+            new ArrayList<PyramidCheckpoint>(1);
+        final Deque<PendingTile> pending = new ArrayDeque<PendingTile>();
         try
         {
+            for (int i = 1; i < threads; i++)
+            {
+                PixelBuffer reader = pixelsFile.exists() ?
+                    createRomioPixelBuffer(pixelsFilePath, pixels, false) :
+                    createBfPixelBuffer(originalFilePath, series);
+                opened.add(reader);
+                readers.add(reader);
+            }
             final double totalTiles =
                 source.getSizeZ() * source.getSizeC() * source.getSizeT() *
                 (Math.ceil(source.getSizeX() / tileSize.getWidth())) *
                 (Math.ceil(source.getSizeY() / tileSize.getHeight()));
             final int tenPercent = Math.max((int) totalTiles / 10, 1);
+            final int tilesPerPlane = (int)
+                (Math.ceil(source.getSizeX() / tileSize.getWidth()) *
+                 Math.ceil(source.getSizeY() / tileSize.getHeight()));
+            final PyramidCheckpoint checkpoint =
+                new PyramidCheckpoint(pixelsPyramidFile, (long) totalTiles);
+            final double[][] channelMinMax = new double[pixels.getSizeC()][];
+            final int recovered;
+            if (interrupted != null)
+            {
+                recovered = recoverTiles((ChunkedPyramidPixelBuffer)
+                        pixelsPyramid, source, tileSize,
+                        interrupted.getCompletedTiles(),
+                        minMaxStore == null ? null : channelMinMax);
+                log.info(String.format(
+                        "Pyramid creation for Pixels:%d resumed after %d/%d " +
+                        "tiles.", pixels.getId(), recovered,
+                        (int) totalTiles));
+                for (int i = 0; i < recovered; i++)
+                {
+                    checkpoint.completeTile();
+                }
+            }
+            else
+            {
+                recovered = 0;
+            }
+            checkpoint.save();
+            checkpoints.add(checkpoint);
+            // The tiles are read and, if possible, encoded ahead of the
+            // writer which appends them in order. A read waits for a reader
+            // only if it runs while all the others are busy.
+            final int window = threads;
             Utils.forEachTile(new TileLoopIteration() {
                 public void run(int z, int c, int t, int x, int y, int w,
                             int h, int tileCount)
             {
-                if (log.isInfoEnabled()
-                    && tileCount % tenPercent == 0)
+                if (tileCount < recovered)
                 {
-                    log.info(String.format(
-                            "Pyramid creation for Pixels:%d %d/%d (%d%%).",
-                            pixels.getId(), tileCount + 1, (int) totalTiles,
-                            (int) (tileCount / totalTiles * 100)));
+                    return;
                 }
-                try
+                pending.add(new PendingTile(executor, readers, encoder,
+                        minMaxStore != null, z, c, t, x, y, w, h, tileCount));
+                if (pending.size() > window)
                 {
-                    Timer.Context ctx = tileTimes == null ? null : tileTimes.time();
-                    try {
-                        PixelData tile = source.getTile(z, c, t, x, y, w, h);
-                        pixelsPyramid.setTile(
-                            tile.getData().array(), z, c, t, x, y, w, h);
-                        tile.dispose();
-                    } finally {
-                        if (ctx != null) {
-                            ctx.stop();
-                        }
-                    }
+                    writeTile(pending.poll(), pixels, pixelsPyramidFile,
+                            pixelsPyramid, totalTiles, tenPercent,
+                            checkpoint, tilesPerPlane, channelMinMax);
                 }
-                catch (IOException e1)
+            }
+            }, source, (int) tileSize.getWidth(), (int) tileSize.getHeight());
+            while (!pending.isEmpty())
+            {
+                writeTile(pending.poll(), pixels, pixelsPyramidFile,
+                        pixelsPyramid, totalTiles, tenPercent,
+                        checkpoint, tilesPerPlane, channelMinMax);
+            }
+            if (minMaxStore != null)
+            {
+                for (int c = 0; c < channelMinMax.length; c++)
                 {
-                    log.error("FAIL -- Error during tile population", e1);
-                    try
-                    {
-                        pixelsPyramidFile.delete();
-                        FileUtils.touch(pixelsPyramidFile); // ticket:5189
-                    }
-                    catch (Exception e2)
+                    if (channelMinMax[c] != null)
                     {
-                        log.warn("Error clearing empty or incomplete pixel " +
-                                 "buffer.", e2);
+                        minMaxStore.setChannelGlobalMinMax(c,
+                                channelMinMax[c][0], channelMinMax[c][1],
+                                series);
                     }
-                    return;
                 }
             }
-            }, source, (int) tileSize.getWidth(), (int) tileSize.getHeight());
 
             log.info("SUCCESS -- Pyramid created for pixels id:" + pixels.getId());
 
@@ -449,21 +632,402 @@ public class PixelsService extends AbstractFileSystemService
 
         finally
         {
-            if (source != null)
+            for (PyramidCheckpoint checkpoint : checkpoints)
+            {
+                checkpoint.delete();
+            }
+            // Wait for any read still using the buffers before closing them.
+            for (PendingTile tile : pending)
+            {
+                tile.cancel();
+            }
+            for (PixelBuffer reader : opened)
             {
                 try
                 {
-                    source.close();
+                    reader.close();
                 }
                 catch (IOException e)
                 {
-                    log.error("Error closing pixel pyramid.", e);
+                    log.error("Error closing pixel buffer.", e);
                 }
             }
         }
         return minMaxStore;
     }
 
+    /**
+     * Returns the number of tiles written between two checkpoints which do
+     * not complete a plane, one percent of the tiles.
+     */
+    private static long checkpointTiles(double totalTiles)
+    {
+        return Math.max((long) (totalTiles / 100), 1);
+    }
+
+    /**
+     * Logs the progress of an interrupted generation of the pyramid and
+     * removes what it left behind, except the file of a chunked pyramid
+     * which is then resumed. The TIFF writer cannot append to a partially
+     * written file, so the generation of a TIFF pyramid restarts from the
+     * first tile.
+     * @return The checkpoint of the generation to resume or
+     * <code>null</code> to start from the first tile.
+     */
+    private PyramidCheckpoint resumeInterruptedPyramid(Pixels pixels,
+            File pixelsPyramidFile, PyramidPixelBuffer pixelsPyramid)
+    {
+        PyramidCheckpoint checkpoint = PyramidCheckpoint.load(
+                pixelsPyramidFile);
+        if (checkpoint == null)
+        {
+            return null;
+        }
+        boolean resume = false;
+        final File partial = checkpoint.getWriterFile();
+        if (partial != null && partial.exists()
+            && pixelsPyramid instanceof ChunkedPyramidPixelBuffer)
+        {
+            try
+            {
+                ((ChunkedPyramidPixelBuffer) pixelsPyramid).resume(
+                        partial, checkpoint.getPosition());
+                resume = true;
+            }
+            catch (IOException e)
+            {
+                log.warn("Cannot resume from " + partial, e);
+            }
+        }
+        log.warn(String.format(
+                "Pyramid creation for Pixels:%d was interrupted at %s, " +
+                "%s.", pixels.getId(), checkpoint,
+                resume ? "resuming" : "restarting"));
+        final File dir = pixelsPyramidFile.getParentFile();
+        final String prefix = "." + pixelsPyramidFile.getName();
+        final File writerFile = pixelsPyramid.getWriterFile();
+        File[] files = dir.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                if (file.getName().startsWith(prefix)
+                    && file.getName().endsWith(".tmp")
+                    && !file.equals(writerFile))
+                {
+                    log.info("Removing incomplete pyramid: " + file);
+                    file.delete();
+                }
+            }
+        }
+        checkpoint.delete();
+        return resume ? checkpoint : null;
+    }
+
+    /**
+     * Registers the tiles written to a chunked pyramid by an interrupted
+     * generation, in the order they were written, up to the first which is
+     * missing or cannot be decoded.
+     * @param pixelsPyramid The pyramid being resumed.
+     * @param source The source of the pyramid.
+     * @param tileSize The size of the tiles of the pyramid.
+     * @param count The number of tiles recorded by the checkpoint.
+     * @param channelMinMax The minimum and maximum of each channel to update
+     * or <code>null</code>.
+     * @return The number of tiles recovered.
+     */
+    private int recoverTiles(final ChunkedPyramidPixelBuffer pixelsPyramid,
+            PixelBuffer source, Dimension tileSize, final long count,
+            final double[][] channelMinMax)
+    {
+        final int[] recovered = new int[1];
+        final boolean[] failed = new boolean[1];
+        Utils.forEachTile(new TileLoopIteration() {
+            public void run(int z, int c, int t, int x, int y, int w,
+                        int h, int tileCount)
+        {
+            if (failed[0] || tileCount >= count)
+            {
+                return;
+            }
+            try
+            {
+                PixelData data = pixelsPyramid.recoverTile(
+                        z, c, t, x, y, w, h);
+                if (channelMinMax != null)
+                {
+                    updateMinMax(channelMinMax, c, getMinMax(data));
+                }
+                data.dispose();
+                recovered[0]++;
+            }
+            catch (Exception e)
+            {
+                log.warn("Cannot recover tile " + tileCount + ", resuming " +
+                         "from it.", e);
+                failed[0] = true;
+            }
+        }
+        }, source, (int) tileSize.getWidth(), (int) tileSize.getHeight());
+        return recovered[0];
+    }
+
+    /**
+     * Returns the progress of the generation of the pyramid of a pixels set,
+     * possibly running in another process.
+     * @param pixelsId The identifier of the pixels set.
+     * @return The percentage of the tiles written or <code>-1</code> if no
+     * pyramid is being generated.
+     */
+    public double getPyramidProgress(long pixelsId)
+    {
+        File pixelsPyramidFile = new File(
+                getPixelsPath(pixelsId) + PYRAMID_SUFFIX);
+        if (pixelsPyramidFile.exists())
+        {
+            return -1;
+        }
+        PyramidCheckpoint checkpoint = PyramidCheckpoint.load(
+                pixelsPyramidFile);
+        return checkpoint == null ? -1 : checkpoint.getPercentage();
+    }
+
+    /**
+     * Writes a tile read ahead to the pyramid, waiting for the read and
+     * encoding to complete.
+     */
+    private void writeTile(PendingTile tile, Pixels pixels,
+            File pixelsPyramidFile, PyramidPixelBuffer pixelsPyramid,
+            double totalTiles, int tenPercent, PyramidCheckpoint checkpoint,
+            int tilesPerPlane, double[][] channelMinMax)
+    {
+        if (log.isInfoEnabled()
+            && tile.tileCount % tenPercent == 0)
+        {
+            log.info(String.format(
+                    "Pyramid creation for Pixels:%d %d/%d (%d%%).",
+                    pixels.getId(), tile.tileCount + 1, (int) totalTiles,
+                    (int) (tile.tileCount / totalTiles * 100)));
+        }
+        try
+        {
+            Timer.Context ctx = tileTimes == null ? null : tileTimes.time();
+            try {
+                tile.await();
+                if (tile.encoded != null)
+                {
+                    ((ChunkedPyramidPixelBuffer) pixelsPyramid)
+                        .setEncodedTile(tile.encoded);
+                }
+                else
+                {
+                    pixelsPyramid.setTile(tile.data.getData().array(),
+                            tile.z, tile.c, tile.t, tile.x, tile.y,
+                            tile.w, tile.h);
+                    tile.data.dispose();
+                }
+                if (tile.minMax != null)
+                {
+                    updateMinMax(channelMinMax, tile.c, tile.minMax);
+                }
+                boolean lastOfPlane =
+                    tile.tileCount % tilesPerPlane == tilesPerPlane - 1;
+                checkpoint.completeTile();
+                if (lastOfPlane
+                    || checkpoint.getCompletedTiles() % checkpointTiles(
+                            totalTiles) == 0)
+                {
+                    if (tile.encoded != null)
+                    {
+                        // The tiles recorded must be on disk to be resumed.
+                        ChunkedPyramidPixelBuffer chunked =
+                            (ChunkedPyramidPixelBuffer) pixelsPyramid;
+                        checkpoint.setWriter(chunked.getWriterFile(),
+                                chunked.force());
+                    }
+                    checkpoint.save();
+                }
+            } finally {
+                if (ctx != null) {
+                    ctx.stop();
+                }
+            }
+        }
+        catch (IOException e1)
+        {
+            log.error("FAIL -- Error during tile population", e1);
+            try
+            {
+                if (pixelsPyramid instanceof ChunkedPyramidPixelBuffer)
+                {
+                    // Not to be moved over the empty pyramid on close.
+                    ((ChunkedPyramidPixelBuffer) pixelsPyramid).discard();
+                }
+                pixelsPyramidFile.delete();
+                FileUtils.touch(pixelsPyramidFile); // ticket:5189
+            }
+            catch (Exception e2)
+            {
+                log.warn("Error clearing empty or incomplete pixel " +
+                         "buffer.", e2);
+            }
+        }
+    }
+
+    /**
+     * Returns the minimum and maximum of the pixels of a tile, ignoring
+     * <code>NaN</code>s.
+     */
+    private static double[] getMinMax(PixelData tile)
+    {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double v;
+        for (int i = 0, n = tile.size(); i < n; i++)
+        {
+            v = tile.getPixelValue(i);
+            if (v < min)
+            {
+                min = v;
+            }
+            if (v > max)
+            {
+                max = v;
+            }
+        }
+        return new double[] { min, max };
+    }
+
+    /**
+     * Extends the minimum and maximum of a channel to those of a tile.
+     */
+    private static void updateMinMax(double[][] channelMinMax, int c,
+            double[] tileMinMax)
+    {
+        double[] minMax = channelMinMax[c];
+        if (minMax == null)
+        {
+            channelMinMax[c] = tileMinMax;
+        }
+        else
+        {
+            minMax[0] = Math.min(minMax[0], tileMinMax[0]);
+            minMax[1] = Math.max(minMax[1], tileMinMax[1]);
+        }
+    }
+
+    /**
+     * A tile of the source of a pyramid, read and possibly encoded on the
+     * {@link PixelsExecutor}.
+     */
+    private static class PendingTile
+    {
+        final int z, c, t, x, y, w, h, tileCount;
+
+        final Future<?> future;
+
+        /** The tile read, if not encoded. */
+        PixelData data;
+
+        /** The tile encoded, <code>null</code> if not encoded. */
+        ChunkedPyramidPixelBuffer.EncodedTile encoded;
+
+        /** The minimum and maximum of the tile, if requested. */
+        double[] minMax;
+
+        /**
+         * Submits the read of a tile.
+         * @param executor The threads to read the tile on.
+         * @param readers The readers to take one from for the read.
+         * @param encoder The pyramid to encode the tile for or
+         *            <code>null</code> to leave it to the writer.
+         * @param computeMinMax Whether to compute the minimum and maximum
+         *            of the tile.
+         */
+        PendingTile(PixelsExecutor executor,
+                final BlockingQueue<PixelBuffer> readers,
+                final ChunkedPyramidPixelBuffer encoder,
+                final boolean computeMinMax, final int z, final int c,
+                final int t, final int x, final int y, final int w,
+                final int h, int tileCount)
+        {
+            this.z = z;
+            this.c = c;
+            this.t = t;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.tileCount = tileCount;
+            future = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception
+                {
+                    PixelBuffer reader = readers.take();
+                    PixelData tile;
+                    try
+                    {
+                        tile = reader.getTile(z, c, t, x, y, w, h);
+                    }
+                    finally
+                    {
+                        readers.add(reader);
+                    }
+                    if (computeMinMax)
+                    {
+                        minMax = getMinMax(tile);
+                    }
+                    if (encoder != null)
+                    {
+                        encoded = encoder.encodeTile(tile.getData().array(),
+                                z, c, t, x, y, w, h);
+                        tile.dispose();
+                    }
+                    else
+                    {
+                        data = tile;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Waits for the tile to be read and encoded.
+         * @throws IOException If the tile could not be read.
+         */
+        void await() throws IOException
+        {
+            PixelsExecutor.get(future);
+        }
+
+        /**
+         * Cancels the read if not started, otherwise waits for it to
+         * complete so that its reader may be closed.
+         */
+        void cancel()
+        {
+            if (!future.cancel(false))
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException e)
+                {
+                    // Already reported or irrelevant once failed.
+                }
+            }
+            if (data != null)
+            {
+                data.dispose();
+            }
+        }
+    }
+
     /**
      * Returns a pixel buffer for a given set of pixels. Either a proprietary
      * ROMIO pixel buffer or a specific pixel buffer implementation.
@@ -488,12 +1052,18 @@ public class PixelsService extends AbstractFileSystemService
      * @param write Whether or not to open the pixel buffer as read-write.
      * <code>true</code> opens as read-write, <code>false</code> opens as
      * read-only.
-     * @return A pixel buffer instance.
+     * @return A pixel buffer instance, reading its tiles and planes through
+     * the tile cache if one is enabled.
      * @since OMERO-Beta4.3
      */
     public PixelBuffer getPixelBuffer(Pixels pixels, boolean write)
     {
         PixelBuffer pb = _getPixelBuffer(pixels, write);
+        if (tileCache != null && tileCache.isEnabled())
+        {
+            pb = new CachingPixelBuffer(pb, pixels.getId(),
+                    pixels.getPixelsType().getValue(), tileCache);
+        }
         if (log.isDebugEnabled()) {
             log.debug(pb +" for " + pixels);
         }
@@ -803,8 +1373,21 @@ public class PixelsService extends AbstractFileSystemService
                                               final int series) {
         try
         {
-            IFormatReader reader = createBfReader();
-            BfPixelBuffer pixelBuffer = new BfPixelBuffer(filePath, reader);
+            BfPixelBuffer pixelBuffer;
+            if (readerPool != null && readerPool.isEnabled()) {
+                IFormatReader reader = readerPool.lease(filePath, series);
+                if (reader != null) {
+                    log.debug(String.format(
+                            "Reusing pooled BfPixelBuffer reader: %s Series: %d",
+                            filePath, series));
+                } else {
+                    reader = createBfReader();
+                }
+                pixelBuffer = new PooledBfPixelBuffer(filePath, reader,
+                        readerPool);
+            } else {
+                pixelBuffer = new BfPixelBuffer(filePath, createBfReader());
+            }
             pixelBuffer.setSeries(series);
             log.info(String.format("Creating BfPixelBuffer: %s Series: %d",
                     filePath, series));
@@ -820,20 +1403,43 @@ public class PixelsService extends AbstractFileSystemService
 
     /**
      * Helper method to properly log any exceptions raised by Bio-Formats.
+     * An existing pyramid is read whatever its format, a new pyramid is
+     * written in the configured format.
      * @param pixels passed to {@link BfPixelBuffer}
      * @param filePath Non-null.
-     * @return the initialized {@link BfPyramidPixelBuffer}
+     * @return the initialized {@link PyramidPixelBuffer}
+     * @see #setPyramidFormat(String)
      */
-    protected BfPyramidPixelBuffer createPyramidPixelBuffer(final Pixels pixels,
+    protected PyramidPixelBuffer createPyramidPixelBuffer(final Pixels pixels,
             final String filePath, boolean write) {
 
         try
         {
+            final File pyramidFile = new File(filePath);
+            final boolean chunked;
+            if (pyramidFile.exists()) {
+                chunked = ChunkedPyramidPixelBuffer.isChunkedPyramid(
+                        pyramidFile);
+            } else {
+                // Bit pixels are not byte aligned, the TIFF writer packs them.
+                chunked = write
+                    && PYRAMID_FORMAT_CHUNKED.equals(pyramidFormat)
+                    && PixelData.getBitDepth(
+                            pixels.getPixelsType().getValue()) >= 8;
+            }
             if (write) {
                 // #5159. Creating the path if we need to write.
                 createSubpath(filePath);
             }
-            return new BfPyramidPixelBuffer(pixels, filePath, write);
+            if (chunked) {
+                return new ChunkedPyramidPixelBuffer(
+                        sizes, pixels, filePath, write);
+            }
+            BfPyramidPixelBuffer buffer =
+                    new BfPyramidPixelBuffer(pixels, filePath, write);
+            buffer.setReaders(pyramidReaders);
+            buffer.setExecutor(getPixelsExecutor());
+            return buffer;
         }
         catch (Exception e)
         {
@@ -872,6 +1478,9 @@ public class PixelsService extends AbstractFileSystemService
 
 		for (Iterator<Long> iter = pixelIds.iterator(); iter.hasNext();) {
 			Long id = iter.next();
+			if (tileCache != null) {
+				tileCache.invalidate(id);
+			}
 
 			String pixelPath = getPixelsPath(id);
 			file = new File(pixelPath);
@@ -0,0 +1,417 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+/**
+ * Process-wide cache of the decoded tiles and planes read through the
+ * {@link PixelBuffer}s returned by
+ * {@link PixelsService#getPixelBuffer(ome.model.core.Pixels, boolean)}, see
+ * {@link CachingPixelBuffer}. The data is held off-heap in direct buffers up
+ * to a number of bytes.
+ * <p>
+ * The eviction policy is a segmented LRU: an entry is first admitted to a
+ * probationary segment and only moved to the protected segment, which may
+ * hold up to 80% of the budget, when it is read again. A scan reading many
+ * tiles once, e.g. a pyramid or a histogram computation, therefore only
+ * evicts probationary entries and leaves the tiles which are read repeatedly
+ * in place. Entries larger than an eighth of the budget are not cached.
+ * </p>
+ *
+ * @since 5.4.0
+ */
+public class PixelsTileCache {
+
+    /** Read through {@link PixelBuffer#getTile}. */
+    public static final int TILE = 0;
+
+    /** Read through {@link PixelBuffer#getTileDirect}. */
+    public static final int TILE_DIRECT = 1;
+
+    /** Read through {@link PixelBuffer#getPlane}. */
+    public static final int PLANE = 2;
+
+    /** Read through {@link PixelBuffer#getPlaneDirect}. */
+    public static final int PLANE_DIRECT = 3;
+
+    /** The share of the budget the protected segment may use. */
+    private static final double PROTECTED_RATIO = 0.8;
+
+    /** The maximum number of bytes held. */
+    private final long maxBytes;
+
+    /** The maximum number of bytes held by the protected segment. */
+    private final long maxProtectedBytes;
+
+    /** The entries read once, least recently used first. */
+    private final LinkedHashMap<Key, Entry> probation =
+            new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /** The entries read more than once, least recently used first. */
+    private final LinkedHashMap<Key, Entry> protect =
+            new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /** The number of bytes held by the probationary segment. */
+    private long probationBytes;
+
+    /** The number of bytes held by the protected segment. */
+    private long protectedBytes;
+
+    /** Number of reads served from the cache. */
+    private Counter hits = new NullMetrics().counter(this, "hits");
+
+    /** Number of reads which had to go to the pixel buffer. */
+    private Counter misses = new NullMetrics().counter(this, "misses");
+
+    /** Number of entries evicted to stay within the budget. */
+    private Counter evictions = new NullMetrics().counter(this, "evictions");
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxBytes The maximum number of bytes held. <code>0</code>
+     *                 disables the cache.
+     */
+    public PixelsTileCache(long maxBytes) {
+        this.maxBytes = Math.max(maxBytes, 0);
+        maxProtectedBytes = (long) (this.maxBytes * PROTECTED_RATIO);
+    }
+
+    /**
+     * Sets the metrics to report the hits, misses and evictions to.
+     *
+     * @param metrics The value to set.
+     */
+    public void setMetrics(Metrics metrics) {
+        hits = metrics.counter(this, "hits");
+        misses = metrics.counter(this, "misses");
+        evictions = metrics.counter(this, "evictions");
+    }
+
+    /**
+     * Returns <code>true</code> if the cache holds data,
+     * <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns the number of bytes currently held.
+     *
+     * @return See above.
+     */
+    public synchronized long getSize() {
+        return probationBytes + protectedBytes;
+    }
+
+    /**
+     * Returns the cached entry for the specified key. An entry of the
+     * probationary segment is promoted to the protected segment.
+     *
+     * @param key The key of the entry.
+     * @return See above or <code>null</code> if the data is not cached.
+     */
+    public Entry get(Key key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = protect.get(key);
+            if (entry == null) {
+                entry = probation.remove(key);
+                if (entry != null) {
+                    probationBytes -= entry.size();
+                    protect.put(key, entry);
+                    protectedBytes += entry.size();
+                    demote();
+                }
+            }
+        }
+        if (entry == null) {
+            misses.inc();
+        } else {
+            hits.inc();
+        }
+        return entry;
+    }
+
+    /**
+     * Caches a copy of the specified data in the probationary segment.
+     *
+     * @param key The key of the entry.
+     * @param data The data to copy, from its position to its limit.
+     * @param order The byte order of the data.
+     */
+    public void put(Key key, ByteBuffer data, ByteOrder order) {
+        if (!isEnabled()) {
+            return;
+        }
+        ByteBuffer src = data.duplicate();
+        int size = src.remaining();
+        if (size == 0 || size > maxBytes / 8) {
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect(size);
+        copy.put(src);
+        copy.flip();
+        Entry entry = new Entry(copy, order);
+        synchronized (this) {
+            if (protect.containsKey(key)) {
+                return;
+            }
+            Entry previous = probation.put(key, entry);
+            if (previous != null) {
+                probationBytes -= previous.size();
+            }
+            probationBytes += size;
+            evict();
+        }
+    }
+
+    /**
+     * Removes all the entries of the specified pixels set.
+     *
+     * @param pixelsId The identifier of the pixels set.
+     */
+    public void invalidate(long pixelsId) {
+        invalidate(pixelsId, -1, -1, -1);
+    }
+
+    /**
+     * Removes the entries of the specified plane, at all the resolution
+     * levels. A negative <code>z</code> removes all the entries of the
+     * pixels set.
+     *
+     * @param pixelsId The identifier of the pixels set.
+     * @param z The section.
+     * @param c The channel.
+     * @param t The timepoint.
+     */
+    public synchronized void invalidate(long pixelsId, int z, int c, int t) {
+        if (!isEnabled()) {
+            return;
+        }
+        probationBytes -= invalidate(probation, pixelsId, z, c, t);
+        protectedBytes -= invalidate(protect, pixelsId, z, c, t);
+    }
+
+    /**
+     * Removes the matching entries from the passed segment.
+     *
+     * @return The number of bytes removed.
+     */
+    private static long invalidate(Map<Key, Entry> segment, long pixelsId,
+            int z, int c, int t) {
+        long removed = 0;
+        Iterator<Map.Entry<Key, Entry>> i = segment.entrySet().iterator();
+        Key key;
+        while (i.hasNext()) {
+            Map.Entry<Key, Entry> e = i.next();
+            key = e.getKey();
+            if (key.pixelsId == pixelsId
+                    && (z < 0 || (key.z == z && key.c == c && key.t == t))) {
+                removed += e.getValue().size();
+                i.remove();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Moves the least recently used protected entries back to the
+     * probationary segment until the protected segment fits its share of
+     * the budget. Must be called while holding the lock of the cache.
+     */
+    private void demote() {
+        Iterator<Map.Entry<Key, Entry>> i = protect.entrySet().iterator();
+        while (protectedBytes > maxProtectedBytes && i.hasNext()) {
+            Map.Entry<Key, Entry> e = i.next();
+            i.remove();
+            protectedBytes -= e.getValue().size();
+            probation.put(e.getKey(), e.getValue());
+            probationBytes += e.getValue().size();
+        }
+        evict();
+    }
+
+    /**
+     * Evicts the least recently used probationary entries, then the least
+     * recently used protected ones, until the cache fits its budget. Must be
+     * called while holding the lock of the cache.
+     */
+    private void evict() {
+        Iterator<Map.Entry<Key, Entry>> i = probation.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && i.hasNext()) {
+            probationBytes -= i.next().getValue().size();
+            i.remove();
+            evictions.inc();
+        }
+        i = protect.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && i.hasNext()) {
+            protectedBytes -= i.next().getValue().size();
+            i.remove();
+            evictions.inc();
+        }
+    }
+
+    /**
+     * Creates the key of a read.
+     *
+     * @param pixelsId The identifier of the pixels set.
+     * @param source The class of the pixel buffer the data is read from, as
+     *               the buffers of a pixels set may encode it differently.
+     * @param kind One of {@link #TILE}, {@link #TILE_DIRECT}, {@link #PLANE}
+     *             or {@link #PLANE_DIRECT}.
+     * @param resolutionLevel The resolution level or <code>-1</code> for the
+     *                        default level of the buffer.
+     * @param z The section.
+     * @param c The channel.
+     * @param t The timepoint.
+     * @param x The X coordinate of the tile.
+     * @param y The Y coordinate of the tile.
+     * @param w The width of the tile.
+     * @param h The height of the tile.
+     * @return See above.
+     */
+    public static Key createKey(long pixelsId, Class<?> source, int kind,
+            int resolutionLevel, int z, int c, int t, int x, int y, int w,
+            int h) {
+        return new Key(pixelsId, source, kind, resolutionLevel, z, c, t,
+                x, y, w, h);
+    }
+
+    /** The data of a read, held off-heap. */
+    public static final class Entry {
+
+        /** The data, never modified once cached. */
+        private final ByteBuffer data;
+
+        /** The byte order of the data. */
+        private final ByteOrder order;
+
+        private Entry(ByteBuffer data, ByteOrder order) {
+            this.data = data;
+            this.order = order;
+        }
+
+        /**
+         * Returns the number of bytes of the entry.
+         *
+         * @return See above.
+         */
+        public int size() {
+            return data.capacity();
+        }
+
+        /**
+         * Returns the byte order of the data.
+         *
+         * @return See above.
+         */
+        public ByteOrder getOrder() {
+            return order;
+        }
+
+        /**
+         * Copies the data into the passed array, allocating a new one if
+         * <code>null</code> or too small.
+         *
+         * @param buffer The array to copy into.
+         * @return The array the data was copied into.
+         */
+        public byte[] copyTo(byte[] buffer) {
+            if (buffer == null || buffer.length < data.capacity()) {
+                buffer = new byte[data.capacity()];
+            }
+            ByteBuffer src = data.duplicate();
+            src.clear();
+            src.get(buffer, 0, data.capacity());
+            return buffer;
+        }
+    }
+
+    /** The key of a cached read. */
+    public static final class Key {
+
+        private final long pixelsId;
+
+        private final Class<?> source;
+
+        private final int kind;
+
+        private final int resolutionLevel;
+
+        private final int z;
+
+        private final int c;
+
+        private final int t;
+
+        private final int x;
+
+        private final int y;
+
+        private final int w;
+
+        private final int h;
+
+        private Key(long pixelsId, Class<?> source, int kind,
+                int resolutionLevel, int z, int c, int t, int x, int y,
+                int w, int h) {
+            this.pixelsId = pixelsId;
+            this.source = source;
+            this.kind = kind;
+            this.resolutionLevel = resolutionLevel;
+            this.z = z;
+            this.c = c;
+            this.t = t;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return pixelsId == k.pixelsId && source == k.source
+                    && kind == k.kind && resolutionLevel == k.resolutionLevel
+                    && z == k.z && c == k.c && t == k.t && x == k.x
+                    && y == k.y && w == k.w && h == k.h;
+        }
+
+        @Override
+        public int hashCode() {
+            int r = (int) (pixelsId ^ (pixelsId >>> 32));
+            r = 31 * r + source.hashCode();
+            r = 31 * r + kind;
+            r = 31 * r + resolutionLevel;
+            r = 31 * r + z;
+            r = 31 * r + c;
+            r = 31 * r + t;
+            r = 31 * r + x;
+            r = 31 * r + y;
+            r = 31 * r + w;
+            return 31 * r + h;
+        }
+    }
+}
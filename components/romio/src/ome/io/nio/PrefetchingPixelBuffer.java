@@ -0,0 +1,912 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.util.PixelData;
+
+/**
+ * Pixel buffer of a client session which reads ahead the tiles the client
+ * is likely to request next, see {@link TilePrefetcher}.
+ * <p>
+ * The tiles read through {@link #getTile} and {@link #getTileDirect} are
+ * compared to the previous tile read for the same channel. When a tile is
+ * next to the previous one, across X, Y, Z or T, as while panning, focusing
+ * or playing a movie, the next tiles in that direction are read on the
+ * threads of the prefetcher and held until requested. A change of direction
+ * cancels the prefetches not yet started, and the tiles held are dropped
+ * once there are more than the maximum or they are older than the maximum
+ * age. The writes and the changes of resolution level drop all the tiles
+ * held. The tiles are read at the resolution level they are prefetched for.
+ * </p>
+ * <p>
+ * The renderers close the buffer after each plane and set the resolution
+ * level again before the next one, so neither drops the tiles held. A
+ * prefetch run while the buffer is closed closes it again once its tile is
+ * read.
+ * </p>
+ * <p>
+ * All the reads of the wrapped buffer, which need not be thread-safe, are
+ * serialized, so that a tile requested waits for at most one prefetch.
+ * </p>
+ *
+ * @since 5.4.0
+ */
+public class PrefetchingPixelBuffer implements PixelBuffer {
+
+    /** State of a prefetch waiting for a thread. */
+    private static final int PENDING = 0;
+
+    /** State of a prefetch reading or having read its tile. */
+    private static final int RUNNING = 1;
+
+    /** State of a prefetch dropped before it started. */
+    private static final int DROPPED = 2;
+
+    /** The wrapped buffer. */
+    private final PixelBuffer delegate;
+
+    /** The prefetcher running the prefetches. */
+    private final TilePrefetcher prefetcher;
+
+    /** Lock serializing the reads and writes of the wrapped buffer. */
+    private final Object lock = new Object();
+
+    /** The prefetches, oldest first. Guarded by <code>this</code>. */
+    private final LinkedHashMap<Key, Prefetch> prefetches =
+            new LinkedHashMap<Key, Prefetch>();
+
+    /** The last tile read of each channel. Guarded by <code>this</code>. */
+    private final Map<Integer, TileRequest> last =
+            new HashMap<Integer, TileRequest>();
+
+    /**
+     * The X, Y, Z and T steps between the last tiles read, <code>null</code>
+     * if none. Guarded by <code>this</code>.
+     */
+    private int[] direction;
+
+    /**
+     * Incremented when the tiles held are no longer valid. Written while
+     * holding <code>this</code>, read by the prefetches without it since
+     * the renderers hold the lock of the buffer while they read.
+     */
+    private volatile int generation;
+
+    /**
+     * The resolution level last set, <code>null</code> if none. Guarded by
+     * {@link #lock}.
+     */
+    private Integer resolutionLevel;
+
+    /**
+     * Whether the wrapped buffer was closed and not read from since. Guarded
+     * by {@link #lock}.
+     */
+    private boolean closed;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param delegate The buffer to wrap.
+     * @param prefetcher The prefetcher running the prefetches.
+     */
+    public PrefetchingPixelBuffer(PixelBuffer delegate,
+            TilePrefetcher prefetcher) {
+        this.delegate = delegate;
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * Returns the wrapped buffer.
+     *
+     * @return See above.
+     */
+    public PixelBuffer getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Returns the number of prefetches pending, running or held.
+     *
+     * @return See above.
+     */
+    public synchronized int getPrefetchCount() {
+        return prefetches.size();
+    }
+
+    public PixelData getTile(Integer z, Integer c, Integer t, Integer x,
+            Integer y, Integer w, Integer h) throws IOException {
+        Key key = new Key(false, new TileRequest(z, c, t, x, y, w, h),
+                open());
+        PixelData data = (PixelData) take(key);
+        if (data == null) {
+            synchronized (lock) {
+                data = delegate.getTile(z, c, t, x, y, w, h);
+            }
+        }
+        observe(key);
+        return data;
+    }
+
+    public byte[] getTileDirect(Integer z, Integer c, Integer t, Integer x,
+            Integer y, Integer w, Integer h, byte[] buffer)
+            throws IOException {
+        Key key = new Key(true, new TileRequest(z, c, t, x, y, w, h), open());
+        byte[] data = (byte[]) take(key);
+        if (data == null) {
+            synchronized (lock) {
+                data = delegate.getTileDirect(z, c, t, x, y, w, h, buffer);
+            }
+        } else if (buffer != null && buffer.length >= data.length) {
+            System.arraycopy(data, 0, buffer, 0, data.length);
+            data = buffer;
+        }
+        observe(key);
+        return data;
+    }
+
+    /**
+     * Records that the wrapped buffer is read from again.
+     *
+     * @return The resolution level the tile is read at.
+     */
+    private int open() {
+        synchronized (lock) {
+            closed = false;
+            return delegate.getResolutionLevel();
+        }
+    }
+
+    /**
+     * Returns the tile read by a prefetch and removes the prefetch, waiting
+     * for it if it is running. A prefetch not yet started is dropped.
+     *
+     * @return See above or <code>null</code> if the tile was not prefetched.
+     */
+    private Object take(Key key) throws IOException {
+        Prefetch prefetch;
+        synchronized (this) {
+            prefetch = prefetches.remove(key);
+        }
+        if (prefetch == null) {
+            prefetcher.miss();
+            return null;
+        }
+        if (prefetch.drop()) {
+            prefetcher.miss();
+            return null;
+        }
+        Object data;
+        try {
+            data = prefetch.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for a prefetched tile");
+        } catch (ExecutionException e) {
+            // Read the tile again to report the error to the caller.
+            data = null;
+        }
+        if (data == null) {
+            prefetcher.miss();
+        } else {
+            prefetcher.hit();
+        }
+        return data;
+    }
+
+    /**
+     * Records a tile read and prefetches the next tiles in the direction of
+     * access.
+     */
+    private void observe(Key key) {
+        TileRequest tile = key.tile;
+        int[] sizes = new int[] { delegate.getSizeX(), delegate.getSizeY(),
+                delegate.getSizeZ(), delegate.getSizeT() };
+        List<Prefetch> dropped = new ArrayList<Prefetch>();
+        List<Prefetch> queued = new ArrayList<Prefetch>();
+        synchronized (this) {
+            expire(dropped);
+            TileRequest previous = last.put(tile.getC(), tile);
+            int[] step = previous == null ? null : step(previous, tile);
+            if (step == null) {
+                if (previous != null) {
+                    // A jump: nothing to predict until the next step.
+                    dropPending(dropped);
+                    direction = null;
+                }
+            } else if (!isZero(step)) {
+                if (!Arrays.equals(step, direction)) {
+                    dropPending(dropped);
+                    direction = step;
+                }
+                queue(key, step, sizes, dropped, queued);
+            }
+        }
+        for (Prefetch prefetch : dropped) {
+            discard(prefetch);
+        }
+        for (Prefetch prefetch : queued) {
+            if (!prefetcher.execute(prefetch.task)) {
+                synchronized (this) {
+                    prefetches.remove(prefetch.key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the prefetches of the tiles following the passed one. Must be
+     * called while holding the lock of the buffer.
+     */
+    private void queue(Key from, int[] step, int[] sizes,
+            List<Prefetch> dropped, List<Prefetch> queued) {
+        int maxTiles = prefetcher.getMaxTiles();
+        for (int k = 1; k <= prefetcher.getDepth(); k++) {
+            TileRequest next = next(from.tile, step, k, sizes);
+            if (next == null) {
+                return;
+            }
+            Key key = new Key(from.direct, next, from.level);
+            if (prefetches.containsKey(key)) {
+                continue;
+            }
+            if (prefetches.size() >= maxTiles && !dropOldestRead(dropped)) {
+                return;
+            }
+            Prefetch prefetch = new Prefetch(key, generation);
+            prefetches.put(key, prefetch);
+            queued.add(prefetch);
+        }
+    }
+
+    /**
+     * Returns the step from a tile to the next or <code>null</code> if the
+     * tiles are not next to each other.
+     */
+    private static int[] step(TileRequest from, TileRequest to) {
+        int dx = to.getX() - from.getX();
+        int dy = to.getY() - from.getY();
+        int dz = to.getZ() - from.getZ();
+        int dt = to.getT() - from.getT();
+        if (Math.abs(dx) > Math.max(from.getWidth(), to.getWidth())
+                || Math.abs(dy) > Math.max(from.getHeight(), to.getHeight())
+                || Math.abs(dz) > 1 || Math.abs(dt) > 1) {
+            return null;
+        }
+        return new int[] { dx, dy, dz, dt };
+    }
+
+    private static boolean isZero(int[] step) {
+        return step[0] == 0 && step[1] == 0 && step[2] == 0 && step[3] == 0;
+    }
+
+    /**
+     * Returns the tile <code>k</code> steps from the passed one, clipped to
+     * the plane, or <code>null</code> if it lies outside of the pixels set.
+     */
+    private static TileRequest next(TileRequest tile, int[] step, int k,
+            int[] sizes) {
+        int x = tile.getX() + k * step[0];
+        int y = tile.getY() + k * step[1];
+        int z = tile.getZ() + k * step[2];
+        int t = tile.getT() + k * step[3];
+        if (x < 0 || x >= sizes[0] || y < 0 || y >= sizes[1]
+                || z < 0 || z >= sizes[2] || t < 0 || t >= sizes[3]) {
+            return null;
+        }
+        // Tiles at the edges of the plane are narrower than the others.
+        int w = Math.min(Math.max(tile.getWidth(), Math.abs(step[0])),
+                sizes[0] - x);
+        int h = Math.min(Math.max(tile.getHeight(), Math.abs(step[1])),
+                sizes[1] - y);
+        return new TileRequest(z, tile.getC(), t, x, y, w, h);
+    }
+
+    /**
+     * Removes the prefetches older than the maximum age. Must be called while
+     * holding the lock of the buffer.
+     */
+    private void expire(List<Prefetch> dropped) {
+        long oldest = System.currentTimeMillis() - prefetcher.getMaxAge();
+        Iterator<Prefetch> i = prefetches.values().iterator();
+        while (i.hasNext()) {
+            Prefetch prefetch = i.next();
+            if (prefetch.created >= oldest) {
+                return;
+            }
+            i.remove();
+            dropped.add(prefetch);
+        }
+    }
+
+    /**
+     * Removes the prefetches not yet started. Must be called while holding
+     * the lock of the buffer.
+     */
+    private void dropPending(List<Prefetch> dropped) {
+        Iterator<Prefetch> i = prefetches.values().iterator();
+        while (i.hasNext()) {
+            Prefetch prefetch = i.next();
+            if (prefetch.state.get() == PENDING) {
+                i.remove();
+                dropped.add(prefetch);
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest prefetch which has read its tile. Must be called
+     * while holding the lock of the buffer.
+     *
+     * @return <code>true</code> if a prefetch was removed.
+     */
+    private boolean dropOldestRead(List<Prefetch> dropped) {
+        Iterator<Prefetch> i = prefetches.values().iterator();
+        while (i.hasNext()) {
+            Prefetch prefetch = i.next();
+            if (prefetch.task.isDone()) {
+                i.remove();
+                dropped.add(prefetch);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops all the prefetches, their tiles may no longer be valid.
+     */
+    private void invalidate() {
+        List<Prefetch> dropped;
+        synchronized (this) {
+            generation++;
+            dropped = new ArrayList<Prefetch>(prefetches.values());
+            prefetches.clear();
+            last.clear();
+            direction = null;
+        }
+        for (Prefetch prefetch : dropped) {
+            discard(prefetch);
+        }
+    }
+
+    /**
+     * Accounts for a prefetch removed without its tile being requested.
+     */
+    private void discard(Prefetch prefetch) {
+        if (prefetch.drop()) {
+            prefetcher.cancelled();
+        } else {
+            prefetcher.wasted();
+        }
+    }
+
+    private boolean isCurrent(int generation) {
+        return this.generation == generation;
+    }
+
+    /** The key of a prefetch. */
+    private static final class Key {
+
+        /** Whether the tile is read through {@link #getTileDirect}. */
+        final boolean direct;
+
+        final TileRequest tile;
+
+        /** The resolution level the tile is read at. */
+        final int level;
+
+        Key(boolean direct, TileRequest tile, int level) {
+            this.direct = direct;
+            this.tile = tile;
+            this.level = level;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return direct == k.direct && level == k.level
+                    && tile.equals(k.tile);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * tile.hashCode() + level) + (direct ? 1 : 0);
+        }
+    }
+
+    /** The read of a tile ahead of its request. */
+    private final class Prefetch implements Callable<Object> {
+
+        final Key key;
+
+        /** The generation of the buffer the prefetch was queued in. */
+        final int generation;
+
+        /** Time in ms. at which the prefetch was queued. */
+        final long created = System.currentTimeMillis();
+
+        final AtomicInteger state = new AtomicInteger(PENDING);
+
+        final FutureTask<Object> task = new FutureTask<Object>(this);
+
+        Prefetch(Key key, int generation) {
+            this.key = key;
+            this.generation = generation;
+        }
+
+        /**
+         * Prevents the prefetch from starting.
+         *
+         * @return <code>true</code> if it had not started,
+         *         <code>false</code> otherwise.
+         */
+        boolean drop() {
+            if (state.compareAndSet(PENDING, DROPPED)) {
+                task.cancel(false);
+                return true;
+            }
+            return false;
+        }
+
+        public Object call() throws IOException {
+            if (!state.compareAndSet(PENDING, RUNNING)) {
+                return null;
+            }
+            synchronized (lock) {
+                if (!isCurrent(generation)) {
+                    return null;
+                }
+                if (!closed) {
+                    if (delegate.getResolutionLevel() != key.level) {
+                        return null;
+                    }
+                    return read();
+                }
+                // Closing resets the resolution level of the pyramids.
+                try {
+                    if (delegate.getResolutionLevel() != key.level) {
+                        delegate.setResolutionLevel(key.level);
+                    }
+                    return read();
+                } finally {
+                    delegate.close();
+                }
+            }
+        }
+
+        /**
+         * Reads the tile. Must be called while holding {@link #lock}.
+         */
+        private Object read() throws IOException {
+            TileRequest tile = key.tile;
+            if (key.direct) {
+                byte[] buffer = new byte[RomioPixelBuffer.safeLongToInteger(
+                        (long) tile.getWidth() * tile.getHeight()
+                        * delegate.getByteWidth())];
+                return delegate.getTileDirect(tile.getZ(), tile.getC(),
+                        tile.getT(), tile.getX(), tile.getY(),
+                        tile.getWidth(), tile.getHeight(), buffer);
+            }
+            return delegate.getTile(tile.getZ(), tile.getC(), tile.getT(),
+                    tile.getX(), tile.getY(), tile.getWidth(),
+                    tile.getHeight());
+        }
+    }
+
+    // Reads and writes, serialized with the prefetches.
+
+    public List<PixelData> getTiles(List<TileRequest> tiles)
+            throws IOException {
+        synchronized (lock) {
+            return delegate.getTiles(tiles);
+        }
+    }
+
+    public PixelData getPlane(Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getPlane(z, c, t);
+        }
+    }
+
+    public byte[] getPlaneDirect(Integer z, Integer c, Integer t,
+            byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getPlaneDirect(z, c, t, buffer);
+        }
+    }
+
+    public PixelData getHypercube(List<Integer> offset, List<Integer> size,
+            List<Integer> step)
+            throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getHypercube(offset, size, step);
+        }
+    }
+
+    public byte[] getHypercubeDirect(List<Integer> offset, List<Integer> size,
+            List<Integer> step, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getHypercubeDirect(offset, size, step, buffer);
+        }
+    }
+
+    public byte[] getPlaneRegionDirect(Integer z, Integer c, Integer t,
+            Integer count, Integer offset, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getPlaneRegionDirect(z, c, t, count, offset,
+                    buffer);
+        }
+    }
+
+    public PixelData getRegion(Integer size, Long offset) throws IOException {
+        synchronized (lock) {
+            return delegate.getRegion(size, offset);
+        }
+    }
+
+    public byte[] getRegionDirect(Integer size, Long offset, byte[] buffer)
+            throws IOException {
+        synchronized (lock) {
+            return delegate.getRegionDirect(size, offset, buffer);
+        }
+    }
+
+    public PixelData getRow(Integer y, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getRow(y, z, c, t);
+        }
+    }
+
+    public PixelData getCol(Integer x, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getCol(x, z, c, t);
+        }
+    }
+
+    public byte[] getRowDirect(Integer y, Integer z, Integer c, Integer t,
+            byte[] buffer) throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getRowDirect(y, z, c, t, buffer);
+        }
+    }
+
+    public byte[] getColDirect(Integer x, Integer z, Integer c, Integer t,
+            byte[] buffer) throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getColDirect(x, z, c, t, buffer);
+        }
+    }
+
+    public PixelData getPlaneRegion(Integer x, Integer y, Integer width,
+            Integer height, Integer z, Integer c, Integer t, Integer stride)
+            throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getPlaneRegion(x, y, width, height, z, c, t,
+                    stride);
+        }
+    }
+
+    public PixelData getStack(Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getStack(c, t);
+        }
+    }
+
+    public byte[] getStackDirect(Integer c, Integer t, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getStackDirect(c, t, buffer);
+        }
+    }
+
+    public PixelData getTimepoint(Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getTimepoint(t);
+        }
+    }
+
+    public byte[] getTimepointDirect(Integer t, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        synchronized (lock) {
+            return delegate.getTimepointDirect(t, buffer);
+        }
+    }
+
+    public byte[] calculateMessageDigest() throws IOException {
+        synchronized (lock) {
+            return delegate.calculateMessageDigest();
+        }
+    }
+
+    public void setTile(byte[] buffer, Integer z, Integer c, Integer t,
+            Integer x, Integer y, Integer w, Integer h)
+            throws IOException, BufferOverflowException {
+        synchronized (lock) {
+            try {
+                delegate.setTile(buffer, z, c, t, x, y, w, h);
+            } finally {
+                invalidate();
+            }
+        }
+    }
+
+    public void setRegion(Integer size, Long offset, byte[] buffer)
+            throws IOException, BufferOverflowException {
+        synchronized (lock) {
+            try {
+                delegate.setRegion(size, offset, buffer);
+            } finally {
+                invalidate();
+            }
+        }
+    }
+
+    public void setRegion(Integer size, Long offset, ByteBuffer buffer)
+            throws IOException, BufferOverflowException {
+        synchronized (lock) {
+            try {
+                delegate.setRegion(size, offset, buffer);
+            } finally {
+                invalidate();
+            }
+        }
+    }
+
+    public void setRow(ByteBuffer buffer, Integer y, Integer z, Integer c,
+            Integer t) throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        synchronized (lock) {
+            try {
+                delegate.setRow(buffer, y, z, c, t);
+            } finally {
+                invalidate();
+            }
+        }
+    }
+
+    public void setPlane(ByteBuffer buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        synchronized (lock) {
+            try {
+                delegate.setPlane(buffer, z, c, t);
+            } finally {
+                invalidate();
+            }
+        }
+    }
+
+    public void setPlane(byte[] buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        synchronized (lock) {
+            try {
+                delegate.setPlane(buffer, z, c, t);
+            } finally {
+                invalidate();
+            }
+        }
+    }
+
+    public void setStack(ByteBuffer buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        synchronized (lock) {
+            try {
+                delegate.setStack(buffer, z, c, t);
+            } finally {
+                invalidate();
+            }
+        }
+    }
+
+    public void setStack(byte[] buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        synchronized (lock) {
+            try {
+                delegate.setStack(buffer, z, c, t);
+            } finally {
+                invalidate();
+            }
+        }
+    }
+
+    public void setTimepoint(ByteBuffer buffer, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        synchronized (lock) {
+            try {
+                delegate.setTimepoint(buffer, t);
+            } finally {
+                invalidate();
+            }
+        }
+    }
+
+    public void setTimepoint(byte[] buffer, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        synchronized (lock) {
+            try {
+                delegate.setTimepoint(buffer, t);
+            } finally {
+                invalidate();
+            }
+        }
+    }
+
+    public void setResolutionLevel(int resolutionLevel) {
+        synchronized (lock) {
+            closed = false;
+            boolean changed = this.resolutionLevel == null
+                    || this.resolutionLevel != resolutionLevel;
+            try {
+                delegate.setResolutionLevel(resolutionLevel);
+                this.resolutionLevel = resolutionLevel;
+            } finally {
+                // Set again before each render of a pyramid.
+                if (changed) {
+                    invalidate();
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            delegate.close();
+        }
+    }
+
+    // Forwarded as is.
+
+    public void checkBounds(Integer x, Integer y, Integer z, Integer c,
+            Integer t) throws DimensionsOutOfBoundsException {
+        delegate.checkBounds(x, y, z, c, t);
+    }
+
+    public Long getPlaneSize() {
+        return delegate.getPlaneSize();
+    }
+
+    public Integer getRowSize() {
+        return delegate.getRowSize();
+    }
+
+    public Integer getColSize() {
+        return delegate.getColSize();
+    }
+
+    public Long getStackSize() {
+        return delegate.getStackSize();
+    }
+
+    public Long getTimepointSize() {
+        return delegate.getTimepointSize();
+    }
+
+    public Long getTotalSize() {
+        return delegate.getTotalSize();
+    }
+
+    public Long getHypercubeSize(List<Integer> offset, List<Integer> size,
+            List<Integer> step) throws DimensionsOutOfBoundsException {
+        return delegate.getHypercubeSize(offset, size, step);
+    }
+
+    public Long getRowOffset(Integer y, Integer z, Integer c, Integer t)
+            throws DimensionsOutOfBoundsException {
+        return delegate.getRowOffset(y, z, c, t);
+    }
+
+    public Long getPlaneOffset(Integer z, Integer c, Integer t)
+            throws DimensionsOutOfBoundsException {
+        return delegate.getPlaneOffset(z, c, t);
+    }
+
+    public Long getStackOffset(Integer c, Integer t)
+            throws DimensionsOutOfBoundsException {
+        return delegate.getStackOffset(c, t);
+    }
+
+    public Long getTimepointOffset(Integer t)
+            throws DimensionsOutOfBoundsException {
+        return delegate.getTimepointOffset(t);
+    }
+
+    public int getByteWidth() {
+        return delegate.getByteWidth();
+    }
+
+    public boolean isSigned() {
+        return delegate.isSigned();
+    }
+
+    public boolean isFloat() {
+        return delegate.isFloat();
+    }
+
+    public String getPath() {
+        return delegate.getPath();
+    }
+
+    public long getId() {
+        return delegate.getId();
+    }
+
+    public int getSizeX() {
+        return delegate.getSizeX();
+    }
+
+    public int getSizeY() {
+        return delegate.getSizeY();
+    }
+
+    public int getSizeZ() {
+        return delegate.getSizeZ();
+    }
+
+    public int getSizeC() {
+        return delegate.getSizeC();
+    }
+
+    public int getSizeT() {
+        return delegate.getSizeT();
+    }
+
+    public int getResolutionLevels() {
+        return delegate.getResolutionLevels();
+    }
+
+    public int getResolutionLevel() {
+        return delegate.getResolutionLevel();
+    }
+
+    public Dimension getTileSize() {
+        return delegate.getTileSize();
+    }
+
+    public List<List<Integer>> getResolutionDescriptions() {
+        return delegate.getResolutionDescriptions();
+    }
+
+    @Override
+    public String toString() {
+        return "PrefetchingPixelBuffer(" + delegate + ")";
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Progress of the generation of a pixels pyramid, saved next to the pyramid
+ * while it is written so that it can be queried from any process sharing
+ * the binary repository. A checkpoint left behind once its pyramid is
+ * complete or no longer written marks an interrupted generation. For the
+ * pyramids which can be appended to, the checkpoint also records the file
+ * written and how much of it holds the completed tiles, from which the
+ * generation is resumed.
+ *
+ * @since 5.4.0
+ */
+public class PyramidCheckpoint {
+
+    /** The logger for this class. */
+    private final static Logger log =
+        LoggerFactory.getLogger(PyramidCheckpoint.class);
+
+    /** Extension of the checkpoint files. */
+    public static final String PYR_PROGRESS_EXT = ".pyr_progress";
+
+    private static final String TOTAL_TILES = "tiles.total";
+
+    private static final String COMPLETED_TILES = "tiles.completed";
+
+    private static final String WRITER_FILE = "writer.file";
+
+    private static final String WRITER_POSITION = "writer.position";
+
+    private static final String STARTED = "started";
+
+    private static final String UPDATED = "updated";
+
+    /** The file the checkpoint is saved to. */
+    private final File file;
+
+    /** The number of tiles of the pyramid's full resolution level. */
+    private long totalTiles;
+
+    /** The number of tiles written. */
+    private long completedTiles;
+
+    /**
+     * The name of the file the pyramid is written to, <code>null</code> if
+     * the generation cannot be resumed.
+     */
+    private String writerFile;
+
+    /** The length of the writer file holding the completed tiles. */
+    private long position;
+
+    /** The time the generation started, in milliseconds. */
+    private long started;
+
+    /** The time the checkpoint was last saved, in milliseconds. */
+    private long updated;
+
+    /**
+     * Creates a new checkpoint for a generation starting now.
+     *
+     * @param pyramidFile The pyramid file being written.
+     * @param totalTiles The number of tiles of the full resolution level.
+     */
+    public PyramidCheckpoint(File pyramidFile, long totalTiles) {
+        this.file = getFile(pyramidFile);
+        this.totalTiles = totalTiles;
+        this.started = System.currentTimeMillis();
+    }
+
+    private PyramidCheckpoint(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the checkpoint file of the specified pyramid, a hidden file
+     * next to it as for the lock file.
+     *
+     * @param pyramidFile The pyramid file.
+     * @return See above.
+     */
+    public static File getFile(File pyramidFile) {
+        return new File(pyramidFile.getParentFile(),
+                "." + pyramidFile.getName() + PYR_PROGRESS_EXT);
+    }
+
+    /**
+     * Loads the checkpoint of the specified pyramid.
+     *
+     * @param pyramidFile The pyramid file.
+     * @return See above or <code>null</code> if there is no readable
+     * checkpoint.
+     */
+    public static PyramidCheckpoint load(File pyramidFile) {
+        File file = getFile(pyramidFile);
+        if (!file.exists()) {
+            return null;
+        }
+        Properties p = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            p.load(in);
+            PyramidCheckpoint checkpoint = new PyramidCheckpoint(file);
+            checkpoint.totalTiles = Long.parseLong(p.getProperty(TOTAL_TILES));
+            checkpoint.completedTiles =
+                Long.parseLong(p.getProperty(COMPLETED_TILES));
+            checkpoint.writerFile = p.getProperty(WRITER_FILE);
+            checkpoint.position =
+                Long.parseLong(p.getProperty(WRITER_POSITION, "0"));
+            checkpoint.started = Long.parseLong(p.getProperty(STARTED));
+            checkpoint.updated = Long.parseLong(p.getProperty(UPDATED));
+            return checkpoint;
+        } catch (IOException e) {
+            // Deleted or being replaced.
+            log.debug("Cannot read checkpoint " + file, e);
+            return null;
+        } catch (RuntimeException e) {
+            log.warn("Invalid checkpoint " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.debug("Error closing checkpoint " + file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the writing of a tile, in the order the tiles are iterated
+     * over by {@link Utils#forEachTile(TileLoopIteration, PixelBuffer, int, int)}.
+     */
+    public void completeTile() {
+        completedTiles++;
+    }
+
+    /**
+     * Records where the completed tiles were written, to resume from.
+     *
+     * @param writerFile The file the pyramid is written to, next to the
+     *            pyramid.
+     * @param position The length of the file holding the completed tiles,
+     *            already forced to the disk.
+     */
+    public void setWriter(File writerFile, long position) {
+        this.writerFile = writerFile.getName();
+        this.position = position;
+    }
+
+    /**
+     * Saves the checkpoint. The file is replaced atomically so that readers
+     * never see a partial checkpoint. Failures are logged only, as the
+     * checkpoint is informative.
+     */
+    public void save() {
+        updated = System.currentTimeMillis();
+        Properties p = new Properties();
+        p.setProperty(TOTAL_TILES, Long.toString(totalTiles));
+        p.setProperty(COMPLETED_TILES, Long.toString(completedTiles));
+        if (writerFile != null) {
+            p.setProperty(WRITER_FILE, writerFile);
+            p.setProperty(WRITER_POSITION, Long.toString(position));
+        }
+        p.setProperty(STARTED, Long.toString(started));
+        p.setProperty(UPDATED, Long.toString(updated));
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            p.store(out, "OMERO pixels pyramid progress");
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                // Not atomic on all platforms when the target exists.
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    log.warn("Cannot save checkpoint " + file);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Cannot save checkpoint " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    log.debug("Error closing checkpoint " + tmp, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the checkpoint file.
+     */
+    public void delete() {
+        if (file.exists() && !file.delete()) {
+            log.warn("Cannot delete checkpoint " + file);
+        }
+    }
+
+    /**
+     * Returns the percentage of the tiles written.
+     *
+     * @return See above.
+     */
+    public double getPercentage() {
+        if (totalTiles <= 0) {
+            return 0;
+        }
+        return Math.min(100.0, 100.0 * completedTiles / totalTiles);
+    }
+
+    /**
+     * Returns the number of tiles of the full resolution level.
+     *
+     * @return See above.
+     */
+    public long getTotalTiles() {
+        return totalTiles;
+    }
+
+    /**
+     * Returns the number of tiles written.
+     *
+     * @return See above.
+     */
+    public long getCompletedTiles() {
+        return completedTiles;
+    }
+
+    /**
+     * Returns the file the pyramid is written to.
+     *
+     * @return See above or <code>null</code> if the generation cannot be
+     * resumed.
+     */
+    public File getWriterFile() {
+        return writerFile == null ?
+                null : new File(file.getParentFile(), writerFile);
+    }
+
+    /**
+     * Returns the length of the writer file holding the completed tiles.
+     *
+     * @return See above.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the time the generation started, in milliseconds.
+     *
+     * @return See above.
+     */
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * Returns the time the checkpoint was last saved, in milliseconds.
+     *
+     * @return See above.
+     */
+    public long getUpdated() {
+        return updated;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d tiles (%.0f%%)", completedTiles,
+                totalTiles, getPercentage());
+    }
+}
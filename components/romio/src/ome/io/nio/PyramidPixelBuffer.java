@@ -0,0 +1,49 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.File;
+import java.nio.ByteOrder;
+
+/**
+ * {@link PixelBuffer} backed by a pixels pyramid, the
+ * <code>_pyramid</code> file next to the ROMIO pixels file. A pyramid
+ * pixel buffer is opened either for writing, the full resolution tiles
+ * being written through
+ * {@link #setTile(byte[], Integer, Integer, Integer, Integer, Integer, Integer, Integer)},
+ * or for reading. The first read closes the writer, which saves the
+ * pyramid, and disables any further writes.
+ *
+ * @since 5.4.0
+ * @see PixelsService#makePyramid(ome.model.core.Pixels)
+ */
+public interface PyramidPixelBuffer extends PixelBuffer {
+
+    /**
+     * Returns the byte order of the pixels in the pyramid.
+     * @return See above.
+     */
+    public ByteOrder getByteOrder();
+
+    /**
+     * Sets the byte order of the tiles written to the pyramid.
+     * @param byteOrder The pixel byte order to set.
+     */
+    public void setByteOrder(ByteOrder byteOrder);
+
+    /**
+     * Returns the temporary file the pyramid is written to until the writer
+     * is closed.
+     * @return See above or <code>null</code> if not in writing-mode.
+     */
+    public File getWriterFile();
+
+    /**
+     * Whether or not this instance is in writing-mode.
+     * @return See above.
+     */
+    public boolean isWrite();
+}
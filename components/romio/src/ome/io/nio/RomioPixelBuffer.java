@@ -21,6 +21,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import ome.conditions.ApiUsageException;
@@ -48,6 +49,12 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
     /** Default maximum buffer size for planar data transfer. (1MB) */
     public static final int MAXIMUM_BUFFER_SIZE = 1048576;
 
+    /**
+     * Maximum number of bytes between two tile rows for
+     * {@link #getTiles(List)} to read them at once, skipped bytes included.
+     */
+    private static final int MAXIMUM_READ_GAP = 4096;
+
     /** Reference to the pixels. */
     private Pixels pixels;
 
@@ -55,6 +62,9 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
 
     private FileChannel channel;
 
+    /** The mapped windows the reads are served from. */
+    private MappedWindows windows;
+
     /** The size of a row. */
     private Integer rowSize;
     
@@ -171,6 +181,59 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
         return channel;
     }
 
+    private MappedWindows getWindows() throws FileNotFoundException {
+        if (windows == null) {
+            windows = new MappedWindows(getFileChannel(),
+                    pixels.getPixelsType().getValue());
+        }
+
+        return windows;
+    }
+
+    /**
+     * Copies rows of the pixels file into a buffer, from its position.
+     * @param offset The offset of the first row in the file.
+     * @param length The number of bytes of each row.
+     * @param stride The number of bytes from a row to the next in the file.
+     * @param rows The number of rows.
+     * @param dst The buffer to copy to.
+     * @throws IOException If the file cannot be read.
+     */
+    private void readRows(long offset, int length, long stride, int rows,
+            ByteBuffer dst) throws IOException {
+        if (getWindows().copy(offset, length, stride, rows, dst)) {
+            return;
+        }
+        // Larger than a window or past the end of the file.
+        int span = safeLongToInteger(stride * (rows - 1) + length);
+        MappedByteBuffer b =
+            getFileChannel().map(MapMode.READ_ONLY, offset, span);
+        PixelData region = new PixelData(pixels.getPixelsType().getValue(), b);
+        try {
+            for (int i = 0; i < rows; i++) {
+                ByteBuffer row = b.duplicate();
+                row.limit((int) (stride * i) + length);
+                row.position((int) (stride * i));
+                dst.put(row);
+            }
+        } finally {
+            region.dispose();
+        }
+    }
+
+    /**
+     * Returns a buffer ready to be read into, allocating a direct buffer
+     * if <code>buffer</code> is <code>null</code> or too small.
+     */
+    private static ByteBuffer prepare(ByteBuffer buffer, int size) {
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
     /**
      * Closes the buffer, cleaning up file state.
      * 
@@ -178,6 +241,11 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
      *             if an I/O error occurs.
      */
     public void close() throws IOException {
+        if (windows != null) {
+            windows.close();
+            windows = null;
+        }
+
         if (channel != null) {
             try {
                 channel.close();
@@ -335,6 +403,12 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
 	 */
     public PixelData getRegion(Integer size, Long offset)
             throws IOException {
+        ByteBuffer region = getWindows().read(offset, size);
+        if (region != null) {
+            return new PixelData(pixels.getPixelsType().getValue(), region);
+        }
+
+        // Larger than a window or past the end of the file.
         FileChannel fileChannel = getFileChannel();
 
         /*
@@ -569,6 +643,33 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
 		return buffer;
     }
 
+    /**
+     * Reads a plane into a buffer which may be reused across calls, copying
+     * the data once from the mapped file. Unlike
+     * {@link #getPlane(Integer, Integer, Integer)}, a plane not written yet
+     * is read as is.
+     * @param z offset across the Z-axis of the pixel buffer.
+     * @param c offset across the C-axis of the pixel buffer.
+     * @param t offset across the T-axis of the pixel buffer.
+     * @param buffer The buffer to read into or <code>null</code>. A direct
+     * buffer is allocated if <code>null</code> or smaller than a plane.
+     * @return The buffer read into, flipped so that its position is at the
+     * start of the plane.
+     * @throws IOException if there is a problem reading from the pixel buffer.
+     * @throws DimensionsOutOfBoundsException if the offsets are out of bounds.
+     */
+    public ByteBuffer getPlaneDirect(Integer z, Integer c, Integer t,
+            ByteBuffer buffer)
+            throws IOException, DimensionsOutOfBoundsException
+    {
+        final Long offset = getPlaneOffset(z, c, t);
+        final int size = safeLongToInteger(getPlaneSize());
+        buffer = prepare(buffer, size);
+        readRows(offset, size, size, 1, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
     /**
      * Implemented as specified by {@link PixelBuffer} I/F.
      * @see PixelBuffer#getStack(Integer, Integer)
@@ -885,10 +986,128 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
     public byte[] getTileDirect(Integer z, Integer c, Integer t, Integer x,
             Integer y, Integer w, Integer h, byte[] buffer) throws IOException
     {
-        List<Integer> offset = Arrays.asList(new Integer[]{x,y,z,c,t});
-        List<Integer> size = Arrays.asList(new Integer[]{w,h,1,1,1});
-        List<Integer> step = Arrays.asList(new Integer[]{1,1,1,1,1});
-        return getHypercubeDirect(offset, size, step, buffer);
+        if (buffer.length != (long) w * h * getByteWidth())
+            throw new RuntimeException("Buffer size incorrect.");
+        getTileDirect(z, c, t, x, y, w, h, ByteBuffer.wrap(buffer));
+        return buffer;
+    }
+
+    /**
+     * Reads a tile into a buffer which may be reused across calls, copying
+     * the data once from the mapped file.
+     * @param z offset across the Z-axis of the pixel buffer.
+     * @param c offset across the C-axis of the pixel buffer.
+     * @param t offset across the T-axis of the pixel buffer.
+     * @param x Top left corner of the tile, X offset.
+     * @param y Top left corner of the tile, Y offset.
+     * @param w Width of the tile.
+     * @param h Height of the tile.
+     * @param buffer The buffer to read into or <code>null</code>. A direct
+     * buffer is allocated if <code>null</code> or smaller than the tile.
+     * @return The buffer read into, flipped so that its position is at the
+     * start of the tile.
+     * @throws IOException if there is a problem reading from the pixel buffer.
+     */
+    public ByteBuffer getTileDirect(Integer z, Integer c, Integer t,
+            Integer x, Integer y, Integer w, Integer h, ByteBuffer buffer)
+            throws IOException
+    {
+        checkBounds(x, y, z, c, t);
+        checkBounds(x + w - 1, y + h - 1, null, null, null);
+        final int pixelSize = getByteWidth();
+        final long offset = getRowOffset(y, z, c, t) + (long) x * pixelSize;
+        buffer = prepare(buffer, safeLongToInteger((long) w * h * pixelSize));
+        readRows(offset, w * pixelSize, getRowSize(), h, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F. The rows of all
+     * the tiles are sorted by their offset in the pixels file and the rows
+     * stored next to each other, e.g. those of neighbouring tiles or of
+     * consecutive lines, are read at once, up to
+     * {@link #MAXIMUM_BUFFER_SIZE} bytes per read.
+     * @see PixelBuffer#getTiles(List)
+     */
+    public List<PixelData> getTiles(List<TileRequest> tiles)
+            throws IOException
+    {
+        final String pixelsType = pixels.getPixelsType().getValue();
+        final int pixelSize = getByteWidth();
+        final int rowSize = getRowSize();
+        final List<PixelData> rv = new ArrayList<PixelData>(tiles.size());
+        final List<TileRow> rows = new ArrayList<TileRow>();
+        for (TileRequest tile : tiles)
+        {
+            final int w = tile.getWidth();
+            final int h = tile.getHeight();
+            checkBounds(tile.getX(), tile.getY(),
+                    tile.getZ(), tile.getC(), tile.getT());
+            checkBounds(tile.getX() + w - 1, tile.getY() + h - 1,
+                    null, null, null);
+            final byte[] buffer = new byte[w * h * pixelSize];
+            rv.add(new PixelData(pixelsType, ByteBuffer.wrap(buffer)));
+            final long offset = getRowOffset(tile.getY(),
+                    tile.getZ(), tile.getC(), tile.getT())
+                    + (long) tile.getX() * pixelSize;
+            final int length = w * pixelSize;
+            for (int i = 0; i < h; i++)
+            {
+                rows.add(new TileRow(
+                        offset + (long) i * rowSize, buffer, i * length, length));
+            }
+        }
+        Collections.sort(rows);
+
+        final FileChannel fileChannel = getFileChannel();
+        ByteBuffer read = null;
+        int start = 0;
+        while (start < rows.size())
+        {
+            // Extend the read while the next row starts close enough.
+            final long first = rows.get(start).offset;
+            long last = first + rows.get(start).length;
+            int end = start + 1;
+            for (; end < rows.size(); end++)
+            {
+                final TileRow next = rows.get(end);
+                final long nextLast =
+                        Math.max(last, next.offset + next.length);
+                if (next.offset > last + MAXIMUM_READ_GAP
+                        || nextLast - first > MAXIMUM_BUFFER_SIZE)
+                {
+                    break;
+                }
+                last = nextLast;
+            }
+            final int size = (int) (last - first);
+            if (read == null || read.capacity() < size)
+            {
+                read = ByteBuffer.allocate(size);
+            }
+            read.clear();
+            read.limit(size);
+            while (read.hasRemaining())
+            {
+                if (fileChannel.read(read, first + read.position()) < 0)
+                {
+                    // Past the end of a file not fully written, as for
+                    // getRegion() the missing data reads as zeroes.
+                    Arrays.fill(read.array(), read.position(), size, (byte) 0);
+                    break;
+                }
+            }
+            final byte[] array = read.array();
+            for (int i = start; i < end; i++)
+            {
+                final TileRow row = rows.get(i);
+                System.arraycopy(array, (int) (row.offset - first),
+                        row.buffer, row.bufferOffset, row.length);
+            }
+            start = end;
+        }
+        return rv;
     }
 
     /* (non-Javadoc)
@@ -1029,6 +1248,37 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
         return cube;
     }
     
+    /**
+     * A row of a tile read by {@link RomioPixelBuffer#getTiles(List)}.
+     */
+    private static final class TileRow implements Comparable<TileRow>
+    {
+        /** Offset of the row in the pixels file. */
+        final long offset;
+
+        /** The buffer of the tile. */
+        final byte[] buffer;
+
+        /** Offset of the row in the buffer of the tile. */
+        final int bufferOffset;
+
+        /** Number of bytes of the row. */
+        final int length;
+
+        TileRow(long offset, byte[] buffer, int bufferOffset, int length)
+        {
+            this.offset = offset;
+            this.buffer = buffer;
+            this.bufferOffset = bufferOffset;
+            this.length = length;
+        }
+
+        public int compareTo(TileRow o)
+        {
+            return offset < o.offset? -1 : (offset == o.offset? 0 : 1);
+        }
+    }
+
     private void checkCubeBounds(List<Integer> offset, List<Integer> size, List<Integer> step)
             throws DimensionsOutOfBoundsException {
         // At the moment the array must contain 5 values
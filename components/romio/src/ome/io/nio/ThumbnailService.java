@@ -6,11 +6,18 @@
  */
 package ome.io.nio;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,6 +27,11 @@ import ome.model.display.Thumbnail;
 import ome.util.Utils;
 
 /**
+ * Stores the thumbnails either each in its own file under
+ * <code>Thumbnails/</code> or, if enabled, in a {@link PackedThumbnailStore}
+ * under <code>Thumbnails/Packed/</code>. With the packed store, the
+ * thumbnails still in their own file are moved to the store when read.
+ *
  * @author callan
  * 
  */
@@ -29,12 +41,38 @@ public class ThumbnailService extends AbstractFileSystemService {
     private transient static Logger log = LoggerFactory
             .getLogger(ThumbnailService.class);
 
+    /** The packed store or <code>null</code> if disabled. */
+    private final PackedThumbnailStore store;
+
     /**
      * Constructor
      * @param path
      */
     public ThumbnailService(String path) {
         super(path);
+        store = null;
+    }
+
+    /**
+     * Constructor
+     * @param path The root of the binary repository.
+     * @param packed Whether or not to keep the thumbnails in a
+     *               {@link PackedThumbnailStore}.
+     * @param segmentSize The size of the segments of the packed store.
+     * @param compactionRatio The ratio of unused space beyond which a
+     *                        segment of the packed store is compacted.
+     * @throws IOException If the packed store cannot be opened.
+     */
+    public ThumbnailService(String path, boolean packed, long segmentSize,
+            double compactionRatio) throws IOException {
+        super(path);
+        if (packed) {
+            store = new PackedThumbnailStore(new File(new File(path,
+                    THUMBNAILS_PATH), PackedThumbnailStore.PACKED_PATH),
+                    segmentSize, compactionRatio);
+        } else {
+            store = null;
+        }
     }
 
     /**
@@ -46,6 +84,10 @@ public class ThumbnailService extends AbstractFileSystemService {
      */
     public void createThumbnail(Thumbnail thumbnail, byte[] buf)
             throws IOException {
+        if (store != null) {
+            putPacked(thumbnail.getId(), buf);
+            return;
+        }
         String path = getThumbnailPath(thumbnail.getId());
         createSubpath(path);
 
@@ -60,7 +102,23 @@ public class ThumbnailService extends AbstractFileSystemService {
      * @param thumbnail
      */
     public long getThumbnailLength(Thumbnail thumbnail) {
-        File f = new File(getThumbnailPath(thumbnail.getId()));
+        return getThumbnailLength(thumbnail.getId());
+    }
+
+    /**
+     * Returns length of Thumbnail on disk
+     *
+     * @param id The thumbnail id.
+     * @return See above or <code>0</code> if there is no thumbnail.
+     */
+    public long getThumbnailLength(long id) {
+        if (store != null) {
+            int length = store.length(id);
+            if (length >= 0) {
+                return length;
+            }
+        }
+        File f = new File(getThumbnailPath(id));
         return f.length();
     }
 
@@ -72,6 +130,9 @@ public class ThumbnailService extends AbstractFileSystemService {
      * @throws IOException
      */
     public byte[] getThumbnail(Thumbnail thumbnail) throws IOException {
+        if (store != null) {
+            return getPacked(thumbnail.getId());
+        }
         byte[] buf = new byte[(int) getThumbnailLength(thumbnail)];
         return getThumbnail(thumbnail, buf);
     }
@@ -86,6 +147,12 @@ public class ThumbnailService extends AbstractFileSystemService {
      */
     public byte[] getThumbnail(Thumbnail thumbnail, byte[] buf)
             throws IOException {
+        if (store != null) {
+            byte[] data = getPacked(thumbnail.getId());
+            System.arraycopy(data, 0, buf, 0,
+                    Math.min(data.length, buf.length));
+            return buf;
+        }
         String path = getThumbnailPath(thumbnail.getId());
         FileInputStream stream = new FileInputStream(path);
         try {
@@ -97,14 +164,56 @@ public class ThumbnailService extends AbstractFileSystemService {
     }
 
     /**
-     * Return FileOutputStream of Thumbnail
+     * Returns the thumbnails of the given metadata which exist, reading the
+     * thumbnails of the packed store at once.
+     *
+     * @param thumbnails The thumbnail metadata.
+     * @return The thumbnails by id.
+     * @throws IOException
+     */
+    public Map<Long, byte[]> getThumbnails(Collection<Thumbnail> thumbnails)
+            throws IOException {
+        List<Long> ids = new ArrayList<Long>(thumbnails.size());
+        for (Thumbnail thumbnail : thumbnails) {
+            ids.add(thumbnail.getId());
+        }
+        Map<Long, byte[]> found = store == null
+                ? new HashMap<Long, byte[]>() : store.get(ids);
+        for (Long id : ids) {
+            if (!found.containsKey(id)) {
+                byte[] data = readLoose(id);
+                if (data != null) {
+                    found.put(id, data);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Return OutputStream of Thumbnail. With the packed store the thumbnail
+     * is stored when the stream is closed.
      * 
      * @param thumbnail
-     * @return a {@link FileOutputStream}
+     * @return an {@link OutputStream}
      * @throws IOException
      */
-    public FileOutputStream getThumbnailOutputStream(Thumbnail thumbnail)
+    public OutputStream getThumbnailOutputStream(Thumbnail thumbnail)
             throws IOException {
+        if (store != null) {
+            final long id = thumbnail.getId();
+            return new ByteArrayOutputStream() {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (!closed) {
+                        closed = true;
+                        putPacked(id, toByteArray());
+                    }
+                }
+            };
+        }
         String path = getThumbnailPath(thumbnail.getId());
         createSubpath(path);
         return new FileOutputStream(path);
@@ -118,6 +227,9 @@ public class ThumbnailService extends AbstractFileSystemService {
      */
     public boolean getThumbnailExists(Thumbnail thumbnail)
             throws IOException {
+        if (store != null && store.contains(thumbnail.getId())) {
+            return true;
+        }
         String path = getThumbnailPath(thumbnail.getId());
         return new File(path).exists();
     }
@@ -134,6 +246,8 @@ public class ThumbnailService extends AbstractFileSystemService {
         File file;
         boolean success = false;
 
+        removePackedThumbnails(thumbnailIds);
+
         for (Long id : thumbnailIds)
         {
             String thumbnailPath = getThumbnailPath(id);
@@ -157,4 +271,114 @@ public class ThumbnailService extends AbstractFileSystemService {
             }
         }
     }
+
+    /**
+     * Removes thumbnails from the packed store, leaving a tombstone for
+     * each. Does nothing if the packed store is disabled.
+     *
+     * @param thumbnailIds The thumbnail ids.
+     * @throws ResourceError If the removal fails.
+     */
+    public void removePackedThumbnails(Collection<Long> thumbnailIds) {
+        if (store == null) {
+            return;
+        }
+        try {
+            int count = store.remove(thumbnailIds);
+            if (log.isInfoEnabled() && count > 0) {
+                log.info("INFO: " + count + " packed thumbnails deleted.");
+            }
+        } catch (IOException e) {
+            log.error("Packed thumbnails deletion failed", e);
+            throw new ResourceError("Packed thumbnails deletion failed: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Compacts the packed store, if enabled. Called periodically.
+     *
+     * @see PackedThumbnailStore#compact()
+     */
+    public void compactPackedStore() {
+        if (store == null) {
+            return;
+        }
+        try {
+            store.compact();
+        } catch (IOException e) {
+            log.error("Thumbnail store compaction failed", e);
+        }
+    }
+
+    /**
+     * Closes the packed store, if enabled.
+     *
+     * @throws IOException If the packed store cannot be flushed.
+     */
+    public void close() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * Reads a thumbnail from the packed store, first moving it there if it
+     * is still in its own file.
+     */
+    private byte[] getPacked(long id) throws IOException {
+        byte[] data = store.get(id);
+        if (data == null) {
+            data = readLoose(id);
+            if (data == null) {
+                throw new FileNotFoundException(getThumbnailPath(id));
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Adds a thumbnail to the packed store and deletes any file of the same
+     * thumbnail.
+     */
+    private void putPacked(long id, byte[] data) throws IOException {
+        store.put(id, data);
+        File file = new File(getThumbnailPath(id));
+        if (file.exists() && !file.delete()) {
+            log.warn("Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Reads a thumbnail from its own file, moving it to the packed store if
+     * enabled.
+     * @return See above or <code>null</code> if there is no such file.
+     */
+    private byte[] readLoose(long id) throws IOException {
+        File file = new File(getThumbnailPath(id));
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = stream.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        } finally {
+            Utils.closeQuietly(stream);
+        }
+        if (store != null) {
+            putPacked(id, data);
+            if (log.isDebugEnabled()) {
+                log.debug("Moved thumbnail " + id + " to the packed store");
+            }
+        }
+        return data;
+    }
 }
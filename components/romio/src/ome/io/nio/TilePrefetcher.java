@@ -0,0 +1,213 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of low priority threads shared by all the
+ * {@link PrefetchingPixelBuffer}s of a server, which read the tiles a viewer
+ * is likely to request next. The queue of the pool is bounded and the
+ * prefetches which do not fit are dropped, so that prefetching never delays
+ * the reads requested by the clients.
+ * <p>
+ * The outcome of the prefetches is published through {@link Metrics} as the
+ * <code>issued</code>, <code>hits</code>, <code>misses</code>,
+ * <code>wasted</code>, <code>cancelled</code> and <code>rejected</code>
+ * counters: a prefetch is wasted when its tile was read but never requested.
+ * </p>
+ *
+ * @since 5.4.0
+ */
+public class TilePrefetcher {
+
+    /** The logger for this particular class */
+    private static Logger log = LoggerFactory.getLogger(TilePrefetcher.class);
+
+    /** The worker threads, <code>null</code> if prefetching is disabled. */
+    private final ThreadPoolExecutor pool;
+
+    /** The number of tiles read ahead along the direction of access. */
+    private final int depth;
+
+    /** The maximum number of tiles prefetched and held by a pixel buffer. */
+    private final int maxTiles;
+
+    /** Time in ms. after which an unused prefetched tile is dropped. */
+    private final long maxAge;
+
+    /** Number of prefetches submitted. */
+    private Counter issued = new NullMetrics().counter(this, "issued");
+
+    /** Number of tile reads served by a prefetch. */
+    private Counter hits = new NullMetrics().counter(this, "hits");
+
+    /** Number of tile reads which were not prefetched. */
+    private Counter misses = new NullMetrics().counter(this, "misses");
+
+    /** Number of tiles prefetched but never requested. */
+    private Counter wasted = new NullMetrics().counter(this, "wasted");
+
+    /** Number of prefetches cancelled before they started. */
+    private Counter cancelled = new NullMetrics().counter(this, "cancelled");
+
+    /** Number of prefetches dropped as the queue was full. */
+    private Counter rejected = new NullMetrics().counter(this, "rejected");
+
+    /**
+     * Creates a new instance.
+     *
+     * @param threads The number of worker threads, <code>0</code> disables
+     *            prefetching.
+     * @param queueSize The maximum number of prefetches waiting for a
+     *            worker.
+     * @param depth The number of tiles read ahead along the direction of
+     *            access.
+     * @param maxTiles The maximum number of tiles prefetched and held by a
+     *            pixel buffer.
+     * @param maxAge Time in ms. after which an unused prefetched tile is
+     *            dropped.
+     */
+    public TilePrefetcher(int threads, int queueSize, int depth, int maxTiles,
+            long maxAge) {
+        this.depth = Math.max(depth, 1);
+        this.maxTiles = Math.max(maxTiles, 1);
+        this.maxAge = maxAge;
+        if (threads > 0) {
+            pool = new ThreadPoolExecutor(threads, threads, 60L,
+                    TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)),
+                    new PrefetchThreadFactory());
+            pool.allowCoreThreadTimeOut(true);
+            log.info("Tile prefetcher started with " + threads + " threads.");
+        } else {
+            pool = null;
+        }
+    }
+
+    /**
+     * Sets the metrics to report the outcome of the prefetches to.
+     *
+     * @param metrics The value to set.
+     */
+    public void setMetrics(Metrics metrics) {
+        issued = metrics.counter(this, "issued");
+        hits = metrics.counter(this, "hits");
+        misses = metrics.counter(this, "misses");
+        wasted = metrics.counter(this, "wasted");
+        cancelled = metrics.counter(this, "cancelled");
+        rejected = metrics.counter(this, "rejected");
+    }
+
+    /**
+     * Returns <code>true</code> if tiles are prefetched,
+     * <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return pool != null;
+    }
+
+    /**
+     * Wraps a pixel buffer opened for a client session so that the tiles
+     * it is likely to be asked for next are prefetched.
+     *
+     * @param buffer The buffer to wrap.
+     * @return The wrapped buffer or <code>buffer</code> if prefetching is
+     *         disabled.
+     */
+    public PixelBuffer wrap(PixelBuffer buffer) {
+        if (!isEnabled() || buffer == null
+                || buffer instanceof PrefetchingPixelBuffer) {
+            return buffer;
+        }
+        return new PrefetchingPixelBuffer(buffer, this);
+    }
+
+    /**
+     * Stops the worker threads, the prefetches queued are dropped. The
+     * running prefetches are not interrupted since an interrupt closes the
+     * file channel they read from.
+     */
+    public void destroy() {
+        if (pool != null) {
+            pool.shutdown();
+            pool.getQueue().clear();
+        }
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    int getMaxTiles() {
+        return maxTiles;
+    }
+
+    long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Queues a prefetch.
+     *
+     * @return <code>true</code> if the prefetch was queued,
+     *         <code>false</code> if it was dropped.
+     */
+    boolean execute(Runnable task) {
+        try {
+            pool.execute(task);
+            issued.inc();
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.inc();
+            return false;
+        }
+    }
+
+    void hit() {
+        hits.inc();
+    }
+
+    void miss() {
+        misses.inc();
+    }
+
+    void wasted() {
+        wasted.inc();
+    }
+
+    void cancelled() {
+        cancelled.inc();
+    }
+
+    /** Creates low priority daemon threads. */
+    private static class PrefetchThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread =
+                    new Thread(r, "tile-prefetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
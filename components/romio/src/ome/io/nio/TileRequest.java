@@ -0,0 +1,105 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+/**
+ * A tile to read through {@link PixelBuffer#getTiles(java.util.List)}.
+ *
+ * @since 5.4.0
+ */
+public class TileRequest {
+
+    private final int z;
+
+    private final int c;
+
+    private final int t;
+
+    private final int x;
+
+    private final int y;
+
+    private final int width;
+
+    private final int height;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param z offset across the Z-axis of the pixel buffer.
+     * @param c offset across the C-axis of the pixel buffer.
+     * @param t offset across the T-axis of the pixel buffer.
+     * @param x Top left corner of the tile, X offset.
+     * @param y Top left corner of the tile, Y offset.
+     * @param width Width of the tile.
+     * @param height Height of the tile.
+     */
+    public TileRequest(int z, int c, int t, int x, int y, int width,
+            int height) {
+        this.z = z;
+        this.c = c;
+        this.t = t;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    public int getC() {
+        return c;
+    }
+
+    public int getT() {
+        return t;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TileRequest)) {
+            return false;
+        }
+        TileRequest r = (TileRequest) o;
+        return z == r.z && c == r.c && t == r.t && x == r.x && y == r.y
+                && width == r.width && height == r.height;
+    }
+
+    @Override
+    public int hashCode() {
+        int r = z;
+        r = 31 * r + c;
+        r = 31 * r + t;
+        r = 31 * r + x;
+        r = 31 * r + y;
+        r = 31 * r + width;
+        return 31 * r + height;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TileRequest(z:%d c:%d t:%d x:%d y:%d w:%d h:%d)",
+                z, c, t, x, y, width, height);
+    }
+}
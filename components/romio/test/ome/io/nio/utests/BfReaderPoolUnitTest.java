@@ -0,0 +1,109 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+
+import loci.formats.IFormatReader;
+import loci.formats.in.FakeReader;
+import ome.io.bioformats.BfReaderPool;
+import ome.io.bioformats.PooledBfPixelBuffer;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the leasing and eviction of readers by {@link BfReaderPool}.
+ *
+ * @since 5.4.0
+ */
+@Test(groups = "unit")
+public class BfReaderPoolUnitTest {
+
+    private File root;
+
+    private String path;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        root = File.createTempFile("readerpool", "");
+        root.delete();
+        root.mkdirs();
+        File fake = new File(root,
+                "test&sizeX=16&sizeY=16&sizeZ=2&series=2&.fake");
+        fake.createNewFile();
+        path = fake.getAbsolutePath();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(root);
+    }
+
+    private IFormatReader open(int series) throws Exception {
+        IFormatReader reader = new FakeReader();
+        reader.setFlattenedResolutions(false);
+        reader.setId(path);
+        reader.setSeries(series);
+        return reader;
+    }
+
+    public void testLeaseIsExclusive() throws Exception {
+        BfReaderPool pool = new BfReaderPool(4, 60000);
+        IFormatReader reader = open(1);
+        pool.release(path, reader);
+        Assert.assertNull(pool.lease(path, 0));
+        Assert.assertSame(pool.lease(path, 1), reader);
+        Assert.assertNull(pool.lease(path, 1));
+        Assert.assertEquals(pool.getHits(), 1);
+        Assert.assertEquals(pool.getMisses(), 2);
+        reader.close();
+    }
+
+    public void testMaximumIdleReaders() throws Exception {
+        BfReaderPool pool = new BfReaderPool(2, 60000);
+        IFormatReader first = open(0);
+        pool.release(path, first);
+        pool.release(path, open(0));
+        pool.release(path, open(0));
+        Assert.assertEquals(pool.getIdleCount(), 2);
+        // The least recently released reader was closed.
+        Assert.assertNull(first.getCurrentFile());
+        pool.close();
+        Assert.assertEquals(pool.getIdleCount(), 0);
+    }
+
+    public void testIdleReadersEvicted() throws Exception {
+        BfReaderPool pool = new BfReaderPool(2, 0);
+        IFormatReader reader = open(0);
+        pool.release(path, reader);
+        Thread.sleep(5);
+        pool.evictIdle();
+        Assert.assertEquals(pool.getIdleCount(), 0);
+        Assert.assertNull(reader.getCurrentFile());
+    }
+
+    public void testPixelBufferReleasesReader() throws Exception {
+        BfReaderPool pool = new BfReaderPool(2, 60000);
+        PooledBfPixelBuffer buffer =
+                new PooledBfPixelBuffer(path, new FakeReader(), pool);
+        buffer.setSeries(1);
+        Assert.assertEquals(buffer.getSizeX(), 16);
+        buffer.close();
+        Assert.assertEquals(pool.getIdleCount(), 1);
+
+        IFormatReader reader = pool.lease(path, 1);
+        Assert.assertNotNull(reader);
+        buffer = new PooledBfPixelBuffer(path, reader, pool);
+        buffer.setSeries(1);
+        Assert.assertEquals(buffer.getSizeY(), 16);
+        buffer.close();
+        Assert.assertEquals(pool.getIdleCount(), 1);
+        pool.close();
+    }
+}
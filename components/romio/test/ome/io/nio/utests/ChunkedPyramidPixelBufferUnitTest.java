@@ -0,0 +1,223 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ome.io.nio.ChunkedPyramidPixelBuffer;
+import ome.io.nio.ConfiguredTileSizes;
+import ome.io.nio.PixelsService;
+import ome.io.nio.TileLoopIteration;
+import ome.io.nio.Utils;
+import ome.util.PixelData;
+import ome.util.checksum.ChecksumProviderFactory;
+import ome.util.checksum.ChecksumProviderFactoryImpl;
+import ome.util.checksum.ChecksumType;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the writing and reading of {@link ChunkedPyramidPixelBuffer}
+ * pyramids.
+ * @since 5.4.0
+ */
+public class ChunkedPyramidPixelBufferUnitTest
+    extends AbstractPyramidPixelBufferUnitTest {
+
+    private List<String> hashDigests = new ArrayList<String>();
+
+    @BeforeClass
+    public void setup() {
+        createService();
+        service.setPyramidFormat(PixelsService.PYRAMID_FORMAT_CHUNKED);
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        if (pixelBuffer != null) {
+            pixelBuffer.close();
+        }
+        deleteRoot();
+    }
+
+    @Test
+    public void testChunkedPyramidCreation() {
+        pixelBuffer = service._getPixelBuffer(pixels, true);
+        Assert.assertTrue(pixelBuffer instanceof ChunkedPyramidPixelBuffer);
+    }
+
+    @Test(dependsOnMethods={"testChunkedPyramidCreation"})
+    public void testPyramidWriteTiles() throws Exception {
+        short tileCount = writeTiles(hashDigests);
+        Assert.assertEquals(tileCount, 768);
+        pixelBuffer.close();
+        // An existing pyramid is opened read-only, whatever the format.
+        service.setPyramidFormat(PixelsService.PYRAMID_FORMAT_TIFF);
+        pixelBuffer = service._getPixelBuffer(pixels, true);
+        Assert.assertTrue(pixelBuffer instanceof ChunkedPyramidPixelBuffer);
+    }
+
+    @Test(dependsOnMethods={"testPyramidWriteTiles"})
+    public void testGetPixelBufferResolutionLevels() {
+        Assert.assertEquals(pixelBuffer.getResolutionLevels(), 3);
+        List<List<Integer>> descriptions =
+                pixelBuffer.getResolutionDescriptions();
+        Assert.assertEquals(descriptions.get(0), Arrays.asList(sizeX, sizeY));
+        Assert.assertEquals(descriptions.get(1), Arrays.asList(500, 505));
+        Assert.assertEquals(descriptions.get(2), Arrays.asList(250, 253));
+    }
+
+    @Test(dependsOnMethods={"testPyramidWriteTiles"})
+    public void testPyramidReadTiles() throws Exception {
+        pixelBuffer.setResolutionLevel(pixelBuffer.getResolutionLevels() - 1);
+        short tileCount = (short) Utils.forEachTile(new TileLoopIteration() {
+            public void run(int z, int c, int t, int x, int y, int tileWidth,
+                            int tileHeight, int tileCount) {
+                try
+                {
+                    ChecksumProviderFactory cpf = new ChecksumProviderFactoryImpl();
+                    final PixelData tile = pixelBuffer.getTile(z, c, t, x, y,
+                            tileWidth, tileHeight);
+                    String readDigest = cpf.getProvider(ChecksumType.MD5)
+                            .putBytes(tile.getData()).checksumAsString();
+                    Assert.assertEquals(readDigest, hashDigests.get(tileCount),
+                            String.format("z:%d c:%d t:%d x:%d y:%d",
+                                    z, c, t, x, y));
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, pixelBuffer, tileWidth, tileHeight);
+        Assert.assertEquals(tileCount, 768);
+    }
+
+    @Test(dependsOnMethods={"testPyramidWriteTiles"})
+    public void testPyramidReadRegionAcrossTiles() throws Exception {
+        pixelBuffer.setResolutionLevel(pixelBuffer.getResolutionLevels() - 1);
+        // Centered on the first pixel of the sixth tile of the first plane.
+        PixelData region = pixelBuffer.getTile(0, 0, 0, 250, 250, 12, 12);
+        for (int i = 0; i < 12 * 12; i++) {
+            Assert.assertEquals(region.getPixelValue(i),
+                    i == 6 * 12 + 6 ? 5.0 : 0.0);
+        }
+    }
+
+    @Test(dependsOnMethods={"testPyramidWriteTiles"})
+    public void testPyramidReadTilesFirstResolutionLevel() throws Exception {
+        pixelBuffer.setResolutionLevel(pixelBuffer.getResolutionLevels() - 2);
+        Assert.assertEquals(pixelBuffer.getSizeX(), 500);
+        Assert.assertEquals(pixelBuffer.getSizeY(), 505);
+        // The first tiles of the second plane were numbered 16, 17, 20.
+        PixelData tile = pixelBuffer.getTile(1, 0, 0, 0, 0,
+                tileWidth, tileHeight);
+        Assert.assertEquals(tile.size(), tileWidth * tileHeight);
+        Assert.assertEquals(tile.getPixelValue(0), 4.0);
+        Assert.assertEquals(tile.getPixelValue(1), 0.0);
+        Assert.assertEquals(tile.getPixelValue(128), 4.0);
+        Assert.assertEquals(tile.getPixelValue(128 * tileWidth), 5.0);
+        // Edge tiles are clipped to the size of the level.
+        tile = pixelBuffer.getTile(1, 0, 0, 256, 256, 244, 249);
+        Assert.assertEquals(tile.size(), 244 * 249);
+    }
+
+    /**
+     * Returns a tile of the {@link #testResume()} plane, numbered in the
+     * first pixel.
+     */
+    private byte[] createTile(int index, int w, int h) {
+        byte[] tile = new byte[w * h * bytesPerPixel];
+        ByteBuffer.wrap(tile).asShortBuffer().put(0, (short) (index + 1));
+        return tile;
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        ConfiguredTileSizes sizes = new ConfiguredTileSizes(
+                tileWidth, tileHeight, 3192, 3192);
+        File dir = new File(root);
+        dir.mkdirs();
+        // The chunks of the first tiles of an interrupted generation.
+        ChunkedPyramidPixelBuffer interrupted = new ChunkedPyramidPixelBuffer(
+                sizes, pixels, new File(dir, "interrupted").getPath(), true);
+        interrupted.setTile(createTile(0, tileWidth, tileHeight),
+                0, 0, 0, 0, 0, tileWidth, tileHeight);
+        interrupted.setEncodedTile(interrupted.encodeTile(
+                createTile(1, tileWidth, tileHeight),
+                0, 0, 0, tileWidth, 0, tileWidth, tileHeight));
+        long position = interrupted.force();
+        interrupted.setTile(createTile(2, tileWidth, tileHeight),
+                0, 0, 0, 2 * tileWidth, 0, tileWidth, tileHeight);
+        File partial = new File(dir, ".resumed.tmp");
+        FileUtils.copyFile(interrupted.getWriterFile(), partial);
+        interrupted.close();
+
+        String path = new File(dir, "resumed").getPath();
+        ChunkedPyramidPixelBuffer resumed = new ChunkedPyramidPixelBuffer(
+                sizes, pixels, path, true);
+        resumed.resume(partial, position);
+        for (int i = 0; i < 2; i++) {
+            PixelData tile = resumed.recoverTile(0, 0, 0, i * tileWidth, 0,
+                    tileWidth, tileHeight);
+            Assert.assertEquals(tile.getPixelValue(0), (double) (i + 1));
+        }
+        // The tile written after the checkpoint was dropped.
+        try {
+            resumed.recoverTile(0, 0, 0, 2 * tileWidth, 0, tileWidth,
+                    tileHeight);
+            Assert.fail("Recovered a tile written after the checkpoint.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        Assert.assertEquals(resumed.force(), position);
+        resumed.setTile(createTile(2, tileWidth, tileHeight),
+                0, 0, 0, 2 * tileWidth, 0, tileWidth, tileHeight);
+        resumed.close();
+        Assert.assertFalse(partial.exists());
+
+        resumed = new ChunkedPyramidPixelBuffer(sizes, pixels, path, false);
+        try {
+            for (int i = 0; i < 3; i++) {
+                PixelData tile = resumed.getTile(0, 0, 0, i * tileWidth, 0,
+                        tileWidth, tileHeight);
+                Assert.assertEquals(tile.getPixelValue(0), (double) (i + 1));
+            }
+        } finally {
+            resumed.close();
+        }
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        ConfiguredTileSizes sizes = new ConfiguredTileSizes(
+                tileWidth, tileHeight, 3192, 3192);
+        File dir = new File(root);
+        dir.mkdirs();
+        File file = new File(dir, "discarded");
+        ChunkedPyramidPixelBuffer discarded = new ChunkedPyramidPixelBuffer(
+                sizes, pixels, file.getPath(), true);
+        discarded.setTile(createTile(0, tileWidth, tileHeight),
+                0, 0, 0, 0, 0, tileWidth, tileHeight);
+        File writerFile = discarded.getWriterFile();
+        // As after a failed write, see ticket:5189.
+        discarded.discard();
+        FileUtils.touch(file);
+        discarded.setTile(createTile(1, tileWidth, tileHeight),
+                0, 0, 0, tileWidth, 0, tileWidth, tileHeight);
+        discarded.close();
+        Assert.assertFalse(writerFile.exists());
+        Assert.assertEquals(file.length(), 0);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import ome.io.nio.MappedWindows;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the reads served by {@link MappedWindows}.
+ *
+ * @since 5.4.0
+ */
+@Test(groups = "unit")
+public class MappedWindowsUnitTest {
+
+    private static final int WINDOW_SIZE = 1024;
+
+    private static final int FILE_SIZE = 8 * WINDOW_SIZE;
+
+    private File file;
+
+    private RandomAccessFile raf;
+
+    private MappedWindows windows;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        file = File.createTempFile("windows", ".bin");
+        byte[] data = new byte[FILE_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        raf = new RandomAccessFile(file, "rw");
+        raf.write(data);
+        windows = new MappedWindows(raf.getChannel(), "uint8", WINDOW_SIZE, 2);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        windows.close();
+        raf.close();
+        file.delete();
+    }
+
+    public void testReadAcrossWindowBoundary() throws Exception {
+        ByteBuffer region = windows.read(WINDOW_SIZE - 10, 100);
+        Assert.assertNotNull(region);
+        Assert.assertEquals(region.remaining(), 100);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(region.get(i), (byte) ((WINDOW_SIZE - 10 + i) % 251));
+        }
+    }
+
+    public void testReadOutlivesWindows() throws Exception {
+        ByteBuffer region = windows.read(10, 100);
+        for (int i = 1; i < FILE_SIZE / WINDOW_SIZE; i++) {
+            Assert.assertNotNull(windows.read((long) i * WINDOW_SIZE, 10));
+        }
+        windows.close();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(region.get(i), (byte) ((10 + i) % 251));
+        }
+    }
+
+    public void testCopyRows() throws Exception {
+        ByteBuffer dst = ByteBuffer.allocate(30);
+        Assert.assertTrue(windows.copy(100, 10, 200, 3, dst));
+        Assert.assertEquals(dst.position(), 30);
+        for (int row = 0; row < 3; row++) {
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(dst.get(row * 10 + i),
+                        (byte) ((100 + row * 200 + i) % 251));
+            }
+        }
+    }
+
+    public void testUnservedReads() throws Exception {
+        Assert.assertNull(windows.read(0, WINDOW_SIZE + 1));
+        Assert.assertNull(windows.read(FILE_SIZE - 10, 20));
+        Assert.assertFalse(windows.copy(0, 10, WINDOW_SIZE, 2,
+                ByteBuffer.allocate(20)));
+    }
+
+    public void testEviction() throws Exception {
+        for (int i = 0; i < FILE_SIZE / WINDOW_SIZE; i++) {
+            Assert.assertNotNull(windows.read((long) i * WINDOW_SIZE, 10));
+            Assert.assertTrue(windows.getWindowCount() <= 2);
+        }
+        windows.close();
+        Assert.assertEquals(windows.getWindowCount(), 0);
+    }
+}
@@ -7,6 +7,9 @@ package ome.io.nio.utests;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.commons.io.FileUtils;
 import org.testng.Assert;
@@ -17,8 +20,10 @@ import org.testng.annotations.Test;
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
 import ome.io.nio.PixelsService;
+import ome.io.nio.TileRequest;
 import ome.model.core.Pixels;
 import ome.model.enums.PixelsType;
+import ome.util.PixelData;
 
 public class NormalPixelBufferUnitTest {
     private Pixels pixels;
@@ -91,4 +96,34 @@ public class NormalPixelBufferUnitTest {
                 + (long) planeSize * 25;
         Assert.assertEquals(pixelBuffer.getPlaneOffset(25, 1, 25).longValue(), offset);
     }
+
+    @Test
+    public void testGetTiles() throws Exception {
+        byte[] plane = new byte[planeSize];
+        for (int i = 0; i < plane.length; i++) {
+            plane[i] = (byte) (i % 251);
+        }
+        pixelBuffer.setPlane(plane, 0, 1, 0);
+        List<TileRequest> tiles = Arrays.asList(
+                new TileRequest(0, 1, 0, 0, 0, 128, 128),
+                new TileRequest(0, 1, 0, 128, 0, 128, 128),
+                new TileRequest(0, 1, 0, 0, 128, 256, 128),
+                new TileRequest(0, 1, 0, 100, 50, 10, 20));
+        List<PixelData> data = pixelBuffer.getTiles(tiles);
+        Assert.assertEquals(data.size(), tiles.size());
+        for (int i = 0; i < tiles.size(); i++) {
+            TileRequest tile = tiles.get(i);
+            int rowLength = tile.getWidth() * 2;
+            byte[] expected = new byte[rowLength * tile.getHeight()];
+            for (int y = 0; y < tile.getHeight(); y++) {
+                System.arraycopy(plane,
+                        ((tile.getY() + y) * 256 + tile.getX()) * 2,
+                        expected, y * rowLength, rowLength);
+            }
+            ByteBuffer buffer = data.get(i).getData();
+            byte[] actual = new byte[buffer.remaining()];
+            buffer.get(actual);
+            Assert.assertEquals(actual, expected);
+        }
+    }
 }
@@ -0,0 +1,305 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import ome.io.nio.PackedThumbnailStore;
+import ome.io.nio.ThumbnailService;
+import ome.model.display.Thumbnail;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link PackedThumbnailStore} and its use by
+ * {@link ThumbnailService}.
+ *
+ * @since 5.4.0
+ */
+@Test(groups = "unit")
+public class PackedThumbnailStoreUnitTest {
+
+    private File root;
+
+    private File directory;
+
+    private PackedThumbnailStore store;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        root = File.createTempFile("thumbnails", "");
+        root.delete();
+        root.mkdirs();
+        directory = new File(root, PackedThumbnailStore.PACKED_PATH);
+        store = new PackedThumbnailStore(directory, 1024, 0.5);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        store.close();
+        FileUtils.deleteDirectory(root);
+    }
+
+    private static byte[] thumbnail(long id, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (id * 31 + i);
+        }
+        return data;
+    }
+
+    private void reopen() throws Exception {
+        store.close();
+        store = new PackedThumbnailStore(directory, 1024, 0.5);
+    }
+
+    public void testPutGet() throws Exception {
+        for (long id = 1; id <= 100; id++) {
+            store.put(id, thumbnail(id, 100 + (int) id));
+        }
+        Assert.assertNull(store.get(101));
+        Assert.assertEquals(store.length(101), -1);
+        for (long id = 1; id <= 100; id++) {
+            Assert.assertEquals(store.get(id), thumbnail(id, 100 + (int) id));
+        }
+        // Thumbnails written more than the segment size are split.
+        Assert.assertTrue(directory.list().length > 10);
+    }
+
+    public void testBatchGet() throws Exception {
+        for (long id = 1; id <= 20; id++) {
+            store.put(id, thumbnail(id, 50));
+        }
+        Map<Long, byte[]> thumbnails =
+                store.get(Arrays.asList(20L, 3L, 42L, 7L));
+        Assert.assertEquals(thumbnails.size(), 3);
+        Assert.assertEquals(thumbnails.get(3L), thumbnail(3, 50));
+        Assert.assertEquals(thumbnails.get(7L), thumbnail(7, 50));
+        Assert.assertEquals(thumbnails.get(20L), thumbnail(20, 50));
+    }
+
+    public void testOverwriteAndRemove() throws Exception {
+        store.put(1, thumbnail(1, 10));
+        store.put(2, thumbnail(2, 10));
+        store.put(1, thumbnail(1, 20));
+        Assert.assertEquals(store.get(1), thumbnail(1, 20));
+        Assert.assertEquals(store.remove(Arrays.asList(2L, 3L)), 1);
+        Assert.assertFalse(store.contains(2));
+        Assert.assertTrue(store.contains(1));
+        store.put(2, thumbnail(2, 30));
+        Assert.assertEquals(store.get(2), thumbnail(2, 30));
+    }
+
+    public void testReopen() throws Exception {
+        for (long id = 1; id <= 50; id++) {
+            store.put(id, thumbnail(id, 100));
+        }
+        store.remove(Arrays.asList(5L, 6L));
+        store.put(7, thumbnail(7, 40));
+        reopen();
+        Assert.assertFalse(store.contains(5));
+        Assert.assertFalse(store.contains(6));
+        Assert.assertEquals(store.get(7), thumbnail(7, 40));
+        Assert.assertEquals(store.get(50), thumbnail(50, 100));
+    }
+
+    public void testReplayAfterCheckpoint() throws Exception {
+        store.put(1, thumbnail(1, 100));
+        store.checkpoint();
+        store.put(2, thumbnail(2, 100));
+        store.remove(Collections.singletonList(1L));
+        reopen();
+        Assert.assertFalse(store.contains(1));
+        Assert.assertEquals(store.get(2), thumbnail(2, 100));
+    }
+
+    public void testRebuildLostIndex() throws Exception {
+        for (long id = 1; id <= 30; id++) {
+            store.put(id, thumbnail(id, 100));
+        }
+        store.remove(Collections.singletonList(10L));
+        store.close();
+        for (File file : directory.listFiles()) {
+            if (file.getName().startsWith("index-")) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+        store = new PackedThumbnailStore(directory, 1024, 0.5);
+        Assert.assertFalse(store.contains(10));
+        for (long id = 11; id <= 30; id++) {
+            Assert.assertEquals(store.get(id), thumbnail(id, 100));
+        }
+    }
+
+    public void testLostRecordsAreNotIndexed() throws Exception {
+        store.put(1, thumbnail(1, 100));
+        store.put(2, thumbnail(2, 100));
+        store.checkpoint();
+        File segment = new File(directory, "segment-00000000");
+        File index = new File(directory, "index-00000000");
+        long length = segment.length();
+        // The index reaches the disk after the checkpoint, the records do
+        // not.
+        store.put(1, thumbnail(1, 50));
+        store.put(3, thumbnail(3, 50));
+        File copy = new File(root, "index");
+        FileUtils.copyFile(index, copy);
+        store.close();
+        FileUtils.copyFile(copy, index);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(length);
+        file.close();
+        store = new PackedThumbnailStore(directory, 1024, 0.5);
+        Assert.assertEquals(store.get(1), thumbnail(1, 100));
+        Assert.assertEquals(store.get(2), thumbnail(2, 100));
+        Assert.assertFalse(store.contains(3));
+        // The records appended in place of the lost ones are not read for
+        // the lost thumbnails.
+        store.put(4, thumbnail(4, 50));
+        Assert.assertNull(store.get(3));
+        Assert.assertEquals(store.get(4), thumbnail(4, 50));
+    }
+
+    public void testTornRecordIsTruncated() throws Exception {
+        store.put(1, thumbnail(1, 100));
+        store.close();
+        File segment = new File(directory, "segment-00000000");
+        long length = segment.length();
+        OutputStream stream = new FileOutputStream(segment, true);
+        stream.write(new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, 0, 0 });
+        stream.close();
+        store = new PackedThumbnailStore(directory, 1024, 0.5);
+        Assert.assertEquals(segment.length(), length);
+        Assert.assertEquals(store.get(1), thumbnail(1, 100));
+        store.put(2, thumbnail(2, 10));
+        Assert.assertEquals(store.get(2), thumbnail(2, 10));
+    }
+
+    public void testGrowIndex() throws Exception {
+        store.close();
+        store = new PackedThumbnailStore(directory, 1 << 20, 0.5);
+        for (long id = 1; id <= 50000; id++) {
+            store.put(id * 7, new byte[] { (byte) id });
+        }
+        reopen();
+        for (long id = 1; id <= 50000; id++) {
+            Assert.assertEquals(store.get(id * 7)[0], (byte) id);
+        }
+    }
+
+    public void testCompaction() throws Exception {
+        for (long id = 1; id <= 40; id++) {
+            store.put(id, thumbnail(id, 100));
+        }
+        int segments = directory.list().length;
+        for (long id = 1; id <= 40; id += 2) {
+            store.put(id, thumbnail(id, 90));
+        }
+        for (long id = 2; id <= 40; id += 4) {
+            store.remove(Collections.singletonList(id));
+        }
+        Assert.assertTrue(store.getUnusedRatio() > 0.5);
+        Assert.assertTrue(store.compact() > 0);
+        Assert.assertTrue(store.getUnusedRatio() < 0.5);
+        Assert.assertTrue(directory.list().length < segments);
+        reopen();
+        for (long id = 1; id <= 40; id++) {
+            if (id % 4 == 2) {
+                Assert.assertFalse(store.contains(id));
+            } else {
+                Assert.assertEquals(store.get(id),
+                        thumbnail(id, id % 2 == 1 ? 90 : 100));
+            }
+        }
+    }
+
+    public void testCompactedTombstoneIsKept() throws Exception {
+        // Segment 0 is left with the removed thumbnail, segment 1 starts
+        // with its tombstone and is mostly overwritten.
+        store.put(1, thumbnail(1, 100));
+        store.put(2, thumbnail(2, 900));
+        store.remove(Collections.singletonList(1L));
+        for (int i = 0; i < 3; i++) {
+            store.put(3, thumbnail(3, 400));
+        }
+        store.put(4, thumbnail(4, 10));
+        Assert.assertEquals(store.compact(), 1);
+        store.close();
+        for (File file : directory.listFiles()) {
+            if (file.getName().startsWith("index-")) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+        store = new PackedThumbnailStore(directory, 1024, 0.5);
+        Assert.assertFalse(store.contains(1));
+        Assert.assertEquals(store.get(2), thumbnail(2, 900));
+        Assert.assertEquals(store.get(3), thumbnail(3, 400));
+        Assert.assertEquals(store.get(4), thumbnail(4, 10));
+    }
+
+    public void testNullThumbnailIsRefused() throws Exception {
+        store.put(1, thumbnail(1, 10));
+        try {
+            store.put(1, null);
+            Assert.fail("No data");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        Assert.assertEquals(store.get(1), thumbnail(1, 10));
+        reopen();
+        Assert.assertEquals(store.get(1), thumbnail(1, 10));
+    }
+
+    public void testSecondInstanceIsRefused() throws Exception {
+        try {
+            new PackedThumbnailStore(directory, 1024, 0.5);
+            Assert.fail("The store is locked");
+        } catch (java.io.IOException e) {
+            // Expected
+        }
+    }
+
+    public void testLooseThumbnailsAreMoved() throws Exception {
+        store.close();
+        ThumbnailService loose = new ThumbnailService(root.getPath());
+        Thumbnail thumbnail = new Thumbnail(1234567L, true);
+        loose.createThumbnail(thumbnail, thumbnail(1234567L, 64));
+        File file = new File(loose.getThumbnailPath(1234567L));
+        Assert.assertTrue(file.exists());
+
+        ThumbnailService packed =
+                new ThumbnailService(root.getPath(), true, 1024, 0.5);
+        try {
+            Assert.assertTrue(packed.getThumbnailExists(thumbnail));
+            Assert.assertEquals(packed.getThumbnail(thumbnail),
+                    thumbnail(1234567L, 64));
+            Assert.assertFalse(file.exists());
+            Assert.assertEquals(packed.getThumbnailLength(thumbnail), 64);
+
+            Thumbnail other = new Thumbnail(2L, true);
+            OutputStream stream = packed.getThumbnailOutputStream(other);
+            stream.write(thumbnail(2L, 16));
+            stream.close();
+            Assert.assertEquals(packed.getThumbnails(
+                    Arrays.asList(thumbnail, other)).size(), 2);
+
+            packed.removeThumbnails(Arrays.asList(1234567L));
+            Assert.assertFalse(packed.getThumbnailExists(thumbnail));
+        } finally {
+            packed.close();
+            store = new PackedThumbnailStore(directory, 1024, 0.5);
+        }
+    }
+}
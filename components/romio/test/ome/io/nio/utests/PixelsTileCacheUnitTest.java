@@ -0,0 +1,87 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import ome.io.nio.PixelsTileCache;
+import ome.io.nio.RomioPixelBuffer;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the admission, eviction and invalidation of {@link PixelsTileCache}.
+ *
+ * @since 5.4.0
+ */
+@Test(groups = "unit")
+public class PixelsTileCacheUnitTest {
+
+    private static final int ENTRY_SIZE = 100;
+
+    private PixelsTileCache.Key key(long pixelsId, int z) {
+        return PixelsTileCache.createKey(pixelsId, RomioPixelBuffer.class,
+                PixelsTileCache.TILE, -1, z, 0, 0, 0, 0, 10, 10);
+    }
+
+    private ByteBuffer data(int value) {
+        byte[] bytes = new byte[ENTRY_SIZE];
+        bytes[0] = (byte) value;
+        return ByteBuffer.wrap(bytes);
+    }
+
+    public void testHitReturnsCopy() {
+        PixelsTileCache cache = new PixelsTileCache(8 * ENTRY_SIZE);
+        cache.put(key(1, 0), data(42), ByteOrder.LITTLE_ENDIAN);
+        PixelsTileCache.Entry entry = cache.get(key(1, 0));
+        Assert.assertNotNull(entry);
+        Assert.assertEquals(entry.getOrder(), ByteOrder.LITTLE_ENDIAN);
+        byte[] copy = entry.copyTo(null);
+        Assert.assertEquals(copy[0], 42);
+        copy[0] = 0;
+        Assert.assertEquals(cache.get(key(1, 0)).copyTo(null)[0], 42);
+    }
+
+    public void testScanDoesNotEvictProtected() {
+        PixelsTileCache cache = new PixelsTileCache(8 * ENTRY_SIZE);
+        cache.put(key(1, 0), data(0), null);
+        Assert.assertNotNull(cache.get(key(1, 0)));
+        for (int z = 1; z <= 100; z++) {
+            cache.put(key(1, z), data(z), null);
+        }
+        Assert.assertNotNull(cache.get(key(1, 0)));
+        Assert.assertTrue(cache.getSize() <= 8 * ENTRY_SIZE);
+    }
+
+    public void testLargeEntriesAreNotAdmitted() {
+        PixelsTileCache cache = new PixelsTileCache(4 * ENTRY_SIZE);
+        cache.put(key(1, 0), data(0), null);
+        Assert.assertNull(cache.get(key(1, 0)));
+        Assert.assertEquals(cache.getSize(), 0);
+    }
+
+    public void testInvalidate() {
+        PixelsTileCache cache = new PixelsTileCache(8 * ENTRY_SIZE);
+        cache.put(key(1, 0), data(0), null);
+        cache.put(key(1, 1), data(1), null);
+        cache.put(key(2, 0), data(2), null);
+        cache.invalidate(1, 0, 0, 0);
+        Assert.assertNull(cache.get(key(1, 0)));
+        Assert.assertNotNull(cache.get(key(1, 1)));
+        cache.invalidate(1);
+        Assert.assertNull(cache.get(key(1, 1)));
+        Assert.assertNotNull(cache.get(key(2, 0)));
+        Assert.assertEquals(cache.getSize(), ENTRY_SIZE);
+    }
+
+    public void testDisabled() {
+        PixelsTileCache cache = new PixelsTileCache(0);
+        Assert.assertFalse(cache.isEnabled());
+        cache.put(key(1, 0), data(0), null);
+        Assert.assertNull(cache.get(key(1, 0)));
+    }
+}
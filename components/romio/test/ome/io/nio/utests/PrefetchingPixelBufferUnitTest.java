@@ -0,0 +1,131 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.util.Arrays;
+
+import ome.io.nio.PrefetchingPixelBuffer;
+import ome.io.nio.RomioPixelBuffer;
+import ome.io.nio.TilePrefetcher;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the tiles read ahead by {@link PrefetchingPixelBuffer}.
+ *
+ * @since 5.4.0
+ */
+@Test(groups = "unit")
+public class PrefetchingPixelBufferUnitTest {
+
+    private static final int SIZE = 64;
+
+    private static final int TILE = 16;
+
+    private File file;
+
+    private RomioPixelBuffer delegate;
+
+    private TilePrefetcher prefetcher;
+
+    private PrefetchingPixelBuffer buffer;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        file = File.createTempFile("prefetch", ".bin");
+        Pixels pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE);
+        pixels.setSizeY(SIZE);
+        pixels.setSizeZ(4);
+        pixels.setSizeC(1);
+        pixels.setSizeT(1);
+        PixelsType type = new PixelsType();
+        type.setValue("uint8");
+        pixels.setPixelsType(type);
+        delegate = new RomioPixelBuffer(file.getAbsolutePath(), pixels, true);
+        byte[] plane = new byte[SIZE * SIZE];
+        for (int z = 0; z < 4; z++) {
+            for (int i = 0; i < plane.length; i++) {
+                plane[i] = (byte) (i * 7 + z);
+            }
+            delegate.setPlane(plane, z, 0, 0);
+        }
+        prefetcher = new TilePrefetcher(1, 8, 2, 8, 60000);
+        buffer = (PrefetchingPixelBuffer) prefetcher.wrap(delegate);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        buffer.close();
+        prefetcher.destroy();
+        file.delete();
+    }
+
+    private byte[] expected(int z, int x, int y) {
+        byte[] tile = new byte[TILE * TILE];
+        for (int j = 0; j < TILE; j++) {
+            for (int i = 0; i < TILE; i++) {
+                tile[j * TILE + i] = (byte) (((y + j) * SIZE + x + i) * 7 + z);
+            }
+        }
+        return tile;
+    }
+
+    private void assertTile(int z, int x, int y) throws Exception {
+        byte[] tile = buffer.getTileDirect(z, 0, 0, x, y, TILE, TILE,
+                new byte[TILE * TILE]);
+        Assert.assertTrue(Arrays.equals(tile, expected(z, x, y)));
+    }
+
+    public void testPanning() throws Exception {
+        assertTile(0, 0, 0);
+        Assert.assertEquals(buffer.getPrefetchCount(), 0);
+        assertTile(0, TILE, 0);
+        // The next two tiles across X are read ahead.
+        Assert.assertEquals(buffer.getPrefetchCount(), 2);
+        assertTile(0, 2 * TILE, 0);
+        assertTile(0, 3 * TILE, 0);
+        // Nothing is read past the edge of the plane.
+        Assert.assertEquals(buffer.getPrefetchCount(), 0);
+    }
+
+    public void testFocusing() throws Exception {
+        assertTile(3, TILE, TILE);
+        assertTile(2, TILE, TILE);
+        Assert.assertEquals(buffer.getPrefetchCount(), 2);
+        assertTile(1, TILE, TILE);
+        assertTile(0, TILE, TILE);
+    }
+
+    public void testJumpDropsPending() throws Exception {
+        assertTile(0, 0, 0);
+        assertTile(0, 0, TILE);
+        assertTile(3, 3 * TILE, 0);
+        // Only the prefetches already started or read may be left.
+        Assert.assertTrue(buffer.getPrefetchCount() <= 2);
+        assertTile(0, 0, 2 * TILE);
+    }
+
+    public void testWriteDropsPrefetches() throws Exception {
+        assertTile(0, 0, 0);
+        assertTile(0, TILE, 0);
+        byte[] plane = new byte[SIZE * SIZE];
+        Arrays.fill(plane, (byte) 42);
+        buffer.setPlane(plane, 0, 0, 0);
+        Assert.assertEquals(buffer.getPrefetchCount(), 0);
+        byte[] tile = buffer.getTileDirect(0, 0, 0, 2 * TILE, 0, TILE, TILE,
+                new byte[TILE * TILE]);
+        for (byte b : tile) {
+            Assert.assertEquals(b, (byte) 42);
+        }
+    }
+}
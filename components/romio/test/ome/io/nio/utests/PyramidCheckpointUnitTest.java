@@ -0,0 +1,80 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+
+import ome.io.nio.PyramidCheckpoint;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the saving and loading of {@link PyramidCheckpoint}s.
+ *
+ * @since 5.4.0
+ */
+@Test(groups = "unit")
+public class PyramidCheckpointUnitTest {
+
+    private File root;
+
+    private File pyramid;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        root = File.createTempFile("checkpoint", "");
+        root.delete();
+        root.mkdirs();
+        pyramid = new File(root, "1_pyramid");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(root);
+    }
+
+    public void testSaveAndLoad() {
+        PyramidCheckpoint checkpoint = new PyramidCheckpoint(pyramid, 8);
+        for (int i = 0; i < 5; i++) {
+            checkpoint.completeTile();
+        }
+        checkpoint.save();
+        Assert.assertFalse(pyramid.exists());
+        Assert.assertTrue(PyramidCheckpoint.getFile(pyramid).exists());
+
+        PyramidCheckpoint loaded = PyramidCheckpoint.load(pyramid);
+        Assert.assertNotNull(loaded);
+        Assert.assertEquals(loaded.getTotalTiles(), 8);
+        Assert.assertEquals(loaded.getCompletedTiles(), 5);
+        Assert.assertNull(loaded.getWriterFile());
+        Assert.assertEquals(loaded.getPercentage(), 62.5, 0.001);
+        Assert.assertEquals(loaded.getStarted(), checkpoint.getStarted());
+    }
+
+    public void testWriter() {
+        PyramidCheckpoint checkpoint = new PyramidCheckpoint(pyramid, 8);
+        checkpoint.completeTile();
+        checkpoint.setWriter(new File(root, ".1_pyramid123.tmp"), 1000);
+        checkpoint.save();
+
+        PyramidCheckpoint loaded = PyramidCheckpoint.load(pyramid);
+        Assert.assertNotNull(loaded);
+        Assert.assertEquals(loaded.getCompletedTiles(), 1);
+        Assert.assertEquals(loaded.getWriterFile(),
+                new File(root, ".1_pyramid123.tmp"));
+        Assert.assertEquals(loaded.getPosition(), 1000);
+    }
+
+    public void testDelete() {
+        PyramidCheckpoint checkpoint = new PyramidCheckpoint(pyramid, 8);
+        checkpoint.save();
+        checkpoint.delete();
+        Assert.assertNull(PyramidCheckpoint.load(pyramid));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import ome.io.nio.PixelsService;
+import ome.io.nio.TileLoopIteration;
+import ome.io.nio.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the time to build a pyramid and the latency of tile reads of the
+ * JPEG-2000 TIFF pyramids and of the chunked pyramids. Not run with the unit
+ * tests, run with <code>-Dtestng.groups=manual</code>.
+ * @since 5.4.0
+ */
+@Test(groups = "manual")
+public class PyramidFormatBenchmark extends AbstractPyramidPixelBufferUnitTest {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(PyramidFormatBenchmark.class);
+
+    /** Number of tiles read per resolution level. */
+    private static final int READS = 500;
+
+    public void testTiffPyramid() throws Exception {
+        benchmark(PixelsService.PYRAMID_FORMAT_TIFF);
+    }
+
+    public void testChunkedPyramid() throws Exception {
+        benchmark(PixelsService.PYRAMID_FORMAT_CHUNKED);
+    }
+
+    private void benchmark(String format) throws Exception {
+        createService();
+        service.setPyramidFormat(format);
+        try {
+            pixelBuffer = service._getPixelBuffer(pixels, true);
+            long start = System.nanoTime();
+            writeSmoothTiles();
+            pixelBuffer.close();
+            long build = System.nanoTime() - start;
+            File pyramid = new File(service.getPixelsPath(pixels.getId())
+                    + PixelsService.PYRAMID_SUFFIX);
+
+            pixelBuffer = service._getPixelBuffer(pixels, false);
+            StringBuilder latencies = new StringBuilder();
+            for (int level = pixelBuffer.getResolutionLevels() - 1;
+                    level >= 0; level--) {
+                pixelBuffer.setResolutionLevel(level);
+                latencies.append(String.format(" level %d: %.1f us/tile",
+                        level, readRandomTiles() / 1000.0));
+            }
+            pixelBuffer.close();
+            pixelBuffer = null;
+            log.info(String.format("%s pyramid: built in %d ms, %d bytes,%s",
+                    format, build / 1000000, pyramid.length(), latencies));
+        } finally {
+            if (pixelBuffer != null) {
+                pixelBuffer.close();
+                pixelBuffer = null;
+            }
+            deleteRoot();
+        }
+    }
+
+    /**
+     * Writes tiles of a gradient with some noise, closer to microscopy
+     * images than blank tiles.
+     */
+    private void writeSmoothTiles() {
+        final Random random = new Random(42);
+        Utils.forEachTile(new TileLoopIteration() {
+            public void run(int z, int c, int t, int x, int y, int w, int h,
+                    int tileCount) {
+                byte[] tile = new byte[w * h * bytesPerPixel];
+                ShortBuffer pixels = ByteBuffer.wrap(tile).asShortBuffer();
+                for (int j = 0; j < h; j++) {
+                    for (int i = 0; i < w; i++) {
+                        pixels.put(j * w + i, (short) (
+                                (x + i + y + j) * 16 + z * 100 + c * 1000
+                                + random.nextInt(64)));
+                    }
+                }
+                try {
+                    pixelBuffer.setTile(tile, z, c, t, x, y, w, h);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, pixelBuffer, tileWidth, tileHeight);
+    }
+
+    /**
+     * Reads tiles of random planes and positions of the current resolution
+     * level.
+     * @return The mean latency in nanoseconds.
+     */
+    private long readRandomTiles() throws IOException {
+        final Random random = new Random(7);
+        final int sizeX = pixelBuffer.getSizeX();
+        final int sizeY = pixelBuffer.getSizeY();
+        final int tilesX = (sizeX + tileWidth - 1) / tileWidth;
+        final int tilesY = (sizeY + tileHeight - 1) / tileHeight;
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            int x = random.nextInt(tilesX) * tileWidth;
+            int y = random.nextInt(tilesY) * tileHeight;
+            pixelBuffer.getTile(random.nextInt(sizeZ), random.nextInt(sizeC),
+                    random.nextInt(sizeT), x, y,
+                    Math.min(tileWidth, sizeX - x),
+                    Math.min(tileHeight, sizeY - y)).dispose();
+        }
+        return (System.nanoTime() - start) / READS;
+    }
+}
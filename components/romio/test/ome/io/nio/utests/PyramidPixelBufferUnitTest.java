@@ -8,7 +8,12 @@ package ome.io.nio.utests;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ome.io.bioformats.BfPyramidPixelBuffer;
 import ome.io.nio.TileLoopIteration;
@@ -135,4 +140,45 @@ public class PyramidPixelBufferUnitTest extends AbstractPyramidPixelBufferUnitTe
         Assert.assertEquals(tileCount, 192);
     }
 
+    @Test(dependsOnMethods={"testPyramidWriteTiles"}, enabled=true)
+    public void testPyramidReadTilesConcurrently() throws Exception {
+        final BfPyramidPixelBuffer pyramid =
+                (BfPyramidPixelBuffer) pixelBuffer;
+        pyramid.setResolutionLevel(pyramid.getResolutionLevels() - 1);
+        final List<byte[]> expected = new ArrayList<byte[]>();
+        for (int y = 0; y < sizeY; y += tileHeight) {
+            for (int x = 0; x < sizeX; x += tileWidth) {
+                expected.add(pyramid.getTile(0, 0, 0, x, y,
+                        Math.min(tileWidth, sizeX - x),
+                        Math.min(tileHeight, sizeY - y)).getData().array());
+            }
+        }
+        pyramid.setReaders(4);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+            for (int y = 0; y < sizeY; y += tileHeight) {
+                for (int x = 0; x < sizeX; x += tileWidth) {
+                    final int tileX = x;
+                    final int tileY = y;
+                    futures.add(executor.submit(new Callable<byte[]>() {
+                        public byte[] call() throws IOException {
+                            return pyramid.getTile(0, 0, 0, tileX, tileY,
+                                    Math.min(tileWidth, sizeX - tileX),
+                                    Math.min(tileHeight, sizeY - tileY))
+                                    .getData().array();
+                        }
+                    }));
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Assert.assertTrue(Arrays.equals(
+                        futures.get(i).get(), expected.get(i)));
+            }
+        } finally {
+            executor.shutdown();
+            pyramid.setReaders(1);
+        }
+    }
+
 }
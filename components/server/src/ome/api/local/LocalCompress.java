@@ -21,6 +21,18 @@ import java.io.OutputStream;
  */
 public interface LocalCompress {
 
+    /** The JPEG format, lossy, see {@link #setCompressionLevel(float)}. */
+    String FORMAT_JPEG = "jpeg";
+
+    /** The PNG format, lossless. */
+    String FORMAT_PNG = "png";
+
+    /**
+     * The uncompressed packed integer format: four bytes per pixel in
+     * big-endian order, as returned by the rendering engine, row by row.
+     */
+    String FORMAT_RAW = "raw";
+
     /**
      * Compresses a buffered image to an output stream.
      * 
@@ -34,6 +46,30 @@ public interface LocalCompress {
 	void compressToStream(BufferedImage image, OutputStream outputStream)
 		throws IOException;
 
+	/**
+	 * Compresses a packed integer buffer, as rendered by the rendering
+	 * engine, in the specified format. The image is encoded directly from the
+	 * buffer, the encoders and output buffers being reused by the calling
+	 * thread.
+	 * 
+	 * @param buf
+	 *            the packed integer buffer.
+	 * @param sizeX
+	 *            the X-width of the image rendered.
+	 * @param sizeY
+	 *            the Y-width of the image rendered.
+	 * @param format
+	 *            one of {@link #FORMAT_JPEG}, {@link #FORMAT_PNG} or
+	 *            {@link #FORMAT_RAW}.
+	 * @return the compressed image.
+	 * @throws IOException
+	 *             if there is a problem when encoding the image.
+	 * @throws ome.conditions.ValidationException if the {@code format} is
+	 *             not supported.
+	 */
+	byte[] compress(int[] buf, int sizeX, int sizeY, String format)
+		throws IOException;
+
 	/**
 	 * Sets the current compression level for the service. (The default is 85%)
 	 * 
@@ -0,0 +1,36 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.api.local;
+
+import ome.api.IScale;
+
+/**
+ * Provides methods for scaling the packed integer buffers rendered by the
+ * rendering engine directly, without wrapping them in BufferedImages.
+ *
+ * @since 5.4.0
+ */
+public interface LocalScale extends IScale {
+
+    /**
+     * Scales a packed ARGB integer buffer, row by row, to the specified
+     * dimensions.
+     *
+     * @param buf
+     *            the packed integer buffer.
+     * @param sizeX
+     *            the X-width of the image in the buffer.
+     * @param sizeY
+     *            the Y-width of the image in the buffer.
+     * @param scaledSizeX
+     *            the X-width of the scaled image.
+     * @param scaledSizeY
+     *            the Y-width of the scaled image.
+     * @return a packed integer buffer of the scaled image.
+     */
+    int[] scale(int[] buf, int sizeX, int sizeY, int scaledSizeX,
+            int scaledSizeY);
+}
@@ -8,46 +8,162 @@
 package ome.logic;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import ome.api.local.LocalCompress;
+import ome.conditions.ValidationException;
+import ome.util.ImageUtil;
 
 public class CompressImpl implements LocalCompress {
 
+	/**
+	 * The size above which the output buffer of a thread is released after
+	 * use instead of being kept for the next image.
+	 */
+	private static final int MAX_RETAINED_BUFFER = 4 * 1024 * 1024;
+
+	/** The JPEG writer of each thread. */
+	private static final ThreadLocal<ImageWriter> JPEG_WRITERS =
+		new ThreadLocal<ImageWriter>();
+
+	/** The PNG writer of each thread. */
+	private static final ThreadLocal<ImageWriter> PNG_WRITERS =
+		new ThreadLocal<ImageWriter>();
+
+	/** The output buffer of each thread. */
+	private static final ThreadLocal<ByteArrayOutputStream> BUFFERS =
+		new ThreadLocal<ByteArrayOutputStream>();
+
 	/** The default compression quality in fractional percent. */
     private float quality = 0.85F;
-	
+
+    /**
+     * Returns the writer of the calling thread for the specified format,
+     * creating it if needed. The writer is removed from the pool by
+     * {@link #discardWriter(ThreadLocal)} if an image fails to be written.
+     *
+     * @param writers The pool of writers of the format.
+     * @param format The name of the format.
+     * @return See above.
+     */
+    private static ImageWriter getWriter(ThreadLocal<ImageWriter> writers,
+            String format)
+    {
+        ImageWriter writer = writers.get();
+        if (writer == null) {
+            writer = ImageIO.getImageWritersByFormatName(format).next();
+            writers.set(writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Disposes the writer of the calling thread, which may be in an
+     * inconsistent state.
+     *
+     * @param writers The pool of writers of the format.
+     */
+    private static void discardWriter(ThreadLocal<ImageWriter> writers)
+    {
+        ImageWriter writer = writers.get();
+        writers.remove();
+        if (writer != null) {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Writes the image with the specified writer of the calling thread. The
+     * stream is cached in memory, never in a temporary file.
+     *
+     * @param writers The pool of writers of the format.
+     * @param format The name of the format.
+     * @param image The image to write.
+     * @param outputStream The stream to write to.
+     * @throws IOException If the image cannot be written.
+     */
+    private void write(ThreadLocal<ImageWriter> writers, String format,
+            BufferedImage image, OutputStream outputStream)
+        throws IOException
+    {
+        ImageWriter writer = getWriter(writers, format);
+        ImageWriteParam iwp = null;
+        if (FORMAT_JPEG.equals(format)) {
+            // Setup the compression value from (0.05, 0.75 and 0.95)
+            iwp = writer.getDefaultWriteParam();
+            iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            iwp.setCompressionQuality(quality);
+        }
+        ImageOutputStream imageOutputStream =
+            new MemoryCacheImageOutputStream(outputStream);
+        boolean written = false;
+        try {
+            writer.setOutput(imageOutputStream);
+            writer.write(null, new IIOImage(image, null, null), iwp);
+            written = true;
+        } finally {
+            if (written) {
+                writer.reset();
+            } else {
+                discardWriter(writers);
+            }
+            imageOutputStream.close();
+        }
+    }
+
     /* (non-Javadoc)
      * @see ome.api.ICompress#compressToStream(java.awt.image.BufferedImage, java.io.OutputStream)
      */
     public void compressToStream(BufferedImage image, OutputStream outputStream)
     	throws IOException
     {
-        // Get a JPEG image writer
-        ImageWriter jpegWriter =
-        	ImageIO.getImageWritersByFormatName("jpeg").next();
-
-        // Setup the compression value from (0.05, 0.75 and 0.95)
-        ImageWriteParam iwp = jpegWriter.getDefaultWriteParam();
-        iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        iwp.setCompressionQuality(quality);
+        write(JPEG_WRITERS, FORMAT_JPEG, image, outputStream);
+    }
 
-        // Write the JPEG to our ByteArray stream
-    	ImageOutputStream imageOutputStream = null;
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalCompress#compress(int[], int, int, java.lang.String)
+     */
+    public byte[] compress(int[] buf, int sizeX, int sizeY, String format)
+        throws IOException
+    {
+        int length = sizeX * sizeY;
+        if (FORMAT_RAW.equals(format)) {
+            byte[] raw = new byte[length * 4];
+            ByteBuffer.wrap(raw).asIntBuffer().put(buf, 0, length);
+            return raw;
+        }
+        ThreadLocal<ImageWriter> writers;
+        if (FORMAT_JPEG.equals(format)) {
+            writers = JPEG_WRITERS;
+        } else if (FORMAT_PNG.equals(format)) {
+            writers = PNG_WRITERS;
+        } else {
+            throw new ValidationException("Unsupported format: " + format);
+        }
+        BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX, sizeY);
+        ByteArrayOutputStream stream = BUFFERS.get();
+        if (stream == null) {
+            stream = new ByteArrayOutputStream(length);
+        }
+        BUFFERS.remove();
         try {
-        	imageOutputStream = ImageIO.createImageOutputStream(outputStream);
-        	jpegWriter.setOutput(imageOutputStream);
-        	jpegWriter.write(null, new IIOImage(image, null, null), iwp);
+            write(writers, format, image, stream);
+            return stream.toByteArray();
         } finally {
-        	if (imageOutputStream != null)
-        		imageOutputStream.close();
+            if (stream.size() <= MAX_RETAINED_BUFFER) {
+                stream.reset();
+                BUFFERS.set(stream);
+            }
         }
     }
 
@@ -58,7 +174,7 @@ public class CompressImpl implements LocalCompress {
 	{
 		quality = percentage;
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see ome.api.ICompress#getCompressionLevel()
 	 */
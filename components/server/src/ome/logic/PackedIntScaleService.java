@@ -0,0 +1,326 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.logic;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+import ome.api.local.LocalScale;
+import ome.conditions.ApiUsageException;
+import ome.util.ImageUtil;
+
+import org.perf4j.StopWatch;
+import org.perf4j.slf4j.Slf4JStopWatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scales packed ARGB integer buffers by area averaging: each pixel of the
+ * scaled image is the mean of the source pixels it covers, weighted by the
+ * covered area. The filter is separable, each source row being scaled
+ * horizontally once then accumulated into the rows of the scaled image it
+ * covers, with fixed-point weights. The weight tables and the row buffers
+ * are reused by the calling thread, the only allocation being the scaled
+ * buffer returned. Buffered images backed by a packed integer buffer are
+ * scaled without copying their pixels.
+ *
+ * @since 5.4.0
+ */
+public class PackedIntScaleService implements LocalScale {
+
+    /** The logger for this class. */
+    private static Logger log =
+            LoggerFactory.getLogger(PackedIntScaleService.class);
+
+    /** The number of fractional bits of the weights. */
+    private static final int WEIGHT_BITS = 16;
+
+    /** The weight of a whole pixel. */
+    private static final int ONE = 1 << WEIGHT_BITS;
+
+    /** Half of the product of a horizontal and a vertical weight of one. */
+    private static final long HALF = 1L << (2 * WEIGHT_BITS - 1);
+
+    /** The bit masks of the red, green and blue components. */
+    private static final int[] RGB_MASKS = {
+        0x00ff0000, 0x0000ff00, 0x000000ff };
+
+    /** The bit masks of the red, green, blue and alpha components. */
+    private static final int[] ARGB_MASKS = {
+        0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000 };
+
+    /** The scratch buffers of each thread. */
+    private static final ThreadLocal<Scratch> SCRATCH =
+            new ThreadLocal<Scratch>() {
+                @Override
+                protected Scratch initialValue() {
+                    return new Scratch();
+                }
+            };
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see ome.api.IScale#scaleBufferedImage(java.awt.image.BufferedImage,
+     * float, float)
+     */
+    public BufferedImage scaleBufferedImage(BufferedImage image, float xScale,
+            float yScale) {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        // Rounded rather than truncated, the scale factors being computed
+        // from the expected sizes.
+        int thumbWidth = Math.max(1, Math.round(sizeX * xScale));
+        int thumbHeight = Math.max(1, Math.round(sizeY * yScale));
+        log.debug("Scaling to: " + thumbHeight + "x" + thumbWidth);
+        int[] buf = scale(getPackedInts(image), sizeX, sizeY, thumbWidth,
+                thumbHeight);
+        return ImageUtil.createBufferedImage(buf, thumbWidth, thumbHeight);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see ome.api.local.LocalScale#scale(int[], int, int, int, int)
+     */
+    public int[] scale(int[] buf, int sizeX, int sizeY, int scaledSizeX,
+            int scaledSizeY) {
+        if (sizeX <= 0 || sizeY <= 0 || scaledSizeX <= 0 || scaledSizeY <= 0) {
+            throw new ApiUsageException(String.format(
+                    "Cannot scale %dx%d to %dx%d", sizeX, sizeY,
+                    scaledSizeX, scaledSizeY));
+        }
+        if (buf.length < sizeX * sizeY) {
+            throw new ApiUsageException(String.format(
+                    "Buffer of %d pixels smaller than %dx%d", buf.length,
+                    sizeX, sizeY));
+        }
+        StopWatch s1 = new Slf4JStopWatch("omero.scalePackedInts");
+        Scratch scratch = SCRATCH.get();
+        Axis x = scratch.x;
+        Axis y = scratch.y;
+        x.prepare(sizeX, scaledSizeX);
+        y.prepare(sizeY, scaledSizeY);
+        scratch.prepare(scaledSizeX * 4);
+        long[] sums = scratch.sums;
+        int[] rows = scratch.rows;
+        int length = scaledSizeX * 4;
+        int[] scaled = new int[scaledSizeX * scaledSizeY];
+        for (int dy = 0; dy < scaledSizeY; dy++) {
+            Arrays.fill(sums, 0, length, 0L);
+            int first = y.first[dy];
+            int count = y.count[dy];
+            int offset = dy * y.stride;
+            for (int k = 0; k < count; k++) {
+                int row = scratch.row(buf, sizeX, first + k);
+                long weight = y.weights[offset + k];
+                for (int i = 0; i < length; i++) {
+                    sums[i] += weight * rows[row + i];
+                }
+            }
+            int o = dy * scaledSizeX;
+            for (int i = 0; i < length; i += 4) {
+                scaled[o++] = component(sums[i]) << 24
+                        | component(sums[i + 1]) << 16
+                        | component(sums[i + 2]) << 8
+                        | component(sums[i + 3]);
+            }
+        }
+        s1.stop();
+        return scaled;
+    }
+
+    /**
+     * Rounds an accumulated component to eight bits.
+     *
+     * @param sum The component weighted by the horizontal and vertical
+     *            weights.
+     * @return See above.
+     */
+    private static int component(long sum) {
+        int value = (int) ((sum + HALF) >>> (2 * WEIGHT_BITS));
+        return value > 0xff ? 0xff : value;
+    }
+
+    /**
+     * Returns the packed integer pixels of an image, without copying them if
+     * the image is backed by such a buffer.
+     *
+     * @param image The image.
+     * @return See above.
+     */
+    private static int[] getPackedInts(BufferedImage image) {
+        int sizeX = image.getWidth();
+        Raster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        SampleModel model = raster.getSampleModel();
+        if (buffer instanceof DataBufferInt && buffer.getNumBanks() == 1
+                && buffer.getOffset() == 0
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && model instanceof SinglePixelPackedSampleModel) {
+            SinglePixelPackedSampleModel packed =
+                    (SinglePixelPackedSampleModel) model;
+            int[] masks = packed.getBitMasks();
+            if (packed.getScanlineStride() == sizeX
+                    && (Arrays.equals(masks, RGB_MASKS)
+                            || Arrays.equals(masks, ARGB_MASKS))) {
+                return ((DataBufferInt) buffer).getData();
+            }
+        }
+        return image.getRGB(0, 0, sizeX, image.getHeight(), null, 0, sizeX);
+    }
+
+    /**
+     * The source pixels covered by each pixel along an axis of the scaled
+     * image and their weights, which sum to {@link #ONE}.
+     */
+    private static final class Axis {
+
+        /** The index of the first source pixel of each scaled pixel. */
+        int[] first = new int[0];
+
+        /** The number of source pixels of each scaled pixel. */
+        int[] count = new int[0];
+
+        /** The weights of the source pixels, {@link #stride} per pixel. */
+        int[] weights = new int[0];
+
+        /** The maximum number of source pixels of a scaled pixel. */
+        int stride;
+
+        /**
+         * Computes the weights for the specified sizes. A source pixel
+         * <code>j</code> spans <code>[j * scaledSize, (j + 1) *
+         * scaledSize)</code> and a scaled pixel <code>i</code> spans
+         * <code>[i * size, (i + 1) * size)</code>. The weights are
+         * differences of the rounded cumulated overlaps, so that they sum to
+         * one exactly.
+         *
+         * @param size The number of source pixels.
+         * @param scaledSize The number of scaled pixels.
+         */
+        void prepare(int size, int scaledSize) {
+            stride = (size + scaledSize - 1) / scaledSize + 1;
+            if (first.length < scaledSize) {
+                first = new int[scaledSize];
+                count = new int[scaledSize];
+            }
+            if (weights.length < scaledSize * stride) {
+                weights = new int[scaledSize * stride];
+            }
+            for (int i = 0; i < scaledSize; i++) {
+                long start = (long) i * size;
+                long end = start + size;
+                int j0 = (int) (start / scaledSize);
+                int j1 = (int) ((end - 1) / scaledSize);
+                first[i] = j0;
+                count[i] = j1 - j0 + 1;
+                long covered = 0;
+                int previous = 0;
+                int o = i * stride;
+                for (int j = j0; j <= j1; j++) {
+                    covered += Math.min(end, (j + 1L) * scaledSize)
+                            - Math.max(start, (long) j * scaledSize);
+                    int edge = (int) ((covered * ONE + size / 2) / size);
+                    weights[o++] = edge - previous;
+                    previous = edge;
+                }
+            }
+        }
+    }
+
+    /**
+     * The buffers of a thread, grown as needed and kept for the next
+     * images.
+     */
+    private static final class Scratch {
+
+        /** The horizontal weights. */
+        final Axis x = new Axis();
+
+        /** The vertical weights. */
+        final Axis y = new Axis();
+
+        /** Two source rows scaled horizontally, four components a pixel. */
+        int[] rows = new int[0];
+
+        /** The source row in each half of {@link #rows}. */
+        final int[] cached = new int[2];
+
+        /** The half of {@link #rows} to write the next row to. */
+        int next;
+
+        /** The accumulated components of a scaled row. */
+        long[] sums = new long[0];
+
+        /** The length of a row. */
+        int length;
+
+        /**
+         * Prepares the row buffers.
+         *
+         * @param length The length of a scaled row, four components a pixel.
+         */
+        void prepare(int length) {
+            this.length = length;
+            if (rows.length < 2 * length) {
+                rows = new int[2 * length];
+                sums = new long[length];
+            }
+            cached[0] = -1;
+            cached[1] = -1;
+            next = 0;
+        }
+
+        /**
+         * Returns the offset in {@link #rows} of a source row scaled
+         * horizontally. The last two rows are kept, the rows contributing to
+         * consecutive scaled rows being consecutive.
+         *
+         * @param buf The source buffer.
+         * @param sizeX The width of the source.
+         * @param j The index of the source row.
+         * @return See above.
+         */
+        int row(int[] buf, int sizeX, int j) {
+            if (cached[0] == j) {
+                return 0;
+            }
+            if (cached[1] == j) {
+                return length;
+            }
+            int half = next;
+            next = 1 - next;
+            cached[half] = j;
+            int o = half * length;
+            int base = j * sizeX;
+            for (int i = 0; o < (half + 1) * length; i++) {
+                int a = 0, r = 0, g = 0, b = 0;
+                int p = base + x.first[i];
+                int w = i * x.stride;
+                for (int k = x.count[i]; k > 0; k--) {
+                    int pixel = buf[p++];
+                    int weight = x.weights[w++];
+                    a += (pixel >>> 24) * weight;
+                    r += (pixel >>> 16 & 0xff) * weight;
+                    g += (pixel >>> 8 & 0xff) * weight;
+                    b += (pixel & 0xff) * weight;
+                }
+                rows[o++] = a;
+                rows[o++] = r;
+                rows[o++] = g;
+                rows[o++] = b;
+            }
+            return half * length;
+        }
+    }
+}
@@ -7,6 +7,8 @@ package ome.logic;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -55,6 +57,7 @@ import ome.model.screen.Plate;
 import ome.model.stats.StatsInfo;
 import ome.model.units.Length;
 import ome.parameters.Parameters;
+import ome.services.RenderedTileCache;
 import omeis.providers.re.ColorsFactory;
 import omeis.providers.re.Renderer;
 import omeis.providers.re.data.PlaneDef;
@@ -92,6 +95,9 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
 
     /** Reference to the service used to retrieve the pixels metadata. */
     protected transient IPixels pixelsMetadata;
+
+    /** The cache of the rendered images to invalidate on save. */
+    protected transient RenderedTileCache renderedTileCache;
  
     /**
      * Returns the min/max depending on the pixels type if the values
@@ -537,6 +543,7 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
             {
             	log.info("Saving settings: " + settings);
                 pixelsMetadata.saveRndSettings(settings);
+                invalidateRenderedTiles(Collections.singleton(settings));
             }
             return settings;
         } 
@@ -664,6 +671,7 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         	RenderingDef[] toSaveArray = 
         		toSave.toArray(new RenderingDef[toSave.size()]);
         	iUpdate.saveAndReturnArray(toSaveArray);
+        	invalidateRenderedTiles(toSave);
         }
         s2.stop();
         s1.stop();
@@ -1160,6 +1168,39 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         pixelsData = dataService;
     }
 
+    /**
+     * Sets injector. For use during configuration. Can only be called once.
+     * 
+     * @param renderedTileCache
+     *            The value to set.
+     */
+    public void setRenderedTileCache(RenderedTileCache renderedTileCache) {
+        getBeanHelper().throwIfAlreadySet(this.renderedTileCache,
+                renderedTileCache);
+        this.renderedTileCache = renderedTileCache;
+    }
+
+    /**
+     * Removes the cached rendered images of the pixels sets whose settings
+     * have been saved.
+     * 
+     * @param saved The saved objects.
+     */
+    private void invalidateRenderedTiles(Collection<? extends IObject> saved)
+    {
+        if (renderedTileCache == null) {
+            return;
+        }
+        for (IObject object : saved) {
+            if (object instanceof RenderingDef) {
+                Pixels pixels = ((RenderingDef) object).getPixels();
+                if (pixels != null && pixels.getId() != null) {
+                    renderedTileCache.invalidate(pixels.getId());
+                }
+            }
+        }
+    }
+
     /**
      * Returns the interface this implementation is for.
      * @see AbstractLevel2Service#getServiceInterface()
@@ -1258,6 +1299,7 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         RenderingDef[] toSaveArray = 
         	toSave.toArray(new RenderingDef[toSave.size()]);
         iUpdate.saveAndReturnArray(toSaveArray);
+        invalidateRenderedTiles(toSave);
         s2.stop();
         s1.stop();
         
@@ -1491,7 +1533,10 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
                         "%s from %s to %s", pixels, from, to), e);
             }
         }
-        if (toSave.size() > 0) iUpdate.saveCollection(toSave);
+        if (toSave.size() > 0) {
+            iUpdate.saveCollection(toSave);
+            invalidateRenderedTiles(toSave);
+        }
         return toReturn;
     }
 
@@ -1573,7 +1618,10 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
             // IUpdate.touch() or similar once that functionality exists.
             settings.setVersion(settings.getVersion() + 1);
         }
-        if (toSave.size() > 0) iUpdate.saveCollection(toSave);
+        if (toSave.size() > 0) {
+            iUpdate.saveCollection(toSave);
+            invalidateRenderedTiles(toSave);
+        }
         s1.stop();
         return toReturn;
     }
@@ -0,0 +1,211 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Server-wide cache of the histograms returned by
+ * {@link RawPixelsBean#getHistogram(int[], int, boolean,
+ * omeis.providers.re.data.PlaneDef)}. The entries are keyed by the pixels
+ * set, the resolution level, the plane, the channel, the region, the number
+ * of bins and the range of the bins, so that a change of the global
+ * statistics never returns a stale histogram. The writes through the raw
+ * pixels store invalidate the histograms of their pixels set.
+ * <p>
+ * The entries are held in memory up to a number of bytes.
+ * </p>
+ *
+ * @since 5.4.0
+ */
+public class HistogramCache {
+
+    /** The cache or <code>null</code> if the cache is disabled. */
+    private final Cache<Key, int[]> memory;
+
+    /** Number of lookups which found a histogram. */
+    private Counter hits = new NullMetrics().counter(this, "hits");
+
+    /** Number of lookups which did not find a histogram. */
+    private Counter misses = new NullMetrics().counter(this, "misses");
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxBytes The maximum number of bytes held in memory.
+     *                 <code>0</code> disables the cache.
+     */
+    public HistogramCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            memory = null;
+            return;
+        }
+        memory = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Key, int[]>() {
+                    public int weigh(Key key, int[] value) {
+                        return 4 * value.length;
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Sets the metrics to report the hits and misses to.
+     *
+     * @param metrics The value to set.
+     */
+    public void setMetrics(Metrics metrics) {
+        hits = metrics.counter(this, "hits");
+        misses = metrics.counter(this, "misses");
+    }
+
+    /**
+     * Returns <code>true</code> if the cache holds histograms,
+     * <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return memory != null;
+    }
+
+    /**
+     * Returns a copy of the cached histogram for the specified key.
+     *
+     * @param key The key of the histogram.
+     * @return See above or <code>null</code> if the histogram is not cached.
+     */
+    public int[] get(Key key) {
+        if (memory == null) {
+            return null;
+        }
+        int[] data = memory.getIfPresent(key);
+        if (data == null) {
+            misses.inc();
+            return null;
+        }
+        hits.inc();
+        return data.clone();
+    }
+
+    /**
+     * Caches a copy of the specified histogram.
+     *
+     * @param key The key of the histogram.
+     * @param data The number of pixels in each bin.
+     */
+    public void put(Key key, int[] data) {
+        if (memory != null && data != null) {
+            memory.put(key, data.clone());
+        }
+    }
+
+    /**
+     * Removes all the histograms of the specified pixels set.
+     *
+     * @param pixelsId The identifier of the pixels set.
+     */
+    public void invalidate(long pixelsId) {
+        if (memory == null) {
+            return;
+        }
+        Iterator<Key> i = memory.asMap().keySet().iterator();
+        while (i.hasNext()) {
+            if (i.next().pixelsId == pixelsId) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the histograms.
+     */
+    public void clear() {
+        if (memory != null) {
+            memory.invalidateAll();
+        }
+    }
+
+    /** The key of a cached histogram. */
+    public static final class Key {
+
+        /** The identifier of the pixels set. */
+        private final long pixelsId;
+
+        /**
+         * The resolution level, the plane, the channel, the region and the
+         * number of bins.
+         */
+        private final int[] geometry;
+
+        /** The minimum of the bins, <code>NaN</code> for the plane's. */
+        private final double min;
+
+        /** The maximum of the bins, <code>NaN</code> for the plane's. */
+        private final double max;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param pixelsId The identifier of the pixels set.
+         * @param level The resolution level.
+         * @param z The Z-section.
+         * @param c The channel.
+         * @param t The timepoint.
+         * @param x The X offset of the region.
+         * @param y The Y offset of the region.
+         * @param w The width of the region.
+         * @param h The height of the region.
+         * @param binCount The number of bins.
+         * @param range The minimum and maximum of the bins or
+         *              <code>null</code> if those of the plane are used.
+         */
+        public Key(long pixelsId, int level, int z, int c, int t, int x,
+                int y, int w, int h, int binCount, double[] range) {
+            this.pixelsId = pixelsId;
+            geometry = new int[] { level, z, c, t, x, y, w, h, binCount };
+            min = range == null ? Double.NaN : range[0];
+            max = range == null ? Double.NaN : range[1];
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return pixelsId == other.pixelsId
+                    && Arrays.equals(geometry, other.geometry)
+                    && Double.compare(min, other.min) == 0
+                    && Double.compare(max, other.max) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = (int) (pixelsId ^ (pixelsId >>> 32));
+            h = 31 * h + Arrays.hashCode(geometry);
+            long bits = Double.doubleToLongBits(min);
+            h = 31 * h + (int) (bits ^ (bits >>> 32));
+            bits = Double.doubleToLongBits(max);
+            return 31 * h + (int) (bits ^ (bits >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return pixelsId + "/" + Arrays.toString(geometry)
+                    + "/" + min + "-" + max;
+        }
+    }
+}
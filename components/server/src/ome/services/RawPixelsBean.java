@@ -13,6 +13,8 @@ import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -31,14 +33,20 @@ import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
 import ome.io.nio.PixelsService;
 import ome.io.nio.RomioPixelBuffer;
+import ome.io.nio.TilePrefetcher;
+import ome.io.nio.TileRequest;
+import ome.io.nio.TileSizes;
 import ome.model.core.Channel;
 import ome.model.core.Pixels;
 import ome.parameters.Parameters;
 import ome.util.PixelData;
 import ome.util.ShallowCopy;
 import ome.util.SqlAction;
+import omeis.providers.re.RenderingExecutor;
+import omeis.providers.re.RenderingTask;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.metadata.StatsFactory;
+import omeis.providers.re.quantum.QuantizationException;
 
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
@@ -67,6 +75,18 @@ public class RawPixelsBean extends AbstractStatefulBean implements
 
     /** The default bin size used for histograms */
     private static final int DEFAULT_HISTOGRAM_BINSIZE = 256;
+
+    /**
+     * The number of pixels read for a channel from which the histograms of
+     * several channels are computed in parallel.
+     */
+    private static final long PARALLEL_HISTOGRAM_SIZE = 1 << 20;
+
+    /**
+     * The maximum number of pixel buffers the histograms of several channels
+     * are read through at a time, the one of the store included.
+     */
+    private static final int MAX_HISTOGRAM_BUFFERS = 4;
     
     private Long id;
 
@@ -78,6 +98,18 @@ public class RawPixelsBean extends AbstractStatefulBean implements
 
     private transient PixelsService dataService;
 
+    /** Reads ahead the tiles likely to be requested next, if set. */
+    private transient TilePrefetcher tilePrefetcher;
+
+    /** Computes the histograms of several channels in parallel. */
+    private transient RenderingExecutor renderingExecutor;
+
+    /** The histograms already computed, if set. */
+    private transient HistogramCache histogramCache;
+
+    /** The rendered images, invalidated when the pixels are written. */
+    private transient RenderedTileCache renderedTileCache;
+
     private transient IPixels metadataService;
 
     /** the disk space checking service */
@@ -128,6 +160,55 @@ public class RawPixelsBean extends AbstractStatefulBean implements
         this.dataService = dataService;
     }
 
+    /**
+     * Tile prefetcher Bean injector
+     *
+     * @param tilePrefetcher
+     *            the prefetcher shared by all the beans
+     */
+    public synchronized final void setTilePrefetcher(TilePrefetcher tilePrefetcher) {
+        getBeanHelper().throwIfAlreadySet(this.tilePrefetcher, tilePrefetcher);
+        this.tilePrefetcher = tilePrefetcher;
+    }
+
+    /**
+     * Rendering executor Bean injector
+     *
+     * @param renderingExecutor
+     *            the pool shared by the rendering engines
+     */
+    public synchronized final void setRenderingExecutor(
+            RenderingExecutor renderingExecutor) {
+        getBeanHelper().throwIfAlreadySet(this.renderingExecutor,
+                renderingExecutor);
+        this.renderingExecutor = renderingExecutor;
+    }
+
+    /**
+     * Histogram cache Bean injector
+     *
+     * @param histogramCache
+     *            the cache shared by all the beans
+     */
+    public synchronized final void setHistogramCache(
+            HistogramCache histogramCache) {
+        getBeanHelper().throwIfAlreadySet(this.histogramCache, histogramCache);
+        this.histogramCache = histogramCache;
+    }
+
+    /**
+     * Rendered tile cache Bean injector
+     *
+     * @param renderedTileCache
+     *            the cache shared by the rendering engines
+     */
+    public synchronized final void setRenderedTileCache(
+            RenderedTileCache renderedTileCache) {
+        getBeanHelper().throwIfAlreadySet(this.renderedTileCache,
+                renderedTileCache);
+        this.renderedTileCache = renderedTileCache;
+    }
+
     /**
      * Disk Space Usage service Bean injector
      * 
@@ -149,6 +230,46 @@ public class RawPixelsBean extends AbstractStatefulBean implements
         this.sql = sql;
     }
 
+    /**
+     * Retrieves the pool the histograms are computed on, falling back on the
+     * default one if none has been injected.
+     *
+     * @return See above.
+     */
+    private RenderingExecutor getRenderingExecutor() {
+        if (renderingExecutor == null) {
+            return RenderingExecutor.getDefault();
+        }
+        return renderingExecutor;
+    }
+
+    /**
+     * Overridden to drop the histograms and rendered images of the pixels
+     * set on its first write since the last save.
+     */
+    @Override
+    protected void modified() {
+        if (!isModified()) {
+            invalidateCaches();
+        }
+        super.modified();
+    }
+
+    /**
+     * Drops the histograms and the rendered images of the pixels set.
+     */
+    private void invalidateCaches() {
+        if (id == null) {
+            return;
+        }
+        if (histogramCache != null) {
+            histogramCache.invalidate(id);
+        }
+        if (renderedTileCache != null) {
+            renderedTileCache.invalidate(id);
+        }
+    }
+
     // ~ Lifecycle methods
     // =========================================================================
 
@@ -197,6 +318,8 @@ public class RawPixelsBean extends AbstractStatefulBean implements
             }
 
             iUpdate.flush();
+            // The entries computed while the pixels were being written.
+            invalidateCaches();
             modified = false;
             return new ShallowCopy().copy(pixelsInstance);
         }
@@ -282,6 +405,9 @@ public class RawPixelsBean extends AbstractStatefulBean implements
 
             try {
                 buffer = dataService.getPixelBuffer(pixelsInstance, true);
+                if (tilePrefetcher != null) {
+                    buffer = tilePrefetcher.wrap(buffer);
+                }
             } catch (RuntimeException re) {
                 // Rolling back to let the next setPixelsId try again
                 // since this is most likely our MissingPyramidException.
@@ -682,14 +808,12 @@ public class RawPixelsBean extends AbstractStatefulBean implements
             int binCount, boolean globalRange, PlaneDef plane) {
         errorIfNotLoaded();
 
-        if (requiresPixelsPyramid())
-            throw new ApiUsageException(
-                    "This method can not handle tiled images yet.");
-
         if (binCount <= 0)
             binCount = DEFAULT_HISTOGRAM_BINSIZE;
 
-        int imgWidth = buffer.getSizeX();
+        // The plane and the region are those of the current resolution level.
+        int sizeX = buffer.getSizeX();
+        int sizeY = buffer.getSizeY();
 
         int z = (plane != null && plane.getZ() >= 0) ? plane.getZ() : 0;
         int t = (plane != null && plane.getT() >= 0) ? plane.getT() : 0;
@@ -699,44 +823,56 @@ public class RawPixelsBean extends AbstractStatefulBean implements
                 .getRegion().getY() >= 0) ? plane.getRegion().getY() : 0;
         int w = (plane != null && plane.getRegion() != null && plane
                 .getRegion().getWidth() > 0) ? plane.getRegion().getWidth()
-                : imgWidth;
+                : sizeX;
         int h = (plane != null && plane.getRegion() != null && plane
                 .getRegion().getHeight() > 0) ? plane.getRegion().getHeight()
-                : buffer.getSizeY();
+                : sizeY;
+        // The pixels outside of the plane are not counted.
+        w = Math.max(0, Math.min(x + w, sizeX) - x);
+        h = Math.max(0, Math.min(y + h, sizeY) - y);
 
         Map<Integer, int[]> result = new HashMap<Integer, int[]>();
+        int level = buffer.getResolutionLevel();
+        List<Integer> missing = new ArrayList<Integer>();
+        List<double[]> ranges = new ArrayList<double[]>();
+        List<HistogramCache.Key> keys = new ArrayList<HistogramCache.Key>();
+        long size = (long) w * h;
+
+        for (int ch : channels) {
+            Channel channel = pixelsInstance.getChannel(ch);
+            if (channel == null)
+                continue;
+            double[] range = determineHistogramRange(channel, globalRange);
+            HistogramCache.Key key = new HistogramCache.Key(id, level, z,
+                    ch, t, x, y, w, h, binCount, range);
+            int[] data = histogramCache == null ? null
+                    : histogramCache.get(key);
+            if (data != null) {
+                result.put(ch, data);
+                continue;
+            }
+            if (range == null) {
+                // The minimum and maximum of the whole plane are needed.
+                size = (long) sizeX * sizeY;
+            }
+            missing.add(ch);
+            ranges.add(range);
+            keys.add(key);
+        }
+        if (missing.isEmpty())
+            return result;
 
         try {
-            for (int ch : channels) {
-                Channel channel = pixelsInstance.getChannel(ch);
-                if (channel == null)
-                    continue;
-                PixelData px = buffer.getPlane(z, ch, t);
-                int[] data = new int[binCount];
-
-                double[] minmax = determineHistogramMinMax(px, channel,
-                        globalRange);
-                double min = minmax[0];
-                double max = minmax[1];
-
-                double range = max - min + 1;
-                double binRange = range / binCount;
-                for (int i = 0; i < px.size(); i++) {
-                    int pxx = i % imgWidth;
-                    int pxy = i / imgWidth;
-                    if (pxx >= x && pxx < (x + w) && pxy >= y && pxy < (y + h)) {
-                        int bin = (int) ((px.getPixelValue(i) - min) / binRange);
-                        // if there are more bins than values (binRange < 1) the bin will be offset by -1.
-                        // e.g. min=0.0, max=127.0, binCount=256: a pixel with max value 127.0 would go
-                        // into bin 254 (expected: 255). Therefore increment by one for these cases.
-                        if (bin > 0 && binRange < 1)
-                            bin++;
-
-                        if (bin >= 0 && bin < binCount)
-                            data[bin]++;
-                    }
-                }
-                result.put(ch, data);
+            TiledHistogram histogram = new TiledHistogram(
+                    pixelsInstance.getPixelsType().getValue(),
+                    new StatsFactory().initPixelsRange(pixelsInstance),
+                    z, t, x, y, w, h, binCount);
+            int[][] data = computeHistograms(histogram, missing, ranges,
+                    size);
+            for (int i = 0; i < data.length; i++) {
+                result.put(missing.get(i), data[i]);
+                if (histogramCache != null)
+                    histogramCache.put(keys.get(i), data[i]);
             }
         } catch (Exception e) {
             handleException(e);
@@ -747,46 +883,112 @@ public class RawPixelsBean extends AbstractStatefulBean implements
 
     // ~ Helpers
     // =========================================================================
-    
+
+    /**
+     * Computes the histograms of the specified channels. The channels are
+     * computed in parallel on the rendering executor if there are several
+     * of them and enough pixels to read. Since the pixel buffers are not
+     * thread-safe, the channels are split between at most
+     * {@link #MAX_HISTOGRAM_BUFFERS} tasks, each reading its channels in
+     * turn through a pixel buffer of its own, the first through the one of
+     * the store. The other buffers are closed once the histograms are
+     * computed.
+     *
+     * @param histogram
+     *            The plane, region and bins of the histograms.
+     * @param channels
+     *            The channels.
+     * @param ranges
+     *            The minimum and maximum of the bins of each channel,
+     *            <code>null</code> to use those of the plane.
+     * @param size
+     *            The number of pixels read for a channel.
+     * @return The histogram of each channel.
+     * @throws IOException
+     *             If the pixels cannot be read.
+     * @throws QuantizationException
+     *             Not thrown, required by the {@link RenderingTask}s.
+     */
+    private int[][] computeHistograms(final TiledHistogram histogram,
+            final List<Integer> channels, final List<double[]> ranges,
+            long size) throws IOException, QuantizationException {
+        final int n = channels.size();
+        final int[][] data = new int[n][];
+        final int count = Math.min(Math.min(n, MAX_HISTOGRAM_BUFFERS),
+                getRenderingExecutor().getThreadCount() + 1);
+        if (count == 1 || size < PARALLEL_HISTOGRAM_SIZE) {
+            for (int i = 0; i < n; i++) {
+                data[i] = histogram.compute(buffer, channels.get(i),
+                        ranges.get(i));
+            }
+            return data;
+        }
+        final PixelBuffer[] buffers = new PixelBuffer[count];
+        buffers[0] = buffer;
+        try {
+            // Opened here as the pixels set may not be read from the workers.
+            for (int i = 1; i < count; i++) {
+                buffers[i] = dataService.getPixelBuffer(pixelsInstance, false);
+                if (buffers[i].getResolutionLevels() > 1) {
+                    buffers[i].setResolutionLevel(buffer.getResolutionLevel());
+                }
+            }
+            RenderingTask[] tasks = new RenderingTask[count];
+            for (int i = 0; i < count; i++) {
+                final int first = i;
+                tasks[i] = new RenderingTask() {
+                    public Object call() {
+                        try {
+                            for (int c = first; c < n; c += count) {
+                                data[c] = histogram.compute(buffers[first],
+                                        channels.get(c), ranges.get(c));
+                            }
+                        } catch (IOException e) {
+                            throw new ResourceError(e.getMessage());
+                        }
+                        return null;
+                    }
+                };
+            }
+            getRenderingExecutor().invokeAll(tasks);
+        } finally {
+            for (int i = 1; i < count; i++) {
+                try {
+                    if (buffers[i] != null) {
+                        buffers[i].close();
+                    }
+                } catch (IOException e) {
+                    log.warn("Cannot close a histogram pixel buffer.", e);
+                }
+            }
+        }
+        return data;
+    }
+
     /**
      * Get the minimum and maximum value to use for the histogram. If useGlobal
      * is <code>true</code> and the channel has stats calculated the global
      * minimum and maximum will be used, otherwise the minimum and maximum value
-     * of the plane will be used.
+     * of the plane, determined while reading it, will be used.
      * 
-     * @param px
-     *            The {@link PixelData}
      * @param channel
      *            The {@link Channel}
      * @param useGlobal
      *            Try to use the global minimum/maximum
-     * @return See above
+     * @return See above or <code>null</code> for the minimum and maximum of
+     *         the plane.
      */
-    private double[] determineHistogramMinMax(PixelData px, Channel channel,
+    private double[] determineHistogramRange(Channel channel,
             boolean useGlobal) {
-        double min, max;
-
-        if (useGlobal && channel != null && channel.getStatsInfo() != null) {
-            min = channel.getStatsInfo().getGlobalMin();
-            max = channel.getStatsInfo().getGlobalMax();
+        if (useGlobal && channel.getStatsInfo() != null) {
+            double min = channel.getStatsInfo().getGlobalMin();
+            double max = channel.getStatsInfo().getGlobalMax();
             // if max == 1.0 the global min/max probably has not been
             // calculated; fall back to plane min/max
             if (max != 1.0)
                 return new double[] { min, max };
         }
-
-        StatsFactory sf = new StatsFactory();
-        double[] pixelMinMax = sf.initPixelsRange(channel.getPixels());
-
-        min = pixelMinMax[1];
-        max = pixelMinMax[0];
-
-        for (int i = 0; i < px.size(); i++) {
-            min = Math.min(min, px.getPixelValue(i));
-            max = Math.max(max, px.getPixelValue(i));
-        }
-
-        return new double[] { min, max };
+        return null;
     }
     
     private synchronized byte[] bufferAsByteArrayWithExceptionIfNull(ByteBuffer buffer) {
@@ -913,6 +1115,82 @@ public class RawPixelsBean extends AbstractStatefulBean implements
         return readBuffer;
     }
 
+    /* (non-Javadoc)
+     * @see ome.api.RawPixelsStore#getTiles(int, int, int, java.util.List)
+     */
+    @RolesAllowed("user")
+    public synchronized byte[] getTiles(int z, int c, int t,
+            List<Integer> regions)
+    {
+        errorIfNotLoaded();
+
+        if (regions == null || regions.size() % 4 != 0) {
+            throw new ApiUsageException("Regions must hold the x, y, width "
+                    + "and height of each tile.");
+        }
+        final int byteWidth = buffer.getByteWidth();
+        final int sizeX = buffer.getSizeX();
+        final int sizeY = buffer.getSizeY();
+        final TileSizes sizes = dataService.getTileSizes();
+        final long maxSize = (long) sizes.getMaxPlaneWidth()
+                * (long) sizes.getMaxPlaneHeight() * byteWidth;
+        final List<TileRequest> tiles =
+                new ArrayList<TileRequest>(regions.size() / 4);
+        long size = 0;
+        for (int i = 0; i < regions.size(); i += 4) {
+            int x = regions.get(i);
+            int y = regions.get(i + 1);
+            int w = regions.get(i + 2);
+            int h = regions.get(i + 3);
+            if (x < 0 || y < 0 || w <= 0 || h <= 0
+                    || (long) x + w > sizeX || (long) y + h > sizeY) {
+                throw new ApiUsageException(String.format(
+                        "Tile %d,%d %dx%d is not within the %dx%d plane.",
+                        x, y, w, h, sizeX, sizeY));
+            }
+            tiles.add(new TileRequest(z, c, t, x, y, w, h));
+            size += (long) w * (long) h * byteWidth;
+            if (size > maxSize) {
+                throw new ApiUsageException(String.format(
+                        "The tiles exceed %d bytes in total.", maxSize));
+            }
+        }
+        byte[] tilesBuffer = new byte[RomioPixelBuffer.safeLongToInteger(size)];
+        try {
+            int offset = 0;
+            for (PixelData tile : buffer.getTiles(tiles)) {
+                offset = copyTile(tile, tilesBuffer, offset);
+                tile.dispose();
+            }
+        } catch (Exception e) {
+            handleException(e);
+        }
+        return tilesBuffer;
+    }
+
+    /**
+     * Copies the data of a tile in big-endian order, as returned by
+     * {@link PixelBuffer#getTileDirect}.
+     * @return The offset following the copied data.
+     */
+    private static int copyTile(PixelData tile, byte[] dst, int offset) {
+        final ByteBuffer src = tile.getData().duplicate();
+        src.rewind();
+        final int length = src.remaining();
+        src.get(dst, offset, length);
+        final int bytesPerPixel = tile.bytesPerPixel();
+        if (bytesPerPixel > 1 && tile.getOrder() == ByteOrder.LITTLE_ENDIAN) {
+            for (int i = offset; i < offset + length; i += bytesPerPixel) {
+                for (int j = 0; j < bytesPerPixel / 2; j++) {
+                    byte b = dst[i + j];
+                    dst[i + j] = dst[i + bytesPerPixel - 1 - j];
+                    dst[i + bytesPerPixel - 1 - j] = b;
+                }
+            }
+        }
+        return offset + length;
+    }
+
     /* (non-Javadoc)
      * @see ome.api.RawPixelsStore#setTile(byte[], int, int, int, int, int, int, int)
      */
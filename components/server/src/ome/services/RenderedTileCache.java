@@ -0,0 +1,365 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Server-wide cache of the compressed images returned by
+ * {@link RenderingBean#renderCompressed(omeis.providers.re.data.PlaneDef)}.
+ * The entries are keyed by the pixels set and by a fingerprint of everything
+ * the rendered image depends on, i.e. the requested plane or region, the
+ * resolution level, the compression level and the rendering settings,
+ * including the parameters of the codomain maps and the modification time of
+ * the lookup tables. A change of the settings therefore never returns a stale
+ * image, the invalidation done when settings are saved only releases the
+ * space. The writes through the raw pixels store invalidate the images of
+ * their pixels set.
+ * <p>
+ * The entries are held in memory up to a number of bytes. The entries
+ * evicted because the memory budget is exceeded are written to disk if a
+ * spill size is set, the least recently used files being deleted once the
+ * spill budget is exceeded. The spill directory is emptied on start-up.
+ * </p>
+ *
+ * @since 5.4.0
+ */
+public class RenderedTileCache {
+
+    /** The logger for this particular class */
+    private static Logger log = LoggerFactory.getLogger(RenderedTileCache.class);
+
+    /** The name of the spill directory under the binary repository. */
+    public static final String SPILL_DIR = "RenderedTiles";
+
+    /** The in-memory tier or <code>null</code> if the cache is disabled. */
+    private final Cache<Key, byte[]> memory;
+
+    /** The spill directory or <code>null</code> if spilling is disabled. */
+    private final File spillDir;
+
+    /** The maximum number of bytes to spill to disk. */
+    private final long maxSpillBytes;
+
+    /** The size of the spilled entries in access order. */
+    private final LinkedHashMap<Key, Integer> spilled =
+            new LinkedHashMap<Key, Integer>(16, 0.75f, true);
+
+    /** The total size of the spilled entries. */
+    private long spilledBytes;
+
+    /** Number of lookups which found an image. */
+    private Counter hits = new NullMetrics().counter(this, "hits");
+
+    /** Number of lookups which did not find an image. */
+    private Counter misses = new NullMetrics().counter(this, "misses");
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxBytes The maximum number of bytes held in memory.
+     *                 <code>0</code> disables the cache.
+     * @param maxSpillBytes The maximum number of bytes written to disk.
+     *                      <code>0</code> disables spilling.
+     * @param dataDir The binary repository.
+     */
+    public RenderedTileCache(long maxBytes, long maxSpillBytes,
+            String dataDir) {
+        if (maxBytes <= 0) {
+            memory = null;
+            spillDir = null;
+            this.maxSpillBytes = 0;
+            return;
+        }
+        this.maxSpillBytes = maxSpillBytes;
+        if (maxSpillBytes > 0 && dataDir != null) {
+            spillDir = new File(dataDir, SPILL_DIR);
+            try {
+                if (spillDir.exists()) {
+                    FileUtils.cleanDirectory(spillDir);
+                }
+            } catch (IOException e) {
+                log.warn("Cannot clean " + spillDir, e);
+            }
+        } else {
+            spillDir = null;
+        }
+        CacheBuilder<Key, byte[]> builder = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Key, byte[]>() {
+                    public int weigh(Key key, byte[] value) {
+                        return value.length;
+                    }
+                });
+        if (spillDir != null) {
+            builder = builder.removalListener(
+                    new RemovalListener<Key, byte[]>() {
+                        public void onRemoval(
+                                RemovalNotification<Key, byte[]> n) {
+                            if (n.getCause() == RemovalCause.SIZE) {
+                                spill(n.getKey(), n.getValue());
+                            }
+                        }
+                    });
+        }
+        memory = builder.build();
+    }
+
+    /**
+     * Sets the metrics to report the hits and misses to.
+     *
+     * @param metrics The value to set.
+     */
+    public void setMetrics(Metrics metrics) {
+        hits = metrics.counter(this, "hits");
+        misses = metrics.counter(this, "misses");
+    }
+
+    /**
+     * Returns <code>true</code> if the cache holds images,
+     * <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return memory != null;
+    }
+
+    /**
+     * Returns the cached image for the specified key. An image found on disk
+     * is moved back to memory.
+     *
+     * @param key The key of the image.
+     * @return See above or <code>null</code> if the image is not cached.
+     */
+    public byte[] get(Key key) {
+        if (memory == null) {
+            return null;
+        }
+        byte[] data = memory.getIfPresent(key);
+        if (data == null && spillDir != null) {
+            data = unspill(key);
+            if (data != null) {
+                memory.put(key, data);
+            }
+        }
+        if (data == null) {
+            misses.inc();
+        } else {
+            hits.inc();
+        }
+        return data;
+    }
+
+    /**
+     * Caches the specified image.
+     *
+     * @param key The key of the image.
+     * @param data The compressed image.
+     */
+    public void put(Key key, byte[] data) {
+        if (memory != null && data != null) {
+            memory.put(key, data);
+        }
+    }
+
+    /**
+     * Removes all the images of the specified pixels set.
+     *
+     * @param pixelsId The identifier of the pixels set.
+     */
+    public void invalidate(long pixelsId) {
+        if (memory == null) {
+            return;
+        }
+        Iterator<Key> i = memory.asMap().keySet().iterator();
+        while (i.hasNext()) {
+            if (i.next().pixelsId == pixelsId) {
+                i.remove();
+            }
+        }
+        if (spillDir == null) {
+            return;
+        }
+        synchronized (spilled) {
+            Iterator<Map.Entry<Key, Integer>> j =
+                    spilled.entrySet().iterator();
+            Map.Entry<Key, Integer> e;
+            while (j.hasNext()) {
+                e = j.next();
+                if (e.getKey().pixelsId == pixelsId) {
+                    spilledBytes -= e.getValue();
+                    j.remove();
+                }
+            }
+            FileUtils.deleteQuietly(new File(spillDir,
+                    Long.toString(pixelsId)));
+        }
+    }
+
+    /**
+     * Removes all the images.
+     */
+    public void clear() {
+        if (memory == null) {
+            return;
+        }
+        memory.invalidateAll();
+        if (spillDir == null) {
+            return;
+        }
+        synchronized (spilled) {
+            for (Key key : spilled.keySet()) {
+                FileUtils.deleteQuietly(getFile(key));
+            }
+            spilled.clear();
+            spilledBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the file the specified entry is spilled to.
+     *
+     * @param key The key of the image.
+     * @return See above.
+     */
+    private File getFile(Key key) {
+        File dir = new File(spillDir, Long.toString(key.pixelsId));
+        return new File(dir, key.fingerprint);
+    }
+
+    /**
+     * Writes the specified image to disk, deleting the least recently used
+     * files if the spill budget is exceeded.
+     *
+     * @param key The key of the image.
+     * @param data The compressed image.
+     */
+    private void spill(Key key, byte[] data) {
+        if (data.length > maxSpillBytes) {
+            return;
+        }
+        synchronized (spilled) {
+            File file = getFile(key);
+            try {
+                FileUtils.writeByteArrayToFile(file, data);
+            } catch (IOException e) {
+                log.warn("Cannot spill rendered image to " + file, e);
+                FileUtils.deleteQuietly(file);
+                return;
+            }
+            Integer previous = spilled.put(key, data.length);
+            if (previous != null) {
+                spilledBytes -= previous;
+            }
+            spilledBytes += data.length;
+            Iterator<Map.Entry<Key, Integer>> i =
+                    spilled.entrySet().iterator();
+            Map.Entry<Key, Integer> e;
+            while (spilledBytes > maxSpillBytes && i.hasNext()) {
+                e = i.next();
+                spilledBytes -= e.getValue();
+                FileUtils.deleteQuietly(getFile(e.getKey()));
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Reads the specified image from disk and deletes the file.
+     *
+     * @param key The key of the image.
+     * @return See above or <code>null</code> if the image was not spilled.
+     */
+    private byte[] unspill(Key key) {
+        synchronized (spilled) {
+            Integer size = spilled.remove(key);
+            if (size == null) {
+                return null;
+            }
+            spilledBytes -= size;
+            File file = getFile(key);
+            try {
+                return FileUtils.readFileToByteArray(file);
+            } catch (IOException e) {
+                log.warn("Cannot read spilled rendered image " + file, e);
+                return null;
+            } finally {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    /**
+     * Creates the key of an image.
+     *
+     * @param pixelsId The identifier of the pixels set.
+     * @param description A description of everything the rendered image
+     *                    depends on.
+     * @return See above.
+     */
+    public static Key createKey(long pixelsId, String description) {
+        String fingerprint = Hashing.sha1().hashString(description,
+                Charsets.UTF_8).toString();
+        return new Key(pixelsId, fingerprint);
+    }
+
+    /** The key of a cached image. */
+    public static final class Key {
+
+        /** The identifier of the pixels set. */
+        private final long pixelsId;
+
+        /** The hash of the description of the image. */
+        private final String fingerprint;
+
+        private Key(long pixelsId, String fingerprint) {
+            this.pixelsId = pixelsId;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return pixelsId == other.pixelsId
+                    && fingerprint.equals(other.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (pixelsId ^ (pixelsId >>> 32))
+                    + fingerprint.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return pixelsId + "/" + fingerprint;
+        }
+    }
+}
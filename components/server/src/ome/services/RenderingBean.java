@@ -5,8 +5,6 @@
 package ome.services;
 
 import java.awt.Dimension;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
@@ -17,6 +15,7 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ome.annotations.RolesAllowed;
@@ -33,6 +32,7 @@ import ome.conditions.ValidationException;
 import ome.io.nio.InMemoryPlanarPixelBuffer;
 import ome.io.nio.PixelBuffer;
 import ome.io.nio.PixelsService;
+import ome.io.nio.TilePrefetcher;
 import ome.model.IObject;
 import ome.model.core.Channel;
 import ome.model.core.OriginalFile;
@@ -51,17 +51,22 @@ import ome.services.util.Executor;
 import ome.system.EventContext;
 import ome.system.ServiceFactory;
 import ome.system.SimpleEventContext;
-import ome.util.ImageUtil;
 import ome.util.ShallowCopy;
 import omeis.providers.re.RGBBuffer;
 import omeis.providers.re.Renderer;
+import omeis.providers.re.RenderingExecutor;
+import omeis.providers.re.RenderingMetrics;
+import omeis.providers.re.RenderingStats;
 import omeis.providers.re.RenderingEngine;
 import omeis.providers.re.codomain.CodomainChain;
 import omeis.providers.re.codomain.CodomainMap;
 import omeis.providers.re.codomain.CodomainMapContext;
+import omeis.providers.re.codomain.ContrastStretchingContext;
+import omeis.providers.re.codomain.PlaneSlicingContext;
 import omeis.providers.re.codomain.ReverseIntensityContext;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.data.RegionDef;
+import omeis.providers.re.lut.LutCache;
 import omeis.providers.re.quantum.QuantizationException;
 import omeis.providers.re.quantum.QuantumFactory;
 
@@ -158,6 +163,15 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /** Reference to the helper used to retrieve luts.*/
     private final ScriptRepoHelper helper;
 
+    /** The pool shared by all the renderers of the server. */
+    private transient RenderingExecutor renderingExecutor;
+
+    /** The cache of the compressed images shared by all the beans. */
+    private transient RenderedTileCache renderedTileCache;
+
+    /** Reads ahead the tiles likely to be rendered next, if set. */
+    private transient TilePrefetcher tilePrefetcher;
+
     /** Notification that the bean has just returned from passivation. */
     private transient boolean wasPassivated = false;
 
@@ -195,6 +209,36 @@ public class RenderingBean implements RenderingEngine, Serializable {
         this.helper = helper;
     }
 
+    /**
+     * Rendering executor Bean injector.
+     *
+     * @param renderingExecutor
+     *          The pool shared by all the renderers of the server.
+     */
+    public void setRenderingExecutor(RenderingExecutor renderingExecutor) {
+        this.renderingExecutor = renderingExecutor;
+    }
+
+    /**
+     * Rendered tile cache Bean injector.
+     *
+     * @param renderedTileCache
+     *          The cache of the compressed images shared by all the beans.
+     */
+    public void setRenderedTileCache(RenderedTileCache renderedTileCache) {
+        this.renderedTileCache = renderedTileCache;
+    }
+
+    /**
+     * Tile prefetcher Bean injector.
+     *
+     * @param tilePrefetcher
+     *          The prefetcher shared by all the beans.
+     */
+    public void setTilePrefetcher(TilePrefetcher tilePrefetcher) {
+        this.tilePrefetcher = tilePrefetcher;
+    }
+
     @RolesAllowed("user")
     public long getRenderingDefId() {
         if (rendDefObj == null || rendDefObj.getId() == null) {
@@ -425,8 +469,14 @@ public class RenderingBean implements RenderingEngine, Serializable {
                 /* probably in a share */
                 log.debug("failed to load LUTs");
             }
+            if (renderingExecutor == null) {
+                renderingExecutor = RenderingExecutor.getDefault();
+            }
             renderer = new Renderer(quantumFactory, renderingModels, pixelsObj,
-                    rendDefObj, buffer, luts);
+                    rendDefObj, buffer, luts, renderingExecutor);
+            if (resolutionLevel != null) {
+                renderer.setResolutionLevel(resolutionLevel);
+            }
         } finally {
             rwl.writeLock().unlock();
         }
@@ -479,7 +529,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
      */
     @RolesAllowed("user")
     public RGBBuffer render(PlaneDef pd) {
-        rwl.readLock().lock();
+        Lock lock = lockForRender(pd != null && pd.getRenderShapes());
 
         try {
             final Map<byte[], Integer> overlays = getMasks(pd);
@@ -495,7 +545,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
             log.error("Quantization exception while rendering.", e);
             throw new InternalException(e.getMessage());
         } finally {
-            rwl.readLock().unlock();
+            lock.unlock();
         }
     }
 
@@ -506,7 +556,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
      */
     @RolesAllowed("user")
     public int[] renderAsPackedInt(PlaneDef pd) {
-        rwl.writeLock().lock();
+        Lock lock = lockForRender(pd != null && pd.getRenderShapes());
 
         try {
             final Map<byte[], Integer> overlays = getMasks(pd);
@@ -514,11 +564,6 @@ public class RenderingBean implements RenderingEngine, Serializable {
                 renderer.setOverlays(overlays);
             }
             errorIfInvalidState();
-            checkPlaneDef(pd);
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
             return renderer.renderAsPackedInt(pd, null);
         } catch (IOException e) {
             log.error("IO error while rendering.", e);
@@ -527,25 +572,41 @@ public class RenderingBean implements RenderingEngine, Serializable {
             log.error("Quantization exception while rendering.", e);
             throw new InternalException(e.getMessage());
         } finally {
-            rwl.writeLock().unlock();
+            lock.unlock();
         }
     }
 
     /**
      * Implemented as specified by the {@link RenderingEngine} interface.
      * 
-     * @see LocalCompress#compressToStream(BufferedImage, java.io.OutputStream)
+     * @see LocalCompress#compress(int[], int, int, String)
      */
     @RolesAllowed("user")
     public byte[] renderCompressed(PlaneDef pd) {
-        rwl.writeLock().lock();
+        return renderCompressedAs(pd, LocalCompress.FORMAT_JPEG);
+    }
+
+    /**
+     * Implemented as specified by the {@link RenderingEngine} interface.
+     * 
+     * @see LocalCompress#compress(int[], int, int, String)
+     */
+    @RolesAllowed("user")
+    public byte[] renderCompressedAs(PlaneDef pd, String format) {
+        Lock lock = lockForRender(pd != null && pd.getRenderShapes());
 
-        ByteArrayOutputStream byteStream = null;
         try {
             final Map<byte[], Integer> overlays = getMasks(pd);
             if (overlays.size() > 0) {
                 renderer.setOverlays(overlays);
             }
+            RenderedTileCache.Key key = getTileKey(pd, format);
+            if (key != null) {
+                byte[] cached = renderedTileCache.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
             int stride = pd.getStride();
             if (stride < 0) stride = 0;
             stride++;
@@ -559,24 +620,18 @@ public class RenderingBean implements RenderingEngine, Serializable {
             }
             sizeX = sizeX/stride;
             sizeY = sizeY/stride;
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            long start = System.nanoTime();
+            byte[] data = compressionSrv.compress(buf, sizeX, sizeY, format);
+            recordStage(RenderingMetrics.COMPRESS, start);
+            if (key != null) {
+                renderedTileCache.put(key, data);
+            }
+            return data;
         } catch (IOException e) {
             log.error("Could not compress rendered image.", e);
             throw new ResourceError(e.getMessage());
         } finally {
-            rwl.writeLock().unlock();
-            try {
-                if (byteStream != null) {
-                    byteStream.close();
-                }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
-            }
+            lock.unlock();
         }
     }
 
@@ -588,14 +643,10 @@ public class RenderingBean implements RenderingEngine, Serializable {
     @RolesAllowed("user")
     public int[] renderProjectedAsPackedInt(int algorithm, int timepoint,
             int stepping, int start, int end) {
-        rwl.writeLock().lock();
+        Lock lock = lockForRender(false);
 
         try {
             errorIfInvalidState();
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
             ChannelBinding[] channelBindings = renderer.getChannelBindings();
             byte[][][][] planes = new byte[1][pixelsObj.getSizeC()][1][];
             long pixelsId = pixelsObj.getId();
@@ -626,48 +677,35 @@ public class RenderingBean implements RenderingEngine, Serializable {
             log.error("Quantization exception while rendering.", e);
             throw new InternalException(e.getMessage());
         } finally {
-            rwl.writeLock().unlock();
+            lock.unlock();
         }
     }
 
     /**
      * Implemented as specified by the {@link RenderingEngine} interface.
      * 
-     * @see LocalCompress#compressToStream(BufferedImage, java.io.OutputStream)
+     * @see LocalCompress#compress(int[], int, int, String)
      */
     @RolesAllowed("user")
     public byte[] renderProjectedCompressed(int algorithm, int timepoint,
             int stepping, int start, int end) {
-        rwl.writeLock().lock();
+        Lock lock = lockForRender(false);
 
-        ByteArrayOutputStream byteStream = null;
         try {
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
             int[] buf = renderProjectedAsPackedInt(algorithm, timepoint,
                     stepping, start, end);
             int sizeX = pixelsObj.getSizeX();
             int sizeY = pixelsObj.getSizeY();
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            long startNanos = System.nanoTime();
+            byte[] data = compressionSrv.compress(buf, sizeX, sizeY,
+                    LocalCompress.FORMAT_JPEG);
+            recordStage(RenderingMetrics.COMPRESS, startNanos);
+            return data;
         } catch (IOException e) {
             log.error("Could not compress rendered image.", e);
             throw new ResourceError(e.getMessage());
         } finally {
-            rwl.writeLock().unlock();
-            try {
-                if (byteStream != null) {
-                    byteStream.close();
-                }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
-            }
+            lock.unlock();
         }
     }
 
@@ -919,6 +957,9 @@ public class RenderingBean implements RenderingEngine, Serializable {
                             IUpdate update = sf.getUpdateService();
                             return update.saveAndReturnObject(rendDefObj).getId();
                         }});
+            if (renderedTileCache != null) {
+                renderedTileCache.invalidate(pixelsObj.getId());
+            }
 
             if (saveAs) {
                 loadRenderingDef(id);
@@ -1699,60 +1740,157 @@ public class RenderingBean implements RenderingEngine, Serializable {
     }
     
     /**
-     * Validates the plane definition.
-     * @param pd Plane definition to validate.
+     * Acquires the lock for a render. Renders only need the read lock so
+     * that the renders of the same engine run concurrently, the settings being
+     * modified under the write lock only. The write lock is acquired instead
+     * if overlays are rendered, as they are set on the renderer, or if the
+     * renderer has to be loaded again after passivation.
+     * @param renderShapes Pass <code>true</code> if overlays are rendered.
+     * @return The acquired lock, to release once rendered.
+     */
+    private Lock lockForRender(boolean renderShapes) {
+        long start = System.nanoTime();
+        if (!renderShapes) {
+            Lock lock = rwl.readLock();
+            lock.lock();
+            if (renderer != null || !wasPassivated) {
+                recordStage(RenderingMetrics.LOCK_WAIT, start);
+                return lock;
+            }
+            lock.unlock();
+        }
+        Lock lock = rwl.writeLock();
+        lock.lock();
+        recordStage(RenderingMetrics.LOCK_WAIT, start);
+        return lock;
+    }
+
+    /**
+     * Records the duration of a stage of the rendering pipeline, tagged with
+     * the pixels type, the number of active channels and the resolution
+     * level. Must be called with the lock held.
+     * @param stage One of the {@link RenderingMetrics#STAGES}.
+     * @param start The time the stage started, in nanoseconds.
      */
-    private void checkPlaneDef(PlaneDef pd) {
-        RegionDef rd = pd.getRegion();
-        if (rd == null)
-        {
+    private void recordStage(String stage, long start) {
+        long nanos = System.nanoTime() - start;
+        if (pixelsObj == null || renderer == null) {
             return;
         }
-        PixelBuffer pixelBuffer = renderer.getPixels();
-        int sizeX = pixelBuffer.getSizeX();
-        int sizeY = pixelBuffer.getSizeY();
-        if (rd.getWidth() + rd.getX() > sizeX)
-        {
-            int newWidth = sizeX - rd.getX();
-            if (log.isDebugEnabled())
-            {
-                log.debug(String.format(
-                        "Resetting out of bounds region XOffset %d width %d" +
-                        " vs. sizeX %d to %d",
-                        rd.getX(), rd.getWidth(), sizeX, newWidth));
+        int sizeC = 0;
+        for (ChannelBinding cb : renderer.getChannelBindings()) {
+            if (cb.getActive()) {
+                sizeC++;
             }
-            rd.setWidth(newWidth);
         }
-        else
-        {
-            if (log.isDebugEnabled())
-            {
-                log.debug(String.format(
-                        "Leaving region xOffset %d width %d alone vs. sizeX %d",
-                        rd.getX(), rd.getWidth(), sizeX));
-            }
+        // Reading the level from the buffer could open it again.
+        Integer level = resolutionLevel;
+        RenderingStats stats = renderer.getStats();
+        if (level == null) {
+            level = stats == null ? 0 : stats.getResolutionLevel();
         }
-        if (rd.getHeight() + rd.getY() > sizeY)
-        {
-            int newHeight = sizeY - rd.getY();
-            if (log.isDebugEnabled())
-            {
-                log.debug(String.format(
-                        "Resetting out of bounds region yOffset %d height %d" +
-                        " vs. sizeY %d to %d",
-                        rd.getY(), rd.getHeight(), sizeY, newHeight));
-            }
-            rd.setHeight(newHeight);
+        RenderingMetrics.getDefault().record(stage,
+                pixelsObj.getPixelsType().getValue(), sizeC, level, nanos);
+    }
+
+    /**
+     * Returns the key of the compressed image of the specified plane in the
+     * rendered tile cache i.e. a fingerprint of the plane definition, the
+     * resolution and compression levels, the format and the current rendering
+     * settings.
+     * @param pd The plane definition.
+     * @param format The format of the compressed image.
+     * @return See above or <code>null</code> if the image cannot be cached,
+     *         e.g. if overlays are rendered.
+     */
+    private RenderedTileCache.Key getTileKey(PlaneDef pd, String format) {
+        if (renderedTileCache == null || !renderedTileCache.isEnabled()
+                || renderer == null || pd.getRenderShapes()) {
+            return null;
         }
-        else
-        {
-            if (log.isDebugEnabled())
-            {
-                log.debug(String.format(
-                        "Leaving region yOffset %d height %d alone vs. sizeY %d",
-                        rd.getY(), rd.getHeight(), sizeY));
+        Map<byte[], Integer> overlays = renderer.getOverlays();
+        if (overlays != null && overlays.size() > 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(pd.getSlice()).append(',').append(pd.getZ()).append(',');
+        sb.append(pd.getT()).append(',').append(pd.getX()).append(',');
+        sb.append(pd.getY()).append(',').append(pd.getStride());
+        RegionDef rd = pd.getRegion();
+        if (rd != null) {
+            sb.append(',').append(rd.getX()).append(',').append(rd.getY());
+            sb.append(',').append(rd.getWidth()).append(',');
+            sb.append(rd.getHeight());
+        }
+        sb.append(';').append(resolutionLevel != null ? resolutionLevel
+                : renderer.getResolutionLevel());
+        sb.append(';').append(format);
+        sb.append(';').append(compressionSrv.getCompressionLevel());
+        RenderingDef def = renderer.getRenderingDef();
+        QuantumDef qd = def.getQuantization();
+        sb.append(';').append(def.getModel().getValue());
+        sb.append(',').append(qd.getCdStart()).append(',');
+        sb.append(qd.getCdEnd()).append(',').append(qd.getBitResolution());
+        ChannelBinding[] cbs = renderer.getChannelBindings();
+        for (int w = 0; w < cbs.length; w++) {
+            ChannelBinding cb = cbs[w];
+            sb.append(';').append(cb.getActive());
+            if (!Boolean.TRUE.equals(cb.getActive())) {
+                continue;
+            }
+            sb.append(',').append(cb.getInputStart());
+            sb.append(',').append(cb.getInputEnd());
+            sb.append(',').append(cb.getFamily().getValue());
+            sb.append(',').append(cb.getCoefficient());
+            sb.append(',').append(cb.getNoiseReduction());
+            sb.append(',').append(cb.getRed()).append(',');
+            sb.append(cb.getGreen()).append(',').append(cb.getBlue());
+            sb.append(',').append(cb.getAlpha());
+            sb.append(',').append(cb.getLookupTable());
+            appendLut(sb, cb.getLookupTable());
+            for (CodomainMapContext ctx :
+                    renderer.getCodomainChain(w).getContexts()) {
+                appendContext(sb, ctx);
             }
         }
+        return RenderedTileCache.createKey(pixelsObj.getId(), sb.toString());
+    }
+
+    /**
+     * Appends the identity of the file of a lookup table to a tile key, so
+     * that a table replaced on disk is not served from the cache.
+     * @param sb The key being built.
+     * @param name The name of the lookup table or <code>null</code>.
+     */
+    private void appendLut(StringBuilder sb, String name) {
+        File file = LutCache.findFile(name, renderer.getAllLuts());
+        if (file != null) {
+            sb.append(',').append(file.getPath());
+            sb.append(',').append(file.lastModified());
+            sb.append(',').append(file.length());
+        }
+    }
+
+    /**
+     * Appends a codomain map context and its parameters to a tile key.
+     * @param sb The key being built.
+     * @param ctx The context.
+     */
+    private static void appendContext(StringBuilder sb, CodomainMapContext ctx) {
+        sb.append(',').append(ctx.getClass().getSimpleName());
+        if (ctx instanceof ContrastStretchingContext) {
+            ContrastStretchingContext c = (ContrastStretchingContext) ctx;
+            sb.append(':').append(c.getXStart()).append(':');
+            sb.append(c.getYStart()).append(':').append(c.getXEnd());
+            sb.append(':').append(c.getYEnd());
+        } else if (ctx instanceof PlaneSlicingContext) {
+            PlaneSlicingContext c = (PlaneSlicingContext) ctx;
+            sb.append(':').append(c.getLowerLimit()).append(':');
+            sb.append(c.getUpperLimit()).append(':');
+            sb.append(c.getPlanePrevious()).append(':');
+            sb.append(c.getPlaneSelected()).append(':');
+            sb.append(c.IsConstant());
+        }
     }
 
     /**
@@ -2093,7 +2231,11 @@ public class RenderingBean implements RenderingEngine, Serializable {
         return (PixelBuffer) ex.execute(null, new Executor.SimpleWork(this, "getPixelBuffer") {
             @Transactional(readOnly = false) // ticket:5232
             public Object doWork(Session session, ServiceFactory sf) {
-                return pixDataSrv.getPixelBuffer(pixelsObj, false);
+                PixelBuffer buffer = pixDataSrv.getPixelBuffer(pixelsObj, false);
+                if (tilePrefetcher != null) {
+                    buffer = tilePrefetcher.wrap(buffer);
+                }
+                return buffer;
             }
         });
     }
@@ -0,0 +1,248 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+import ome.conditions.InternalException;
+import ome.services.ThumbnailBean.ThumbnailSetListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retrieves the thumbnails of a group of Pixels sets for
+ * {@link ThumbnailBean}. Each Pixels set is first classified on the calling
+ * thread. The thumbnails cached on disk are then read at once and the
+ * missing ones rendered on an executor, at most a given number at a time.
+ * A failure only loses the thumbnail of its Pixels set, passed to the
+ * listener as <code>null</code>. The thumbnail metadata are saved once, when
+ * all the thumbnails are retrieved.
+ * <p>
+ * The steps other than the renderings are run on the calling thread, which
+ * also passes all the thumbnails to the listener.
+ * </p>
+ *
+ * @since 5.4.0
+ */
+public class ThumbnailBatch {
+
+    /** The logger for this class. */
+    private static final Logger log =
+            LoggerFactory.getLogger(ThumbnailBatch.class);
+
+    /** How the thumbnail of a Pixels set is retrieved. */
+    public enum Kind {
+
+        /** The thumbnail is cached on disk and up to date. */
+        CACHED,
+
+        /** The thumbnail is missing or out of date and must be rendered. */
+        MISSING,
+
+        /**
+         * The thumbnail was retrieved while classified or the Pixels set has
+         * none, nothing more is passed to the listener.
+         */
+        DONE
+    }
+
+    /** The steps of the retrieval, implemented by the thumbnail service. */
+    public interface Steps {
+
+        /**
+         * Classifies a Pixels set.
+         *
+         * @param pixelsId The Pixels ID.
+         * @param listener The listener to pass the thumbnail to if retrieved
+         *            at once.
+         * @return See above.
+         * @throws Exception If the thumbnail cannot be retrieved.
+         */
+        Kind classify(long pixelsId, ThumbnailSetListener listener)
+                throws Exception;
+
+        /**
+         * Reads the cached thumbnails at once. Called once all the Pixels
+         * sets are classified, even if none is cached.
+         *
+         * @param pixelsIds The Pixels IDs of the cached thumbnails.
+         * @return The thumbnails read by Pixels ID.
+         * @throws Exception If the thumbnails cannot be read.
+         */
+        Map<Long, byte[]> read(List<Long> pixelsIds) throws Exception;
+
+        /**
+         * Prepares the rendering of a missing thumbnail.
+         *
+         * @param pixelsId The Pixels ID.
+         * @param listener The listener to pass the thumbnail to if retrieved
+         *            at once.
+         * @return The rendering, run on the executor, or <code>null</code>
+         *         if the thumbnail was retrieved at once.
+         * @throws Exception If the thumbnail cannot be rendered.
+         */
+        Callable<byte[]> prepare(long pixelsId,
+                ThumbnailSetListener listener) throws Exception;
+
+        /** Saves the thumbnail metadata. */
+        void save();
+    }
+
+    /** The executor the renderings are run on. */
+    private final Executor executor;
+
+    /** The maximum number of renderings run at a time. */
+    private final int parallelism;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param executor The executor the renderings are run on.
+     * @param parallelism The maximum number of renderings run at a time.
+     */
+    public ThumbnailBatch(Executor executor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid parallelism: " + parallelism);
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Retrieves the thumbnails of a group of Pixels sets.
+     *
+     * @param pixelsIds The Pixels IDs.
+     * @param steps The steps of the retrieval.
+     * @param listener The listener to pass the thumbnails to.
+     */
+    public void run(Collection<Long> pixelsIds, Steps steps,
+            ThumbnailSetListener listener) {
+        List<Long> cached = new ArrayList<Long>();
+        List<Long> missing = new ArrayList<Long>();
+        for (Long pixelsId : pixelsIds) {
+            try {
+                switch (steps.classify(pixelsId, listener)) {
+                    case CACHED:
+                        cached.add(pixelsId);
+                        break;
+                    case MISSING:
+                        missing.add(pixelsId);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (Throwable t) {
+                fail(pixelsId, t, listener);
+            }
+        }
+        read(cached, steps, listener);
+        render(missing, steps, listener);
+        steps.save();
+    }
+
+    /**
+     * Reads the cached thumbnails and passes them to the listener.
+     *
+     * @param pixelsIds The Pixels IDs of the cached thumbnails.
+     * @param steps The steps of the retrieval.
+     * @param listener The listener to pass the thumbnails to.
+     */
+    private void read(List<Long> pixelsIds, Steps steps,
+            ThumbnailSetListener listener) {
+        Map<Long, byte[]> thumbnails;
+        try {
+            thumbnails = steps.read(pixelsIds);
+        } catch (Throwable t) {
+            log.warn("Reading cached thumbnails failed.", t);
+            for (Long pixelsId : pixelsIds) {
+                listener.onThumbnail(pixelsId, null);
+            }
+            return;
+        }
+        for (Long pixelsId : pixelsIds) {
+            byte[] thumbnail = thumbnails.get(pixelsId);
+            if (thumbnail == null) {
+                log.warn("Missing cached thumbnail in set for Pixels ID "
+                        + pixelsId);
+            }
+            listener.onThumbnail(pixelsId, thumbnail);
+        }
+    }
+
+    /**
+     * Renders the missing thumbnails and passes them to the listener as
+     * they complete.
+     *
+     * @param pixelsIds The Pixels IDs of the missing thumbnails.
+     * @param steps The steps of the retrieval.
+     * @param listener The listener to pass the thumbnails to.
+     */
+    private void render(List<Long> pixelsIds, Steps steps,
+            ThumbnailSetListener listener) {
+        CompletionService<byte[]> completion =
+                new ExecutorCompletionService<byte[]>(executor);
+        Map<Future<byte[]>, Long> running =
+                new HashMap<Future<byte[]>, Long>();
+        Iterator<Long> i = pixelsIds.iterator();
+        try {
+            while (i.hasNext() || !running.isEmpty()) {
+                while (i.hasNext() && running.size() < parallelism) {
+                    Long pixelsId = i.next();
+                    try {
+                        Callable<byte[]> rendering =
+                                steps.prepare(pixelsId, listener);
+                        if (rendering != null) {
+                            running.put(completion.submit(rendering),
+                                    pixelsId);
+                        }
+                    } catch (Throwable t) {
+                        fail(pixelsId, t, listener);
+                    }
+                }
+                if (running.isEmpty()) {
+                    continue;
+                }
+                Future<byte[]> done = completion.take();
+                Long pixelsId = running.remove(done);
+                try {
+                    listener.onThumbnail(pixelsId, done.get());
+                } catch (ExecutionException e) {
+                    fail(pixelsId, e.getCause(), listener);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted creating thumbnails.");
+        }
+    }
+
+    /**
+     * Logs the failure to retrieve a thumbnail and passes <code>null</code>
+     * to the listener in its place.
+     *
+     * @param pixelsId The Pixels ID.
+     * @param t The failure.
+     * @param listener The listener.
+     */
+    private void fail(Long pixelsId, Throwable t,
+            ThumbnailSetListener listener) {
+        log.warn("Retrieving thumbnail in set for Pixels ID " + pixelsId
+                + " failed.", t);
+        listener.onThumbnail(pixelsId, null);
+    }
+}
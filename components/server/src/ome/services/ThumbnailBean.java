@@ -9,7 +9,6 @@ import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
@@ -18,9 +17,12 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ome.annotations.RolesAllowed;
@@ -31,6 +33,7 @@ import ome.api.IScale;
 import ome.api.ServiceInterface;
 import ome.api.ThumbnailStore;
 import ome.api.local.LocalCompress;
+import ome.api.local.LocalScale;
 import ome.conditions.ApiUsageException;
 import ome.conditions.ConcurrencyException;
 import ome.conditions.InternalException;
@@ -56,6 +59,7 @@ import ome.system.OmeroContext;
 import ome.system.SimpleEventContext;
 import ome.util.ImageUtil;
 import omeis.providers.re.Renderer;
+import omeis.providers.re.RenderingExecutor;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.quantum.QuantizationException;
 import omeis.providers.re.quantum.QuantumFactory;
@@ -123,6 +127,21 @@ public class ThumbnailBean extends AbstractLevel2Service
     /** The rendering settings service. */
     private transient IRenderingSettings settingsService;
 
+    /** The pool shared by all the renderers of the server. */
+    private transient RenderingExecutor renderingExecutor;
+
+    /** The in-memory cache of the thumbnails of the sets. */
+    private transient ThumbnailByteCache thumbnailCache;
+
+    /** The longest sides of the thumbnails created along with any other. */
+    private List<Integer> pregeneratedSizes = new ArrayList<Integer>();
+
+    /**
+     * The maximum number of thumbnails of a set rendered at a time,
+     * <code>0</code> for half of the rendering threads.
+     */
+    private int thumbnailParallelism;
+
     /** The list of all families supported by the {@link Renderer}. */
     private transient List<Family> families;
 
@@ -312,6 +331,21 @@ public class ThumbnailBean extends AbstractLevel2Service
         return inProgress;
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see ome.api.ThumbnailStore#getPyramidProgress()
+     */
+    @RolesAllowed("user")
+    public double getPyramidProgress()
+    {
+        if (!inProgress || pixelsId == null)
+        {
+            return -1;
+        }
+        return pixelDataService.getPyramidProgress(pixelsId);
+    }
+
     /**
      * Retrieves a list of the families supported by the {@link Renderer}
      * either from instance variable cache or the database.
@@ -355,6 +389,20 @@ public class ThumbnailBean extends AbstractLevel2Service
         return luts;
     }
 
+    /**
+     * Retrieves the pool the {@link Renderer} runs its tasks on, falling back
+     * on the default one if none has been injected.
+     * @return See above.
+     */
+    private RenderingExecutor getRenderingExecutor()
+    {
+        if (renderingExecutor == null)
+        {
+            return RenderingExecutor.getDefault();
+        }
+        return renderingExecutor;
+    }
+
     /**
      * Retrieves a list of the rendering models supported by the
      * {@link Renderer} either from instance variable cache or the database.
@@ -388,7 +436,7 @@ public class ThumbnailBean extends AbstractLevel2Service
         // Loading last to try to ensure that the buffer will get closed.
         PixelBuffer buffer = pixelDataService.getPixelBuffer(pixels, false);
         renderer = new Renderer(quantumFactory, renderingModels, pixels,
-                settings, buffer, getLuts());
+                settings, buffer, getLuts(), getRenderingExecutor());
         dirty = false;
     }
 
@@ -496,6 +544,63 @@ public class ThumbnailBean extends AbstractLevel2Service
         this.settingsService = settingsService;
     }
 
+    /**
+     * Rendering executor Bean injector.
+     *
+     * @param renderingExecutor
+     *            a <code>RenderingExecutor</code>.
+     */
+    public void setRenderingExecutor(RenderingExecutor renderingExecutor) {
+        getBeanHelper().throwIfAlreadySet(this.renderingExecutor,
+                renderingExecutor);
+        this.renderingExecutor = renderingExecutor;
+    }
+
+    /**
+     * Thumbnail cache Bean injector.
+     *
+     * @param thumbnailCache
+     *            the in-memory cache of the thumbnails of the sets.
+     */
+    public void setThumbnailCache(ThumbnailByteCache thumbnailCache) {
+        getBeanHelper().throwIfAlreadySet(this.thumbnailCache,
+                thumbnailCache);
+        this.thumbnailCache = thumbnailCache;
+    }
+
+    /**
+     * Sets the longest sides of the thumbnails which
+     * {@link #createThumbnailsByLongestSideSet(Integer, Set)} creates along
+     * with the requested one.
+     *
+     * @param pregeneratedSizes
+     *            a comma-separated list of sizes, may be empty.
+     */
+    public void setPregeneratedSizes(String pregeneratedSizes) {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (String size : pregeneratedSizes.split(",")) {
+            if (!size.trim().isEmpty()) {
+                sizes.add(Integer.valueOf(size.trim()));
+            }
+        }
+        for (Integer size : sizes) {
+            sanityCheckThumbnailSizes(size, size);
+        }
+        this.pregeneratedSizes = sizes;
+    }
+
+    /**
+     * Sets the maximum number of thumbnails of a set rendered at a time, at
+     * most the number of threads of the {@link RenderingExecutor}.
+     *
+     * @param thumbnailParallelism
+     *            the number of thumbnails, <code>0</code> or less for half of
+     *            the rendering threads.
+     */
+    public void setThumbnailParallelism(int thumbnailParallelism) {
+        this.thumbnailParallelism = thumbnailParallelism;
+    }
+
     /**
      * Compresses a buffered image thumbnail to disk.
      *
@@ -513,7 +618,7 @@ public class ThumbnailBean extends AbstractLevel2Service
             iRepositoryInfo.sanityCheckRepository();
         }
 
-        FileOutputStream stream = ioService.getThumbnailOutputStream(thumb);
+        OutputStream stream = ioService.getThumbnailOutputStream(thumb);
         try {
             if (inProgress) {
                 compressInProgressImageToStream(thumb, stream);
@@ -614,7 +719,29 @@ public class ThumbnailBean extends AbstractLevel2Service
         {
             return null;
         }
+        return createScaledImage(renderer, pixels, settings,
+                thumbnailMetadata, theZ, theT);
+    }
 
+    /**
+     * Creates a scaled buffered image with the given renderer. Only uses the
+     * scaling service of the bean so that the thumbnails of a set may be
+     * rendered concurrently, each with its own renderer.
+     *
+     * @param renderer the renderer of the pixels set.
+     * @param pixels the pixels set.
+     * @param settings the rendering settings of the renderer.
+     * @param thumbnailMetadata the metadata of the thumbnail to create.
+     * @param theZ the optical section (offset across the Z-axis) requested.
+     * <pre>null</pre> signifies the rendering engine default.
+     * @param theT the timepoint (offset across the T-axis) requested.
+     * <pre>null</pre> signifies the rendering engine default.
+     * @return a scaled buffered image.
+     */
+    private BufferedImage createScaledImage(Renderer renderer, Pixels pixels,
+            RenderingDef settings, Thumbnail thumbnailMetadata,
+            Integer theZ, Integer theT)
+    {
         // Retrieve our rendered data
         if (theZ == null)
             theZ = settings.getDefaultZ();
@@ -657,6 +784,15 @@ public class ThumbnailBean extends AbstractLevel2Service
             rendererPixels.setSizeX(pixelBufferSizeX);
             rendererPixels.setSizeY(pixelBufferSizeY);
             int[] buf = renderer.renderAsPackedInt(pd, null);
+            if (iScale instanceof LocalScale)
+            {
+                // Scale the rendered buffer itself to the thumbnail size.
+                int sizeX = thumbnailMetadata.getSizeX();
+                int sizeY = thumbnailMetadata.getSizeY();
+                return ImageUtil.createBufferedImage(((LocalScale) iScale)
+                        .scale(buf, pixelBufferSizeX, pixelBufferSizeY,
+                                sizeX, sizeY), sizeX, sizeY);
+            }
             BufferedImage image = ImageUtil.createBufferedImage(
                     buf, pixelBufferSizeX, pixelBufferSizeY);
 
@@ -847,6 +983,24 @@ public class ThumbnailBean extends AbstractLevel2Service
     /** Actually does the work specified by {@link #createThumbnail(Integer, Integer)}. */
     private Thumbnail _createThumbnail() {
         StopWatch s1 = new Slf4JStopWatch("omero._createThumbnail");
+        _prepareThumbnailMetadata();
+
+        BufferedImage image = createScaledImage(null, null);
+        try {
+            compressThumbnailToDisk(thumbnailMetadata, image);
+            s1.stop();
+            return thumbnailMetadata;
+        } catch (IOException e) {
+            log.error("Thumbnail could not be compressed.", e);
+            throw new ResourceError(e.getMessage());
+        }
+    }
+
+    /**
+     * Updates the thumbnail metadata before the thumbnail is created, if the
+     * rendering settings changed since the thumbnail was last created.
+     */
+    private void _prepareThumbnailMetadata() {
         if (thumbnailMetadata == null) {
             throw new ValidationException("Missing thumbnail metadata.");
         } else if (ctx.dirtyMetadata(pixels.getId())) {
@@ -896,16 +1050,6 @@ public class ThumbnailBean extends AbstractLevel2Service
         // dirtyMetadata is left false here because we may be creating a
         // thumbnail for the first time and the Thumbnail object has just been
         // created upstream of us.
-
-        BufferedImage image = createScaledImage(null, null);
-        try {
-            compressThumbnailToDisk(thumbnailMetadata, image);
-            s1.stop();
-            return thumbnailMetadata;
-        } catch (IOException e) {
-            log.error("Thumbnail could not be compressed.", e);
-            throw new ResourceError(e.getMessage());
-        }
     }
 
     private static void _setMetadataVersion(Thumbnail tb, boolean inProgress) {
@@ -956,7 +1100,115 @@ public class ThumbnailBean extends AbstractLevel2Service
     public void createThumbnailsByLongestSideSet(Integer size,
             Set<Long> pixelsIds)
     {
-        getThumbnailByLongestSideSet(size, pixelsIds);
+        // Set defaults and sanity check thumbnail sizes
+        Dimension checkedDimensions = sanityCheckThumbnailSizes(size, size);
+        size = (int) checkedDimensions.getWidth();
+        if (pregeneratedSizes.isEmpty() || pixelsIds == null)
+        {
+            getThumbnailByLongestSideSet(size, pixelsIds);
+            return;
+        }
+        final Set<Integer> sizes =
+                new TreeSet<Integer>(Collections.reverseOrder());
+        sizes.add(size);
+        sizes.addAll(pregeneratedSizes);
+
+        // Prepare our thumbnail context
+        newContext();
+        ctx.loadAndPrepareRenderingSettings(pixelsIds);
+        ctx.createAndPrepareMissingRenderingSettings(pixelsIds);
+        final Set<Long> remaining = new HashSet<Long>();
+        new PerGroupActor(applicationContext, iQuery, null) {
+            @Override
+            protected void actOnOneGroup(Set<Long> pixelsIds) {
+                SetSteps steps = new SetSteps(0, 0);
+                steps.plans = planThumbnails(pixelsIds, sizes, steps.toSave);
+                createThumbnailBatch().run(steps.plans.keySet(), steps,
+                        new MapListener());
+                // Pyramids in progress have no settings yet.
+                for (Long pixelsId : pixelsIds) {
+                    if (!ctx.hasSettings(pixelsId)) {
+                        remaining.add(pixelsId);
+                    }
+                }
+            }
+        }.actOnByGroup(pixelsIds);
+        iQuery.clear();
+        if (!remaining.isEmpty())
+        {
+            getThumbnailByLongestSideSet(size, remaining);
+        }
+    }
+
+    /**
+     * Prepares the metadata of the missing or out of date thumbnails of each
+     * size for a group of Pixels sets, so that each Pixels set is rendered
+     * once for all its thumbnails.
+     * @param pixelsIds The Pixels IDs of the group.
+     * @param sizes The longest sides of the thumbnails, from the largest.
+     * @param toSave The list to add the metadata to save to.
+     * @return The metadata of the thumbnails to create by Pixels ID, from
+     * the largest.
+     */
+    private Map<Long, List<Thumbnail>> planThumbnails(Set<Long> pixelsIds,
+            Set<Integer> sizes, List<Thumbnail> toSave)
+    {
+        Map<Long, List<Thumbnail>> plans =
+                new LinkedHashMap<Long, List<Thumbnail>>();
+        for (Integer size : sizes) {
+            // The context holds the metadata of one size at a time.
+            ctx.loadAndPrepareMetadata(pixelsIds, size);
+            for (Long pixelsId : pixelsIds) {
+                if (!ctx.hasSettings(pixelsId) || !ctx.hasMetadata(pixelsId)) {
+                    continue;
+                }
+                // See #2075.
+                resetMetadata();
+                try {
+                    if (ctx.isThumbnailCached(pixelsId)) {
+                        continue;
+                    }
+                    List<Thumbnail> plan = plans.get(pixelsId);
+                    if (plan == null) {
+                        plan = new ArrayList<Thumbnail>();
+                    } else if (isPlanned(plan, ctx.getMetadata(pixelsId))) {
+                        continue;  // Same dimensions as a larger size
+                    }
+                    pixels = ctx.getPixels(pixelsId);
+                    settings = ctx.getSettings(pixelsId);
+                    thumbnailMetadata = ctx.getMetadata(pixelsId);
+                    _prepareThumbnailMetadata();
+                    if (dirtyMetadata) {
+                        toSave.add(thumbnailMetadata);
+                    }
+                    plan.add(thumbnailMetadata);
+                    plans.put(pixelsId, plan);
+                } catch (Throwable t) {
+                    log.warn("Preparing thumbnail of size " + size
+                            + " for Pixels ID " + pixelsId + " failed.", t);
+                } finally {
+                    dirtyMetadata = false;
+                }
+            }
+        }
+        return plans;
+    }
+
+    /**
+     * Whether thumbnail metadata of the same dimensions are already planned.
+     * @param plan The metadata of the thumbnails to create.
+     * @param metadata The metadata to check.
+     * @return See above.
+     */
+    private static boolean isPlanned(List<Thumbnail> plan, Thumbnail metadata)
+    {
+        for (Thumbnail planned : plan) {
+            if (planned.getSizeX().equals(metadata.getSizeX())
+                    && planned.getSizeY().equals(metadata.getSizeY())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /* (non-Javadoc)
@@ -966,105 +1218,522 @@ public class ThumbnailBean extends AbstractLevel2Service
     @Transactional(readOnly = false)
     public Map<Long, byte[]> getThumbnailSet(Integer sizeX, Integer sizeY,
             Set<Long> pixelsIds)
+    {
+        MapListener values = new MapListener();
+        getThumbnailSet(sizeX, sizeY, pixelsIds, values);
+        return values.thumbnails;
+    }
+
+    /**
+     * As {@link #getThumbnailSet(Integer, Integer, Set)} but passes the
+     * thumbnails to the listener as they become available.
+     * @param sizeX the X-width of the thumbnails.
+     * @param sizeY the Y-width of the thumbnails.
+     * @param pixelsIds the Pixels sets to retrieve thumbnails for.
+     * @param listener the listener to pass the thumbnails to.
+     */
+    @RolesAllowed("user")
+    @Transactional(readOnly = false)
+    public void getThumbnailSet(Integer sizeX, Integer sizeY,
+            Set<Long> pixelsIds, ThumbnailSetListener listener)
     {
         // Set defaults and sanity check thumbnail sizes
         Dimension checkedDimensions = sanityCheckThumbnailSizes(sizeX, sizeY);
+        sizeX = (int) checkedDimensions.getWidth();
+        sizeY = (int) checkedDimensions.getHeight();
+
+        pixelsIds = retrieveHotThumbnails(pixelsIds, sizeX, sizeY, listener);
+        if (pixelsIds != null && pixelsIds.isEmpty())
+        {
+            return;  // All the thumbnails were in memory
+        }
 
         // Prepare our thumbnail context
         newContext();
         ctx.loadAndPrepareRenderingSettings(pixelsIds);
         ctx.createAndPrepareMissingRenderingSettings(pixelsIds);
         ctx.loadAndPrepareMetadata(pixelsIds, checkedDimensions);
-        Map<Long, byte[]> values = retrieveThumbnailSet(pixelsIds);
+        retrieveThumbnailSet(pixelsIds, sizeX, sizeY, listener);
         iQuery.clear();
-        return values;
     }
 
     @RolesAllowed("user")
     @Transactional(readOnly = false)
     public Map<Long, byte[]> getThumbnailByLongestSideSet(Integer size,
             Set<Long> pixelsIds)
+    {
+        MapListener values = new MapListener();
+        getThumbnailByLongestSideSet(size, pixelsIds, values);
+        return values.thumbnails;
+    }
+
+    /**
+     * As {@link #getThumbnailByLongestSideSet(Integer, Set)} but passes the
+     * thumbnails to the listener as they become available.
+     * @param size the size of the longest side of the thumbnails.
+     * @param pixelsIds the Pixels sets to retrieve thumbnails for.
+     * @param listener the listener to pass the thumbnails to.
+     */
+    @RolesAllowed("user")
+    @Transactional(readOnly = false)
+    public void getThumbnailByLongestSideSet(Integer size,
+            Set<Long> pixelsIds, ThumbnailSetListener listener)
     {
         // Set defaults and sanity check thumbnail sizes
         Dimension checkedDimensions = sanityCheckThumbnailSizes(size, size);
         size = (int) checkedDimensions.getWidth();
 
+        pixelsIds = retrieveHotThumbnails(pixelsIds, size, 0, listener);
+        if (pixelsIds != null && pixelsIds.isEmpty())
+        {
+            return;  // All the thumbnails were in memory
+        }
+
         // Prepare our thumbnail context
         newContext();
         ctx.loadAndPrepareRenderingSettings(pixelsIds);
         ctx.createAndPrepareMissingRenderingSettings(pixelsIds);
         ctx.loadAndPrepareMetadata(pixelsIds, size);
-        Map<Long, byte[]> values = retrieveThumbnailSet(pixelsIds);
+        retrieveThumbnailSet(pixelsIds, size, 0, listener);
         iQuery.clear();
-        return values;
     }
 
     /**
-     * Performs the logic of retrieving a set of thumbnails.
+     * Receives the thumbnails of a set as they become available. The
+     * thumbnails held in memory are passed first then, for each group of the
+     * other Pixels sets, the thumbnails already cached on disk and the
+     * thumbnails which had to be created as they complete. Always called by
+     * the thread which requested the set.
+     */
+    public interface ThumbnailSetListener
+    {
+        /**
+         * Receives a thumbnail of the set.
+         * @param pixelsId the Pixels set of the thumbnail.
+         * @param thumbnail the thumbnail bytes or <code>null</code> if the
+         * thumbnail could not be retrieved.
+         */
+        void onThumbnail(long pixelsId, byte[] thumbnail);
+    }
+
+    /** Collects the thumbnails of a set, for the methods returning a map. */
+    private static class MapListener implements ThumbnailSetListener
+    {
+        /** Map of Pixels ID vs. thumbnail bytes. */
+        final Map<Long, byte[]> thumbnails = new HashMap<Long, byte[]>();
+
+        @Override
+        public void onThumbnail(long pixelsId, byte[] thumbnail)
+        {
+            thumbnails.put(pixelsId, thumbnail);
+        }
+    }
+
+    /**
+     * Passes the thumbnails of a set held by the {@link ThumbnailByteCache}
+     * to the listener. The rendering settings the thumbnails are keyed by
+     * are validated with a single query, without preparing a
+     * {@link ThumbnailCtx}. As for the context, these are the latest
+     * settings of the current user or, if the user has none for the whole
+     * set, those of the owners of the Pixels sets. Whether the owners'
+     * settings are used for a set mixing both depends on the permissions of
+     * each group, such thumbnails are retrieved through the context.
      * @param pixelsIds The Pixels IDs to retrieve thumbnails for.
-     * @return Map of Pixels ID vs. thumbnail bytes.
+     * @param sizeX The requested width or longest side.
+     * @param sizeY The requested height, <code>0</code> for the longest side.
+     * @param listener The listener to pass the thumbnails to.
+     * @return The Pixels IDs whose thumbnails are not held in memory.
      */
-    private Map<Long, byte[]> retrieveThumbnailSet(Set<Long> pixelsIds)
+    private Set<Long> retrieveHotThumbnails(Set<Long> pixelsIds, int sizeX,
+            int sizeY, ThumbnailSetListener listener)
     {
-        // Our return value HashMap
-        final Map<Long, byte[]> toReturn = new HashMap<Long, byte[]>();
+        if (thumbnailCache == null || !thumbnailCache.isEnabled()
+                || pixelsIds == null || pixelsIds.isEmpty())
+        {
+            return pixelsIds;
+        }
+        StopWatch s1 = new Slf4JStopWatch("omero.retrieveHotThumbnails");
+        long userId = sec.getEffectiveUID();
+        List<Object[]> rows = iQuery.projection(
+                "select p.id, r.id, r.details.updateEvent.id, " +
+                "r.details.owner.id " +
+                "from RenderingDef as r join r.pixels as p " +
+                "where (r.details.owner.id = :id " +
+                "or r.details.owner.id = p.details.owner.id) " +
+                "and p.id in (:ids) " +
+                "order by r.details.updateEvent.time asc",
+                new Parameters().addId(userId).addIds(pixelsIds));
+        // As for the thumbnail context, the latest settings are used.
+        Map<Long, ThumbnailByteCache.Key> userKeys =
+                new HashMap<Long, ThumbnailByteCache.Key>();
+        Map<Long, ThumbnailByteCache.Key> ownerKeys =
+                new HashMap<Long, ThumbnailByteCache.Key>();
+        for (Object[] row : rows)
+        {
+            Long pixelsId = (Long) row[0];
+            ThumbnailByteCache.Key key = new ThumbnailByteCache.Key(pixelsId,
+                    sizeX, sizeY, (Long) row[1], (Long) row[2]);
+            if (((Long) row[3]).longValue() == userId)
+            {
+                userKeys.put(pixelsId, key);
+            }
+            else
+            {
+                ownerKeys.put(pixelsId, key);
+            }
+        }
+        Map<Long, ThumbnailByteCache.Key> keys =
+                userKeys.isEmpty() ? ownerKeys : userKeys;
+        Set<Long> missed = new HashSet<Long>();
+        for (Long pixelsId : pixelsIds)
+        {
+            ThumbnailByteCache.Key key = keys.get(pixelsId);
+            byte[] thumbnail = key == null ? null : thumbnailCache.get(key);
+            if (thumbnail == null)
+            {
+                missed.add(pixelsId);
+            }
+            else
+            {
+                listener.onThumbnail(pixelsId, thumbnail);
+            }
+        }
+        s1.stop();
+        return missed;
+    }
 
+    /**
+     * Creates the key of the {@link ThumbnailByteCache} entry of the current
+     * thumbnail, rendered with the current settings.
+     * @param pixelsId The Pixels ID of the thumbnail.
+     * @param sizeX The requested width or longest side.
+     * @param sizeY The requested height, <code>0</code> for the longest side.
+     * @return See above or <code>null</code> if the cache is disabled.
+     */
+    private ThumbnailByteCache.Key createCacheKey(long pixelsId, int sizeX,
+            int sizeY)
+    {
+        if (thumbnailCache == null || !thumbnailCache.isEnabled()
+                || settings == null)
+        {
+            return null;
+        }
+        return new ThumbnailByteCache.Key(pixelsId, sizeX, sizeY,
+                settings.getId(),
+                settings.getDetails().getUpdateEvent().getId());
+    }
+
+    /**
+     * Performs the logic of retrieving a set of thumbnails. The cached
+     * thumbnails of each group are read at once, then the missing or out of
+     * date thumbnails are rendered concurrently, each with its own
+     * {@link Renderer}, by a {@link ThumbnailBatch}. The thumbnail metadata
+     * of a group is saved at once. The thumbnails up to date with their
+     * settings are added to the {@link ThumbnailByteCache}, the dirty ones
+     * removed from it.
+     * @param pixelsIds The Pixels IDs to retrieve thumbnails for.
+     * @param sizeX The requested width or longest side.
+     * @param sizeY The requested height, <code>0</code> for the longest side.
+     * @param listener The listener to pass the thumbnails to.
+     */
+    private void retrieveThumbnailSet(Set<Long> pixelsIds, final int sizeX,
+            final int sizeY, final ThumbnailSetListener listener)
+    {
         new PerGroupActor(applicationContext, iQuery, null) {
             @Override
             protected void actOnOneGroup(Set<Long> pixelsIds) {
-                final List<Thumbnail> toSave = new ArrayList<Thumbnail>();
-                for (final Long pixelsId : pixelsIds) {
-                    // Ensure that the renderer has been made dirty otherwise the
-                    // same renderer will be used to return all thumbnails with dirty
-                    // metadata. (See #2075).
-                    resetMetadata();
-                    try {
-                        if (!ctx.hasSettings(pixelsId)) {
-                            try {
-                                pixelDataService.getPixelBuffer(ctx.getPixels(pixelsId), false);
-                                continue;  // No exception, not an in-progress image
-                            } catch (ConcurrencyException e) {
-                                log.debug("ConcurrencyException on retrieveThumbnailSet.ctx.hasSettings: pyramid in progress");
-                                inProgress = true;
-                            }
-                        }
-                        pixels = ctx.getPixels(pixelsId);
-                        settings = ctx.getSettings(pixelsId);
-                        thumbnailMetadata = ctx.getMetadata(pixelsId);
-                        if (inProgress && !PROGRESS_VERSION.equals(thumbnailMetadata.getVersion())) {
-                            thumbnailMetadata.setVersion(PROGRESS_VERSION);
-                            dirtyMetadata = true;
-                        }
-                        try {
-                            // At this point, we're sure that we have a thumbnail obj
-                            // that we want to use, but retrieveThumbnail likes to
-                            // re-generate. For the moment, we're saving and restoring
-                            // that value to prevent creating a new one.
-                            final byte[] thumbnail = retrieveThumbnail(false);
-                            toReturn.put(pixelsId, thumbnail);
-                            if (dirtyMetadata) {
-                                toSave.add(thumbnailMetadata);
-                            }
-                        } finally {
-                            dirtyMetadata = false;
-                        }
-                    } catch (Throwable t) {
-                        log.warn("Retrieving thumbnail in set for " + "Pixels ID " + pixelsId + " failed.", t);
-                        toReturn.put(pixelsId, null);
+                createThumbnailBatch().run(pixelsIds,
+                        new SetSteps(sizeX, sizeY), listener);
+            }
+        }.actOnByGroup(pixelsIds);
+    }
+
+    /**
+     * Creates the batch rendering the missing thumbnails of a set on the
+     * {@link RenderingExecutor}, at most
+     * {@link #setThumbnailParallelism(int)} at a time so that a set does not
+     * hold all the workers.
+     * @return See above.
+     */
+    private ThumbnailBatch createThumbnailBatch()
+    {
+        RenderingExecutor executor = getRenderingExecutor();
+        int threads = executor.getThreadCount();
+        int parallelism = thumbnailParallelism > 0
+                ? Math.min(thumbnailParallelism, threads)
+                : Math.max(1, threads / 2);
+        return new ThumbnailBatch(executor, parallelism);
+    }
+
+    /**
+     * Adds a thumbnail of a set to the {@link ThumbnailByteCache}.
+     * @param key The key of the thumbnail or <code>null</code> if it is not
+     * to be cached.
+     * @param thumbnail The thumbnail bytes.
+     */
+    private void cacheThumbnail(ThumbnailByteCache.Key key, byte[] thumbnail)
+    {
+        if (key != null) {
+            thumbnailCache.put(key, thumbnail);
+        }
+    }
+
+    /**
+     * The steps of the {@link ThumbnailBatch} of a group of Pixels sets, run
+     * within the transaction on the thumbnail context. The metadata and the
+     * renderer of each missing thumbnail are prepared on the calling thread,
+     * the rendering does not access the database.
+     */
+    private class SetSteps implements ThumbnailBatch.Steps
+    {
+        /** The requested width or longest side. */
+        private final int sizeX;
+
+        /** The requested height, <code>0</code> for the longest side. */
+        private final int sizeY;
+
+        /**
+         * The metadata of the thumbnails to create by Pixels ID, as
+         * {@link #planThumbnails(Set, Set, List)} prepares them, or
+         * <code>null</code> for the thumbnails of the context.
+         */
+        private Map<Long, List<Thumbnail>> plans;
+
+        /** The metadata to save. */
+        private final List<Thumbnail> toSave = new ArrayList<Thumbnail>();
+
+        /** The metadata of the cached thumbnails by Pixels ID. */
+        private final Map<Long, Thumbnail> cached =
+                new HashMap<Long, Thumbnail>();
+
+        /**
+         * The keys of the thumbnails to add to the
+         * {@link ThumbnailByteCache} by Pixels ID.
+         */
+        private final Map<Long, ThumbnailByteCache.Key> keys =
+                new HashMap<Long, ThumbnailByteCache.Key>();
+
+        /** The Pixels IDs whose thumbnails are out of date. */
+        private final Set<Long> dirtyIds = new HashSet<Long>();
+
+        /** Whether the disk space was checked before the first rendering. */
+        private boolean repositoryChecked;
+
+        SetSteps(int sizeX, int sizeY)
+        {
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+        }
+
+        @Override
+        public ThumbnailBatch.Kind classify(long pixelsId,
+                ThumbnailSetListener listener) throws Exception
+        {
+            if (plans != null) {
+                return plans.containsKey(pixelsId)
+                        ? ThumbnailBatch.Kind.MISSING
+                        : ThumbnailBatch.Kind.DONE;
+            }
+            // Ensure that the renderer has been made dirty otherwise the
+            // same renderer will be used to return all thumbnails with dirty
+            // metadata. (See #2075).
+            resetMetadata();
+            if (!ctx.hasSettings(pixelsId)) {
+                try {
+                    pixelDataService.getPixelBuffer(ctx.getPixels(pixelsId), false);
+                    return ThumbnailBatch.Kind.DONE;  // No exception, not an in-progress image
+                } catch (ConcurrencyException e) {
+                    log.debug("ConcurrencyException on retrieveThumbnailSet.ctx.hasSettings: pyramid in progress");
+                    inProgress = true;
+                }
+            }
+            pixels = ctx.getPixels(pixelsId);
+            settings = ctx.getSettings(pixelsId);
+            thumbnailMetadata = ctx.getMetadata(pixelsId);
+            if (inProgress && !PROGRESS_VERSION.equals(thumbnailMetadata.getVersion())) {
+                thumbnailMetadata.setVersion(PROGRESS_VERSION);
+                dirtyMetadata = true;
+            }
+            try {
+                ThumbnailBatch.Kind kind;
+                if (inProgress) {
+                    // At this point, we're sure that we have a thumbnail obj
+                    // that we want to use, but retrieveThumbnail likes to
+                    // re-generate. For the moment, we're saving and restoring
+                    // that value to prevent creating a new one.
+                    listener.onThumbnail(pixelsId, retrieveThumbnail(false));
+                    kind = ThumbnailBatch.Kind.DONE;
+                } else if (ctx.isThumbnailCached(pixelsId)) {
+                    cached.put(pixelsId, thumbnailMetadata);
+                    if (ctx.dirtyMetadata(pixelsId)) {
+                        dirtyIds.add(pixelsId);
+                    } else {
+                        keys.put(pixelsId,
+                                createCacheKey(pixelsId, sizeX, sizeY));
                     }
+                    kind = ThumbnailBatch.Kind.CACHED;
+                } else {
+                    dirtyIds.add(pixelsId);
+                    keys.put(pixelsId,
+                            createCacheKey(pixelsId, sizeX, sizeY));
+                    kind = ThumbnailBatch.Kind.MISSING;
+                }
+                if (dirtyMetadata) {
+                    toSave.add(thumbnailMetadata);
                 }
-                // We're doing the update or creation and save as a two-step
-                // process due to the possible unloaded Pixels. If we do not,
-                // Pixels will be unloaded and we will hit
-                // IllegalStateException's when checking update events.
-                iUpdate.saveArray(toSave.toArray(new Thumbnail[toSave.size()]));
-                // Ensure that we do not have "dirty" pixels or rendering settings left
-                // around in the Hibernate session cache.
-                iQuery.clear();
-                iUpdate.flush();
+                return kind;
+            } finally {
+                dirtyMetadata = false;
             }
-        }.actOnByGroup(pixelsIds);
-        return toReturn;
+        }
+
+        @Override
+        public Map<Long, byte[]> read(List<Long> pixelsIds) throws IOException
+        {
+            // All the Pixels sets are classified.
+            if (thumbnailCache != null) {
+                thumbnailCache.invalidate(dirtyIds);
+            }
+            Map<Long, byte[]> thumbnails = new HashMap<Long, byte[]>();
+            if (pixelsIds.isEmpty()) {
+                return thumbnails;
+            }
+            List<Thumbnail> metadata = new ArrayList<Thumbnail>();
+            for (Long pixelsId : pixelsIds) {
+                metadata.add(cached.get(pixelsId));
+            }
+            Map<Long, byte[]> read = ioService.getThumbnails(metadata);
+            for (Long pixelsId : pixelsIds) {
+                byte[] thumbnail = read.get(cached.get(pixelsId).getId());
+                if (thumbnail != null) {
+                    cacheThumbnail(keys.get(pixelsId), thumbnail);
+                    thumbnails.put(pixelsId, thumbnail);
+                }
+            }
+            return thumbnails;
+        }
+
+        @Override
+        public Callable<byte[]> prepare(long pixelsId,
+                ThumbnailSetListener listener) throws Exception
+        {
+            if (diskSpaceChecking && !repositoryChecked) {
+                iRepositoryInfo.sanityCheckRepository();
+                repositoryChecked = true;
+            }
+            // See #2075.
+            resetMetadata();
+            try {
+                pixels = ctx.getPixels(pixelsId);
+                settings = ctx.getSettings(pixelsId);
+                List<Thumbnail> planned =
+                        plans == null ? null : plans.get(pixelsId);
+                if (planned == null) {
+                    thumbnailMetadata = ctx.getMetadata(pixelsId);
+                    _prepareThumbnailMetadata();
+                    if (dirtyMetadata) {
+                        toSave.add(thumbnailMetadata);
+                    }
+                    planned = Collections.singletonList(thumbnailMetadata);
+                } else {
+                    thumbnailMetadata = planned.get(0);
+                }
+                errorIfInvalidState();
+                if (inProgress) {
+                    compressThumbnailToDisk(thumbnailMetadata, null);
+                    listener.onThumbnail(pixelsId,
+                            ioService.getThumbnail(thumbnailMetadata));
+                    return null;
+                }
+                ThumbnailRendering rendering = new ThumbnailRendering(pixels,
+                        settings, planned, renderer, keys.get(pixelsId));
+                // The renderer is now closed by the rendering.
+                renderer = null;
+                return rendering;
+            } finally {
+                dirtyMetadata = false;
+            }
+        }
+
+        @Override
+        public void save()
+        {
+            // We're doing the update or creation and save as a two-step
+            // process due to the possible unloaded Pixels. If we do not,
+            // Pixels will be unloaded and we will hit
+            // IllegalStateException's when checking update events.
+            iUpdate.saveArray(toSave.toArray(new Thumbnail[toSave.size()]));
+            // Ensure that we do not have "dirty" pixels or rendering settings left
+            // around in the Hibernate session cache.
+            iQuery.clear();
+            iUpdate.flush();
+        }
+    }
+
+    /**
+     * The rendering, compression and writing of the thumbnails of a Pixels
+     * set with its own {@link Renderer}, closed once done. The plane is
+     * rendered once, for the first and largest thumbnail, the next ones
+     * being successively scaled down from the previous one. Does not access
+     * the database. Returns the bytes of the first thumbnail.
+     */
+    private class ThumbnailRendering implements Callable<byte[]>
+    {
+        private final Pixels pixels;
+
+        private final RenderingDef settings;
+
+        /** The metadata of the thumbnails, from the largest. */
+        private final List<Thumbnail> thumbnailMetadata;
+
+        private final Renderer renderer;
+
+        /** The key to cache the first thumbnail with, if any. */
+        private final ThumbnailByteCache.Key key;
+
+        ThumbnailRendering(Pixels pixels, RenderingDef settings,
+                List<Thumbnail> thumbnailMetadata, Renderer renderer,
+                ThumbnailByteCache.Key key)
+        {
+            this.pixels = pixels;
+            this.settings = settings;
+            this.thumbnailMetadata = thumbnailMetadata;
+            this.renderer = renderer;
+            this.key = key;
+        }
+
+        @Override
+        public byte[] call() throws Exception
+        {
+            StopWatch s1 = new Slf4JStopWatch("omero._createThumbnail");
+            try {
+                Thumbnail first = thumbnailMetadata.get(0);
+                BufferedImage image = createScaledImage(renderer, pixels,
+                        settings, first, null, null);
+                List<Dimension> sizes =
+                        new ArrayList<Dimension>(thumbnailMetadata.size());
+                for (Thumbnail metadata : thumbnailMetadata) {
+                    sizes.add(new Dimension(metadata.getSizeX(),
+                            metadata.getSizeY()));
+                }
+                List<byte[]> thumbnails = new ThumbnailSizes(iScale,
+                        compressionService).compress(image, sizes);
+                for (int i = 0; i < thumbnails.size(); i++) {
+                    ioService.createThumbnail(thumbnailMetadata.get(i),
+                            thumbnails.get(i));
+                }
+                byte[] thumbnail = thumbnails.get(0);
+                cacheThumbnail(key, thumbnail);
+                s1.stop();
+                return thumbnail;
+            } finally {
+                try {
+                    renderer.close();
+                } catch (Throwable t) {
+                    log.warn("Closing thumbnail renderer failed.", t);
+                }
+            }
+        }
     }
 
     /*
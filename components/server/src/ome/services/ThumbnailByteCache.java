@@ -0,0 +1,217 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Server-wide cache of the compressed thumbnails returned by
+ * {@link ThumbnailBean#getThumbnailSet(Integer, Integer, java.util.Set)} and
+ * {@link ThumbnailBean#getThumbnailByLongestSideSet(Integer, java.util.Set)}.
+ * The entries are keyed by the pixels set, the requested size and the
+ * identifier and update event of the rendering settings the thumbnail was
+ * rendered with. Saving the settings therefore never returns a stale
+ * thumbnail, the invalidation done when the thumbnail metadata is found
+ * dirty only releases the space.
+ * <p>
+ * The entries are held in memory up to a number of bytes.
+ * </p>
+ *
+ * @since 5.4.0
+ */
+public class ThumbnailByteCache {
+
+    /** The cache or <code>null</code> if the cache is disabled. */
+    private final Cache<Key, byte[]> memory;
+
+    /** Number of lookups which found a thumbnail. */
+    private Counter hits = new NullMetrics().counter(this, "hits");
+
+    /** Number of lookups which did not find a thumbnail. */
+    private Counter misses = new NullMetrics().counter(this, "misses");
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxBytes The maximum number of bytes held in memory.
+     *                 <code>0</code> disables the cache.
+     */
+    public ThumbnailByteCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            memory = null;
+            return;
+        }
+        memory = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Key, byte[]>() {
+                    public int weigh(Key key, byte[] value) {
+                        return value.length;
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Sets the metrics to report the hits and misses to.
+     *
+     * @param metrics The value to set.
+     */
+    public void setMetrics(Metrics metrics) {
+        hits = metrics.counter(this, "hits");
+        misses = metrics.counter(this, "misses");
+    }
+
+    /**
+     * Returns <code>true</code> if the cache holds thumbnails,
+     * <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return memory != null;
+    }
+
+    /**
+     * Returns the cached thumbnail for the specified key.
+     *
+     * @param key The key of the thumbnail.
+     * @return See above or <code>null</code> if the thumbnail is not cached.
+     */
+    public byte[] get(Key key) {
+        if (memory == null) {
+            return null;
+        }
+        byte[] data = memory.getIfPresent(key);
+        if (data == null) {
+            misses.inc();
+        } else {
+            hits.inc();
+        }
+        return data;
+    }
+
+    /**
+     * Caches the specified thumbnail.
+     *
+     * @param key The key of the thumbnail.
+     * @param data The compressed thumbnail.
+     */
+    public void put(Key key, byte[] data) {
+        if (memory != null && data != null) {
+            memory.put(key, data);
+        }
+    }
+
+    /**
+     * Removes all the thumbnails of the specified pixels sets.
+     *
+     * @param pixelsIds The identifiers of the pixels sets.
+     */
+    public void invalidate(Collection<Long> pixelsIds) {
+        if (memory == null || pixelsIds.isEmpty()) {
+            return;
+        }
+        Iterator<Key> i = memory.asMap().keySet().iterator();
+        while (i.hasNext()) {
+            if (pixelsIds.contains(i.next().pixelsId)) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the thumbnails.
+     */
+    public void clear() {
+        if (memory != null) {
+            memory.invalidateAll();
+        }
+    }
+
+    /** The key of a cached thumbnail. */
+    public static final class Key {
+
+        /** The identifier of the pixels set. */
+        private final long pixelsId;
+
+        /** The requested width or longest side. */
+        private final int sizeX;
+
+        /** The requested height, <code>0</code> for the longest side. */
+        private final int sizeY;
+
+        /** The identifier of the rendering settings. */
+        private final long settingsId;
+
+        /** The identifier of the last update event of the settings. */
+        private final long settingsEventId;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param pixelsId The identifier of the pixels set.
+         * @param sizeX The requested width or longest side.
+         * @param sizeY The requested height, <code>0</code> if
+         *              <code>sizeX</code> is the longest side.
+         * @param settingsId The identifier of the rendering settings.
+         * @param settingsEventId The identifier of the last update event of
+         *                        the rendering settings.
+         */
+        public Key(long pixelsId, int sizeX, int sizeY, long settingsId,
+                long settingsEventId) {
+            this.pixelsId = pixelsId;
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+            this.settingsId = settingsId;
+            this.settingsEventId = settingsEventId;
+        }
+
+        /**
+         * Returns the identifier of the pixels set.
+         *
+         * @return See above.
+         */
+        public long getPixelsId() {
+            return pixelsId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return pixelsId == other.pixelsId
+                    && sizeX == other.sizeX
+                    && sizeY == other.sizeY
+                    && settingsId == other.settingsId
+                    && settingsEventId == other.settingsEventId;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = (int) (pixelsId ^ (pixelsId >>> 32));
+            h = 31 * h + sizeX;
+            h = 31 * h + sizeY;
+            h = 31 * h + (int) (settingsId ^ (settingsId >>> 32));
+            return 31 * h + (int) (settingsEventId ^ (settingsEventId >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d/%dx%d/%d@%d", pixelsId, sizeX, sizeY,
+                    settingsId, settingsEventId);
+        }
+    }
+}
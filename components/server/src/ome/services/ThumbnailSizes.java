@@ -0,0 +1,68 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ome.api.IScale;
+import ome.api.local.LocalCompress;
+
+/**
+ * Derives the thumbnails of several sizes of a Pixels set from a single
+ * rendering of the plane. Each thumbnail is scaled down from the previous,
+ * larger one rather than from the plane, then compressed.
+ *
+ * @since 5.4.0
+ */
+public class ThumbnailSizes {
+
+    /** The service scaling the images. */
+    private final IScale scaleService;
+
+    /** The service compressing the thumbnails. */
+    private final LocalCompress compressionService;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param scaleService The service scaling the images.
+     * @param compressionService The service compressing the thumbnails.
+     */
+    public ThumbnailSizes(IScale scaleService,
+            LocalCompress compressionService) {
+        this.scaleService = scaleService;
+        this.compressionService = compressionService;
+    }
+
+    /**
+     * Compresses the thumbnails of the given sizes.
+     *
+     * @param image The plane, usually rendered at the first size.
+     * @param sizes The sizes of the thumbnails, from the largest.
+     * @return The compressed thumbnails, in the order of the sizes.
+     * @throws IOException If a thumbnail cannot be compressed.
+     */
+    public List<byte[]> compress(BufferedImage image, List<Dimension> sizes)
+            throws IOException {
+        List<byte[]> thumbnails = new ArrayList<byte[]>(sizes.size());
+        for (Dimension size : sizes) {
+            if (image.getWidth() != size.width
+                    || image.getHeight() != size.height) {
+                image = scaleService.scaleBufferedImage(image,
+                        (float) size.width / image.getWidth(),
+                        (float) size.height / image.getHeight());
+            }
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            compressionService.compressToStream(image, stream);
+            thumbnails.add(stream.toByteArray());
+        }
+        return thumbnails;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import loci.formats.FormatTools;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.TileRequest;
+import ome.util.PixelData;
+
+/**
+ * Computes the histogram of a region of a plane by reading only the tiles of
+ * the pixel buffer which cover the region, at the resolution level the
+ * buffer is set to. The tiles are read a batch at a time through
+ * {@link PixelBuffer#getTiles(List)}.
+ * <p>
+ * When the bins span the minimum and maximum of the plane, the pixel types
+ * of at most 16 bits are read once: the number of pixels of each value in
+ * the region and the minimum and maximum of the plane are collected in the
+ * same pass, then the values are distributed into the bins. The wider types
+ * are read twice, the first pass determining the minimum and maximum.
+ * </p>
+ * <p>
+ * An instance holds no pixel data and may compute the histograms of several
+ * channels concurrently, each with its own pixel buffer.
+ * </p>
+ *
+ * @since 5.4.0
+ */
+public class TiledHistogram {
+
+    /** The number of tiles requested at a time. */
+    private static final int BATCH_SIZE = 16;
+
+    /** The Z-section. */
+    private final int z;
+
+    /** The timepoint. */
+    private final int t;
+
+    /** The X offset of the region. */
+    private final int x;
+
+    /** The Y offset of the region. */
+    private final int y;
+
+    /** The width of the region. */
+    private final int w;
+
+    /** The height of the region. */
+    private final int h;
+
+    /** The number of bins. */
+    private final int binCount;
+
+    /**
+     * The values the minimum and maximum of the plane are initialized with,
+     * i.e. the maximum and minimum of the pixels type.
+     */
+    private final double[] pixelsRange;
+
+    /** The smallest value of the pixels type if counted by value. */
+    private final int countOffset;
+
+    /** The number of values of the pixels type or <code>0</code>. */
+    private final int countSize;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param pixelsType The pixels type.
+     * @param pixelsRange The minimum and maximum of the pixels type, see
+     *            {@link omeis.providers.re.metadata.StatsFactory#initPixelsRange(ome.model.core.Pixels)}.
+     * @param z The Z-section.
+     * @param t The timepoint.
+     * @param x The X offset of the region, within the plane.
+     * @param y The Y offset of the region, within the plane.
+     * @param w The width of the region, within the plane.
+     * @param h The height of the region, within the plane.
+     * @param binCount The number of bins.
+     */
+    public TiledHistogram(String pixelsType, double[] pixelsRange, int z,
+            int t, int x, int y, int w, int h, int binCount) {
+        this.pixelsRange = pixelsRange;
+        this.z = z;
+        this.t = t;
+        this.x = x;
+        this.y = y;
+        this.w = w;
+        this.h = h;
+        this.binCount = binCount;
+        int type = FormatTools.pixelTypeFromString(pixelsType);
+        if (type == FormatTools.BIT) {
+            // Not handled by FormatTools.defaultMinMax().
+            countOffset = 0;
+            countSize = 2;
+        } else if (!FormatTools.isFloatingPoint(type)
+                && FormatTools.getBytesPerPixel(type) <= 2) {
+            long[] values = FormatTools.defaultMinMax(type);
+            countOffset = (int) values[0];
+            countSize = (int) (values[1] - values[0] + 1);
+        } else {
+            countOffset = 0;
+            countSize = 0;
+        }
+    }
+
+    /**
+     * Returns the number of pixels of the region in each bin.
+     *
+     * @param buffer The pixel buffer, set to the resolution level.
+     * @param c The channel.
+     * @param range The minimum and maximum of the bins or <code>null</code>
+     *            to use those of the plane.
+     * @return See above.
+     * @throws IOException If the tiles cannot be read.
+     */
+    public int[] compute(PixelBuffer buffer, int c, double[] range)
+            throws IOException {
+        final int[] data = new int[binCount];
+        if (range != null) {
+            final double min = range[0];
+            final double binRange = (range[1] - min + 1) / binCount;
+            visit(buffer, c, x, y, w, h, new Visitor() {
+                void tile(PixelData px, int tx, int ty, int tw, int th) {
+                    for (int i = 0, n = tw * th; i < n; i++) {
+                        add(data, px.getPixelValue(i), min, binRange, 1);
+                    }
+                }
+            });
+            return data;
+        }
+        final double[] minmax = new double[] {
+                pixelsRange[1], pixelsRange[0] };
+        int sizeX = buffer.getSizeX();
+        int sizeY = buffer.getSizeY();
+        if (countSize > 0) {
+            final int[] counts = new int[countSize];
+            visit(buffer, c, 0, 0, sizeX, sizeY, new Visitor() {
+                void tile(PixelData px, int tx, int ty, int tw, int th) {
+                    int x0 = Math.max(x, tx) - tx;
+                    int x1 = Math.min(x + w, tx + tw) - tx;
+                    int y0 = Math.max(y, ty) - ty;
+                    int y1 = Math.min(y + h, ty + th) - ty;
+                    double v;
+                    for (int j = 0, i = 0; j < th; j++) {
+                        boolean row = j >= y0 && j < y1;
+                        for (int k = 0; k < tw; k++, i++) {
+                            v = px.getPixelValue(i);
+                            if (v < minmax[0]) {
+                                minmax[0] = v;
+                            }
+                            if (v > minmax[1]) {
+                                minmax[1] = v;
+                            }
+                            if (row && k >= x0 && k < x1) {
+                                counts[(int) v - countOffset]++;
+                            }
+                        }
+                    }
+                }
+            });
+            double min = minmax[0];
+            double binRange = (minmax[1] - min + 1) / binCount;
+            for (int i = 0; i < countSize; i++) {
+                if (counts[i] > 0) {
+                    add(data, i + countOffset, min, binRange, counts[i]);
+                }
+            }
+            return data;
+        }
+        visit(buffer, c, 0, 0, sizeX, sizeY, new Visitor() {
+            void tile(PixelData px, int tx, int ty, int tw, int th) {
+                double v;
+                for (int i = 0, n = tw * th; i < n; i++) {
+                    v = px.getPixelValue(i);
+                    minmax[0] = Math.min(minmax[0], v);
+                    minmax[1] = Math.max(minmax[1], v);
+                }
+            }
+        });
+        return compute(buffer, c, minmax);
+    }
+
+    /**
+     * Adds pixels of the specified value to their bin.
+     *
+     * @param data The bins.
+     * @param value The value of the pixels.
+     * @param min The minimum of the bins.
+     * @param binRange The range of values of a bin.
+     * @param count The number of pixels.
+     */
+    private void add(int[] data, double value, double min, double binRange,
+            int count) {
+        int bin = (int) ((value - min) / binRange);
+        // if there are more bins than values (binRange < 1) the bin will be
+        // offset by -1. e.g. min=0.0, max=127.0, binCount=256: a pixel with
+        // max value 127.0 would go into bin 254 (expected: 255). Therefore
+        // increment by one for these cases.
+        if (bin > 0 && binRange < 1) {
+            bin++;
+        }
+        if (bin >= 0 && bin < binCount) {
+            data[bin] += count;
+        }
+    }
+
+    /**
+     * Reads the tiles covering a region of the plane, clipped to the region.
+     *
+     * @param buffer The pixel buffer.
+     * @param c The channel.
+     * @param rx The X offset of the region.
+     * @param ry The Y offset of the region.
+     * @param rw The width of the region.
+     * @param rh The height of the region.
+     * @param visitor Passed each tile.
+     * @throws IOException If the tiles cannot be read.
+     */
+    private void visit(PixelBuffer buffer, int c, int rx, int ry, int rw,
+            int rh, Visitor visitor) throws IOException {
+        if (rw <= 0 || rh <= 0) {
+            return;
+        }
+        Dimension tileSize = buffer.getTileSize();
+        int tileWidth = tileSize.width;
+        int tileHeight = tileSize.height;
+        List<TileRequest> tiles = new ArrayList<TileRequest>(BATCH_SIZE);
+        for (int ty = ry - ry % tileHeight; ty < ry + rh; ty += tileHeight) {
+            for (int tx = rx - rx % tileWidth; tx < rx + rw; tx += tileWidth) {
+                int x0 = Math.max(rx, tx);
+                int y0 = Math.max(ry, ty);
+                tiles.add(new TileRequest(z, c, t, x0, y0,
+                        Math.min(rx + rw, tx + tileWidth) - x0,
+                        Math.min(ry + rh, ty + tileHeight) - y0));
+                if (tiles.size() == BATCH_SIZE) {
+                    visit(buffer, tiles, visitor);
+                }
+            }
+        }
+        visit(buffer, tiles, visitor);
+    }
+
+    /**
+     * Reads a batch of tiles and passes them to the visitor.
+     *
+     * @param buffer The pixel buffer.
+     * @param tiles The tiles to read, cleared once read.
+     * @param visitor Passed each tile.
+     * @throws IOException If the tiles cannot be read.
+     */
+    private void visit(PixelBuffer buffer, List<TileRequest> tiles,
+            Visitor visitor) throws IOException {
+        if (tiles.isEmpty()) {
+            return;
+        }
+        List<PixelData> data = buffer.getTiles(tiles);
+        for (int i = 0; i < tiles.size(); i++) {
+            TileRequest tile = tiles.get(i);
+            PixelData px = data.get(i);
+            try {
+                visitor.tile(px, tile.getX(), tile.getY(), tile.getWidth(),
+                        tile.getHeight());
+            } finally {
+                px.dispose();
+            }
+        }
+        tiles.clear();
+    }
+
+    /** Handles the tiles read by {@link TiledHistogram#visit}. */
+    private abstract static class Visitor {
+
+        /**
+         * Handles a tile.
+         *
+         * @param px The pixels of the tile.
+         * @param tx The X offset of the tile.
+         * @param ty The Y offset of the tile.
+         * @param tw The width of the tile.
+         * @param th The height of the tile.
+         */
+        abstract void tile(PixelData px, int tx, int ty, int tw, int th);
+    }
+}
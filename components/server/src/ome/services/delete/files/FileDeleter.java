@@ -77,7 +77,7 @@ public class FileDeleter {
         filesFailed += originalFD.deleteLocal();
         bytesFailed += originalFD.getBytesFailed();
 
-        thumbFD = new ThumbnailFileDeletions(afs, load(Type.Thumbnail));
+        thumbFD = new ThumbnailFileDeletions(afs, load(Type.Thumbnail), ctx);
         filesFailed += thumbFD.deleteLocal();
         bytesFailed += thumbFD.getBytesFailed();
 
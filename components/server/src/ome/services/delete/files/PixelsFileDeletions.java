@@ -24,6 +24,7 @@ import java.util.Set;
 import ome.io.bioformats.BfPyramidPixelBuffer;
 import ome.io.nio.AbstractFileSystemService;
 import ome.io.nio.PixelsService;
+import ome.io.nio.PyramidCheckpoint;
 
 import org.apache.commons.io.filefilter.WildcardFileFilter;
 import org.slf4j.Logger;
@@ -56,6 +57,8 @@ public class PixelsFileDeletions extends AbstractFileDeletions {
             addLocalFile(pyrFile, id);
             // Now any lock file
             addLocalFile(lockFile, id);
+            // And any pyramid progress checkpoint
+            addLocalFile(PyramidCheckpoint.getFile(pyrFile), id);
 
             // Now any tmp files
             FileFilter tmpFileFilter = new WildcardFileFilter("."
@@ -21,6 +21,8 @@ import java.io.File;
 import java.util.Set;
 
 import ome.io.nio.AbstractFileSystemService;
+import ome.io.nio.ThumbnailService;
+import ome.system.OmeroContext;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,8 +38,19 @@ public class ThumbnailFileDeletions extends AbstractFileDeletions {
 
     private static final Logger log = LoggerFactory.getLogger(ThumbnailFileDeletions.class);
 
-    public ThumbnailFileDeletions(AbstractFileSystemService afs, Set<Long> deletedIds) {
+    public ThumbnailFileDeletions(AbstractFileSystemService afs, Set<Long> deletedIds, OmeroContext ctx) {
         super(afs, deletedIds);
+
+        // Thumbnails in the packed store are tombstoned at once, the
+        // thumbnails still in their own file are deleted by deleteLocal().
+        if (ctx != null && ctx.containsBean("/OMERO/Thumbs")) {
+            try {
+                ctx.getBean("/OMERO/Thumbs", ThumbnailService.class)
+                    .removePackedThumbnails(deletedIds);
+            } catch (Throwable e) {
+                log.warn("Error on removing packed thumbnails", e);
+            }
+        }
         for (Long id : deletedIds) {
             String filePath = afs.getThumbnailPath(id);
             addLocalFile(new File(filePath), id);
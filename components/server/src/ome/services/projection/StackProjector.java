@@ -0,0 +1,360 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.projection;
+
+import java.awt.Dimension;
+import java.io.IOException;
+
+import ome.api.IProjection;
+import ome.io.nio.DimensionsOutOfBoundsException;
+import ome.io.nio.PixelBuffer;
+import ome.util.PixelData;
+import omeis.providers.re.RenderingExecutor;
+import omeis.providers.re.RenderingTask;
+import omeis.providers.re.quantum.QuantizationException;
+
+/**
+ * Projects the optical sections of a stack without loading the stack into
+ * memory. The plane is cut into blocks, the tiles of the pixel buffer or
+ * bands of rows if the buffer is not tiled, and each block is reduced
+ * section by section into a running accumulator. The blocks are reduced
+ * in parallel on a {@link RenderingExecutor}; the memory used is therefore
+ * bounded by the block size times the number of threads. Reads from the
+ * pixel buffer are serialized on the buffer.
+ *
+ * @since 5.4.0
+ */
+public class StackProjector {
+
+    /**
+     * The maximum number of pixels in a block when the pixel buffer is not
+     * tiled.
+     */
+    static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+    /** The buffer to read the sections from. */
+    private final PixelBuffer pixelBuffer;
+
+    /** The executor to reduce the blocks on. */
+    private final RenderingExecutor executor;
+
+    /** The minimum of the last projection. */
+    private double minimum = Double.MAX_VALUE;
+
+    /** The maximum of the last projection. */
+    private double maximum = Double.MIN_VALUE;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param pixelBuffer The buffer to read the sections from.
+     * @param executor The executor to reduce the blocks on.
+     */
+    public StackProjector(PixelBuffer pixelBuffer, RenderingExecutor executor)
+    {
+        this.pixelBuffer = pixelBuffer;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the minimum of the last projection, i.e. the smaller of the
+     * projected values and of the value passed to
+     * {@link #project(int, int, int, int, int, int, PixelData, double, double)}.
+     *
+     * @return See above.
+     */
+    public double getMinimum()
+    {
+        return minimum;
+    }
+
+    /**
+     * Returns the maximum of the last projection, i.e. the larger of the
+     * projected values and of the value passed to
+     * {@link #project(int, int, int, int, int, int, PixelData, double, double)}.
+     *
+     * @return See above.
+     */
+    public double getMaximum()
+    {
+        return maximum;
+    }
+
+    /**
+     * Projects a stack into the passed plane.
+     *
+     * @param algorithm One of {@link IProjection#MAXIMUM_INTENSITY},
+     * {@link IProjection#MEAN_INTENSITY} or
+     * {@link IProjection#SUM_INTENSITY}.
+     * @param channelIndex The channel to project.
+     * @param timepoint The timepoint to project.
+     * @param stepping Stepping value to use while calculating the projection.
+     * @param start Optical section to start projecting from.
+     * @param end Optical section to finish projecting.
+     * @param to The plane to project into.
+     * @param minimum The minimum to start from.
+     * @param maximum The maximum to start from.
+     * @throws IOException If the sections cannot be read.
+     * @throws DimensionsOutOfBoundsException If the channel or the timepoint
+     * is out of range.
+     */
+    public void project(int algorithm, int channelIndex, int timepoint,
+            int stepping, int start, int end, PixelData to,
+            double minimum, double maximum)
+        throws IOException, DimensionsOutOfBoundsException
+    {
+        switch (algorithm)
+        {
+            case IProjection.MAXIMUM_INTENSITY:
+            case IProjection.MEAN_INTENSITY:
+            case IProjection.SUM_INTENSITY:
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown algorithm: " + algorithm);
+        }
+        int sizeX = pixelBuffer.getSizeX();
+        int sizeY = pixelBuffer.getSizeY();
+        int threads = executor.getThreadCount() + 1;
+        Dimension tileSize = pixelBuffer.getTileSize();
+        int tileWidth, tileHeight;
+        if (tileSize == null || tileSize.width >= sizeX)
+        {
+            // Bands of rows, enough of them to keep all the threads busy.
+            tileWidth = sizeX;
+            tileHeight = Math.max(1, Math.min(MAX_BLOCK_SIZE / sizeX,
+                    (sizeY + threads - 1) / threads));
+            if (tileSize != null)
+            {
+                tileHeight = Math.min(tileHeight, tileSize.height);
+            }
+        }
+        else
+        {
+            tileWidth = tileSize.width;
+            tileHeight = tileSize.height;
+        }
+        int countX = (sizeX + tileWidth - 1) / tileWidth;
+        int countY = (sizeY + tileHeight - 1) / tileHeight;
+        BlockTask[] tasks = new BlockTask[countX * countY];
+        int index = 0;
+        for (int y = 0; y < sizeY; y += tileHeight)
+        {
+            for (int x = 0; x < sizeX; x += tileWidth)
+            {
+                tasks[index++] = new BlockTask(algorithm, channelIndex,
+                        timepoint, stepping, start, end, to, x, y,
+                        Math.min(tileWidth, sizeX - x),
+                        Math.min(tileHeight, sizeY - y));
+            }
+        }
+        try
+        {
+            if (to.javaType() == PixelData.BIT)
+            {
+                // Neighbouring blocks may share the bytes of a bit plane.
+                for (BlockTask task : tasks)
+                {
+                    task.call();
+                }
+            }
+            else
+            {
+                executor.invokeAll(tasks);
+            }
+        }
+        catch (ReadFailure e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw (DimensionsOutOfBoundsException) e.getCause();
+        }
+        catch (QuantizationException e)
+        {
+            // Never thrown by a projection task.
+            throw new RuntimeException(e);
+        }
+        for (BlockTask task : tasks)
+        {
+            minimum = task.minimum < minimum? task.minimum : minimum;
+            maximum = task.maximum > maximum? task.maximum : maximum;
+        }
+        this.minimum = minimum;
+        this.maximum = maximum;
+    }
+
+    /**
+     * Projects one block of the plane. The block is read section by section
+     * and reduced into an accumulator before being written to the plane.
+     */
+    private class BlockTask implements RenderingTask
+    {
+        private final int algorithm;
+
+        private final int channelIndex;
+
+        private final int timepoint;
+
+        private final int stepping;
+
+        private final int start;
+
+        private final int end;
+
+        private final PixelData to;
+
+        private final int x;
+
+        private final int y;
+
+        private final int w;
+
+        private final int h;
+
+        /** The minimum of the projected values of the block. */
+        double minimum = Double.MAX_VALUE;
+
+        /** The maximum of the projected values of the block. */
+        double maximum = Double.MIN_VALUE;
+
+        BlockTask(int algorithm, int channelIndex, int timepoint,
+                int stepping, int start, int end, PixelData to,
+                int x, int y, int w, int h)
+        {
+            this.algorithm = algorithm;
+            this.channelIndex = channelIndex;
+            this.timepoint = timepoint;
+            this.stepping = stepping;
+            this.start = start;
+            this.end = end;
+            this.to = to;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+
+        /**
+         * Reads the block of the specified section.
+         *
+         * @param z The section.
+         * @return See above.
+         */
+        private PixelData read(int z)
+        {
+            try
+            {
+                synchronized (pixelBuffer)
+                {
+                    return pixelBuffer.getTile(z, channelIndex, timepoint,
+                            x, y, w, h);
+                }
+            }
+            catch (IOException e)
+            {
+                throw new ReadFailure(e);
+            }
+            catch (DimensionsOutOfBoundsException e)
+            {
+                throw new ReadFailure(e);
+            }
+        }
+
+        public Object call()
+        {
+            int size = w * h;
+            double[] values = new double[size];
+            PixelData tile;
+            if (algorithm == IProjection.MAXIMUM_INTENSITY)
+            {
+                double v;
+                for (int z = start; z <= end; z += stepping)
+                {
+                    tile = read(z);
+                    try
+                    {
+                        for (int i = 0; i < size; i++)
+                        {
+                            v = tile.getPixelValue(i);
+                            if (v > values[i])
+                            {
+                                values[i] = v;
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        tile.dispose();
+                    }
+                }
+            }
+            else
+            {
+                // The mean and the sum do not include the end section.
+                int count = 0;
+                for (int z = start; z < end; z += stepping)
+                {
+                    tile = read(z);
+                    try
+                    {
+                        for (int i = 0; i < size; i++)
+                        {
+                            values[i] += tile.getPixelValue(i);
+                        }
+                    }
+                    finally
+                    {
+                        tile.dispose();
+                    }
+                    count++;
+                }
+                double planeMaximum = to.getMaximum();
+                boolean mean = algorithm == IProjection.MEAN_INTENSITY;
+                for (int i = 0; i < size; i++)
+                {
+                    if (mean)
+                    {
+                        values[i] = values[i] / count;
+                    }
+                    if (values[i] > planeMaximum)
+                    {
+                        values[i] = planeMaximum;
+                    }
+                }
+            }
+            int sizeX = pixelBuffer.getSizeX();
+            int i = 0;
+            double v;
+            for (int row = 0; row < h; row++)
+            {
+                int offset = (y + row) * sizeX + x;
+                for (int col = 0; col < w; col++, i++)
+                {
+                    v = values[i];
+                    to.setPixelValue(offset + col, v);
+                    minimum = v < minimum? v : minimum;
+                    maximum = v > maximum? v : maximum;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Carries the failure to read a block through the executor.
+     */
+    private static class ReadFailure extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        ReadFailure(Exception cause)
+        {
+            super(cause);
+        }
+    }
+}
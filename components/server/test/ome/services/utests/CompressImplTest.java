@@ -0,0 +1,83 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+import ome.api.local.LocalCompress;
+import ome.conditions.ValidationException;
+import ome.logic.CompressImpl;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the formats supported by {@link CompressImpl#compress}.
+ */
+public class CompressImplTest {
+
+    private static final int SIZE_X = 31;
+
+    private static final int SIZE_Y = 17;
+
+    private int[] createBuffer() {
+        int[] buf = new int[SIZE_X * SIZE_Y];
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = 0xff000000 | (i * 7919) & 0xffffff;
+        }
+        return buf;
+    }
+
+    @Test(groups = "unit")
+    public void testPngIsLossless() throws Exception {
+        int[] buf = createBuffer();
+        CompressImpl compress = new CompressImpl();
+        for (int i = 0; i < 2; i++) {
+            byte[] png = compress.compress(buf, SIZE_X, SIZE_Y,
+                    LocalCompress.FORMAT_PNG);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+            Assert.assertEquals(image.getWidth(), SIZE_X);
+            Assert.assertEquals(image.getHeight(), SIZE_Y);
+            for (int y = 0; y < SIZE_Y; y++) {
+                for (int x = 0; x < SIZE_X; x++) {
+                    Assert.assertEquals(image.getRGB(x, y) & 0xffffff,
+                            buf[y * SIZE_X + x] & 0xffffff);
+                }
+            }
+        }
+    }
+
+    @Test(groups = "unit")
+    public void testJpeg() throws Exception {
+        CompressImpl compress = new CompressImpl();
+        byte[] jpeg = compress.compress(createBuffer(), SIZE_X, SIZE_Y,
+                LocalCompress.FORMAT_JPEG);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        Assert.assertEquals(image.getWidth(), SIZE_X);
+        Assert.assertEquals(image.getHeight(), SIZE_Y);
+    }
+
+    @Test(groups = "unit")
+    public void testRaw() throws Exception {
+        int[] buf = createBuffer();
+        byte[] raw = new CompressImpl().compress(buf, SIZE_X, SIZE_Y,
+                LocalCompress.FORMAT_RAW);
+        Assert.assertEquals(raw.length, buf.length * 4);
+        ByteBuffer bytes = ByteBuffer.wrap(raw);
+        for (int i = 0; i < buf.length; i++) {
+            Assert.assertEquals(bytes.getInt(), buf[i]);
+        }
+    }
+
+    @Test(groups = "unit", expectedExceptions = ValidationException.class)
+    public void testUnknownFormat() throws Exception {
+        new CompressImpl().compress(createBuffer(), SIZE_X, SIZE_Y, "gif");
+    }
+}
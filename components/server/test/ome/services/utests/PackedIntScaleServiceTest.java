@@ -0,0 +1,150 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.awt.image.BufferedImage;
+
+import ome.conditions.ApiUsageException;
+import ome.logic.PackedIntScaleService;
+import ome.util.ImageUtil;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the area averaging of {@link PackedIntScaleService}.
+ */
+public class PackedIntScaleServiceTest {
+
+    private final PackedIntScaleService service = new PackedIntScaleService();
+
+    /**
+     * Creates an image of a gradient with some pattern.
+     */
+    static int[] createBuffer(int sizeX, int sizeY) {
+        int[] buf = new int[sizeX * sizeY];
+        for (int y = 0; y < sizeY; y++) {
+            for (int x = 0; x < sizeX; x++) {
+                int r = (x * 255) / sizeX;
+                int g = (y * 255) / sizeY;
+                int b = ((x / 3 + y / 5) % 2) * 200;
+                buf[y * sizeX + x] = 0xff000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * Scales a component by area averaging in floating point.
+     */
+    private static double reference(int[] buf, int sizeX, int sizeY,
+            int scaledSizeX, int scaledSizeY, int dx, int dy, int shift) {
+        double x0 = (double) dx * sizeX / scaledSizeX;
+        double x1 = (double) (dx + 1) * sizeX / scaledSizeX;
+        double y0 = (double) dy * sizeY / scaledSizeY;
+        double y1 = (double) (dy + 1) * sizeY / scaledSizeY;
+        double sum = 0;
+        for (int y = (int) y0; y < Math.ceil(y1); y++) {
+            double wy = Math.min(y1, y + 1) - Math.max(y0, y);
+            for (int x = (int) x0; x < Math.ceil(x1); x++) {
+                double wx = Math.min(x1, x + 1) - Math.max(x0, x);
+                sum += wx * wy * (buf[y * sizeX + x] >>> shift & 0xff);
+            }
+        }
+        return sum / ((x1 - x0) * (y1 - y0));
+    }
+
+    private void assertAreaAverage(int sizeX, int sizeY, int scaledSizeX,
+            int scaledSizeY) {
+        int[] buf = createBuffer(sizeX, sizeY);
+        int[] scaled = service.scale(buf, sizeX, sizeY, scaledSizeX,
+                scaledSizeY);
+        Assert.assertEquals(scaled.length, scaledSizeX * scaledSizeY);
+        for (int dy = 0; dy < scaledSizeY; dy++) {
+            for (int dx = 0; dx < scaledSizeX; dx++) {
+                int pixel = scaled[dy * scaledSizeX + dx];
+                for (int shift = 0; shift < 32; shift += 8) {
+                    double expected = reference(buf, sizeX, sizeY,
+                            scaledSizeX, scaledSizeY, dx, dy, shift);
+                    Assert.assertEquals(pixel >>> shift & 0xff, expected, 1.0,
+                            String.format("x:%d y:%d shift:%d", dx, dy,
+                                    shift));
+                }
+            }
+        }
+    }
+
+    @Test(groups = "unit")
+    public void testHalving() {
+        int[] buf = createBuffer(8, 6);
+        int[] scaled = service.scale(buf, 8, 6, 4, 3);
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 4; x++) {
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int sum = 0;
+                    for (int j = 0; j < 2; j++) {
+                        for (int i = 0; i < 2; i++) {
+                            sum += buf[(2 * y + j) * 8 + 2 * x + i]
+                                    >>> shift & 0xff;
+                        }
+                    }
+                    Assert.assertEquals(scaled[y * 4 + x] >>> shift & 0xff,
+                            (sum + 2) / 4);
+                }
+            }
+        }
+    }
+
+    @Test(groups = "unit")
+    public void testDownscaling() {
+        assertAreaAverage(1000, 700, 96, 67);
+        assertAreaAverage(97, 61, 13, 29);
+    }
+
+    @Test(groups = "unit")
+    public void testUpscaling() {
+        assertAreaAverage(20, 10, 96, 48);
+        assertAreaAverage(5, 7, 6, 19);
+    }
+
+    @Test(groups = "unit")
+    public void testUniformImage() {
+        int[] buf = new int[333 * 127];
+        java.util.Arrays.fill(buf, 0xff123456);
+        for (int size : new int[] { 1, 7, 96, 500 }) {
+            for (int pixel : service.scale(buf, 333, 127, size, size)) {
+                Assert.assertEquals(pixel, 0xff123456);
+            }
+        }
+    }
+
+    @Test(groups = "unit")
+    public void testBufferedImages() {
+        int[] buf = createBuffer(256, 128);
+        int[] expected = service.scale(buf, 256, 128, 96, 48);
+        BufferedImage packed = ImageUtil.createBufferedImage(buf, 256, 128);
+        BufferedImage bytes = new BufferedImage(256, 128,
+                BufferedImage.TYPE_3BYTE_BGR);
+        bytes.setRGB(0, 0, 256, 128, buf, 0, 256);
+        for (BufferedImage image : new BufferedImage[] { packed, bytes }) {
+            BufferedImage scaled =
+                    service.scaleBufferedImage(image, 0.375f, 0.375f);
+            Assert.assertEquals(scaled.getWidth(), 96);
+            Assert.assertEquals(scaled.getHeight(), 48);
+            for (int y = 0; y < 48; y++) {
+                for (int x = 0; x < 96; x++) {
+                    Assert.assertEquals(scaled.getRGB(x, y) & 0xffffff,
+                            expected[y * 96 + x] & 0xffffff);
+                }
+            }
+        }
+    }
+
+    @Test(groups = "unit", expectedExceptions = ApiUsageException.class)
+    public void testEmptySize() {
+        service.scale(new int[4], 2, 2, 0, 1);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.io.File;
+
+import ome.services.RenderedTileCache;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the eviction, spilling and invalidation of the
+ * {@link RenderedTileCache}.
+ */
+public class RenderedTileCacheTest {
+
+    @Test(groups = "unit")
+    public void testDisabled() {
+        RenderedTileCache cache = new RenderedTileCache(0, 0, null);
+        RenderedTileCache.Key key = RenderedTileCache.createKey(1L, "a");
+        cache.put(key, new byte[10]);
+        Assert.assertFalse(cache.isEnabled());
+        Assert.assertNull(cache.get(key));
+    }
+
+    @Test(groups = "unit")
+    public void testKeys() {
+        RenderedTileCache cache = new RenderedTileCache(1000, 0, null);
+        byte[] data = new byte[10];
+        cache.put(RenderedTileCache.createKey(1L, "a"), data);
+        Assert.assertSame(cache.get(RenderedTileCache.createKey(1L, "a")),
+                data);
+        Assert.assertNull(cache.get(RenderedTileCache.createKey(1L, "b")));
+        Assert.assertNull(cache.get(RenderedTileCache.createKey(2L, "a")));
+    }
+
+    @Test(groups = "unit")
+    public void testSpillAndInvalidate() throws Exception {
+        File dir = File.createTempFile("tiles", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            RenderedTileCache cache = new RenderedTileCache(100, 1000,
+                    dir.getAbsolutePath());
+            for (int i = 0; i < 10; i++) {
+                byte[] data = new byte[60];
+                data[0] = (byte) i;
+                cache.put(RenderedTileCache.createKey(1L, "t" + i), data);
+            }
+            byte[] data = cache.get(RenderedTileCache.createKey(1L, "t0"));
+            Assert.assertNotNull(data);
+            Assert.assertEquals(data.length, 60);
+            Assert.assertEquals(data[0], 0);
+            cache.invalidate(1L);
+            for (int i = 0; i < 10; i++) {
+                Assert.assertNull(cache.get(
+                        RenderedTileCache.createKey(1L, "t" + i)));
+            }
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.awt.image.BufferedImage;
+
+import ome.api.IScale;
+import ome.logic.AWTScaleService;
+import ome.logic.JavaImageScalingService;
+import ome.logic.PackedIntScaleService;
+import ome.util.ImageUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the time taken by the {@link IScale} services to scale rendered
+ * planes to thumbnails and the mean difference of their thumbnails with the
+ * ones of {@link JavaImageScalingService}. Excluded from the unit tests,
+ * run with <code>-DTEST=ScaleServiceBenchmark</code>.
+ */
+@Test(groups = "manual")
+public class ScaleServiceBenchmark {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(ScaleServiceBenchmark.class);
+
+    /** Number of scalings timed per service and size. */
+    private static final int RUNS = 50;
+
+    /** The rendered plane sizes and the thumbnail sizes. */
+    private static final int[][] SIZES = {
+        { 512, 512, 96 }, { 1024, 768, 96 }, { 1024, 768, 256 },
+        { 4096, 4096, 96 } };
+
+    public void testScaleServices() {
+        IScale[] services = { new JavaImageScalingService(),
+                new AWTScaleService(), new PackedIntScaleService() };
+        for (int[] size : SIZES) {
+            int sizeX = size[0];
+            int sizeY = size[1];
+            float scale = (float) size[2] / Math.max(sizeX, sizeY);
+            int[] buf = PackedIntScaleServiceTest.createBuffer(sizeX, sizeY);
+            BufferedImage reference = null;
+            for (IScale service : services) {
+                // The rendered buffer is wrapped again for each run, as
+                // the thumbnail service does.
+                BufferedImage scaled = null;
+                for (int i = 0; i < RUNS / 5; i++) {
+                    scaled = service.scaleBufferedImage(
+                            ImageUtil.createBufferedImage(buf, sizeX, sizeY),
+                            scale, scale);
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < RUNS; i++) {
+                    scaled = service.scaleBufferedImage(
+                            ImageUtil.createBufferedImage(buf, sizeX, sizeY),
+                            scale, scale);
+                }
+                long elapsed = (System.nanoTime() - start) / RUNS;
+                if (reference == null) {
+                    reference = scaled;
+                }
+                log.info(String.format(
+                        "%s %dx%d to %dx%d: %.2f ms, mean difference %.2f",
+                        service.getClass().getSimpleName(), sizeX, sizeY,
+                        scaled.getWidth(), scaled.getHeight(),
+                        elapsed / 1000000.0, difference(reference, scaled)));
+            }
+        }
+    }
+
+    /**
+     * Returns the mean absolute difference of the components of two images
+     * over their common area.
+     */
+    private static double difference(BufferedImage a, BufferedImage b) {
+        int sizeX = Math.min(a.getWidth(), b.getWidth());
+        int sizeY = Math.min(a.getHeight(), b.getHeight());
+        long sum = 0;
+        for (int y = 0; y < sizeY; y++) {
+            for (int x = 0; x < sizeX; x++) {
+                int p = a.getRGB(x, y);
+                int q = b.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    sum += Math.abs((p >>> shift & 0xff)
+                            - (q >>> shift & 0xff));
+                }
+            }
+        }
+        return (double) sum / (3 * sizeX * sizeY);
+    }
+}
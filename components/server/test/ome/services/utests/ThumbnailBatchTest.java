@@ -0,0 +1,243 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.services.ThumbnailBatch;
+import ome.services.ThumbnailBean.ThumbnailSetListener;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the {@link ThumbnailBatch} reads the cached thumbnails at once,
+ * renders the missing ones concurrently, loses only the thumbnails which
+ * failed and saves the metadata once.
+ */
+public class ThumbnailBatchTest {
+
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static byte[] thumbnail(long pixelsId) {
+        return new byte[] { (byte) pixelsId };
+    }
+
+    /**
+     * Steps classifying the Pixels sets by their ID modulo 3: cached,
+     * missing or retrieved at once. The Pixels sets in {@link #failing}
+     * fail at every step.
+     */
+    private static class Steps implements ThumbnailBatch.Steps {
+
+        final List<Long> failing = new ArrayList<Long>();
+
+        final List<List<Long>> reads = new ArrayList<List<Long>>();
+
+        final List<Long> prepared = new ArrayList<Long>();
+
+        final AtomicInteger running = new AtomicInteger();
+
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        int saves;
+
+        /** The number of thumbnails passed when the metadata were saved. */
+        int passedAtSave = -1;
+
+        Listener listener;
+
+        public ThumbnailBatch.Kind classify(long pixelsId,
+                ThumbnailSetListener listener) throws Exception {
+            if (failing.contains(pixelsId) && pixelsId % 3 == 2) {
+                throw new Exception("classify " + pixelsId);
+            }
+            switch ((int) (pixelsId % 3)) {
+                case 0:
+                    return ThumbnailBatch.Kind.CACHED;
+                case 1:
+                    return ThumbnailBatch.Kind.MISSING;
+                default:
+                    listener.onThumbnail(pixelsId, thumbnail(pixelsId));
+                    return ThumbnailBatch.Kind.DONE;
+            }
+        }
+
+        public Map<Long, byte[]> read(List<Long> pixelsIds)
+                throws IOException {
+            reads.add(new ArrayList<Long>(pixelsIds));
+            Map<Long, byte[]> thumbnails = new HashMap<Long, byte[]>();
+            for (Long pixelsId : pixelsIds) {
+                if (!failing.contains(pixelsId)) {
+                    thumbnails.put(pixelsId, thumbnail(pixelsId));
+                }
+            }
+            return thumbnails;
+        }
+
+        public Callable<byte[]> prepare(final long pixelsId,
+                ThumbnailSetListener listener) throws Exception {
+            prepared.add(pixelsId);
+            if (failing.contains(pixelsId) && pixelsId % 2 == 0) {
+                throw new Exception("prepare " + pixelsId);
+            }
+            return new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    int count = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), count));
+                    }
+                    try {
+                        Thread.sleep(5);
+                        if (failing.contains(pixelsId)) {
+                            throw new IOException("render " + pixelsId);
+                        }
+                        return thumbnail(pixelsId);
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            };
+        }
+
+        public void save() {
+            saves++;
+            passedAtSave = listener.thumbnails.size();
+        }
+    }
+
+    /** Collects the thumbnails, checking the thread they are passed on. */
+    private static class Listener implements ThumbnailSetListener {
+
+        final Thread caller = Thread.currentThread();
+
+        final Map<Long, byte[]> thumbnails = new HashMap<Long, byte[]>();
+
+        public void onThumbnail(long pixelsId, byte[] thumbnail) {
+            Assert.assertSame(Thread.currentThread(), caller);
+            Assert.assertFalse(thumbnails.containsKey(pixelsId));
+            thumbnails.put(pixelsId, thumbnail);
+        }
+    }
+
+    private static List<Long> ids(int count) {
+        List<Long> ids = new ArrayList<Long>();
+        for (long id = 1; id <= count; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    @Test(groups = "unit")
+    public void testSplit() {
+        Steps steps = new Steps();
+        steps.listener = new Listener();
+        new ThumbnailBatch(executor, 4).run(ids(30), steps, steps.listener);
+        Assert.assertEquals(steps.reads.size(), 1);
+        Assert.assertEquals(steps.reads.get(0).size(), 10);
+        for (Long pixelsId : steps.reads.get(0)) {
+            Assert.assertEquals(pixelsId % 3, 0);
+        }
+        Assert.assertEquals(steps.prepared.size(), 10);
+        for (Long pixelsId : steps.prepared) {
+            Assert.assertEquals(pixelsId % 3, 1);
+        }
+        Assert.assertEquals(steps.listener.thumbnails.size(), 30);
+        for (long id = 1; id <= 30; id++) {
+            Assert.assertTrue(Arrays.equals(
+                    steps.listener.thumbnails.get(id), thumbnail(id)));
+        }
+        Assert.assertEquals(steps.saves, 1);
+        Assert.assertEquals(steps.passedAtSave, 30);
+    }
+
+    @Test(groups = "unit")
+    public void testParallelism() {
+        Steps steps = new Steps();
+        steps.listener = new Listener();
+        new ThumbnailBatch(executor, 2).run(ids(60), steps, steps.listener);
+        Assert.assertEquals(steps.listener.thumbnails.size(), 60);
+        Assert.assertTrue(steps.maxRunning.get() <= 2);
+        Assert.assertTrue(steps.maxRunning.get() > 0);
+    }
+
+    @Test(groups = "unit")
+    public void testFailures() {
+        Steps steps = new Steps();
+        steps.listener = new Listener();
+        // 2 fails to classify, 3 to be read, 4 to be prepared and 7 to be
+        // rendered.
+        steps.failing.addAll(Arrays.asList(2L, 3L, 4L, 7L));
+        new ThumbnailBatch(executor, 4).run(ids(9), steps, steps.listener);
+        Assert.assertEquals(steps.listener.thumbnails.size(), 9);
+        for (long id = 1; id <= 9; id++) {
+            if (steps.failing.contains(id)) {
+                Assert.assertNull(steps.listener.thumbnails.get(id));
+            } else {
+                Assert.assertTrue(Arrays.equals(
+                        steps.listener.thumbnails.get(id), thumbnail(id)));
+            }
+        }
+        Assert.assertEquals(steps.saves, 1);
+    }
+
+    @Test(groups = "unit")
+    public void testReadFailure() {
+        Steps steps = new Steps() {
+            @Override
+            public Map<Long, byte[]> read(List<Long> pixelsIds)
+                    throws IOException {
+                super.read(pixelsIds);
+                throw new IOException("read");
+            }
+        };
+        steps.listener = new Listener();
+        new ThumbnailBatch(executor, 4).run(ids(6), steps, steps.listener);
+        Assert.assertNull(steps.listener.thumbnails.get(3L));
+        Assert.assertNull(steps.listener.thumbnails.get(6L));
+        Assert.assertTrue(Arrays.equals(steps.listener.thumbnails.get(4L),
+                thumbnail(4)));
+        Assert.assertEquals(steps.saves, 1);
+    }
+
+    @Test(groups = "unit")
+    public void testEmpty() {
+        Steps steps = new Steps();
+        steps.listener = new Listener();
+        new ThumbnailBatch(executor, 4).run(Collections.<Long>emptyList(),
+                steps, steps.listener);
+        Assert.assertEquals(steps.reads.size(), 1);
+        Assert.assertTrue(steps.prepared.isEmpty());
+        Assert.assertEquals(steps.saves, 1);
+    }
+
+    @Test(groups = "unit", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidParallelism() {
+        new ThumbnailBatch(executor, 0);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import ome.services.ThumbnailByteCache;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the keys, the byte budget and the invalidation of the
+ * {@link ThumbnailByteCache}.
+ */
+public class ThumbnailByteCacheTest {
+
+    @Test(groups = "unit")
+    public void testDisabled() {
+        ThumbnailByteCache cache = new ThumbnailByteCache(0);
+        ThumbnailByteCache.Key key = new ThumbnailByteCache.Key(1L, 96, 96,
+                2L, 3L);
+        cache.put(key, new byte[10]);
+        Assert.assertFalse(cache.isEnabled());
+        Assert.assertNull(cache.get(key));
+    }
+
+    @Test(groups = "unit")
+    public void testKeys() {
+        ThumbnailByteCache cache = new ThumbnailByteCache(1000);
+        byte[] data = new byte[10];
+        cache.put(new ThumbnailByteCache.Key(1L, 96, 96, 2L, 3L), data);
+        Assert.assertSame(cache.get(
+                new ThumbnailByteCache.Key(1L, 96, 96, 2L, 3L)), data);
+        // Another Pixels set, size, settings or save of the settings.
+        Assert.assertNull(cache.get(
+                new ThumbnailByteCache.Key(4L, 96, 96, 2L, 3L)));
+        Assert.assertNull(cache.get(
+                new ThumbnailByteCache.Key(1L, 96, 0, 2L, 3L)));
+        Assert.assertNull(cache.get(
+                new ThumbnailByteCache.Key(1L, 64, 96, 2L, 3L)));
+        Assert.assertNull(cache.get(
+                new ThumbnailByteCache.Key(1L, 96, 96, 5L, 3L)));
+        Assert.assertNull(cache.get(
+                new ThumbnailByteCache.Key(1L, 96, 96, 2L, 6L)));
+    }
+
+    @Test(groups = "unit")
+    public void testByteBudget() {
+        ThumbnailByteCache cache = new ThumbnailByteCache(1000);
+        for (long id = 1; id <= 50; id++) {
+            cache.put(new ThumbnailByteCache.Key(id, 96, 96, id, id),
+                    new byte[100]);
+        }
+        int held = 0;
+        for (long id = 1; id <= 50; id++) {
+            if (cache.get(new ThumbnailByteCache.Key(id, 96, 96, id, id))
+                    != null) {
+                held++;
+            }
+        }
+        Assert.assertTrue(held > 0);
+        Assert.assertTrue(held <= 10);
+    }
+
+    @Test(groups = "unit")
+    public void testInvalidate() {
+        ThumbnailByteCache cache = new ThumbnailByteCache(1000);
+        ThumbnailByteCache.Key first =
+                new ThumbnailByteCache.Key(1L, 96, 96, 2L, 3L);
+        ThumbnailByteCache.Key second =
+                new ThumbnailByteCache.Key(1L, 256, 0, 2L, 3L);
+        ThumbnailByteCache.Key other =
+                new ThumbnailByteCache.Key(4L, 96, 96, 5L, 6L);
+        cache.put(first, new byte[10]);
+        cache.put(second, new byte[10]);
+        cache.put(other, new byte[10]);
+        cache.invalidate(Collections.<Long>emptySet());
+        Assert.assertNotNull(cache.get(first));
+        cache.invalidate(Arrays.asList(1L, 7L));
+        Assert.assertNull(cache.get(first));
+        Assert.assertNull(cache.get(second));
+        Assert.assertNotNull(cache.get(other));
+        cache.clear();
+        Assert.assertNull(cache.get(other));
+    }
+}
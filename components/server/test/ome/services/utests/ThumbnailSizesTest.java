@@ -0,0 +1,95 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import ome.api.IScale;
+import ome.logic.CompressImpl;
+import ome.logic.PackedIntScaleService;
+import ome.services.ThumbnailSizes;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the {@link ThumbnailSizes} derive each thumbnail from the
+ * previous one, at the requested sizes.
+ */
+public class ThumbnailSizesTest {
+
+    /**
+     * Scales through {@link PackedIntScaleService}, recording the widths of
+     * the images scaled, in order.
+     */
+    private static IScale createScaleService(final List<Integer> scaled) {
+        final PackedIntScaleService service = new PackedIntScaleService();
+        return (IScale) Proxy.newProxyInstance(IScale.class.getClassLoader(),
+                new Class<?>[] { IScale.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if (method.getName().equals("scaleBufferedImage")) {
+                            scaled.add(((BufferedImage) args[0]).getWidth());
+                        }
+                        return method.invoke(service, args);
+                    }
+                });
+    }
+
+    private static BufferedImage createImage(int sizeX, int sizeY) {
+        BufferedImage image = new BufferedImage(sizeX, sizeY,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < sizeY; y++) {
+            for (int x = 0; x < sizeX; x++) {
+                image.setRGB(x, y, (x * 255 / sizeX) << 16 | (y * 255 / sizeY));
+            }
+        }
+        return image;
+    }
+
+    private static void assertSize(byte[] jpeg, Dimension size)
+            throws Exception {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        Assert.assertEquals(image.getWidth(), size.width);
+        Assert.assertEquals(image.getHeight(), size.height);
+    }
+
+    @Test(groups = "unit")
+    public void testSuccessiveSizes() throws Exception {
+        List<Dimension> sizes = Arrays.asList(new Dimension(256, 170),
+                new Dimension(96, 64), new Dimension(48, 32));
+        List<Integer> scaled = new ArrayList<Integer>();
+        List<byte[]> thumbnails = new ThumbnailSizes(createScaleService(scaled),
+                new CompressImpl()).compress(createImage(256, 170), sizes);
+        Assert.assertEquals(thumbnails.size(), 3);
+        for (int i = 0; i < sizes.size(); i++) {
+            assertSize(thumbnails.get(i), sizes.get(i));
+        }
+        // The first thumbnail is the rendered plane, the next ones are
+        // scaled from the previous one.
+        Assert.assertEquals(scaled, Arrays.asList(256, 96));
+    }
+
+    @Test(groups = "unit")
+    public void testScaledPlane() throws Exception {
+        List<Dimension> sizes = Arrays.asList(new Dimension(64, 48));
+        List<Integer> scaled = new ArrayList<Integer>();
+        List<byte[]> thumbnails = new ThumbnailSizes(createScaleService(scaled),
+                new CompressImpl()).compress(createImage(640, 480), sizes);
+        assertSize(thumbnails.get(0), sizes.get(0));
+        Assert.assertEquals(scaled, Arrays.asList(640));
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.awt.Dimension;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.TileRequest;
+import ome.services.HistogramCache;
+import ome.services.TiledHistogram;
+import ome.util.PixelData;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the histograms computed by {@link TiledHistogram} from the
+ * tiles are those computed from the whole plane, and the keys and
+ * invalidation of the {@link HistogramCache}.
+ */
+public class TiledHistogramTest {
+
+    private static final int SIZE_X = 100;
+
+    private static final int SIZE_Y = 70;
+
+    /**
+     * Creates a plane of the specified type, with a gradient and some
+     * noise.
+     */
+    private static PixelData createPlane(String type, int bytesPerPixel) {
+        ByteBuffer data = ByteBuffer.allocate(SIZE_X * SIZE_Y * bytesPerPixel);
+        PixelData plane = new PixelData(type, data);
+        for (int y = 0; y < SIZE_Y; y++) {
+            for (int x = 0; x < SIZE_X; x++) {
+                double value = 100 + 7 * x + 3 * y + (x * y) % 11;
+                plane.setPixelValue(y * SIZE_X + x,
+                        "bit".equals(type) ? value % 2 : value);
+            }
+        }
+        return plane;
+    }
+
+    /**
+     * Creates a pixel buffer serving the tiles of a plane.
+     */
+    private static PixelBuffer createBuffer(final PixelData plane,
+            final String type, final int bytesPerPixel,
+            final Dimension tileSize) {
+        return (PixelBuffer) Proxy.newProxyInstance(
+                PixelBuffer.class.getClassLoader(),
+                new Class<?>[] { PixelBuffer.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getSizeX")) {
+                            return SIZE_X;
+                        }
+                        if (name.equals("getSizeY")) {
+                            return SIZE_Y;
+                        }
+                        if (name.equals("getTileSize")) {
+                            return tileSize;
+                        }
+                        if (name.equals("getTiles")) {
+                            List<PixelData> tiles = new ArrayList<PixelData>();
+                            for (Object o : (List<?>) args[0]) {
+                                tiles.add(getTile(plane, (TileRequest) o,
+                                        type, bytesPerPixel));
+                            }
+                            return tiles;
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+
+    private static PixelData getTile(PixelData plane, TileRequest tile,
+            String type, int bytesPerPixel) {
+        Assert.assertTrue(tile.getX() + tile.getWidth() <= SIZE_X);
+        Assert.assertTrue(tile.getY() + tile.getHeight() <= SIZE_Y);
+        PixelData data = new PixelData(type, ByteBuffer.allocate(
+                tile.getWidth() * tile.getHeight() * bytesPerPixel));
+        int i = 0;
+        for (int y = tile.getY(); y < tile.getY() + tile.getHeight(); y++) {
+            for (int x = tile.getX(); x < tile.getX() + tile.getWidth(); x++) {
+                data.setPixelValue(i++, plane.getPixelValue(y * SIZE_X + x));
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Computes the histogram of a region from the whole plane.
+     */
+    private static int[] reference(PixelData plane, double[] range,
+            double[] pixelsRange, int x, int y, int w, int h, int binCount) {
+        double min, max;
+        if (range != null) {
+            min = range[0];
+            max = range[1];
+        } else {
+            min = pixelsRange[1];
+            max = pixelsRange[0];
+            for (int i = 0; i < plane.size(); i++) {
+                min = Math.min(min, plane.getPixelValue(i));
+                max = Math.max(max, plane.getPixelValue(i));
+            }
+        }
+        int[] data = new int[binCount];
+        double binRange = (max - min + 1) / binCount;
+        for (int i = 0; i < plane.size(); i++) {
+            int pxx = i % SIZE_X;
+            int pxy = i / SIZE_X;
+            if (pxx >= x && pxx < (x + w) && pxy >= y && pxy < (y + h)) {
+                int bin = (int) ((plane.getPixelValue(i) - min) / binRange);
+                if (bin > 0 && binRange < 1)
+                    bin++;
+                if (bin >= 0 && bin < binCount)
+                    data[bin]++;
+            }
+        }
+        return data;
+    }
+
+    private void assertHistograms(String type, int bytesPerPixel,
+            double[] pixelsRange) throws Exception {
+        PixelData plane = createPlane(type, bytesPerPixel);
+        Dimension[] tileSizes = { new Dimension(SIZE_X, SIZE_Y),
+                new Dimension(32, 32), new Dimension(SIZE_X, 9) };
+        int[][] regions = { { 0, 0, SIZE_X, SIZE_Y }, { 13, 5, 40, 50 },
+                { 64, 32, 36, 38 } };
+        double[][] ranges = { null, { 0, 2000 }, { 300, 600 } };
+        for (Dimension tileSize : tileSizes) {
+            PixelBuffer buffer = createBuffer(plane, type, bytesPerPixel,
+                    tileSize);
+            for (int[] r : regions) {
+                for (int binCount : new int[] { 256, 7, 5000 }) {
+                    TiledHistogram histogram = new TiledHistogram(type,
+                            pixelsRange, 0, 0, r[0], r[1], r[2], r[3],
+                            binCount);
+                    for (double[] range : ranges) {
+                        Assert.assertTrue(Arrays.equals(
+                                histogram.compute(buffer, 0, range),
+                                reference(plane, range, pixelsRange, r[0],
+                                        r[1], r[2], r[3], binCount)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(groups = "unit")
+    public void testCountedByValue() throws Exception {
+        assertHistograms("uint16", 2, new double[] { 0, 65535 });
+        assertHistograms("int16", 2, new double[] { -32768, 32767 });
+        assertHistograms("bit", 1, new double[] { 0, 1 });
+    }
+
+    @Test(groups = "unit")
+    public void testWideTypes() throws Exception {
+        assertHistograms("float", 4, new double[] { 0, 0 });
+        assertHistograms("uint32", 4, new double[] { 0, 4294967295.0 });
+    }
+
+    @Test(groups = "unit")
+    public void testEmptyRegion() throws Exception {
+        PixelData plane = createPlane("uint16", 2);
+        TiledHistogram histogram = new TiledHistogram("uint16",
+                new double[] { 0, 65535 }, 0, 0, 10, 10, 0, 5, 16);
+        int[] data = histogram.compute(createBuffer(plane, "uint16", 2,
+                new Dimension(32, 32)), 0, null);
+        Assert.assertTrue(Arrays.equals(data, new int[16]));
+    }
+
+    @Test(groups = "unit")
+    public void testCache() {
+        HistogramCache cache = new HistogramCache(1000);
+        HistogramCache.Key key = new HistogramCache.Key(1L, 0, 0, 0, 0, 0,
+                0, 10, 10, 4, null);
+        int[] data = { 1, 2, 3, 4 };
+        cache.put(key, data);
+        data[0] = 5;
+        Assert.assertTrue(Arrays.equals(cache.get(new HistogramCache.Key(1L,
+                0, 0, 0, 0, 0, 0, 10, 10, 4, null)), new int[] { 1, 2, 3, 4 }));
+        Assert.assertNull(cache.get(new HistogramCache.Key(1L, 0, 0, 0, 0,
+                0, 0, 10, 10, 4, new double[] { 0, 255 })));
+        Assert.assertNull(cache.get(new HistogramCache.Key(1L, 1, 0, 0, 0,
+                0, 0, 10, 10, 4, null)));
+        cache.invalidate(2L);
+        Assert.assertNotNull(cache.get(key));
+        cache.invalidate(1L);
+        Assert.assertNull(cache.get(key));
+        HistogramCache disabled = new HistogramCache(0);
+        disabled.put(key, data);
+        Assert.assertFalse(disabled.isEnabled());
+        Assert.assertNull(disabled.get(key));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.List;
+
+import ome.system.metrics.NullMetrics;
+import omeis.providers.re.lut.LutCache;
+import omeis.providers.re.lut.LutReader;
+
+import org.testng.annotations.Test;
+
+import junit.framework.TestCase;
+
+public class TestLutCache extends TestCase
+{
+	private File writeRawLut(File dir, String name, int offset)
+		throws Exception
+	{
+		byte[] data = new byte[768];
+		for (int i = 0; i < data.length; i++)
+		{
+			data[i] = (byte) (i + offset);
+		}
+		File f = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(f);
+		try
+		{
+			out.write(data);
+		}
+		finally
+		{
+			out.close();
+		}
+		return f;
+	}
+
+	@Test
+	public void testReadersAreShared() throws Exception
+	{
+		File dir = File.createTempFile("luts", "");
+		dir.delete();
+		dir.mkdir();
+		File f = writeRawLut(dir, "Test.lut", 0);
+		List<File> luts = Collections.singletonList(f);
+		LutCache cache = new LutCache();
+		cache.setMetrics(new NullMetrics());
+		LutReader reader = cache.get("test", luts);
+		assertNotNull(reader);
+		assertSame(reader, cache.get("TEST.lut", luts));
+		assertNull(cache.get("missing", luts));
+		assertNull(cache.get(null, luts));
+		f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testChangedFileIsReadAgain() throws Exception
+	{
+		File dir = File.createTempFile("luts", "");
+		dir.delete();
+		dir.mkdir();
+		File f = writeRawLut(dir, "test.lut", 0);
+		List<File> luts = Collections.singletonList(f);
+		LutCache cache = new LutCache();
+		LutReader reader = cache.get("test", luts);
+		assertEquals(10, reader.getRed(10));
+		writeRawLut(dir, "test.lut", 1);
+		f.setLastModified(f.lastModified() + 2000);
+		LutReader changed = cache.get("test", luts);
+		assertNotSame(reader, changed);
+		assertEquals(11, changed.getRed(10));
+		f.delete();
+		dir.delete();
+	}
+}
@@ -16,6 +16,7 @@ import java.util.List;
 
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
+import ome.io.nio.TileRequest;
 import ome.model.core.Pixels;
 import ome.util.PixelData;
 
@@ -358,6 +359,21 @@ public class TestPixelBuffer implements PixelBuffer {
         return null;
     }
 
+    /* (non-Javadoc)
+     * @see ome.io.nio.PixelBuffer#getTiles(java.util.List)
+     */
+    public List<PixelData> getTiles(List<TileRequest> tiles)
+            throws IOException
+    {
+        List<PixelData> rv = new ArrayList<PixelData>();
+        for (TileRequest tile : tiles)
+        {
+            rv.add(getTile(tile.getZ(), tile.getC(), tile.getT(), tile.getX(),
+                    tile.getY(), tile.getWidth(), tile.getHeight()));
+        }
+        return rv;
+    }
+
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#setTile(byte[], java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
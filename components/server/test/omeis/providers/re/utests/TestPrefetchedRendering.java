@@ -0,0 +1,170 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ome.io.nio.TilePrefetcher;
+import ome.model.core.Pixels;
+import ome.model.enums.RenderingModel;
+import ome.system.metrics.Counter;
+import ome.system.metrics.Histogram;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+import ome.system.metrics.Timer;
+import ome.util.PixelData;
+import omeis.providers.re.Renderer;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the tiles of a pyramid rendered while panning are prefetched,
+ * although the renderer closes the buffer and sets its resolution level
+ * again for each tile.
+ */
+public class TestPrefetchedRendering extends BaseRenderingTest
+{
+	private static final int TILE = 256;
+
+	/** The level of the pyramid rendered, the level after a close is 0. */
+	private static final int LEVEL = 1;
+
+	private PyramidPixelBuffer pyramid;
+
+	private TilePrefetcher prefetcher;
+
+	private final Map<String, AtomicLong> counts =
+		new HashMap<String, AtomicLong>();
+
+	/** A pixel buffer with two levels, which records the tiles read. */
+	private static class PyramidPixelBuffer extends TestPixelBuffer
+	{
+		final List<String> reads =
+			Collections.synchronizedList(new ArrayList<String>());
+
+		private int level;
+
+		PyramidPixelBuffer(Pixels pixels, byte[] plane)
+		{
+			super(pixels, plane);
+		}
+
+		@Override
+		public PixelData getTile(Integer z, Integer c, Integer t, Integer x,
+				Integer y, Integer w, Integer h) throws IOException
+		{
+			reads.add(level + ":" + x + "," + y);
+			return super.getTile(z, c, t, x, y, w, h);
+		}
+
+		@Override
+		public int getResolutionLevels()
+		{
+			return 2;
+		}
+
+		@Override
+		public int getResolutionLevel()
+		{
+			return level;
+		}
+
+		@Override
+		public void setResolutionLevel(int resolutionLevel)
+		{
+			level = resolutionLevel;
+		}
+
+		@Override
+		public void close()
+		{
+			level = 0;
+		}
+	}
+
+	/** Counts the outcome of the prefetches. */
+	private class CountingMetrics extends NullMetrics
+	{
+		@Override
+		public Counter counter(Object obj, final String name)
+		{
+			final AtomicLong count = new AtomicLong();
+			counts.put(name, count);
+			return new Counter() {
+				public void inc() { count.incrementAndGet(); }
+				public void dec() { count.decrementAndGet(); }
+				public long getCount() { return count.get(); }
+			};
+		}
+	}
+
+	@Override
+	protected int getSizeC()
+	{
+		return 1;
+	}
+
+	@Override
+	@BeforeClass
+	protected void setUp()
+	{
+		super.setUp();
+		pyramid = new PyramidPixelBuffer(pixels, getPlane());
+		prefetcher = new TilePrefetcher(1, 8, 2, 8, 60000);
+		prefetcher.setMetrics(new CountingMetrics());
+		pixelBuffer = prefetcher.wrap(pyramid);
+		List<RenderingModel> renderingModels =
+			pixelsMetadataService.getAllEnumerations(RenderingModel.class);
+		renderer = new Renderer(quantumFactory, renderingModels,
+				pixels, settings, pixelBuffer, new ArrayList<File>());
+		renderer.setResolutionLevel(LEVEL);
+	}
+
+	@AfterClass
+	public void tearDown()
+	{
+		prefetcher.destroy();
+	}
+
+	private void render(int x) throws Exception
+	{
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		def.setRegion(new RegionDef(x, 0, TILE, TILE));
+		renderer.renderAsPackedInt(def, pixelBuffer);
+	}
+
+	@Test(timeOut=30000)
+	public void testPanningHitsPrefetchedTiles() throws Exception
+	{
+		render(0);
+		render(TILE);
+		// The next tile is read ahead, at the level rendered.
+		while (!pyramid.reads.contains(LEVEL + ":" + 2 * TILE + ",0"))
+		{
+			Thread.sleep(10);
+		}
+		long hits = counts.get("hits").get();
+		long misses = counts.get("misses").get();
+		render(2 * TILE);
+		assertEquals(hits + 1, counts.get("hits").get());
+		assertEquals(misses, counts.get("misses").get());
+		assertEquals(0, counts.get("wasted").get());
+		for (String read : pyramid.reads)
+		{
+			assertTrue(read.startsWith(LEVEL + ":"));
+		}
+	}
+}
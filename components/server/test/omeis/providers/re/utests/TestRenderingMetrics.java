@@ -0,0 +1,69 @@
+/*
+ *   Copyright (C) 2017 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.util.Map;
+
+import omeis.providers.re.RenderingMetrics;
+
+import org.testng.annotations.Test;
+
+import junit.framework.TestCase;
+
+public class TestRenderingMetrics extends TestCase
+{
+	@Test
+	public void testPercentiles()
+	{
+		RenderingMetrics metrics = new RenderingMetrics(100);
+		for (int i = 1; i <= 100; i++)
+		{
+			metrics.record(RenderingMetrics.FETCH, "uint16", 3, 0,
+					i * 1000000L);
+		}
+		RenderingMetrics.Summary summary =
+			metrics.getSummaries().get(RenderingMetrics.FETCH);
+		assertEquals(100, summary.getCount());
+		assertEquals(50.0, summary.getP50(), 0.0);
+		assertEquals(95.0, summary.getP95(), 0.0);
+		assertEquals(99.0, summary.getP99(), 0.0);
+		assertTrue(summary.getThroughput() > 0);
+	}
+
+	@Test
+	public void testWindowIsRolling()
+	{
+		RenderingMetrics metrics = new RenderingMetrics(10);
+		for (int i = 0; i < 10; i++)
+		{
+			metrics.record(RenderingMetrics.COMPRESS, "uint8", 1, 0,
+					1000000L);
+		}
+		for (int i = 0; i < 10; i++)
+		{
+			metrics.record(RenderingMetrics.COMPRESS, "uint8", 1, 0,
+					2000000L);
+		}
+		Map<String, RenderingMetrics.Summary> summaries =
+			metrics.getSummaries();
+		assertEquals(10, summaries.get(RenderingMetrics.COMPRESS).getCount());
+		assertEquals(2.0, summaries.get(RenderingMetrics.COMPRESS).getP50(), 0.0);
+		assertEquals(0, summaries.get(RenderingMetrics.FETCH).getCount());
+	}
+
+	@Test
+	public void testUnknownStage()
+	{
+		try
+		{
+			new RenderingMetrics(10).record("unknown", "uint8", 1, 0, 1);
+			fail("Unknown stages must be rejected.");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+	}
+}
@@ -6,6 +6,15 @@
  */
 package omeis.providers.re.utests;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import omeis.providers.re.RenderingStats;
 import omeis.providers.re.data.PlaneDef;
 
 import org.perf4j.LoggingStopWatch;
@@ -26,4 +35,48 @@ public class TestStandard16BitRenderer extends BaseRenderingTest
 			stopWatch.stop();
 		}
 	}
+
+	@Test(timeOut=30000)
+	public void testRenderAsPackedIntReusesTables() throws Exception
+	{
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		renderer.renderAsPackedInt(def, pixelBuffer);
+		renderer.renderAsPackedInt(def, pixelBuffer);
+		RenderingStats stats = renderer.getStats();
+		assertEquals(0, stats.getTableRebuilds());
+		assertTrue(stats.getTableHits() > 0);
+
+		renderer.setRGBA(0, 10, 200, 30, 255);
+		renderer.renderAsPackedInt(def, pixelBuffer);
+		assertEquals(1, renderer.getStats().getTableRebuilds());
+	}
+
+	@Test(timeOut=30000)
+	public void testConcurrentRenderAsPackedInt() throws Exception
+	{
+		final PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		int[] expected = renderer.renderAsPackedInt(def, pixelBuffer);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+			for (int i = 0; i < RUN_COUNT; i++)
+			{
+				results.add(executor.submit(new Callable<int[]>() {
+					public int[] call() throws Exception
+					{
+						return renderer.renderAsPackedInt(def, pixelBuffer);
+					}
+				}));
+			}
+			for (Future<int[]> result : results)
+			{
+				assertTrue(Arrays.equals(expected, result.get()));
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
 }